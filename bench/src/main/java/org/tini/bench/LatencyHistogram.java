@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Latency histogram in the manner of HdrHistogram - buckets are linear within each power of
+ * two, so that every recorded value is kept to within 1% no matter its magnitude, in fixed memory.
+ * Values are in microseconds, up to about 19 hours. Safe for concurrent recording.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+public class LatencyHistogram {
+
+    // 128 sub-buckets for values below 128, and 64 for each power of two above
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+    private static final long MAX_VALUE = (1L << 36) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value. Values beyond the range are recorded as the largest value.
+     *
+     * @param micros latency in microseconds
+     */
+    public void record(final long micros) {
+        final long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+        counts.incrementAndGet(indexOf(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while(value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry
+        }
+    }
+
+    /**
+     * Returns the number of values recorded.
+     *
+     * @return count
+     */
+    public long getCount() {
+        return total.get();
+    }
+
+    /**
+     * Returns the mean of the values recorded.
+     *
+     * @return mean in microseconds
+     */
+    public double getMean() {
+        final long count = total.get();
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+
+    /**
+     * Returns the largest value recorded.
+     *
+     * @return max in microseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the value at the given percentile - the highest value equivalent to it within the
+     * histogram's precision.
+     *
+     * @param percentile percentile between 0 and 100
+     * @return value in microseconds
+     */
+    public long getValueAtPercentile(final double percentile) {
+        final long count = total.get();
+        if(count == 0) {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for(int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if(seen >= target) {
+                return Math.min(highestEquivalent(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int indexOf(final long value) {
+        final int bucket = Math.max(0, (63 - Long.numberOfLeadingZeros(value | 1)) - SUB_BITS + 1);
+        final int sub = (int) (value >>> bucket);
+        return bucket == 0 ? sub : bucket * HALF_COUNT + sub;
+    }
+
+    private static long highestEquivalent(final int index) {
+        if(index < SUB_COUNT) {
+            return index;
+        }
+        final int bucket = index / HALF_COUNT - 1;
+        final long sub = index - bucket * HALF_COUNT;
+        return ((sub + 1) << bucket) - 1;
+    }
+}
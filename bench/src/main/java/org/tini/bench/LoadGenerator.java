@@ -0,0 +1,476 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.bench;
+
+import org.tini.client.ClientConnection;
+import org.tini.client.ClientRequest;
+import org.tini.client.ClientResponse;
+import org.tini.client.HttpClient;
+import org.tini.common.SizeClassBufferPool;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>HTTP load generator built on the tini client. Run it with</p>
+ *
+ * <pre>
+ * java org.tini.bench.LoadGenerator [options] url
+ * </pre>
+ *
+ * <p>Options:</p>
+ *
+ * <ul>
+ * <li>{@code --connections=n} - connections to keep open (default 16)</li>
+ * <li>{@code --depth=n} - requests in flight on each connection, pipelined when more than 1
+ * (default 1)</li>
+ * <li>{@code --rate=n} - requests per second for an open workload. Requests arrive at this rate
+ * whether or not earlier ones completed, and latency counts from when each was due. Without a
+ * rate, the workload is closed - each connection sends the next request as soon as one
+ * completes.</li>
+ * <li>{@code --duration=s} and {@code --warmup=s} - seconds to measure, and to run before that
+ * (default 10 and 2)</li>
+ * <li>{@code --method=m} and {@code --body=bytes} - request method and body size. Bodies are
+ * sent chunked (default GET with no body)</li>
+ * <li>{@code --no-keepalive} - one request per connection</li>
+ * <li>{@code --io-threads=n} - client I/O threads (default cores)</li>
+ * <li>{@code --label=text} and {@code --csv=file} - appends a line of results to the file, to
+ * compare runs</li>
+ * </ul>
+ *
+ * @author Subbu Allamaraju
+ */
+public class LoadGenerator {
+
+    private static final long DRAIN_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+    private final String host;
+    private final int port;
+    private final String path;
+    private final int connections;
+    private final int depth;
+    private final int rate;
+    private final String method;
+    private final byte[] body;
+    private final boolean keepAlive;
+
+    private final HttpClient client;
+
+    // Open workload - due times of requests waiting for a connection
+    private final ConcurrentLinkedQueue<Long> due = new ConcurrentLinkedQueue<Long>();
+    private final AtomicInteger cursor = new AtomicInteger();
+    private Lane[] lanes;
+
+    private volatile boolean running = true;
+    private volatile LatencyHistogram histogram = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong non2xx = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    LoadGenerator(final URI uri, final int connections, final int depth, final int rate,
+                  final String method, final int bodySize, final boolean keepAlive,
+                  final int ioThreads) throws IOException {
+        this.host = uri.getHost();
+        this.port = uri.getPort() == -1 ? 80 : uri.getPort();
+        this.path = uri.getRawPath().isEmpty() ? "/" :
+            uri.getRawQuery() == null ? uri.getRawPath() : uri.getRawPath() + "?" + uri.getRawQuery();
+        this.connections = connections;
+        this.depth = keepAlive ? depth : 1;
+        this.rate = rate;
+        this.method = method;
+        this.body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'x');
+        this.keepAlive = keepAlive;
+        this.client = new HttpClient(ioThreads, new SizeClassBufferPool(), connections, 60, TimeUnit.SECONDS);
+    }
+
+    public static void main(final String[] args) throws Exception {
+        int connections = 16;
+        int depth = 1;
+        int rate = 0;
+        long duration = 10;
+        long warmup = 2;
+        String method = "GET";
+        int bodySize = 0;
+        boolean keepAlive = true;
+        int ioThreads = Runtime.getRuntime().availableProcessors();
+        String label = "";
+        String csv = null;
+        URI uri = null;
+        for(final String arg : args) {
+            final int eq = arg.indexOf('=');
+            final String name = eq < 0 ? arg : arg.substring(0, eq);
+            final String value = eq < 0 ? null : arg.substring(eq + 1);
+            if(name.equals("--connections")) {
+                connections = Integer.parseInt(value);
+            }
+            else if(name.equals("--depth")) {
+                depth = Integer.parseInt(value);
+            }
+            else if(name.equals("--rate")) {
+                rate = Integer.parseInt(value);
+            }
+            else if(name.equals("--duration")) {
+                duration = Long.parseLong(value);
+            }
+            else if(name.equals("--warmup")) {
+                warmup = Long.parseLong(value);
+            }
+            else if(name.equals("--method")) {
+                method = value.toUpperCase(Locale.US);
+            }
+            else if(name.equals("--body")) {
+                bodySize = Integer.parseInt(value);
+            }
+            else if(name.equals("--no-keepalive")) {
+                keepAlive = false;
+            }
+            else if(name.equals("--io-threads")) {
+                ioThreads = Integer.parseInt(value);
+            }
+            else if(name.equals("--label")) {
+                label = value;
+            }
+            else if(name.equals("--csv")) {
+                csv = value;
+            }
+            else if(name.startsWith("--")) {
+                usage("Unknown option " + arg);
+            }
+            else {
+                uri = URI.create(arg);
+            }
+        }
+        if(uri == null || uri.getHost() == null) {
+            usage("Specify a URL such as http://localhost:3000/");
+        }
+
+        final LoadGenerator generator = new LoadGenerator(uri, connections, depth, rate, method,
+            bodySize, keepAlive, ioThreads);
+        final Result result = generator.run(warmup, duration);
+        result.print(System.out);
+        if(csv != null) {
+            final PrintWriter writer = new PrintWriter(new FileWriter(csv, true));
+            try {
+                writer.println(result.csv(label));
+            }
+            finally {
+                writer.close();
+            }
+        }
+        System.exit(result.errors > 0 ? 1 : 0);
+    }
+
+    private static void usage(final String message) {
+        System.err.println(message);
+        System.err.println("Usage: LoadGenerator [--connections=n] [--depth=n] [--rate=n] [--duration=s] " +
+            "[--warmup=s] [--method=m] [--body=bytes] [--no-keepalive] [--io-threads=n] [--label=text] " +
+            "[--csv=file] url");
+        System.exit(2);
+    }
+
+    /**
+     * Runs the workload.
+     *
+     * @param warmup   seconds to run before measuring
+     * @param duration seconds to measure
+     * @return result
+     * @throws InterruptedException if interrupted
+     */
+    Result run(final long warmup, final long duration) throws InterruptedException {
+        // Open all connections up front
+        lanes = new Lane[connections];
+        final CountDownLatch connected = new CountDownLatch(connections);
+        for(int i = 0; i < connections; i++) {
+            lanes[i] = new Lane();
+            lanes[i].connect(connected);
+        }
+        if(!connected.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Unable to connect to " + host + ":" + port);
+        }
+
+        final Thread pacer = rate > 0 ? startPacer() : null;
+        if(pacer == null) {
+            for(final Lane lane : lanes) {
+                lane.fill();
+            }
+        }
+
+        TimeUnit.SECONDS.sleep(warmup);
+        histogram = new LatencyHistogram();
+        errors.set(0);
+        non2xx.set(0);
+        bytes.set(0);
+        final long start = System.nanoTime();
+        TimeUnit.SECONDS.sleep(duration);
+        final long elapsed = System.nanoTime() - start;
+        final LatencyHistogram measured = histogram;
+        histogram = new LatencyHistogram();
+        final Result result = new Result(measured, elapsed, errors.get(), non2xx.get(), bytes.get(),
+            connections, depth, rate);
+
+        // Let requests in flight finish before closing connections
+        running = false;
+        if(pacer != null) {
+            pacer.interrupt();
+            pacer.join();
+        }
+        final long drainBy = System.nanoTime() + DRAIN_TIMEOUT;
+        while(inFlight.get() > 0 && System.nanoTime() < drainBy) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        client.shutdown();
+        return result;
+    }
+
+    /**
+     * Starts a thread that queues requests at the given rate, and hands them to connections.
+     *
+     * @return thread
+     */
+    private Thread startPacer() {
+        final long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        final Thread pacer = new Thread("tini-bench-pacer") {
+            @Override
+            public void run() {
+                long next = System.nanoTime();
+                while(running) {
+                    final long wait = next - System.nanoTime();
+                    if(wait > 0) {
+                        LockSupport.parkNanos(wait);
+                        if(isInterrupted()) {
+                            return;
+                        }
+                        continue;
+                    }
+                    // Catch up on all requests due by now
+                    while(next <= System.nanoTime()) {
+                        due.add(next);
+                        next += interval;
+                    }
+                    for(int i = 0; i < lanes.length && !due.isEmpty(); i++) {
+                        lanes[(cursor.getAndIncrement() & Integer.MAX_VALUE) % lanes.length].fill();
+                    }
+                }
+            }
+        };
+        pacer.setDaemon(true);
+        pacer.start();
+        return pacer;
+    }
+
+    /**
+     * One connection, and the requests in flight on it.
+     */
+    private class Lane {
+        private ClientConnection connection;
+        private int outstanding = 0;
+
+        void connect(final CountDownLatch connected) {
+            client.connect(host, port, new CompletionHandler<ClientConnection, Void>() {
+                @Override
+                public void completed(final ClientConnection result, final Void attachment) {
+                    synchronized(Lane.this) {
+                        connection = result;
+                    }
+                    if(connected != null) {
+                        connected.countDown();
+                    }
+                    else {
+                        fill();
+                    }
+                }
+
+                @Override
+                public void failed(final Throwable exc, final Void attachment) {
+                    errors.incrementAndGet();
+                    if(connected != null) {
+                        connected.countDown();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Sends requests till the connection has {@code depth} in flight - in a closed workload,
+         * right away, and in an open workload, as long as requests are due.
+         */
+        void fill() {
+            while(running) {
+                final long dueAt;
+                final ClientConnection current;
+                synchronized(this) {
+                    if(connection == null || outstanding >= depth) {
+                        return;
+                    }
+                    if(rate > 0) {
+                        final Long next = due.poll();
+                        if(next == null) {
+                            return;
+                        }
+                        dueAt = next;
+                    }
+                    else {
+                        dueAt = System.nanoTime();
+                    }
+                    outstanding++;
+                    inFlight.incrementAndGet();
+                    current = connection;
+                }
+                send(current, dueAt);
+            }
+        }
+
+        private void send(final ClientConnection current, final long dueAt) {
+            final ClientRequest request = current.request(path, method);
+            request.addHeader("Host", host + ":" + port);
+            if(!keepAlive) {
+                request.addHeader("Connection", "close");
+            }
+            request.onResponse(new CompletionHandler<ClientResponse, Void>() {
+                @Override
+                public void completed(final ClientResponse response, final Void attachment) {
+                    final int code = response.getResponseLine().getCode();
+                    if(code < 200 || code > 299) {
+                        non2xx.incrementAndGet();
+                    }
+                    response.onData(new CompletionHandler<ByteBuffer, Void>() {
+                        @Override
+                        public void completed(final ByteBuffer result, final Void attachment) {
+                            bytes.addAndGet(result.remaining());
+                        }
+
+                        @Override
+                        public void failed(final Throwable exc, final Void attachment) {
+                            done(current, dueAt, false);
+                        }
+                    });
+                    response.onTrailers(new CompletionHandler<Map<String, List<String>>, Void>() {
+                        @Override
+                        public void completed(final Map<String, List<String>> result, final Void attachment) {
+                            done(current, dueAt, true);
+                        }
+
+                        @Override
+                        public void failed(final Throwable exc, final Void attachment) {
+                            done(current, dueAt, false);
+                        }
+                    });
+                }
+
+                @Override
+                public void failed(final Throwable exc, final Void attachment) {
+                    done(current, dueAt, false);
+                }
+            });
+            if(body.length > 0) {
+                request.write(body);
+            }
+            request.end();
+        }
+
+        private void done(final ClientConnection current, final long dueAt, final boolean ok) {
+            if(ok) {
+                histogram.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - dueAt));
+            }
+            else {
+                errors.incrementAndGet();
+            }
+            final boolean reconnect;
+            synchronized(this) {
+                outstanding--;
+                inFlight.decrementAndGet();
+                reconnect = !ok || !keepAlive;
+                if(reconnect && connection == current) {
+                    connection = null;
+                }
+            }
+            if(reconnect) {
+                // The server closes, or the connection broke - give it back and get another
+                client.release(current);
+                if(running) {
+                    connect(null);
+                }
+            }
+            else {
+                fill();
+            }
+        }
+    }
+
+    /**
+     * Measurements of one run.
+     */
+    static class Result {
+        final LatencyHistogram histogram;
+        final long elapsedNanos;
+        final long errors;
+        final long non2xx;
+        final long bytes;
+        final int connections;
+        final int depth;
+        final int rate;
+
+        Result(final LatencyHistogram histogram, final long elapsedNanos, final long errors,
+               final long non2xx, final long bytes, final int connections, final int depth, final int rate) {
+            this.histogram = histogram;
+            this.elapsedNanos = elapsedNanos;
+            this.errors = errors;
+            this.non2xx = non2xx;
+            this.bytes = bytes;
+            this.connections = connections;
+            this.depth = depth;
+            this.rate = rate;
+        }
+
+        double throughput() {
+            return histogram.getCount() * 1e9 / elapsedNanos;
+        }
+
+        void print(final PrintStream out) {
+            out.printf(Locale.US, "%s workload, %d connections, depth %d%s%n",
+                rate > 0 ? "Open" : "Closed", connections, depth, rate > 0 ? ", " + rate + " req/s offered" : "");
+            out.printf(Locale.US, "Requests:   %d (%.1f req/s, %.1f KB/s)%n",
+                histogram.getCount(), throughput(), bytes * 1e9 / elapsedNanos / 1024);
+            out.printf(Locale.US, "Errors:     %d, non-2xx: %d%n", errors, non2xx);
+            out.printf(Locale.US, "Latency us: mean %.0f, p50 %d, p90 %d, p99 %d, p99.9 %d, max %d%n",
+                histogram.getMean(), histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+                histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.getMax());
+        }
+
+        String csv(final String label) {
+            return String.format(Locale.US, "%s,%s,%d,%d,%d,%d,%d,%d,%.1f,%d,%d,%d,%d,%d",
+                label, rate > 0 ? "open" : "closed", connections, depth, rate, histogram.getCount(), errors,
+                non2xx, throughput(), histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+                histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.getMax());
+        }
+    }
+}
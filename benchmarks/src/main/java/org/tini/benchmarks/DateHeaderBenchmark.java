@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tini.parser.HttpDate;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Date header values from a shared, synchronized {@link SimpleDateFormat}, and from {@link
+ * HttpDate#current()}, on four threads at once.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@Threads(4)
+public class DateHeaderBenchmark {
+
+    private final DateFormat shared = new SimpleDateFormat(HttpDate.PATTERN, Locale.US);
+
+    public DateHeaderBenchmark() {
+        shared.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+
+    @Benchmark
+    public String sharedFormat() {
+        synchronized(shared) {
+            return shared.format(new Date());
+        }
+    }
+
+    @Benchmark
+    public String cached() {
+        return HttpDate.current();
+    }
+}
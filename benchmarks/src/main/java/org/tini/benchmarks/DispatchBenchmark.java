@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tini.server.DispatchTable;
+import org.tini.server.ServerRequest;
+import org.tini.server.ServerResponse;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Finding and calling the handler method for a request - by annotation scans and reflective
+ * calls as the server used to, and by {@link DispatchTable} lookups and method handle calls.
+ * Requests cycle over four paths and two methods.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DispatchBenchmark {
+
+    private static final String[] PATHS = {"/a", "/b", "/c", "/d"};
+    private static final String[] METHODS = {"GET", "POST"};
+
+    private final Map<String, Object> handlers = new HashMap<String, Object>();
+    private DispatchTable table = DispatchTable.EMPTY;
+    private int next = 0;
+
+    public DispatchBenchmark() {
+        for(final String path : PATHS) {
+            final Handler handler = new Handler();
+            handlers.put(path, handler);
+            table = table.with(path, handler);
+        }
+    }
+
+    @Benchmark
+    public void reflection() throws Exception {
+        final int i = next++;
+        final String methodName = METHODS[(i >> 2) & 1];
+        final Class<? extends Annotation> methodAnnotation =
+            Class.forName("javax.ws.rs." + methodName.toUpperCase()).asSubclass(Annotation.class);
+        final Object handler = handlers.get(PATHS[i & 3]);
+        Method hMethod = null;
+        for(final Method method : handler.getClass().getMethods()) {
+            if(method.getAnnotation(methodAnnotation) != null) {
+                hMethod = method;
+                break;
+            }
+        }
+        hMethod.setAccessible(true);
+        hMethod.invoke(handler, null, null);
+    }
+
+    @Benchmark
+    public void dispatchTable() throws Throwable {
+        final int i = next++;
+        final MethodHandle invoker = table.find(METHODS[(i >> 2) & 1], PATHS[i & 3]);
+        invoker.invokeExact((ServerRequest) null, (ServerResponse) null);
+    }
+
+    public static class Handler {
+        private long count;
+
+        @GET
+        public void get(final ServerRequest request, final ServerResponse response) {
+            count++;
+        }
+
+        @POST
+        public void post(final ServerRequest request, final ServerResponse response) {
+            count += 2;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.tini.parser.RequestParser;
+
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Parses a request with a header block of {@code size} bytes - many headers with 60 byte
+ * values - to time the scan for line ends. Each read fills the parser's buffer, so divide the
+ * size by the time per request for bytes per second.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class HeaderScanBenchmark {
+
+    @Param({"1024", "8192", "65536"})
+    public int size;
+
+    private byte[] request;
+
+    @Setup
+    public void setUp() {
+        final StringBuilder builder = new StringBuilder("GET /resource HTTP/1.1\r\n");
+        int i = 0;
+        while(builder.length() < size - 2) {
+            builder.append("X-Header-").append(i++).append(": ");
+            builder.append("0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghij\r\n");
+        }
+        builder.append("\r\n");
+        request = builder.toString().getBytes(Charset.forName("US-ASCII"));
+    }
+
+    @Benchmark
+    public void scanHeaders(final Blackhole blackhole) {
+        final RequestParser parser = new RequestParser(new MemoryChannel(request, request.length), 100, TimeUnit.SECONDS);
+        parser.onHeaders(new CompletionHandler<Map<String, List<String>>, Void>() {
+            @Override
+            public void completed(final Map<String, List<String>> result, final Void attachment) {
+                blackhole.consume(result);
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                throw new IllegalStateException(exc);
+            }
+        });
+        parser.go();
+    }
+}
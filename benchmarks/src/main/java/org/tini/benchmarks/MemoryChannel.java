@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.benchmarks;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory channel for benchmarks. Reads are served from a byte array, and writes are counted
+ * and dropped. Both complete on the calling thread.
+ *
+ * @author Subbu Allamaraju
+ */
+public class MemoryChannel extends AsynchronousSocketChannel {
+
+    private final byte[] source;
+    private final int readSize;
+    private int position = 0;
+    private long written = 0;
+    private boolean open = true;
+
+    /**
+     * Creates a channel to read the given bytes from, at most readSize bytes per read.
+     *
+     * @param source   bytes to read
+     * @param readSize most bytes per read - as a network would split them
+     */
+    public MemoryChannel(final byte[] source, final int readSize) {
+        super(null);
+        this.source = source;
+        this.readSize = readSize;
+    }
+
+    /**
+     * Creates a channel that only accepts writes.
+     */
+    public MemoryChannel() {
+        this(new byte[0], 0);
+    }
+
+    /**
+     * Returns bytes written so far.
+     *
+     * @return bytes
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    @Override
+    public <A> void read(final ByteBuffer dst, final long timeout, final TimeUnit unit,
+                         final A attachment, final CompletionHandler<Integer, ? super A> handler) {
+        final int count = Math.min(Math.min(dst.remaining(), readSize), source.length - position);
+        if(count <= 0) {
+            handler.completed(-1, attachment);
+            return;
+        }
+        dst.put(source, position, count);
+        position += count;
+        handler.completed(count, attachment);
+    }
+
+    @Override
+    public <A> void write(final ByteBuffer src, final long timeout, final TimeUnit unit,
+                          final A attachment, final CompletionHandler<Integer, ? super A> handler) {
+        final int count = src.remaining();
+        src.position(src.limit());
+        written += count;
+        handler.completed(count, attachment);
+    }
+
+    @Override
+    public <A> void write(final ByteBuffer[] srcs, final int offset, final int length,
+                          final long timeout, final TimeUnit unit, final A attachment,
+                          final CompletionHandler<Long, ? super A> handler) {
+        long count = 0;
+        for(int i = offset; i < offset + length; i++) {
+            count += srcs[i].remaining();
+            srcs[i].position(srcs[i].limit());
+        }
+        written += count;
+        handler.completed(count, attachment);
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public AsynchronousSocketChannel bind(final SocketAddress local) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T> AsynchronousSocketChannel setOption(final SocketOption<T> name, final T value) {
+        return this;
+    }
+
+    @Override
+    public <T> T getOption(final SocketOption<T> name) {
+        return null;
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public AsynchronousSocketChannel shutdownInput() {
+        return this;
+    }
+
+    @Override
+    public AsynchronousSocketChannel shutdownOutput() {
+        return this;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() throws IOException {
+        return null;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() throws IOException {
+        return null;
+    }
+
+    @Override
+    public <A> void connect(final SocketAddress remote, final A attachment,
+                            final CompletionHandler<Void, ? super A> handler) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Future<Void> connect(final SocketAddress remote) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Future<Integer> read(final ByteBuffer dst) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <A> void read(final ByteBuffer[] dsts, final int offset, final int length,
+                         final long timeout, final TimeUnit unit, final A attachment,
+                         final CompletionHandler<Long, ? super A> handler) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Future<Integer> write(final ByteBuffer src) {
+        throw new UnsupportedOperationException();
+    }
+}
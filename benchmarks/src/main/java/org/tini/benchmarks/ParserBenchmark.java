@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.tini.parser.HttpParser;
+import org.tini.parser.RequestLine;
+import org.tini.parser.RequestParser;
+import org.tini.parser.ResponseLine;
+import org.tini.parser.ResponseParser;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Parses messages pipelined on an in-memory channel, with {@link RequestParser} and {@link
+ * ResponseParser}. Each invocation parses {@link #PER_CONNECTION} messages of one shape:</p>
+ *
+ * <ul>
+ * <li>{@code headers} - a browser-style GET with 15 headers</li>
+ * <li>{@code chunked} - a POST with a 4KB body in 8 chunks, and trailers</li>
+ * <li>{@code large} - a POST with a 64KB body</li>
+ * </ul>
+ *
+ * <p>Reads return at most {@code readSize} bytes, so that lines and bodies span reads as they
+ * do on a network.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ParserBenchmark {
+
+    // Messages per connection - reads complete synchronously, so this bounds the stack depth
+    static final int PER_CONNECTION = 8;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final String HEADERS = "Host: www.example.org\r\n" +
+        "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:10.0) Gecko/20100101 Firefox/10.0\r\n" +
+        "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+        "Accept-Language: en-us,en;q=0.5\r\n" +
+        "Accept-Encoding: gzip, deflate\r\n" +
+        "Accept-Charset: ISO-8859-1,utf-8;q=0.7,*;q=0.7\r\n" +
+        "Connection: keep-alive\r\n" +
+        "Referer: http://www.example.org/\r\n" +
+        "Cookie: session=2b7e151628aed2a6abf7158809cf4f3c; theme=dark\r\n" +
+        "Cache-Control: max-age=0\r\n" +
+        "If-None-Match: \"737060cd8c284d8af7ad3082f209582d\"\r\n" +
+        "If-Modified-Since: Sat, 29 Oct 2011 19:43:31 GMT\r\n" +
+        "X-Requested-With: XMLHttpRequest\r\n" +
+        "X-Forwarded-For: 10.0.0.1\r\n" +
+        "Pragma: no-cache\r\n";
+
+    @Param({"headers", "chunked", "large"})
+    public String shape;
+
+    @Param({"1460", "8192"})
+    public int readSize;
+
+    private byte[] requests;
+    private byte[] responses;
+
+    @Setup
+    public void setUp() {
+        final String requestBody;
+        final String responseBody;
+        if(shape.equals("headers")) {
+            requestBody = "GET /index.html?q=tini HTTP/1.1\r\n" + HEADERS + "\r\n";
+            responseBody = "HTTP/1.1 304 Not Modified\r\n" +
+                "Date: Sat, 29 Oct 2011 19:43:31 GMT\r\n" +
+                "Server: tini/1.0\r\n" +
+                "ETag: \"737060cd8c284d8af7ad3082f209582d\"\r\n" +
+                "Cache-Control: max-age=3600\r\n" +
+                "Vary: Accept-Encoding\r\n" +
+                "Connection: keep-alive\r\n" +
+                "\r\n";
+        }
+        else if(shape.equals("chunked")) {
+            final String chunks = chunks(8, 512) + "0\r\nX-Checksum: 1234\r\n\r\n";
+            requestBody = "POST /upload HTTP/1.1\r\nHost: www.example.org\r\n" +
+                "Content-Type: application/octet-stream\r\nTransfer-Encoding: chunked\r\n\r\n" + chunks;
+            responseBody = "HTTP/1.1 200 OK\r\nServer: tini/1.0\r\n" +
+                "Content-Type: application/octet-stream\r\nTransfer-Encoding: chunked\r\n\r\n" + chunks;
+        }
+        else {
+            final String body = repeat('x', 64 * 1024);
+            requestBody = "POST /upload HTTP/1.1\r\nHost: www.example.org\r\n" +
+                "Content-Type: application/octet-stream\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+            responseBody = "HTTP/1.1 200 OK\r\nServer: tini/1.0\r\n" +
+                "Content-Type: application/octet-stream\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+        }
+        requests = repeat(requestBody, PER_CONNECTION).getBytes(US_ASCII);
+        responses = repeat(responseBody, PER_CONNECTION).getBytes(US_ASCII);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PER_CONNECTION)
+    public void parseRequests(final Blackhole blackhole) {
+        final RequestParser parser = new RequestParser(new MemoryChannel(requests, readSize), 10, TimeUnit.SECONDS);
+        parser.onRequestLine(new CompletionHandler<RequestLine, Void>() {
+            @Override
+            public void completed(final RequestLine result, final Void attachment) {
+                blackhole.consume(result);
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                throw new IllegalStateException(exc);
+            }
+        });
+        consume(parser, blackhole);
+        parser.go();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PER_CONNECTION)
+    public void parseResponses(final Blackhole blackhole) {
+        final ResponseParser parser = new ResponseParser(new MemoryChannel(responses, readSize), 10, TimeUnit.SECONDS);
+        parser.onResponseLine(new CompletionHandler<ResponseLine, Void>() {
+            @Override
+            public void completed(final ResponseLine result, final Void attachment) {
+                blackhole.consume(result);
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                throw new IllegalStateException(exc);
+            }
+        });
+        consume(parser, blackhole);
+        parser.go();
+    }
+
+    private static void consume(final HttpParser parser, final Blackhole blackhole) {
+        final CompletionHandler<Map<String, List<String>>, Void> onHeaders =
+            new CompletionHandler<Map<String, List<String>>, Void>() {
+                @Override
+                public void completed(final Map<String, List<String>> result, final Void attachment) {
+                    // A typical app looks at a header or two
+                    blackhole.consume(result.get("host"));
+                }
+
+                @Override
+                public void failed(final Throwable exc, final Void attachment) {
+                    throw new IllegalStateException(exc);
+                }
+            };
+        parser.onHeaders(onHeaders);
+        parser.onTrailers(onHeaders);
+        parser.onData(new CompletionHandler<ByteBuffer, Void>() {
+            @Override
+            public void completed(final ByteBuffer result, final Void attachment) {
+                blackhole.consume(result.remaining());
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                throw new IllegalStateException(exc);
+            }
+        });
+    }
+
+    private static String chunks(final int count, final int size) {
+        final String chunk = Integer.toHexString(size) + "\r\n" + repeat('x', size) + "\r\n";
+        return repeat(chunk, count);
+    }
+
+    private static String repeat(final char c, final int count) {
+        final char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static String repeat(final String s, final int count) {
+        final StringBuilder builder = new StringBuilder(s.length() * count);
+        for(int i = 0; i < count; i++) {
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+}
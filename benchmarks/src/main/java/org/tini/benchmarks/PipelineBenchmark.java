@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tini.common.MessagePipeline;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Throughput of {@link MessagePipeline} - push, peek and poll on one thread as a connection
+ * does for each message, and offer on one thread with peek and poll on another.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PipelineBenchmark {
+
+    private static final Object MESSAGE = new Object();
+
+    @State(Scope.Thread)
+    public static class Local {
+        final MessagePipeline<Object> pipeline = new MessagePipeline<Object>();
+    }
+
+    @State(Scope.Group)
+    public static class Shared {
+        // Bounded - the producer backs off when the consumer falls behind
+        final MessagePipeline<Object> pipeline = new MessagePipeline<Object>();
+    }
+
+    @Benchmark
+    public Object pushPeekPoll(final Local local) {
+        local.pipeline.push(MESSAGE);
+        local.pipeline.peek();
+        return local.pipeline.poll();
+    }
+
+    @Benchmark
+    @Group("handoff")
+    public boolean push(final Shared shared) {
+        return shared.pipeline.offer(MESSAGE);
+    }
+
+    @Benchmark
+    @Group("handoff")
+    public Object peekPoll(final Shared shared) {
+        if(shared.pipeline.peek() == null) {
+            return null;
+        }
+        return shared.pipeline.poll();
+    }
+}
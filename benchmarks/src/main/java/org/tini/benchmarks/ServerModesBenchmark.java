@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tini.server.HttpServer;
+import org.tini.server.ServerRequest;
+import org.tini.server.ServerResponse;
+
+import javax.ws.rs.GET;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Requests to a handler that blocks for a couple of milliseconds, from {@link #CONNECTIONS}
+ * keep-alive connections, with latency percentiles, for three set ups - a cached thread pool
+ * channel group (the old default), a fixed group of one I/O thread per core with handlers on I/O
+ * threads, and the same group with handlers on bounded workers. Each mode runs in its own fork,
+ * which prints the peak number of server threads at the end.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@Threads(ServerModesBenchmark.CONNECTIONS)
+public class ServerModesBenchmark {
+
+    static final int CONNECTIONS = 64;
+
+    private static final int PORT = 3100;
+    private static final byte[] REQUEST = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(Charset.forName("US-ASCII"));
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(Charset.forName("US-ASCII"));
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"cached", "io", "workers"})
+        public String mode;
+
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private int baseline;
+        private HttpServer server;
+
+        @Setup
+        public void start() throws InterruptedException {
+            baseline = threads.getThreadCount();
+            server = HttpServer.createServer();
+            if("cached".equals(mode)) {
+                try {
+                    server.setChannelGroup(AsynchronousChannelGroup.withCachedThreadPool(Executors.newCachedThreadPool(), 1));
+                }
+                catch(IOException ioe) {
+                    throw new IllegalStateException(ioe);
+                }
+            }
+            else if("workers".equals(mode)) {
+                server.setWorkers(CONNECTIONS, 4 * CONNECTIONS);
+            }
+            server.use(new Object() {
+                @GET
+                public void get(final ServerRequest request, final ServerResponse response) throws InterruptedException {
+                    // Blocking work
+                    Thread.sleep(2);
+                    response.setContentType("text/plain");
+                    response.write("ok");
+                    response.end();
+                }
+            });
+            final CountDownLatch started = new CountDownLatch(1);
+            server.listen(PORT, new CompletionHandler<Void, Void>() {
+                @Override
+                public void completed(final Void result, final Void attachment) {
+                    started.countDown();
+                }
+
+                @Override
+                public void failed(final Throwable exc, final Void attachment) {
+                    exc.printStackTrace();
+                }
+            });
+            started.await();
+        }
+
+        @TearDown
+        public void stop() throws IOException {
+            // Less the benchmark threads
+            System.out.println(mode + ": peak server threads " +
+                (threads.getPeakThreadCount() - CONNECTIONS - baseline));
+            server.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        private final byte[] buffer = new byte[4096];
+        private Socket socket;
+        private OutputStream out;
+        private InputStream in;
+
+        @Setup
+        public void open(final Server server) throws IOException {
+            socket = new Socket("localhost", PORT);
+            out = socket.getOutputStream();
+            in = socket.getInputStream();
+        }
+
+        @TearDown
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public void request(final Connection connection) throws IOException {
+        connection.out.write(REQUEST);
+
+        // Read till the last chunk
+        int matched = 0;
+        while(matched < LAST_CHUNK.length) {
+            final int read = connection.in.read(connection.buffer);
+            if(read < 0) {
+                throw new IOException("Connection closed");
+            }
+            for(int i = 0; i < read; i++) {
+                if(connection.buffer[i] == LAST_CHUNK[matched]) {
+                    matched++;
+                    if(matched == LAST_CHUNK.length) {
+                        break;
+                    }
+                }
+                else {
+                    matched = connection.buffer[i] == LAST_CHUNK[0] ? 1 : 0;
+                }
+            }
+        }
+    }
+}
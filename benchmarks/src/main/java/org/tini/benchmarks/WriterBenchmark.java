@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tini.common.SizeClassBufferPool;
+import org.tini.common.WritableMessage;
+import org.tini.common.WritablePipeline;
+import org.tini.parser.HeadEncoder;
+import org.tini.parser.HttpDate;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Writes responses through a {@link WritablePipeline} onto an in-memory channel - the head
+ * alone via {@link WritableMessage#writeHead()}, and the head with a small body or a large
+ * zero-copy body. Each response has the headers a typical server response has.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class WriterBenchmark {
+
+    @Param({"4"})
+    public int extraHeaders;
+
+    private MemoryChannel channel;
+    private WritablePipeline pipeline;
+    private ByteBuffer small;
+    private ByteBuffer large;
+
+    @Setup
+    public void setUp() {
+        channel = new MemoryChannel();
+        pipeline = new WritablePipeline(channel, new SizeClassBufferPool()) {
+            @Override
+            protected void beginWriting() {
+            }
+
+            @Override
+            protected void endWriting() {
+            }
+        };
+        small = ByteBuffer.wrap(new byte[256]);
+        large = ByteBuffer.wrap(new byte[32 * 1024]);
+    }
+
+    @Benchmark
+    public long writeHead() throws InterruptedException {
+        final Response response = response();
+        response.writeHead();
+        response.end();
+        return channel.getWritten();
+    }
+
+    @Benchmark
+    public long writeSmallBody() throws InterruptedException {
+        final Response response = response();
+        response.addHeader("Content-Length", "256");
+        response.write(small);
+        response.end();
+        return channel.getWritten();
+    }
+
+    @Benchmark
+    public long writeLargeChunkedBody() throws InterruptedException {
+        final Response response = response();
+        response.write(large, null);
+        response.end();
+        return channel.getWritten();
+    }
+
+    private Response response() throws InterruptedException {
+        final Response response = new Response(pipeline);
+        response.addHeader("Server", "tini/1.0");
+        response.addHeader("Date", HttpDate.current());
+        response.setContentType("text/html; charset=UTF-8");
+        for(int i = 0; i < extraHeaders; i++) {
+            response.addHeader("X-Header-" + i, "value-" + i);
+        }
+        pipeline.push(response);
+        return response;
+    }
+
+    /**
+     * A 200 response over any pipeline.
+     */
+    private static class Response extends WritableMessage {
+        Response(final WritablePipeline pipeline) {
+            super(pipeline);
+        }
+
+        @Override
+        protected int firstLineLength() {
+            return HeadEncoder.statusLineLength(200, "OK");
+        }
+
+        @Override
+        protected void writeFirstLine(final ByteBuffer buffer) {
+            HeadEncoder.putStatusLine(buffer, 200, "OK");
+        }
+
+        @Override
+        protected boolean doClose() {
+            return false;
+        }
+    }
+}
@@ -1,2 +1,68 @@
+#!/usr/bin/env bash
+# Runs the load generator in bench/ against the example servers on localhost, and appends
+# results to results.csv. Usage: bin/bench.bash [label] [duration-seconds]
+function die() {
+  echo $*
+  exit 1
+}
 
-autobench --single_host --host1 localhost --uri1 /run.bash --port 3031 --quiet --low_rate 20 --high_rate 200 --rate_step 20 --num_call 10 --num_conn 500 --timeout 5 --file results.tsv 
+root=`cd \`dirname $0\`/.. && pwd`
+label=${1:-`git -C $root describe --always --dirty 2>/dev/null`}
+duration=${2:-10}
+results=$root/results.csv
+port=3000
+
+cd $root
+mvn -q install -DskipTests || die "Unable to build tini"
+mvn -q -f bench/pom.xml package || die "Unable to build the load generator"
+serverJar=`ls $root/target/*with-dependencies.jar`
+benchJar=`ls $root/bench/target/*with-dependencies.jar`
+javaArgs="-server -Djava.util.logging.config.file=$root/logging.properties"
+
+if [ ! -f $results ]
+then
+  echo "label,model,connections,depth,rate,requests,errors,non2xx,req/s,p50us,p90us,p99us,p99.9us,maxus" > $results
+fi
+
+# Starts a server class, and waits till it accepts connections
+function start() {
+  java $javaArgs -cp $serverJar $1 > /dev/null 2>&1 &
+  server=$!
+  for i in `seq 1 50`
+  do
+    (exec 3<>/dev/tcp/localhost/$port) 2>/dev/null && return
+    sleep 0.2
+  done
+  kill $server
+  die "$1 did not start"
+}
+
+function stop() {
+  kill $server
+  wait $server 2>/dev/null
+}
+
+# Runs the load generator with the given name and options
+function load() {
+  local name=$1
+  shift
+  echo "== $name"
+  java $javaArgs -jar $benchJar --duration=$duration --label="$label $name" --csv=$results $* ||
+    echo "$name had errors"
+}
+
+start examples.HelloWorldServer
+load hello-closed --connections=16 http://localhost:$port/
+load hello-pipelined --connections=16 --depth=8 http://localhost:$port/
+load hello-open --connections=16 --rate=5000 http://localhost:$port/
+load hello-close --connections=16 --no-keepalive http://localhost:$port/
+stop
+
+start examples.EchoServer
+load echo-4k --connections=16 --method=POST --body=4096 http://localhost:$port/echo
+stop
+
+start examples.FileServer
+load file-10k --connections=16 http://localhost:$port/data/large.txt
+load file-270k --connections=16 http://localhost:$port/data/large.log
+stop
@@ -0,0 +1,14 @@
+#!/usr/bin/env bash
+# Runs the JMH benchmarks in benchmarks/ with the GC profiler, so that results include bytes
+# allocated per operation (gc.alloc.rate.norm). Arguments go to JMH - for example, a regex to
+# pick benchmarks: bin/jmh.bash ParserBenchmark
+function die() {
+  echo $*
+  exit 1
+}
+
+root=`cd \`dirname $0\`/.. && pwd`
+cd $root
+mvn -q install -DskipTests || die "Unable to build tini"
+mvn -q -f benchmarks/pom.xml package || die "Unable to build the benchmarks"
+java -jar benchmarks/target/benchmarks.jar -prof gc -rf json -rff jmh-results.json $*
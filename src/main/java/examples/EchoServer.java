@@ -19,7 +19,7 @@ import org.tini.server.ServerRequest;
 import org.tini.server.ServerResponse;
 import org.tini.server.HttpServer;
 
-import java.net.StandardSocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.CompletionHandler;
 import java.util.List;
@@ -36,8 +36,8 @@ public class EchoServer {
         final HttpServer server = HttpServer.createServer();
 
         // TODO: Test
-        server.setOption(StandardSocketOption.SO_KEEPALIVE, true);
-        server.setOption(StandardSocketOption.TCP_NODELAY, true);
+        server.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        server.setOption(StandardSocketOptions.TCP_NODELAY, true);
 
         server.use(new Object() {
             public void service(final ServerRequest request, final ServerResponse response) {
@@ -63,9 +63,8 @@ public class EchoServer {
                 request.onData(new CompletionHandler<ByteBuffer, Void>() {
                     @Override
                     public void completed(final ByteBuffer result, final Void count) {
-                        response.write(result);
-                        if(!result.hasRemaining()) {
-                            response.end();
+                        if(result.hasRemaining()) {
+                            response.write(result);
                         }
                     }
 
@@ -79,12 +78,15 @@ public class EchoServer {
                 request.onTrailers(new CompletionHandler<Map<String, List<String>>, Void>() {
                     @Override
                     public void completed(final Map<String, List<String>> result, final Void attachment) {
-                        for(final String name : headers.keySet()) {
-                            final List<String> values = headers.get(name);
+                        for(final String name : result.keySet()) {
+                            final List<String> values = result.get(name);
                             for(final String value : values) {
                                 response.write(name + ": " + value + "\n");
                             }
                         }
+
+                        // Trailers come last - with or without a body
+                        response.end();
                     }
 
                     @Override
@@ -15,18 +15,16 @@
 
 package examples;
 
+import org.tini.common.Compression;
+import org.tini.server.ContentCache;
 import org.tini.server.HttpServer;
 import org.tini.server.ServerRequest;
 import org.tini.server.ServerResponse;
 
 import javax.ws.rs.GET;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.channels.CompletionHandler;
+import javax.ws.rs.HEAD;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 
 /**
  * Simple file server
@@ -37,47 +35,33 @@ public class FileServer {
 
     public static void main(final String[] args) throws Exception {
         final HttpServer server = HttpServer.createServer();
+        final Path root = FileSystems.getDefault().getPath("").toAbsolutePath();
+
+        // Text files go out compressed, or as their .gz siblings, to clients that accept gzip
+        server.setCompression(new Compression());
+
+        // Hot files are served from memory - 64 MB
+        final ContentCache cache = new ContentCache(64 * 1024 * 1024);
 
         // Serves a file - relative to the root dir
         server.use(new Object() {
             @GET
-            public void getAFile(final ServerRequest request, final ServerResponse response) throws IOException {
-                System.err.println("Serving file " + request.getRequestLine().getUri());
-                final Path path = FileSystems.getDefault().getPath(request.getRequestLine().getUri().substring(1)); // Trim the slash
-                final AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
-                copyFile(channel, 0, response);
-            }
-        });
-
-        server.listen(3000);
-    }
-
-    private static void copyFile(final AsynchronousFileChannel channel, final int start, final ServerResponse response) {
-        final ByteBuffer buffer = ByteBuffer.allocate(1024);
-        channel.read(buffer, start, null, new CompletionHandler<Integer, Object>() {
-            @Override
-            public void completed(final Integer result, final Object attachment) {
-                if(result > 0) {
-                    buffer.rewind();
-                    response.write(buffer);
-                    copyFile(channel, start + result, response);
-                }
-                else {
+            public void getAFile(final ServerRequest request, final ServerResponse response) {
+                final Path path = root.resolve(request.getRequestLine().getUri().substring(1)).normalize(); // Trim the slash
+                if(!path.startsWith(root)) {
+                    response.setStatus(404, "Not Found");
                     response.end();
-                    try {
-                        channel.close();
-                    }
-                    catch(IOException ioe) {
-                        ioe.printStackTrace();
-                    }
+                    return;
                 }
+                cache.send(request, response, path);
             }
 
-            @Override
-            public void failed(final Throwable exc, final Object attachment) {
-                response.setStatus(404, "File Not Found");
-                response.end();
+            @HEAD
+            public void headAFile(final ServerRequest request, final ServerResponse response) {
+                getAFile(request, response);
             }
         });
+
+        server.listen(3000);
     }
-}
\ No newline at end of file
+}
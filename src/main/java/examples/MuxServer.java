@@ -18,10 +18,6 @@ package examples;
 import org.tini.server.ServerRequest;
 import org.tini.server.ServerResponse;
 
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.channels.CompletionHandler;
 import java.util.Random;
 
 /**
@@ -32,23 +28,23 @@ public class MuxServer {
     public static void main(final String[] args) throws Exception {
 //        final HttpServer server = HttpServer.createServer();
 //
+//        // Handlers run on their own (virtual where available) threads, and may block
+//        server.setThreadPerRequest();
+//
 //        // Waits for upto 5 secs before responding
 //        server.use("/r1", new Object() {
 //            @GET
 //            public void delayResponse(final ServerRequest request, final ServerResponse response) {
 //                response.setContentType("text/plain; charset=UTF-8");
-//                final Thread t = new Thread(new Wait(request, response));
-//                t.start();
+//                new Wait(request, response).run();
 //            }
 //        });
 //
 //        // Serves a large file
 //        server.use("/r2", new Object() {
 //            @GET
-//            public void getAFile(final ServerRequest request, final ServerResponse response) throws IOException {
-//                final Path path = FileSystems.getDefault().getPath("data/large.log");
-//                final AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
-//                copyFile(channel, 0, response);
+//            public void getAFile(final ServerRequest request, final ServerResponse response) {
+//                response.sendFile(FileSystems.getDefault().getPath("data/large.log"));
 //            }
 //        });
 //
@@ -94,36 +90,6 @@ public class MuxServer {
 //        server.listen(3000);
     }
 
-    static void copyFile(final AsynchronousFileChannel channel, final int start, final ServerResponse response) {
-        final ByteBuffer buffer = ByteBuffer.allocate(1024);
-        channel.read(buffer, start, null, new CompletionHandler<Integer, Object>() {
-            @Override
-            public void completed(final Integer result, final Object attachment) {
-                if(result > 0) {
-                    buffer.rewind();
-                    response.write(buffer);
-                    copyFile(channel, start + result, response);
-                }
-                else {
-                    response.end();
-                    try {
-                        channel.close();
-                    }
-                    catch(IOException ioe) {
-                        ioe.printStackTrace();
-                    }
-                }
-            }
-
-            @Override
-            public void failed(final Throwable exc, final Object attachment) {
-                response.setStatus(404, "File Not Found");
-                response.end();
-            }
-        });
-    }
-
-    // TODO
     static class Wait implements Runnable {
         final ServerRequest request;
         final ServerResponse response;
@@ -17,6 +17,10 @@ package examples;
 import org.tini.client.ClientConnection;
 import org.tini.client.ClientRequest;
 import org.tini.client.ClientResponse;
+import org.tini.client.DiskCacheStore;
+import org.tini.client.HttpCache;
+import org.tini.client.HttpClient;
+import org.tini.client.MemoryCacheStore;
 import org.tini.common.Utils;
 import org.tini.server.HttpServer;
 import org.tini.server.ServerRequest;
@@ -26,26 +30,57 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.channels.CompletionHandler;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
 
 /**
- * A demo transparent proxy server - does not support CONNECT.
+ * A demo transparent proxy server - does not support CONNECT. {@code GET} and {@code HEAD}
+ * requests go through a cache with 64 MB in memory, and - given a directory as the argument - 256
+ * MB on disk. Identical requests that the cache does not answer share one request to the origin.
  *
  * @author Subbu Allamaraju
  */
 public class ProxyServer {
     public static void main(final String[] args) throws Exception {
         final HttpServer server = HttpServer.createServer();
+
+        // One client - and its connections to origins - for all proxied requests
+        final HttpClient client = HttpClient.createClient();
+        final HttpCache cache = new HttpCache(client, new MemoryCacheStore(64 * 1024 * 1024,
+            args.length > 0 ? new DiskCacheStore(Paths.get(args[0]), 256 * 1024 * 1024) : null));
         server.use(new Object() {
             public void service(final ServerRequest request, final ServerResponse response) throws URISyntaxException, IOException {
                 final URI uri = new URI(request.getRequestLine().getUri());
-                final ClientConnection connection = new ClientConnection();
-                connection.connect(uri.getHost(), uri.getPort(), new CompletionHandler<Void, Void>() {
+                final String method = request.getRequestLine().getMethod();
+                if("GET".equals(method) || "HEAD".equals(method)) {
+                    cache.send(uri.getHost(), uri.getPort(), method, path(uri), request.getHeaders(),
+                        new CompletionHandler<ClientResponse, Void>() {
+                            @Override
+                            public void completed(final ClientResponse clientResponse, final Void attachment) {
+                                relay(clientResponse, response);
+                            }
+
+                            @Override
+                            public void failed(final Throwable exc, final Void attachment) {
+                                exc.printStackTrace();
+                                response.setStatus(502, "Bad Gateway");
+                                response.end();
+                            }
+                        });
+                    return;
+                }
+                if(!"OPTIONS".equals(method) && !"TRACE".equals(method)) {
+                    cache.invalidate(uri.getHost(), uri.getPort(), path(uri));
+                }
+
+                // Hold the request body till there is somewhere to send it
+                request.pause();
+                client.connect(uri.getHost(), uri.getPort(), new CompletionHandler<ClientConnection, Void>() {
                     @Override
-                    public void completed(final Void result, final Void attachment) {
+                    public void completed(final ClientConnection connection, final Void attachment) {
                         // Connected, now send a request.
-                        final ClientRequest clientRequest = connection.request(uri.getPath(), request.getRequestLine().getMethod(), request.getHeaders());
+                        final ClientRequest clientRequest = connection.request(path(uri), request.getRequestLine().getMethod(), request.getHeaders());
                         clientRequest.onResponse(new CompletionHandler<ClientResponse, Void>() {
                             @Override
                             public void completed(final ClientResponse clientResponse, final Void attachment) {
@@ -64,6 +99,20 @@ public class ProxyServer {
 
                                 // Copy response data from the origin to the client
                                 Utils.pump(clientResponse, response);
+
+                                // Done with the origin connection at the end of the response
+                                clientResponse.onTrailers(new CompletionHandler<Map<String, List<String>>, Void>() {
+                                    @Override
+                                    public void completed(final Map<String, List<String>> result, final Void attachment) {
+                                        response.end();
+                                        client.release(connection);
+                                    }
+
+                                    @Override
+                                    public void failed(final Throwable exc, final Void attachment) {
+                                        client.release(connection);
+                                    }
+                                });
                             }
 
                             @Override
@@ -73,16 +122,63 @@ public class ProxyServer {
                         });
                         // Copy data to the origin
                         Utils.pump(request, clientRequest);
+                        request.onTrailers(new CompletionHandler<Map<String, List<String>>, Void>() {
+                            @Override
+                            public void completed(final Map<String, List<String>> result, final Void attachment) {
+                                clientRequest.end();
+                            }
+
+                            @Override
+                            public void failed(final Throwable exc, final Void attachment) {
+                                exc.printStackTrace();
+                            }
+                        });
                         clientRequest.writeHead();
+                        request.resume();
                     }
 
                     @Override
                     public void failed(final Throwable exc, final Void attachment) {
                         exc.printStackTrace();
+                        response.setStatus(502, "Bad Gateway");
+                        response.end();
+                        request.resume();
                     }
                 });
             }
         });
         server.listen(3000);
     }
+
+    // Copy the status, headers and body of the origin's response to the client
+    private static void relay(final ClientResponse clientResponse, final ServerResponse response) {
+        response.setStatus(clientResponse.getResponseLine().getCode(), clientResponse.getResponseLine().getStatus());
+        clientResponse.onHeaders(new CompletionHandler<Map<String, List<String>>, Void>() {
+            @Override
+            public void completed(final Map<String, List<String>> result, final Void attachment) {
+                response.addHeaders(result);
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                exc.printStackTrace();
+            }
+        });
+        Utils.pump(clientResponse, response);
+        clientResponse.onTrailers(new CompletionHandler<Map<String, List<String>>, Void>() {
+            @Override
+            public void completed(final Map<String, List<String>> result, final Void attachment) {
+                response.end();
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                exc.printStackTrace();
+            }
+        });
+    }
+
+    private static String path(final URI uri) {
+        return uri.getRawQuery() == null ? uri.getRawPath() : uri.getRawPath() + "?" + uri.getRawQuery();
+    }
 }
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.client;
+
+/**
+ * <p>Storage for the responses kept by an {@link HttpCache}. Keys identify a resource on an
+ * origin, and each key holds one response - storing a response replaces any other variant of the
+ * resource.</p>
+ *
+ * <p>Implementations must be safe to call from several threads.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+public interface CacheStore {
+
+    /**
+     * Returns the response stored under the key, or {@code null} if there is none.
+     *
+     * @param key key
+     * @return response or null
+     */
+    CachedResponse get(String key);
+
+    /**
+     * Stores a response, replacing any response stored under the key.
+     *
+     * @param key      key
+     * @param response response
+     */
+    void put(String key, CachedResponse response);
+
+    /**
+     * Drops the response stored under the key.
+     *
+     * @param key key
+     */
+    void remove(String key);
+
+    /**
+     * Returns the bytes held.
+     *
+     * @return bytes
+     */
+    long getSize();
+}
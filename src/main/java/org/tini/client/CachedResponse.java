@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.client;
+
+import org.tini.parser.HttpDate;
+import org.tini.parser.HttpHeaders;
+import org.tini.parser.ResponseLine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A response held by an {@link HttpCache} - the response line, the end-to-end headers and the
+ * body, along with the times of the request and the response, and the values of the request
+ * headers named by {@code Vary}. Instances are immutable.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+public final class CachedResponse {
+
+    // Heuristic lifetime as a fraction of the time since the last modification (RFC 7234 4.2.2)
+    private static final int HEURISTIC_DIVISOR = 10;
+
+    private final ResponseLine responseLine;
+    private final Map<String, List<String>> headers;
+    private final byte[] body;
+    private final long requestTime;
+    private final long responseTime;
+    private final Map<String, String> varyValues;
+
+    /**
+     * Creates a response.
+     *
+     * @param responseLine response line
+     * @param headers      end-to-end headers, with lower case names
+     * @param body         body
+     * @param requestTime  time the request was sent, in millis
+     * @param responseTime time the response was received, in millis
+     * @param varyValues   values of the request headers named by {@code Vary}, with {@code null}
+     *                     for absent headers
+     */
+    public CachedResponse(final ResponseLine responseLine, final Map<String, List<String>> headers,
+                          final byte[] body, final long requestTime, final long responseTime,
+                          final Map<String, String> varyValues) {
+        this.responseLine = responseLine;
+        this.headers = Collections.unmodifiableMap(new LinkedHashMap<String, List<String>>(headers));
+        this.body = body;
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+        this.varyValues = Collections.unmodifiableMap(new LinkedHashMap<String, String>(varyValues));
+    }
+
+    /**
+     * Returns the response line.
+     *
+     * @return response line
+     */
+    public ResponseLine getResponseLine() {
+        return responseLine;
+    }
+
+    /**
+     * Returns the headers.
+     *
+     * @return headers
+     */
+    public Map<String, List<String>> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Returns the body. Callers must not modify it.
+     *
+     * @return body
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Returns the time the request was sent.
+     *
+     * @return millis
+     */
+    public long getRequestTime() {
+        return requestTime;
+    }
+
+    /**
+     * Returns the time the response was received.
+     *
+     * @return millis
+     */
+    public long getResponseTime() {
+        return responseTime;
+    }
+
+    /**
+     * Returns the values of the request headers that select this response.
+     *
+     * @return header values by name
+     */
+    public Map<String, String> getVaryValues() {
+        return varyValues;
+    }
+
+    /**
+     * Returns an estimate of the memory held.
+     *
+     * @return bytes
+     */
+    public long getSize() {
+        long size = body.length + responseLine.getStatus().length();
+        for(final Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            for(final String value : entry.getValue()) {
+                size += entry.getKey().length() + value.length() + 4;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the first value of a header, or {@code null}.
+     *
+     * @param name lower case name
+     * @return value or null
+     */
+    public String getHeader(final String name) {
+        final List<String> values = headers.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * Returns how long the response is fresh for after it was generated - from {@code s-maxage},
+     * {@code max-age}, {@code Expires}, or else a tenth of the time since {@code Last-Modified}.
+     *
+     * @return millis
+     */
+    public long getFreshnessLifetime() {
+        final Map<String, String> directives = directives(headers.get(HttpHeaders.CACHE_CONTROL));
+        long seconds = seconds(directives.get("s-maxage"));
+        if(seconds < 0) {
+            seconds = seconds(directives.get("max-age"));
+        }
+        if(seconds >= 0) {
+            return seconds * 1000;
+        }
+        final long date = dateValue();
+        final String expires = getHeader(HttpHeaders.EXPIRES);
+        if(expires != null) {
+            // Invalid dates, such as "0", mean already expired
+            final long time = HttpDate.parse(expires);
+            return time < 0 ? 0 : Math.max(0, time - date);
+        }
+        final String lastModified = getHeader(HttpHeaders.LAST_MODIFIED);
+        if(lastModified != null) {
+            final long time = HttpDate.parse(lastModified);
+            if(time >= 0 && time < date) {
+                return (date - time) / HEURISTIC_DIVISOR;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the age of the response at the given time (RFC 7234 4.2.3).
+     *
+     * @param now millis
+     * @return millis
+     */
+    public long getAge(final long now) {
+        final long apparentAge = Math.max(0, responseTime - dateValue());
+        final long ageValue = Math.max(0, seconds(getHeader("age"))) * 1000;
+        final long correctedAge = ageValue + (responseTime - requestTime);
+        return Math.max(apparentAge, correctedAge) + (now - responseTime);
+    }
+
+    /**
+     * Returns true if the response may be used without revalidation at the given time.
+     *
+     * @param now millis
+     * @return boolean
+     */
+    public boolean isFresh(final long now) {
+        final Map<String, String> directives = directives(headers.get(HttpHeaders.CACHE_CONTROL));
+        return !directives.containsKey("no-cache") && getAge(now) < getFreshnessLifetime();
+    }
+
+    /**
+     * Returns true if the response has a validator to revalidate with.
+     *
+     * @return boolean
+     */
+    public boolean hasValidator() {
+        return headers.containsKey(HttpHeaders.ETAG) || headers.containsKey(HttpHeaders.LAST_MODIFIED);
+    }
+
+    /**
+     * Returns true if the response was selected by the same values of request headers as those
+     * given.
+     *
+     * @param requestHeaders request headers, with lower case names
+     * @return boolean
+     */
+    public boolean matches(final Map<String, List<String>> requestHeaders) {
+        for(final Map.Entry<String, String> entry : varyValues.entrySet()) {
+            final String value = join(requestHeaders.get(entry.getKey()));
+            if(value == null ? entry.getValue() != null : !value.equals(entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns this response updated with the headers of a {@code 304 Not Modified} response
+     * (RFC 7234 4.3.4).
+     *
+     * @param updates      headers of the 304 response
+     * @param requestTime  time the conditional request was sent
+     * @param responseTime time the 304 response was received
+     * @return updated response
+     */
+    public CachedResponse revalidated(final Map<String, List<String>> updates, final long requestTime,
+                                      final long responseTime) {
+        final Map<String, List<String>> merged = new LinkedHashMap<String, List<String>>(headers);
+        for(final Map.Entry<String, List<String>> entry : updates.entrySet()) {
+            // The stored length describes the stored body
+            if(!HttpHeaders.CONTENT_LENGTH.equals(entry.getKey()) && !isHopByHop(entry.getKey())) {
+                merged.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return new CachedResponse(responseLine, merged, body, requestTime, responseTime, varyValues);
+    }
+
+    /**
+     * Returns the directives of {@code Cache-Control} header values, with lower case names. Values
+     * of directives have quotes removed, and directives without values map to the empty string.
+     *
+     * @param values header values or null
+     * @return directives
+     */
+    public static Map<String, String> directives(final List<String> values) {
+        if(values == null) {
+            return Collections.emptyMap();
+        }
+        final Map<String, String> directives = new LinkedHashMap<String, String>();
+        for(final String value : values) {
+            for(final String directive : value.split(",")) {
+                final int eq = directive.indexOf('=');
+                final String name = (eq == -1 ? directive : directive.substring(0, eq)).trim().toLowerCase();
+                if(name.isEmpty()) {
+                    continue;
+                }
+                String arg = eq == -1 ? "" : directive.substring(eq + 1).trim();
+                if(arg.length() >= 2 && arg.charAt(0) == '"' && arg.charAt(arg.length() - 1) == '"') {
+                    arg = arg.substring(1, arg.length() - 1);
+                }
+                directives.put(name, arg);
+            }
+        }
+        return directives;
+    }
+
+    /**
+     * Returns the lower case names in comma separated header values.
+     *
+     * @param values header values or null
+     * @return names
+     */
+    public static List<String> names(final List<String> values) {
+        final List<String> names = new ArrayList<String>();
+        if(values != null) {
+            for(final String value : values) {
+                for(final String name : value.split(",")) {
+                    final String trimmed = name.trim().toLowerCase();
+                    if(!trimmed.isEmpty()) {
+                        names.add(trimmed);
+                    }
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns true for headers that apply to one connection only, and are not stored.
+     *
+     * @param name lower case name
+     * @return boolean
+     */
+    public static boolean isHopByHop(final String name) {
+        return HttpHeaders.CONNECTION.equals(name) || HttpHeaders.KEEP_ALIVE.equals(name) ||
+            HttpHeaders.TRANSFER_ENCODING.equals(name) || "te".equals(name) || "trailer".equals(name) ||
+            "upgrade".equals(name) || name.startsWith("proxy-");
+    }
+
+    static String join(final List<String> values) {
+        if(values == null) {
+            return null;
+        }
+        if(values.size() == 1) {
+            return values.get(0);
+        }
+        final StringBuilder joined = new StringBuilder();
+        for(final String value : values) {
+            if(joined.length() > 0) {
+                joined.append(", ");
+            }
+            joined.append(value);
+        }
+        return joined.toString();
+    }
+
+    // Date of the response, or the time it was received if it has none
+    private long dateValue() {
+        final String date = getHeader(HttpHeaders.DATE);
+        final long time = date == null ? -1 : HttpDate.parse(date);
+        return time < 0 ? responseTime : time;
+    }
+
+    // Delta seconds, or -1 if absent or invalid
+    private static long seconds(final String value) {
+        if(value == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        }
+        catch(NumberFormatException nfe) {
+            return -1;
+        }
+    }
+}
@@ -14,7 +14,10 @@
 
 package org.tini.client;
 
+import org.tini.common.BufferPool;
+import org.tini.common.SizeClassBufferPool;
 import org.tini.common.WritablePipeline;
+import org.tini.parser.HttpParser;
 import org.tini.parser.ResponseParser;
 
 import java.io.IOException;
@@ -48,10 +51,43 @@ public class ClientConnection {
     private String host;
     private int port;
 
+    private final BufferPool bufferPool;
+
+    // Group owned by an HttpClient, if the connection was opened by one
+    private final AsynchronousChannelGroup sharedGroup;
+
+    // When this connection, idle in its client's pool, is to be closed
+    volatile long idleUntil;
+
+    // Requests sent so far
+    private volatile int requestCount = 0;
+
     /**
-     * Creates a new connection.
+     * Creates a new connection that uses the default buffer pool.
      */
     public ClientConnection() {
+        this(SizeClassBufferPool.getDefault());
+    }
+
+    /**
+     * Creates a new connection that leases read and write buffers from the given pool.
+     *
+     * @param bufferPool pool
+     */
+    public ClientConnection(final BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.sharedGroup = null;
+    }
+
+    /**
+     * Creates a connection on a channel group owned by an {@link HttpClient}.
+     *
+     * @param channelGroup shared group
+     * @param bufferPool pool
+     */
+    ClientConnection(final AsynchronousChannelGroup channelGroup, final BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.sharedGroup = channelGroup;
     }
 
     /**
@@ -62,7 +98,6 @@ public class ClientConnection {
      * @param port    port
      * @param handler handler
      */
-    // TODO: Look from open connections for reuse
     public void connect(final String host, final int port, final CompletionHandler<Void, Void> handler) {
         assert host != null;
         assert handler != null;
@@ -72,19 +107,25 @@ public class ClientConnection {
 
         final InetSocketAddress socketAddress = new InetSocketAddress(this.host, this.port);
 
-        executorService = Executors.newCachedThreadPool();
         try {
-            channelGroup = AsynchronousChannelGroup.withCachedThreadPool(executorService, 1);
+            if(sharedGroup != null) {
+                channelGroup = sharedGroup;
+            }
+            else {
+                executorService = Executors.newCachedThreadPool();
+                channelGroup = AsynchronousChannelGroup.withCachedThreadPool(executorService, 1);
+            }
             channel = AsynchronousSocketChannel.open(channelGroup);
             channel.connect(socketAddress, null, new CompletionHandler<Void, Void>() {
                 @Override
                 public void completed(final Void result, final Void attachment) {
                     // All submitted requests must be added to this pipeline.
-                    requestPipeline = new ClientRequestPipeline(channel);
+                    requestPipeline = new ClientRequestPipeline(channel, bufferPool);
                     responsePipeline = new ClientResponsePipeline(channel);
 
                     // TODO: Externalize timeout
-                    final ResponseParser parser = new ResponseParser(channel, (long) 10, TimeUnit.MINUTES);
+                    final ResponseParser parser = new ResponseParser(channel, (long) 10, TimeUnit.MINUTES,
+                        bufferPool, HttpParser.DEFAULT_READ_BUFFER_SIZE);
                     // Let the responsePipeline listen to parse events
                     responsePipeline.bind(parser);
 
@@ -112,6 +153,8 @@ public class ClientConnection {
      * @param path   path or request URI
      * @param method HTTP method
      * @return request object
+     * @throws IllegalStateException if {@link org.tini.common.MessagePipeline#DEFAULT_CAPACITY}
+     *                               requests are already awaiting responses
      */
     public ClientRequest request(final String path, final String method) {
         assert method != null;
@@ -119,16 +162,16 @@ public class ClientConnection {
         // Put the request in a writablesQueue
         final String p = path == null || path.equals("") ? "/" : path;
 
+        // Responses are pending longer than requests - so the response pipeline fills up first
+        if(responsePipeline.size() >= responsePipeline.getCapacity()) {
+            throw new IllegalStateException("Too many requests in flight");
+        }
+
+        requestCount++;
         final ClientRequest clientRequest = new ClientRequest(host, port, p, method, requestPipeline);
         final ClientResponse clientResponse = new ClientResponse(clientRequest);
-        try {
-            requestPipeline.push(clientRequest); // Requests written in order
-            responsePipeline.push(clientResponse); // Responses parsed in order
-        }
-        catch(InterruptedException ie) {
-            // TODO
-            ie.printStackTrace();
-        }
+        requestPipeline.push(clientRequest); // Requests written in order
+        responsePipeline.push(clientResponse); // Responses parsed in order
         return clientRequest;
     }
 
@@ -164,6 +207,17 @@ public class ClientConnection {
         if(channel == null || channelGroup == null) {
             throw new IllegalStateException("Can't close. Not yet connected.");
         }
+        if(sharedGroup != null) {
+            // The group belongs to the client - close just this channel
+            try {
+                logger.info("Closing the connection");
+                channel.close();
+            }
+            catch(IOException ioe) {
+                logger.log(Level.WARNING, ioe.getMessage(), ioe);
+            }
+            return;
+        }
         try {
             final List<Runnable> pending = executorService.shutdownNow();
             for(final Runnable r : pending) {
@@ -178,4 +232,42 @@ public class ClientConnection {
         }
 
     }
+
+    /**
+     * Returns true if the connection is open, has no requests or responses in progress, and the
+     * server did not ask to close it.
+     *
+     * @return boolean
+     */
+    boolean isReusable() {
+        return channel != null && channel.isOpen() && requestPipeline.peek() == null &&
+            responsePipeline.peek() == null && !responsePipeline.isClosing();
+    }
+
+    /**
+     * Returns the number of requests sent on this connection.
+     *
+     * @return count
+     */
+    int getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Returns how long the server said it keeps this connection open while idle, or -1.
+     *
+     * @return millis
+     */
+    long getKeepAliveMillis() {
+        return responsePipeline == null ? -1 : responsePipeline.getKeepAliveMillis();
+    }
+
+    /**
+     * Returns "host:port" of the connection.
+     *
+     * @return key
+     */
+    String getAddress() {
+        return host + ":" + port;
+    }
 }
@@ -16,10 +16,10 @@ package org.tini.client;
 
 import org.tini.common.WritableMessage;
 import org.tini.common.WritablePipeline;
-import org.tini.parser.HttpCodecUtil;
+import org.tini.parser.HeadEncoder;
+import org.tini.parser.HttpHeaders;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.CompletionHandler;
 
 /**
@@ -74,6 +74,24 @@ public class ClientRequest extends WritableMessage {
         return method;
     }
 
+    /**
+     * <p>Adds headers. Unlike on responses, {@code Connection: close} does not close the
+     * connection once this request is written - the response is still to be read. The server
+     * closes after responding.</p>
+     *
+     * @param name  name
+     * @param value value
+     */
+    @Override
+    public void addHeader(final String name, final String value) {
+        if(name.equalsIgnoreCase(HttpHeaders.CONNECTION)) {
+            headers.put(HttpHeaders.CONNECTION, value);
+        }
+        else {
+            super.addHeader(name, value);
+        }
+    }
+
     /**
      * <p>During this event, apps can register handlers to process different parts of the
      * response.</p>
@@ -88,12 +106,12 @@ public class ClientRequest extends WritableMessage {
      * Writes the request line and headers and begins parsing the response.
      */
     public void writeHead() {
-        if(!headers.containsKey("host")) {
+        if(!headers.containsKey(HttpHeaders.HOST)) {
             if(port == 80) {
-                headers.put("host", host);
+                headers.put(HttpHeaders.HOST, host);
             }
             else {
-                headers.put("host", host + ":" + port);
+                headers.put(HttpHeaders.HOST, host + ":" + port);
             }
         }
         super.writeHead(new CompletionHandler<Integer, Void>() {
@@ -114,18 +132,30 @@ public class ClientRequest extends WritableMessage {
         onResponse.completed(clientResponse, null);
     }
 
+    /**
+     * Called when the connection fails before the response line arrives.
+     *
+     * @param exc failure
+     */
+    void failed(final Throwable exc) {
+        if(onResponse != null) {
+            onResponse.failed(exc, null);
+        }
+    }
+
+    @Override
+    protected int firstLineLength() {
+        return HeadEncoder.requestLineLength(method, path);
+    }
+
     @Override
-    protected void writeFirstLine(final ByteArrayOutputStream baos) throws IOException {
-        baos.write(method.getBytes(US_ASCII));
-        baos.write(HttpCodecUtil.SP);
-        baos.write(path.getBytes(US_ASCII));
-        baos.write(HttpCodecUtil.SP);
-        baos.write("HTTP/1.1".getBytes(US_ASCII));
+    protected void writeFirstLine(final ByteBuffer buffer) {
+        HeadEncoder.putRequestLine(buffer, method, path);
     }
 
     @Override
     protected boolean doClose() {
-        final String val = headers.get("connection");
+        final String val = headers.get(HttpHeaders.CONNECTION);
         return "close".equalsIgnoreCase(val);
     }
 }
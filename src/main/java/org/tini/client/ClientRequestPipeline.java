@@ -14,6 +14,7 @@
 
 package org.tini.client;
 
+import org.tini.common.BufferPool;
 import org.tini.common.WritablePipeline;
 
 import java.nio.channels.AsynchronousSocketChannel;
@@ -26,6 +27,10 @@ public class ClientRequestPipeline extends WritablePipeline {
         super(channel);
     }
 
+    public ClientRequestPipeline(final AsynchronousSocketChannel channel, final BufferPool bufferPool) {
+        super(channel, bufferPool);
+    }
+
     @Override
     protected void beginWriting() {
     }
@@ -25,6 +25,9 @@ public class ClientResponse extends ReadableMessage {
     private ResponseLine responseLine;
     private final ClientRequest clientRequest;
 
+    // Run after the app hears of a failure in the body - set by the client to drop the connection
+    private Runnable onFailure;
+
     /**
      * Creates an HTTP request. Use {@link ClientConnection} to create a new request.
      *
@@ -56,4 +59,26 @@ public class ClientResponse extends ReadableMessage {
     public ClientRequest getRequest() {
         return clientRequest;
     }
+
+    /**
+     * Fails the request if the response line has not arrived yet, and the body otherwise.
+     *
+     * @param failure failure
+     */
+    @Override
+    public void failure(final Throwable failure) {
+        if(responseLine == null) {
+            clientRequest.failed(failure);
+        }
+        else {
+            super.failure(failure);
+            if(onFailure != null) {
+                onFailure.run();
+            }
+        }
+    }
+
+    void onFailure(final Runnable onFailure) {
+        this.onFailure = onFailure;
+    }
 }
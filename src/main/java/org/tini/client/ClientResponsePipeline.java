@@ -16,6 +16,7 @@ package org.tini.client;
 
 import org.tini.common.ReadableMessage;
 import org.tini.common.ReadablePipeline;
+import org.tini.parser.HttpHeaders;
 import org.tini.parser.ResponseLine;
 import org.tini.parser.ResponseParser;
 
@@ -24,12 +25,19 @@ import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Subbu Allamaraju
  */
 public class ClientResponsePipeline extends ReadablePipeline {
 
+    // Set when the server asks to close the connection after a response, or closes it
+    private volatile boolean closing = false;
+
+    // Idle timeout the server advertised in "Keep-Alive: timeout=n", or -1
+    private volatile long keepAliveMillis = -1;
+
     public ClientResponsePipeline(final AsynchronousSocketChannel channel) {
         super(channel);
     }
@@ -40,6 +48,7 @@ public class ClientResponsePipeline extends ReadablePipeline {
      * @param parser parser
      */
     void bind(final ResponseParser parser) {
+        setParser(parser);
         parser.onResponseLine(new CompletionHandler<ResponseLine, Void>() {
             @Override
             public void completed(final ResponseLine result, final Void attachment) {
@@ -51,6 +60,9 @@ public class ClientResponsePipeline extends ReadablePipeline {
                 // Set the response line
                 clientResponse.setResponseLine(result);
                 final ClientRequest clientRequest = clientResponse.getRequest();
+                if("HEAD".equals(clientRequest.getMethod())) {
+                    parser.expectNoBody();
+                }
 
                 // Call request.onResponse.completed()
                 clientRequest.response(clientResponse);
@@ -58,15 +70,38 @@ public class ClientResponsePipeline extends ReadablePipeline {
 
             @Override
             public void failed(final Throwable exc, final Void attachment) {
-//                onResponse.failed(exc, attachment);
-                // TODO
-                exc.printStackTrace();
+                // No more responses on this connection - fail every request still waiting
+                closing = true;
+                ReadableMessage readableMessage;
+                while((readableMessage = poll()) != null) {
+                    readableMessage.failure(exc);
+                }
             }
         });
 
         parser.onHeaders(new CompletionHandler<Map<String, List<String>>, Void>() {
             @Override
             public void completed(final Map<String, List<String>> result, final Void attachment) {
+                final List<String> connection = result.get(HttpHeaders.CONNECTION);
+                if(connection != null) {
+                    for(final String value : connection) {
+                        if("close".equalsIgnoreCase(value)) {
+                            closing = true;
+                        }
+                    }
+                }
+                final List<String> keepAlive = result.get(HttpHeaders.KEEP_ALIVE);
+                if(keepAlive != null) {
+                    final long timeout = keepAliveParam(keepAlive, "timeout");
+                    if(timeout >= 0) {
+                        keepAliveMillis = TimeUnit.SECONDS.toMillis(timeout);
+                    }
+                    final long max = keepAliveParam(keepAlive, "max");
+                    if(max >= 0 && max <= 1) {
+                        // This was the last response the server allows on this connection
+                        closing = true;
+                    }
+                }
                 final ReadableMessage readableMessage = peek();
                 if(readableMessage != null) {
                     readableMessage.headers(result);
@@ -119,4 +154,47 @@ public class ClientResponsePipeline extends ReadablePipeline {
         parser.go();
     }
 
+    /**
+     * Returns true if the server asked to close the connection.
+     *
+     * @return boolean
+     */
+    boolean isClosing() {
+        return closing;
+    }
+
+    /**
+     * Returns how long the server keeps the connection open while idle, or -1 if unknown.
+     *
+     * @return millis
+     */
+    long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    /**
+     * Returns the value of a parameter such as {@code timeout=5} in {@code Keep-Alive} headers, or
+     * -1 if absent or malformed.
+     *
+     * @param values header values
+     * @param name   parameter name
+     * @return value
+     */
+    static long keepAliveParam(final List<String> values, final String name) {
+        for(final String value : values) {
+            for(final String param : value.split(",")) {
+                final int eq = param.indexOf('=');
+                if(eq > 0 && param.substring(0, eq).trim().equalsIgnoreCase(name)) {
+                    try {
+                        return Long.parseLong(param.substring(eq + 1).trim());
+                    }
+                    catch(NumberFormatException nfe) {
+                        return -1;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
 }
@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.client;
+
+import org.tini.parser.ResponseLine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Keeps responses in files under a directory, one file per key, and deletes them least
+ * recently used first once it holds more than its size. Files left by an earlier store in the
+ * same directory are picked up, oldest first.</p>
+ *
+ * <p>Reads and writes are blocking, and happen on the calling thread. Use this store as the
+ * second tier of a {@link MemoryCacheStore}, so that only misses in memory and evictions from it
+ * touch the disk.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+public class DiskCacheStore implements CacheStore {
+    private static final Logger logger = Logger.getLogger("org.tini.client");
+
+    private static final int MAGIC = 0x74696e69;
+    private static final String SUFFIX = ".entry";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path directory;
+    private final long maxBytes;
+
+    // File sizes by file name in access order - guarded by this
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<String, Long>(64, 0.75f, true);
+    private long size = 0;
+
+    /**
+     * Creates a store.
+     *
+     * @param directory directory for the files, created if missing
+     * @param maxBytes  size of the store
+     * @throws IOException if unable to create or list the directory
+     */
+    public DiskCacheStore(final Path directory, final long maxBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxBytes = maxBytes;
+
+        final List<Path> existing = new ArrayList<Path>();
+        final DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX);
+        try {
+            for(final Path path : stream) {
+                existing.add(path);
+            }
+        }
+        finally {
+            stream.close();
+        }
+        final Map<Path, Long> modified = new LinkedHashMap<Path, Long>();
+        for(final Path path : existing) {
+            modified.put(path, Files.getLastModifiedTime(path).toMillis());
+        }
+        Collections.sort(existing, new Comparator<Path>() {
+            @Override
+            public int compare(final Path one, final Path two) {
+                return modified.get(one).compareTo(modified.get(two));
+            }
+        });
+        for(final Path path : existing) {
+            final long length = Files.size(path);
+            files.put(path.getFileName().toString(), length);
+            size += length;
+        }
+        evict();
+    }
+
+    @Override
+    public CachedResponse get(final String key) {
+        final String name = fileName(key);
+        synchronized(this) {
+            if(files.get(name) == null) {
+                return null;
+            }
+        }
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(directory.resolve(name))));
+            try {
+                // Another key with the same digest is a miss
+                return in.readInt() == MAGIC && key.equals(in.readUTF()) ? read(in) : null;
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch(NoSuchFileException nsfe) {
+            forget(name);
+            return null;
+        }
+        catch(IOException ioe) {
+            logger.log(Level.WARNING, ioe.getMessage(), ioe);
+            remove(key);
+            return null;
+        }
+    }
+
+    @Override
+    public void put(final String key, final CachedResponse response) {
+        if(response.getSize() > maxBytes) {
+            remove(key);
+            return;
+        }
+        final String name = fileName(key);
+        try {
+            // Write aside and move into place, so that readers never see a partial file
+            final Path temp = Files.createTempFile(directory, null, ".tmp");
+            try {
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temp)));
+                try {
+                    out.writeInt(MAGIC);
+                    out.writeUTF(key);
+                    write(out, response);
+                }
+                finally {
+                    out.close();
+                }
+                final long length = Files.size(temp);
+                synchronized(this) {
+                    Files.move(temp, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                    final Long old = files.put(name, length);
+                    size += length - (old == null ? 0 : old);
+                }
+            }
+            finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        catch(IOException ioe) {
+            logger.log(Level.WARNING, ioe.getMessage(), ioe);
+        }
+        evict();
+    }
+
+    @Override
+    public void remove(final String key) {
+        final String name = fileName(key);
+        if(forget(name)) {
+            delete(directory.resolve(name));
+        }
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return size;
+    }
+
+    private synchronized boolean forget(final String name) {
+        final Long old = files.remove(name);
+        if(old != null) {
+            size -= old;
+        }
+        return old != null;
+    }
+
+    private void evict() {
+        final List<String> evicted = new ArrayList<String>();
+        synchronized(this) {
+            final Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+            while(size > maxBytes && it.hasNext()) {
+                final Map.Entry<String, Long> eldest = it.next();
+                size -= eldest.getValue();
+                evicted.add(eldest.getKey());
+                it.remove();
+            }
+        }
+        for(final String name : evicted) {
+            delete(directory.resolve(name));
+        }
+    }
+
+    private static void delete(final Path path) {
+        try {
+            Files.deleteIfExists(path);
+        }
+        catch(IOException ioe) {
+            logger.log(Level.WARNING, ioe.getMessage(), ioe);
+        }
+    }
+
+    private static void write(final DataOutputStream out, final CachedResponse response) throws IOException {
+        final ResponseLine line = response.getResponseLine();
+        out.writeUTF(line.getVersion());
+        out.writeInt(line.getCode());
+        out.writeUTF(line.getStatus());
+        out.writeLong(response.getRequestTime());
+        out.writeLong(response.getResponseTime());
+        out.writeInt(response.getHeaders().size());
+        for(final Map.Entry<String, List<String>> entry : response.getHeaders().entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for(final String value : entry.getValue()) {
+                out.writeUTF(value);
+            }
+        }
+        out.writeInt(response.getVaryValues().size());
+        for(final Map.Entry<String, String> entry : response.getVaryValues().entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeBoolean(entry.getValue() != null);
+            if(entry.getValue() != null) {
+                out.writeUTF(entry.getValue());
+            }
+        }
+        out.writeInt(response.getBody().length);
+        out.write(response.getBody());
+    }
+
+    private static CachedResponse read(final DataInputStream in) throws IOException {
+        final ResponseLine line = new ResponseLine(in.readUTF(), in.readInt(), in.readUTF());
+        final long requestTime = in.readLong();
+        final long responseTime = in.readLong();
+        final int headerCount = in.readInt();
+        final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>(headerCount * 2);
+        for(int i = 0; i < headerCount; i++) {
+            final String name = in.readUTF();
+            final int valueCount = in.readInt();
+            final List<String> values = new ArrayList<String>(valueCount);
+            for(int j = 0; j < valueCount; j++) {
+                values.add(in.readUTF());
+            }
+            headers.put(name, Collections.unmodifiableList(values));
+        }
+        final int varyCount = in.readInt();
+        final Map<String, String> varyValues = new LinkedHashMap<String, String>(varyCount * 2);
+        for(int i = 0; i < varyCount; i++) {
+            final String name = in.readUTF();
+            varyValues.put(name, in.readBoolean() ? in.readUTF() : null);
+        }
+        final byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        return new CachedResponse(line, headers, body, requestTime, responseTime, varyValues);
+    }
+
+    private static String fileName(final String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF_8));
+            final StringBuilder name = new StringBuilder(digest.length * 2 + SUFFIX.length());
+            for(final byte b : digest) {
+                name.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+            }
+            return name.append(SUFFIX).toString();
+        }
+        catch(NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+}
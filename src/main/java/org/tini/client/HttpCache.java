@@ -0,0 +1,536 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.client;
+
+import org.tini.parser.HttpDate;
+import org.tini.parser.HttpHeaders;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * <p>A shared cache of responses in front of an {@link HttpClient}, following RFC 7234 for
+ * {@code GET} and {@code HEAD} requests.</p>
+ *
+ * <p>Fresh responses - by {@code s-maxage}, {@code max-age}, {@code Expires}, or heuristically by
+ * {@code Last-Modified} - are replayed from the {@link CacheStore} without contacting the origin.
+ * Stale responses with validators are revalidated with {@code If-None-Match} and {@code
+ * If-Modified-Since}, and a {@code 304 Not Modified} refreshes the stored response. Responses
+ * with {@code no-store} or {@code private}, with {@code Vary: *}, or larger than the largest
+ * object are not stored. A stored response is used only for requests with the same values of the
+ * headers named by its {@code Vary}.</p>
+ *
+ * <p>Requests with {@code no-store}, credentials, ranges or their own conditions go to the origin
+ * untouched. Requests with {@code no-cache} or {@code max-age} revalidate responses older than
+ * they accept.</p>
+ *
+ * <p>Misses for a key while a request for it is in flight wait for that request, and are answered
+ * from the response it stores. Requests that the cache does not answer - waiters that the
+ * response does not serve, because it was not stored or is a different variant, and requests that
+ * bypass the cache - go to the origin through a {@link SingleFlight}, so that identical ones
+ * still share one request.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+public class HttpCache {
+    private static final Logger logger = Logger.getLogger("org.tini.client");
+
+    /**
+     * Default size of the largest response stored.
+     */
+    public static final int DEFAULT_MAX_OBJECT_SIZE = 1024 * 1024;
+
+    private static final String GET = "GET";
+    private static final String HEAD = "HEAD";
+
+    // Statuses cacheable by default (RFC 7231 6.1)
+    private static final Set<Integer> CACHEABLE = new HashSet<Integer>(
+        Arrays.asList(200, 203, 204, 300, 301, 404, 405, 410, 414, 501));
+
+    // Request headers that make the origin answer differently than to a plain request
+    private static final String[] BYPASS = {
+        "authorization", HttpHeaders.IF_NONE_MATCH, HttpHeaders.IF_MODIFIED_SINCE,
+        "if-match", "if-unmodified-since", HttpHeaders.IF_RANGE, HttpHeaders.RANGE
+    };
+
+    private static final Map<String, List<String>> NO_TRAILERS = Collections.emptyMap();
+
+    private final HttpClient client;
+    private final SingleFlight flights;
+    private final CacheStore store;
+    private final int maxObjectSize;
+
+    // Requests in flight by key - guarded by itself
+    private final Map<String, Fetch> fetches = new HashMap<String, Fetch>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+
+    /**
+     * Creates a cache that stores responses up to {@link #DEFAULT_MAX_OBJECT_SIZE}.
+     *
+     * @param client client to send requests with
+     * @param store  store for responses
+     */
+    public HttpCache(final HttpClient client, final CacheStore store) {
+        this(client, store, DEFAULT_MAX_OBJECT_SIZE);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param client        client to send requests with
+     * @param store         store for responses
+     * @param maxObjectSize larger responses are not stored
+     */
+    public HttpCache(final HttpClient client, final CacheStore store, final int maxObjectSize) {
+        this.client = client;
+        this.flights = new SingleFlight(client);
+        this.store = store;
+        this.maxObjectSize = maxObjectSize;
+    }
+
+    /**
+     * <p>Sends a {@code GET} or {@code HEAD} request, answering it from the cache when possible.
+     * As with {@link HttpClient#send}, the handler gets the response once its response line is
+     * known, and should register for the headers, data and trailers of the response before
+     * returning. Responses from the cache carry an {@code Age} header, and end with the trailers
+     * without an empty chunk of data.</p>
+     *
+     * @param host    host
+     * @param port    port
+     * @param method  {@code GET} or {@code HEAD}
+     * @param path    path and query
+     * @param headers request headers with lower case names, or null
+     * @param handler handler for the response
+     */
+    public void send(final String host, final int port, final String method, final String path,
+                     final Map<String, List<String>> headers, final CompletionHandler<ClientResponse, Void> handler) {
+        if(!GET.equals(method) && !HEAD.equals(method)) {
+            throw new IllegalArgumentException("Not a GET or HEAD request: " + method);
+        }
+        final Map<String, List<String>> requestHeaders = headers == null ?
+            Collections.<String, List<String>>emptyMap() : headers;
+        final Map<String, String> directives = CachedResponse.directives(requestHeaders.get(HttpHeaders.CACHE_CONTROL));
+        if(directives.containsKey("no-store") || bypass(requestHeaders)) {
+            misses.incrementAndGet();
+            flights.send(host, port, method, path, headers, handler);
+            return;
+        }
+
+        final String key = key(host, port, path);
+        final CachedResponse cached = store.get(key);
+        final CachedResponse stored = cached != null && cached.matches(requestHeaders) ? cached : null;
+        final long now = System.currentTimeMillis();
+        if(stored != null && stored.isFresh(now) && acceptable(stored, directives, requestHeaders, now)) {
+            hits.incrementAndGet();
+            replay(stored, method, handler);
+            return;
+        }
+        misses.incrementAndGet();
+        if(stored == null && HEAD.equals(method)) {
+            // A response to HEAD has no body to store
+            flights.send(host, port, method, path, headers, handler);
+            return;
+        }
+
+        synchronized(fetches) {
+            final Fetch inFlight = fetches.get(key);
+            if(inFlight != null) {
+                inFlight.waiters.add(new Waiter(method, headers, handler));
+                return;
+            }
+            fetches.put(key, new Fetch(host, port, path));
+        }
+        fetch(key, host, port, method, path, requestHeaders, stored, handler);
+    }
+
+    /**
+     * Drops the stored response for a resource. Call this after sending an unsafe request, such
+     * as {@code POST}, {@code PUT} or {@code DELETE}, for the resource (RFC 7234 4.4).
+     *
+     * @param host host
+     * @param port port
+     * @param path path and query
+     */
+    public void invalidate(final String host, final int port, final String path) {
+        store.remove(key(host, port, path));
+    }
+
+    /**
+     * Returns the number of requests answered from the cache without contacting the origin.
+     *
+     * @return hits
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of requests not answered from the cache, including those that waited
+     * for another request for the same key.
+     *
+     * @return misses
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of stale responses that the origin confirmed with a {@code 304}.
+     *
+     * @return revalidations
+     */
+    public long getRevalidationCount() {
+        return revalidations.get();
+    }
+
+    private void fetch(final String key, final String host, final int port, final String method, final String path,
+                       final Map<String, List<String>> headers, final CachedResponse stored,
+                       final CompletionHandler<ClientResponse, Void> handler) {
+        final Map<String, List<String>> conditional = new LinkedHashMap<String, List<String>>(headers);
+        if(stored != null) {
+            final String etag = stored.getHeader(HttpHeaders.ETAG);
+            if(etag != null) {
+                conditional.put(HttpHeaders.IF_NONE_MATCH, Collections.singletonList(etag));
+            }
+            final String lastModified = stored.getHeader(HttpHeaders.LAST_MODIFIED);
+            if(lastModified != null) {
+                conditional.put(HttpHeaders.IF_MODIFIED_SINCE, Collections.singletonList(lastModified));
+            }
+        }
+
+        // Always GET - a stale response may be revalidated for a HEAD request
+        final long requestTime = System.currentTimeMillis();
+        client.send(host, port, GET, path, conditional, null, new CompletionHandler<ClientResponse, Void>() {
+            @Override
+            public void completed(final ClientResponse response, final Void attachment) {
+                if(stored != null && response.getResponseLine().getCode() == 304) {
+                    revalidate(key, method, stored, response, requestTime, handler);
+                }
+                else {
+                    relay(key, method, headers, response, requestTime, handler);
+                }
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                done(key, null);
+                handler.failed(exc, null);
+            }
+        });
+    }
+
+    // Refresh the stored response with the headers of a 304 and replay it
+    private void revalidate(final String key, final String method, final CachedResponse stored,
+                            final ClientResponse response, final long requestTime,
+                            final CompletionHandler<ClientResponse, Void> handler) {
+        final CachedResponse[] updated = new CachedResponse[1];
+        response.onHeaders(new CompletionHandler<Map<String, List<String>>, Void>() {
+            @Override
+            public void completed(final Map<String, List<String>> result, final Void attachment) {
+                updated[0] = stored.revalidated(result, requestTime, System.currentTimeMillis());
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+            }
+        });
+        response.onData(new CompletionHandler<ByteBuffer, Void>() {
+            @Override
+            public void completed(final ByteBuffer result, final Void attachment) {
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                done(key, null);
+                handler.failed(exc, null);
+            }
+        });
+        response.onTrailers(new CompletionHandler<Map<String, List<String>>, Void>() {
+            @Override
+            public void completed(final Map<String, List<String>> result, final Void attachment) {
+                revalidations.incrementAndGet();
+                store.put(key, updated[0]);
+                done(key, updated[0]);
+                replay(updated[0], method, handler);
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+            }
+        });
+    }
+
+    // Pass the origin's response on to the caller, keeping a copy if it may be stored
+    private void relay(final String key, final String method, final Map<String, List<String>> requestHeaders,
+                       final ClientResponse response, final long requestTime,
+                       final CompletionHandler<ClientResponse, Void> handler) {
+        final RelayedResponse relayed = new RelayedResponse(response, !HEAD.equals(method));
+        final ResponseCopy copy = new ResponseCopy();
+        response.onHeaders(new CompletionHandler<Map<String, List<String>>, Void>() {
+            @Override
+            public void completed(final Map<String, List<String>> result, final Void attachment) {
+                copy.headers = result;
+                if(storable(response.getResponseLine().getCode(), result)) {
+                    copy.body = new ByteArrayOutputStream();
+                }
+                relayed.headers(result);
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+            }
+        });
+        response.onData(new CompletionHandler<ByteBuffer, Void>() {
+            @Override
+            public void completed(final ByteBuffer result, final Void attachment) {
+                if(copy.body != null) {
+                    if(copy.body.size() + result.remaining() > maxObjectSize) {
+                        copy.body = null;
+                    }
+                    else if(result.hasArray()) {
+                        copy.body.write(result.array(), result.arrayOffset() + result.position(), result.remaining());
+                    }
+                    else {
+                        final byte[] bytes = new byte[result.remaining()];
+                        result.duplicate().get(bytes);
+                        copy.body.write(bytes, 0, bytes.length);
+                    }
+                }
+                relayed.relayData(result);
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                done(key, null);
+                relayed.failure(exc);
+            }
+        });
+        response.onTrailers(new CompletionHandler<Map<String, List<String>>, Void>() {
+            @Override
+            public void completed(final Map<String, List<String>> result, final Void attachment) {
+                CachedResponse entry = null;
+                if(copy.body != null) {
+                    entry = store(response, copy, requestHeaders, requestTime);
+                    store.put(key, entry);
+                }
+                done(key, entry);
+                relayed.trailers(result);
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+            }
+        });
+        handler.completed(relayed, null);
+    }
+
+    // Answer the requests that waited for this key
+    private void done(final String key, final CachedResponse entry) {
+        final Fetch fetch;
+        synchronized(fetches) {
+            fetch = fetches.remove(key);
+        }
+        if(fetch == null) {
+            return;
+        }
+        for(final Waiter waiter : fetch.waiters) {
+            final Map<String, List<String>> headers = waiter.headers == null ?
+                Collections.<String, List<String>>emptyMap() : waiter.headers;
+            if(entry != null && entry.matches(headers)) {
+                replay(entry, waiter.method, waiter.handler);
+            }
+            else {
+                logger.fine("Sending a waiting request for " + key + " to the origin");
+                flights.send(fetch.host, fetch.port, waiter.method, fetch.path, waiter.headers, waiter.handler);
+            }
+        }
+    }
+
+    private boolean storable(final int code, final Map<String, List<String>> headers) {
+        if(!CACHEABLE.contains(code)) {
+            return false;
+        }
+        final Map<String, String> directives = CachedResponse.directives(headers.get(HttpHeaders.CACHE_CONTROL));
+        if(directives.containsKey("no-store") || directives.containsKey("private") ||
+            CachedResponse.names(headers.get(HttpHeaders.VARY)).contains("*")) {
+            return false;
+        }
+        final List<String> length = headers.get(HttpHeaders.CONTENT_LENGTH);
+        if(length != null && !length.isEmpty()) {
+            try {
+                if(Long.parseLong(length.get(0).trim()) > maxObjectSize) {
+                    return false;
+                }
+            }
+            catch(NumberFormatException nfe) {
+                return false;
+            }
+        }
+
+        // Worth keeping only if it can be fresh or be revalidated
+        return directives.containsKey("max-age") || directives.containsKey("s-maxage") ||
+            headers.containsKey(HttpHeaders.EXPIRES) || headers.containsKey(HttpHeaders.ETAG) ||
+            headers.containsKey(HttpHeaders.LAST_MODIFIED);
+    }
+
+    private static CachedResponse store(final ClientResponse response, final ResponseCopy copy,
+                                        final Map<String, List<String>> requestHeaders, final long requestTime) {
+        final byte[] body = copy.body.toByteArray();
+        final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+        for(final Map.Entry<String, List<String>> entry : copy.headers.entrySet()) {
+            if(!CachedResponse.isHopByHop(entry.getKey())) {
+                headers.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+            }
+        }
+        headers.put(HttpHeaders.CONTENT_LENGTH, Collections.singletonList(Integer.toString(body.length)));
+        if(!headers.containsKey(HttpHeaders.DATE)) {
+            headers.put(HttpHeaders.DATE, Collections.singletonList(HttpDate.current()));
+        }
+        final Map<String, String> varyValues = new LinkedHashMap<String, String>();
+        for(final String name : CachedResponse.names(copy.headers.get(HttpHeaders.VARY))) {
+            varyValues.put(name, CachedResponse.join(requestHeaders.get(name)));
+        }
+        return new CachedResponse(response.getResponseLine(), headers, body, requestTime,
+            System.currentTimeMillis(), varyValues);
+    }
+
+    // Hand a stored response to the caller as though it came from the origin
+    private static void replay(final CachedResponse entry, final String method,
+                               final CompletionHandler<ClientResponse, Void> handler) {
+        final ClientResponse response = new ClientResponse(null);
+        response.setResponseLine(entry.getResponseLine());
+        handler.completed(response, null);
+
+        final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>(entry.getHeaders());
+        headers.put("age", Collections.singletonList(Long.toString(entry.getAge(System.currentTimeMillis()) / 1000)));
+        response.headers(headers);
+        if(GET.equals(method) && entry.getBody().length > 0) {
+            response.data(ByteBuffer.wrap(entry.getBody()).asReadOnlyBuffer());
+        }
+        response.trailers(NO_TRAILERS);
+    }
+
+    private static boolean acceptable(final CachedResponse stored, final Map<String, String> directives,
+                                      final Map<String, List<String>> requestHeaders, final long now) {
+        if(directives.containsKey("no-cache") ||
+            CachedResponse.names(requestHeaders.get("pragma")).contains("no-cache")) {
+            return false;
+        }
+        final String maxAge = directives.get("max-age");
+        if(maxAge != null) {
+            try {
+                return stored.getAge(now) <= Long.parseLong(maxAge) * 1000;
+            }
+            catch(NumberFormatException nfe) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean bypass(final Map<String, List<String>> headers) {
+        for(final String name : BYPASS) {
+            if(headers.containsKey(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String key(final String host, final int port, final String path) {
+        return host + ":" + (port == -1 ? 80 : port) + path;
+    }
+
+    /**
+     * A request in flight, and the requests for the same key waiting for it.
+     */
+    private static final class Fetch {
+        private final String host;
+        private final int port;
+        private final String path;
+        private final List<Waiter> waiters = new ArrayList<Waiter>(1);
+
+        private Fetch(final String host, final int port, final String path) {
+            this.host = host;
+            this.port = port;
+            this.path = path;
+        }
+    }
+
+    private static final class Waiter {
+        private final String method;
+        private final Map<String, List<String>> headers;
+        private final CompletionHandler<ClientResponse, Void> handler;
+
+        private Waiter(final String method, final Map<String, List<String>> headers,
+                       final CompletionHandler<ClientResponse, Void> handler) {
+            this.method = method;
+            this.headers = headers;
+            this.handler = handler;
+        }
+    }
+
+    // Headers and body of a response being relayed - body is null once it cannot be stored
+    private static final class ResponseCopy {
+        private Map<String, List<String>> headers;
+        private ByteArrayOutputStream body;
+    }
+
+    /**
+     * The origin's response as seen by the caller. Pausing it pauses the origin's response.
+     */
+    private static final class RelayedResponse extends ClientResponse {
+        private final ClientResponse origin;
+        private final boolean withBody;
+
+        private RelayedResponse(final ClientResponse origin, final boolean withBody) {
+            super(origin.getRequest());
+            this.origin = origin;
+            this.withBody = withBody;
+            setResponseLine(origin.getResponseLine());
+        }
+
+        @Override
+        public void pause() {
+            origin.pause();
+        }
+
+        @Override
+        public void resume() {
+            origin.resume();
+        }
+
+        private void relayData(final ByteBuffer data) {
+            if(withBody || !data.hasRemaining()) {
+                data(data);
+            }
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.client;
+
+import org.tini.common.BufferPool;
+import org.tini.common.NamedThreadFactory;
+import org.tini.common.SizeClassBufferPool;
+import org.tini.common.TimingWheel;
+import org.tini.parser.HttpHeaders;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>A client that owns one channel group for all its connections, and keeps idle keep-alive
+ * connections per host and port for reuse.</p>
+ *
+ * <p>Get a connection with {@link #connect(String, int, CompletionHandler)}, send requests on it,
+ * and give it back with {@link #release(ClientConnection)} once the last response has been read.
+ * Connections that are still busy, or that the server asked to close, are closed on release.
+ * At most {@code maxPerHost} connections are open to each host and port - callers beyond that
+ * wait for a connection to be released. Idle connections are closed after the idle timeout, or
+ * a little before the server's own {@code Keep-Alive: timeout=n}, whichever is sooner. Idle
+ * connections that the server closed are noticed when it closes them, and never handed out.</p>
+ *
+ * <p>{@link #send(String, int, String, String, Map, byte[], CompletionHandler)} does all of this
+ * for one request, and sends idempotent requests again on a new connection if a pooled one turns
+ * out to have been closed by the server before it responded.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+public class HttpClient {
+
+    private static final Logger logger = Logger.getLogger("org.tini.client");
+
+    private final AsynchronousChannelGroup channelGroup;
+    private final BufferPool bufferPool;
+    private final int maxPerHost;
+    private final long idleTimeoutMillis;
+
+    // Pool state by "host:port" - guarded by this
+    private final Map<String, Host> hosts = new HashMap<String, Host>();
+    private boolean closed = false;
+
+    // Connections are closed this much before the server's keep-alive timeout, to stay clear of
+    // the server closing a connection just as a request is sent on it
+    private static final long KEEP_ALIVE_MARGIN_MILLIS = 1000;
+
+    private static final Set<String> IDEMPOTENT = new HashSet<String>(
+        Arrays.asList("GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE"));
+
+    // Evicts idle connections every half idle timeout - re-armed till closed
+    private final TimingWheel wheel = TimingWheel.getDefault();
+    private final long evictPeriod;
+    private final TimingWheel.Timeout evictor = new TimingWheel.Timeout() {
+        @Override
+        protected void expired() {
+            evictIdle();
+            synchronized(HttpClient.this) {
+                if(!closed) {
+                    wheel.schedule(this, evictPeriod, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    };
+
+    /**
+     * Creates a client with one I/O thread per core, at most 8 connections per host, and a 30
+     * second idle timeout.
+     *
+     * @return client
+     * @throws IOException if unable to create the channel group
+     */
+    public static HttpClient createClient() throws IOException {
+        return new HttpClient(Runtime.getRuntime().availableProcessors(), SizeClassBufferPool.getDefault(),
+            8, 30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Creates a client.
+     *
+     * @param ioThreads   threads in the channel group
+     * @param bufferPool  pool for read and write buffers
+     * @param maxPerHost  most connections open to a host and port
+     * @param idleTimeout idle connections are closed after this
+     * @param unit        unit of the idle timeout
+     * @throws IOException if unable to create the channel group
+     */
+    public HttpClient(final int ioThreads, final BufferPool bufferPool, final int maxPerHost,
+                      final long idleTimeout, final TimeUnit unit) throws IOException {
+        if(maxPerHost <= 0) {
+            throw new IllegalArgumentException("Invalid max per host " + maxPerHost);
+        }
+        this.channelGroup = AsynchronousChannelGroup.withFixedThreadPool(ioThreads,
+            new NamedThreadFactory("tini-client", true));
+        this.bufferPool = bufferPool;
+        this.maxPerHost = maxPerHost;
+        this.idleTimeoutMillis = unit.toMillis(idleTimeout);
+
+        this.evictPeriod = Math.max(1, idleTimeoutMillis / 2);
+        wheel.schedule(evictor, evictPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Calls the handler with an idle connection to the host and port if there is one, or with a
+     * new one. If {@code maxPerHost} connections are already open, waits till one is released.
+     *
+     * @param host    host
+     * @param port    port, or -1 for 80
+     * @param handler handler
+     */
+    public void connect(final String host, final int port, final CompletionHandler<ClientConnection, Void> handler) {
+        final int p = port == -1 ? 80 : port;
+        final String key = host + ":" + p;
+        final boolean isClosed;
+        ClientConnection idle = null;
+        final List<ClientConnection> stale = new ArrayList<ClientConnection>(0);
+        synchronized(this) {
+            isClosed = closed;
+            if(!isClosed) {
+                final Host pool = host(key);
+                final long now = wheel.now();
+                while((idle = pool.idle.pollFirst()) != null && (now >= idle.idleUntil || !idle.isReusable())) {
+                    // Closed by the server, or about to be
+                    pool.open--;
+                    stale.add(idle);
+                }
+                if(idle == null) {
+                    if(pool.open >= maxPerHost) {
+                        pool.waiting.addLast(handler);
+                        return;
+                    }
+                    pool.open++;
+                }
+            }
+        }
+        for(final ClientConnection connection : stale) {
+            connection.disconnect();
+        }
+        if(isClosed) {
+            handler.failed(new IllegalStateException("Client closed"), null);
+        }
+        else if(idle != null) {
+            handler.completed(idle, null);
+        }
+        else {
+            open(host, p, key, handler);
+        }
+    }
+
+    /**
+     * Gives a connection back. Reusable connections are kept idle for the next caller, or handed
+     * to a waiting one. Others are closed.
+     *
+     * @param connection connection obtained from {@link #connect(String, int, CompletionHandler)}
+     */
+    public void release(final ClientConnection connection) {
+        final String key = connection.getAddress();
+        if(!connection.isReusable()) {
+            close(connection, key);
+            return;
+        }
+        final CompletionHandler<ClientConnection, Void> waiter;
+        synchronized(this) {
+            final Host pool = host(key);
+            waiter = pool.waiting.pollFirst();
+            if(waiter == null) {
+                if(closed) {
+                    pool.open--;
+                }
+                else {
+                    connection.idleUntil = idleUntil(connection);
+                    pool.idle.addFirst(connection);
+                    return;
+                }
+            }
+        }
+        if(waiter != null) {
+            waiter.completed(connection, null);
+        }
+        else {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * <p>Sends a request on a pooled connection, and gives the connection back once the response
+     * has been read. The handler is called with the response, and may register handlers for the
+     * body and trailers as with {@link ClientRequest#onResponse(CompletionHandler)}.</p>
+     *
+     * <p>If the request is idempotent, and the server closes a pooled connection before
+     * responding (say, when it restarted while the connection was idle), the request is sent
+     * again on another connection.</p>
+     *
+     * @param host    host
+     * @param port    port, or -1 for 80
+     * @param method  method
+     * @param path    request URI
+     * @param headers headers, or null
+     * @param body    body, or null
+     * @param handler handler
+     */
+    public void send(final String host, final int port, final String method, final String path,
+                     final Map<String, List<String>> headers, final byte[] body,
+                     final CompletionHandler<ClientResponse, Void> handler) {
+        connect(host, port, new CompletionHandler<ClientConnection, Void>() {
+            @Override
+            public void completed(final ClientConnection connection, final Void attachment) {
+                // Only a connection that served earlier requests can have gone stale
+                final boolean reused = connection.getRequestCount() > 0;
+                final ClientRequest request = headers == null ? connection.request(path, method) :
+                    connection.request(path, method, headers);
+                request.onResponse(new CompletionHandler<ClientResponse, Void>() {
+                    @Override
+                    public void completed(final ClientResponse response, final Void attachment) {
+                        response.onFailure(new Runnable() {
+                            @Override
+                            public void run() {
+                                close(connection, connection.getAddress());
+                            }
+                        });
+                        handler.completed(response, null);
+                        response.onTrailers(new CompletionHandler<Map<String, List<String>>, Void>() {
+                            @Override
+                            public void completed(final Map<String, List<String>> result, final Void attachment) {
+                                release(connection);
+                            }
+
+                            @Override
+                            public void failed(final Throwable exc, final Void attachment) {
+                                close(connection, connection.getAddress());
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void failed(final Throwable exc, final Void attachment) {
+                        close(connection, connection.getAddress());
+                        if(reused && exc instanceof IOException && IDEMPOTENT.contains(method)) {
+                            logger.info("Sending again after the server closed a pooled connection");
+                            send(host, port, method, path, headers, body, handler);
+                        }
+                        else {
+                            handler.failed(exc, null);
+                        }
+                    }
+                });
+                if(body != null) {
+                    request.addHeader(HttpHeaders.CONTENT_LENGTH, Integer.toString(body.length));
+                    request.writeHead();
+                    request.write(body);
+                }
+                else {
+                    request.writeHead();
+                }
+                request.end();
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                handler.failed(exc, null);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of open connections - idle and in use - to the host and port.
+     *
+     * @param host host
+     * @param port port
+     * @return count
+     */
+    public synchronized int getOpenCount(final String host, final int port) {
+        final Host pool = hosts.get(host + ":" + (port == -1 ? 80 : port));
+        return pool == null ? 0 : pool.open;
+    }
+
+    /**
+     * Returns the number of idle connections to the host and port.
+     *
+     * @param host host
+     * @param port port
+     * @return count
+     */
+    public synchronized int getIdleCount(final String host, final int port) {
+        final Host pool = hosts.get(host + ":" + (port == -1 ? 80 : port));
+        return pool == null ? 0 : pool.idle.size();
+    }
+
+    /**
+     * Closes idle connections and the channel group. Connections in use are closed with the group.
+     */
+    public void shutdown() {
+        final List<ClientConnection> idle = new ArrayList<ClientConnection>();
+        synchronized(this) {
+            closed = true;
+            for(final Host pool : hosts.values()) {
+                idle.addAll(pool.idle);
+                pool.idle.clear();
+            }
+        }
+        wheel.cancel(evictor);
+        for(final ClientConnection connection : idle) {
+            connection.disconnect();
+        }
+        try {
+            channelGroup.shutdownNow();
+        }
+        catch(IOException ioe) {
+            logger.log(Level.WARNING, ioe.getMessage(), ioe);
+        }
+    }
+
+    private void open(final String host, final int port, final String key,
+                      final CompletionHandler<ClientConnection, Void> handler) {
+        final ClientConnection connection = new ClientConnection(channelGroup, bufferPool);
+        connection.connect(host, port, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(final Void result, final Void attachment) {
+                handler.completed(connection, null);
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                opened(key, -1);
+                handler.failed(exc, attachment);
+            }
+        });
+    }
+
+    private void close(final ClientConnection connection, final String key) {
+        try {
+            connection.disconnect();
+        }
+        catch(IllegalStateException ise) {
+            // Never connected
+        }
+        opened(key, -1);
+    }
+
+    /**
+     * Adjusts the open count, and opens a connection for a waiting caller if there is room now.
+     */
+    private void opened(final String key, final int delta) {
+        final CompletionHandler<ClientConnection, Void> waiter;
+        synchronized(this) {
+            final Host pool = host(key);
+            pool.open += delta;
+            if(closed || pool.open >= maxPerHost) {
+                return;
+            }
+            waiter = pool.waiting.pollFirst();
+            if(waiter == null) {
+                return;
+            }
+            pool.open++;
+        }
+        final int colon = key.lastIndexOf(':');
+        open(key.substring(0, colon), Integer.parseInt(key.substring(colon + 1)), key, waiter);
+    }
+
+    private void evictIdle() {
+        final long now = wheel.now();
+        final List<ClientConnection> expired = new ArrayList<ClientConnection>();
+        synchronized(this) {
+            for(final Host pool : hosts.values()) {
+                final Iterator<ClientConnection> iterator = pool.idle.iterator();
+                while(iterator.hasNext()) {
+                    final ClientConnection connection = iterator.next();
+                    if(now >= connection.idleUntil || !connection.isReusable()) {
+                        iterator.remove();
+                        expired.add(connection);
+                    }
+                }
+            }
+        }
+        for(final ClientConnection connection : expired) {
+            logger.info("Closing an idle connection to " + connection.getAddress());
+            close(connection, connection.getAddress());
+        }
+    }
+
+    /**
+     * Returns when to close a connection that is going idle now.
+     */
+    private long idleUntil(final ClientConnection connection) {
+        long timeout = idleTimeoutMillis;
+        final long keepAlive = connection.getKeepAliveMillis();
+        if(keepAlive >= 0) {
+            timeout = Math.min(timeout, keepAlive - KEEP_ALIVE_MARGIN_MILLIS);
+        }
+        return wheel.now() + timeout;
+    }
+
+    private Host host(final String key) {
+        Host pool = hosts.get(key);
+        if(pool == null) {
+            pool = new Host();
+            hosts.put(key, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Connections to one host and port. Idle connections are used most recent first, so that
+     * the least used ones idle out.
+     */
+    private static final class Host {
+        private final Deque<ClientConnection> idle = new ArrayDeque<ClientConnection>();
+        private final Deque<CompletionHandler<ClientConnection, Void>> waiting =
+            new ArrayDeque<CompletionHandler<ClientConnection, Void>>();
+        private int open = 0;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.client;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Keeps responses in memory, and evicts them least recently used first once it holds more than
+ * its size.</p>
+ *
+ * <p>Given a second tier - such as a {@link DiskCacheStore} - evicted responses move to that tier,
+ * and misses are looked up there and moved back into memory.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+public class MemoryCacheStore implements CacheStore {
+
+    private final long maxBytes;
+    private final CacheStore next;
+
+    // In access order - guarded by this
+    private final LinkedHashMap<String, CachedResponse> entries =
+        new LinkedHashMap<String, CachedResponse>(64, 0.75f, true);
+    private long size = 0;
+
+    /**
+     * Creates a store without a second tier.
+     *
+     * @param maxBytes size of the store
+     */
+    public MemoryCacheStore(final long maxBytes) {
+        this(maxBytes, null);
+    }
+
+    /**
+     * Creates a store.
+     *
+     * @param maxBytes size of the store
+     * @param next     tier for evicted responses, or null
+     */
+    public MemoryCacheStore(final long maxBytes, final CacheStore next) {
+        this.maxBytes = maxBytes;
+        this.next = next;
+    }
+
+    @Override
+    public CachedResponse get(final String key) {
+        synchronized(this) {
+            final CachedResponse response = entries.get(key);
+            if(response != null || next == null) {
+                return response;
+            }
+        }
+        final CachedResponse response = next.get(key);
+        if(response != null) {
+            next.remove(key);
+            put(key, response);
+        }
+        return response;
+    }
+
+    @Override
+    public void put(final String key, final CachedResponse response) {
+        final long weight = response.getSize();
+        if(weight > maxBytes) {
+            if(next != null) {
+                remove(key);
+                next.put(key, response);
+            }
+            return;
+        }
+        final List<Map.Entry<String, CachedResponse>> evicted = new ArrayList<Map.Entry<String, CachedResponse>>();
+        synchronized(this) {
+            final CachedResponse old = entries.put(key, response);
+            if(old != null) {
+                size -= old.getSize();
+            }
+            size += weight;
+            final Iterator<Map.Entry<String, CachedResponse>> it = entries.entrySet().iterator();
+            while(size > maxBytes && it.hasNext()) {
+                final Map.Entry<String, CachedResponse> eldest = it.next();
+                size -= eldest.getValue().getSize();
+                evicted.add(new AbstractMap.SimpleImmutableEntry<String, CachedResponse>(eldest));
+                it.remove();
+            }
+        }
+
+        // Demote outside the lock - the next tier may do I/O
+        if(next != null) {
+            for(final Map.Entry<String, CachedResponse> entry : evicted) {
+                next.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void remove(final String key) {
+        synchronized(this) {
+            final CachedResponse old = entries.remove(key);
+            if(old != null) {
+                size -= old.getSize();
+            }
+        }
+        if(next != null) {
+            next.remove(key);
+        }
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return size;
+    }
+}
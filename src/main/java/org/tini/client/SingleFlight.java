@@ -0,0 +1,466 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.client;
+
+import org.tini.common.Utils;
+import org.tini.parser.HttpHeaders;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Coalesces identical {@code GET} and {@code HEAD} requests in flight, so that an origin sees
+ * one request however many callers ask for the same resource at once. Requests are identical
+ * when their method, host, port, path and the values of a few request headers - by default
+ * {@code Accept}, {@code Accept-Encoding} and {@code Accept-Language} - match.</p>
+ *
+ * <p>Each caller gets its own {@link ClientResponse}, with the response line, headers, data and
+ * trailers of the shared response. Callers that join after the response started get what was
+ * received so far before the rest. Data is copied once per chunk and shared by all callers. Each
+ * caller may pause its response without holding up the others - chunks queue up for it, and the
+ * origin's response is paused only while some caller has more than its limit queued.</p>
+ *
+ * <p>A response that grows past the replay limit can no longer be joined, and later callers start
+ * a new request. Requests with credentials, cookies, ranges or conditions are sent on their
+ * own.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+public class SingleFlight {
+
+    /**
+     * Default bytes of a response kept for callers that join late.
+     */
+    public static final int DEFAULT_MAX_REPLAY_BYTES = 1024 * 1024;
+
+    /**
+     * Default bytes queued for a paused caller before the origin's response is paused.
+     */
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 256 * 1024;
+
+    private static final String[] DEFAULT_KEY_HEADERS = {
+        HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING, "accept-language"
+    };
+
+    // Request headers that make the response specific to the caller
+    private static final String[] UNSHARED = {
+        "authorization", "cookie", HttpHeaders.IF_NONE_MATCH, HttpHeaders.IF_MODIFIED_SINCE, "if-match",
+        "if-unmodified-since", HttpHeaders.IF_RANGE, HttpHeaders.RANGE
+    };
+
+    private final HttpClient client;
+    private final int maxReplayBytes;
+    private final int maxQueuedBytes;
+    private final String[] keyHeaders;
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Creates a single flight layer with default limits, keyed by {@code Accept}, {@code
+     * Accept-Encoding} and {@code Accept-Language}.
+     *
+     * @param client client to send requests with
+     */
+    public SingleFlight(final HttpClient client) {
+        this(client, DEFAULT_MAX_REPLAY_BYTES, DEFAULT_MAX_QUEUED_BYTES, DEFAULT_KEY_HEADERS);
+    }
+
+    /**
+     * Creates a single flight layer.
+     *
+     * @param client         client to send requests with
+     * @param maxReplayBytes responses longer than this can not be joined after they start
+     * @param maxQueuedBytes bytes queued for a caller before the origin's response is paused
+     * @param keyHeaders     lower case names of request headers that distinguish requests
+     */
+    public SingleFlight(final HttpClient client, final int maxReplayBytes, final int maxQueuedBytes,
+                        final String... keyHeaders) {
+        this.client = client;
+        this.maxReplayBytes = maxReplayBytes;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.keyHeaders = keyHeaders.clone();
+    }
+
+    /**
+     * Sends a request, or joins an identical request in flight. Other requests are sent with
+     * {@link HttpClient#send}. As there, the handler gets the response once its response line is
+     * known, and should register for the headers, data and trailers of the response before
+     * returning.
+     *
+     * @param host    host
+     * @param port    port
+     * @param method  method
+     * @param path    path and query
+     * @param headers request headers with lower case names, or null
+     * @param handler handler for the response
+     */
+    public void send(final String host, final int port, final String method, final String path,
+                     final Map<String, List<String>> headers, final CompletionHandler<ClientResponse, Void> handler) {
+        if(!"GET".equals(method) && !"HEAD".equals(method) || unshared(headers)) {
+            client.send(host, port, method, path, headers, null, handler);
+            return;
+        }
+        final String key = key(host, port, method, path, headers);
+        while(true) {
+            Flight flight = flights.get(key);
+            boolean lead = false;
+            if(flight == null) {
+                final Flight created = new Flight(key);
+                flight = flights.putIfAbsent(key, created);
+                if(flight == null) {
+                    flight = created;
+                    lead = true;
+                }
+            }
+            if(flight.join(handler)) {
+                if(lead) {
+                    client.send(host, port, method, path, headers, null, flight);
+                }
+                else {
+                    coalesced.incrementAndGet();
+                }
+                return;
+            }
+
+            // Too late to join - start another
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * Returns the number of requests that joined a request in flight.
+     *
+     * @return count
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns the number of requests in flight that may be joined.
+     *
+     * @return count
+     */
+    public int getFlightCount() {
+        return flights.size();
+    }
+
+    private boolean unshared(final Map<String, List<String>> headers) {
+        if(headers != null) {
+            for(final String name : UNSHARED) {
+                if(headers.containsKey(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private String key(final String host, final int port, final String method, final String path,
+                       final Map<String, List<String>> headers) {
+        final StringBuilder key = new StringBuilder(64);
+        key.append(method).append(' ').append(host).append(':').append(port == -1 ? 80 : port).append(path);
+        for(final String name : keyHeaders) {
+            final String value = headers == null ? null : CachedResponse.join(headers.get(name));
+            if(value != null) {
+                key.append('\n').append(name).append(':').append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * A request in flight and its callers. Everything is guarded by the flight - callbacks to
+     * callers and resuming the origin's response happen outside the lock.
+     */
+    private final class Flight implements CompletionHandler<ClientResponse, Void> {
+        private final String key;
+
+        private ClientResponse origin;
+        private final List<CompletionHandler<ClientResponse, Void>> pending =
+            new ArrayList<CompletionHandler<ClientResponse, Void>>(2);
+        private final List<Subscriber> subscribers = new ArrayList<Subscriber>(2);
+
+        // Everything received so far, for late joiners - null once too long
+        private List<Event> log = new ArrayList<Event>();
+        private long logBytes = 0;
+        private boolean joinable = true;
+        private boolean originPaused = false;
+
+        private Flight(final String key) {
+            this.key = key;
+        }
+
+        // Adds a caller - false if too late
+        private boolean join(final CompletionHandler<ClientResponse, Void> handler) {
+            final Subscriber subscriber;
+            synchronized(this) {
+                if(!joinable) {
+                    return false;
+                }
+                if(origin == null) {
+                    pending.add(handler);
+                    return true;
+                }
+                subscriber = new Subscriber(this, handler);
+                for(final Event event : log) {
+                    subscriber.queue.add(event);
+                    subscriber.queued += event.size;
+                }
+                subscribers.add(subscriber);
+            }
+            subscriber.start();
+            return true;
+        }
+
+        @Override
+        public void completed(final ClientResponse response, final Void attachment) {
+            final List<Subscriber> started;
+            synchronized(this) {
+                origin = response;
+                for(final CompletionHandler<ClientResponse, Void> handler : pending) {
+                    subscribers.add(new Subscriber(this, handler));
+                }
+                pending.clear();
+                started = new ArrayList<Subscriber>(subscribers);
+            }
+            response.onHeaders(new CompletionHandler<Map<String, List<String>>, Void>() {
+                @Override
+                public void completed(final Map<String, List<String>> result, final Void attachment) {
+                    publish(new Event(Event.HEADERS, result, null, null), false);
+                }
+
+                @Override
+                public void failed(final Throwable exc, final Void attachment) {
+                }
+            });
+            response.onData(new CompletionHandler<ByteBuffer, Void>() {
+                @Override
+                public void completed(final ByteBuffer result, final Void attachment) {
+                    publish(new Event(Event.DATA, null, Utils.copy(result).asReadOnlyBuffer(), null), false);
+                }
+
+                @Override
+                public void failed(final Throwable exc, final Void attachment) {
+                    publish(new Event(Event.FAILURE, null, null, exc), true);
+                }
+            });
+            response.onTrailers(new CompletionHandler<Map<String, List<String>>, Void>() {
+                @Override
+                public void completed(final Map<String, List<String>> result, final Void attachment) {
+                    publish(new Event(Event.TRAILERS, result, null, null), true);
+                }
+
+                @Override
+                public void failed(final Throwable exc, final Void attachment) {
+                }
+            });
+            for(final Subscriber subscriber : started) {
+                subscriber.start();
+            }
+        }
+
+        @Override
+        public void failed(final Throwable exc, final Void attachment) {
+            final List<CompletionHandler<ClientResponse, Void>> failed;
+            synchronized(this) {
+                joinable = false;
+                failed = new ArrayList<CompletionHandler<ClientResponse, Void>>(pending);
+                pending.clear();
+            }
+            flights.remove(key, this);
+            for(final CompletionHandler<ClientResponse, Void> handler : failed) {
+                handler.failed(exc, null);
+            }
+        }
+
+        private void publish(final Event event, final boolean last) {
+            final List<Subscriber> targets;
+            final boolean closed;
+            synchronized(this) {
+                final boolean wasJoinable = joinable;
+                if(last) {
+                    joinable = false;
+                }
+                else if(log != null) {
+                    if(logBytes + event.size > maxReplayBytes) {
+                        log = null;
+                        joinable = false;
+                    }
+                    else {
+                        log.add(event);
+                        logBytes += event.size;
+                    }
+                }
+                closed = wasJoinable && !joinable;
+
+                boolean full = false;
+                for(final Subscriber subscriber : subscribers) {
+                    subscriber.queue.add(event);
+                    subscriber.queued += event.size;
+                    full |= subscriber.queued > maxQueuedBytes;
+                }
+
+                // Pausing only sets a flag - safe under the lock
+                if(full) {
+                    originPaused = true;
+                    origin.pause();
+                }
+                targets = new ArrayList<Subscriber>(subscribers);
+            }
+            if(closed) {
+                flights.remove(key, this);
+            }
+            for(final Subscriber subscriber : targets) {
+                subscriber.drain();
+            }
+        }
+
+        // Whether all callers have room again - called with the lock held
+        private boolean drained() {
+            for(final Subscriber subscriber : subscribers) {
+                if(subscriber.queued > maxQueuedBytes / 2) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A caller's view of the shared response, with its own queue of events.
+     */
+    private static final class Subscriber extends ClientResponse {
+        private final Flight flight;
+        private final CompletionHandler<ClientResponse, Void> handler;
+
+        // Guarded by the flight
+        private final ArrayDeque<Event> queue = new ArrayDeque<Event>();
+        private long queued = 0;
+        private boolean started = false;
+        private boolean paused = false;
+        private boolean draining = false;
+
+        private Subscriber(final Flight flight, final CompletionHandler<ClientResponse, Void> handler) {
+            super(flight.origin.getRequest());
+            this.flight = flight;
+            this.handler = handler;
+            setResponseLine(flight.origin.getResponseLine());
+        }
+
+        private void start() {
+            handler.completed(this, null);
+            synchronized(flight) {
+                started = true;
+            }
+            drain();
+        }
+
+        @Override
+        public void pause() {
+            synchronized(flight) {
+                paused = true;
+            }
+        }
+
+        @Override
+        public void resume() {
+            synchronized(flight) {
+                paused = false;
+            }
+            drain();
+        }
+
+        private void drain() {
+            while(true) {
+                final Event event;
+                boolean resumeOrigin = false;
+                synchronized(flight) {
+                    if(!started || paused || draining || queue.isEmpty()) {
+                        return;
+                    }
+                    event = queue.poll();
+                    queued -= event.size;
+                    draining = true;
+                    if(flight.originPaused && flight.drained()) {
+                        flight.originPaused = false;
+                        resumeOrigin = true;
+                    }
+                }
+                try {
+                    // Resuming may deliver more events on this thread - they queue up behind this one
+                    if(resumeOrigin) {
+                        flight.origin.resume();
+                    }
+                    deliver(event);
+                }
+                finally {
+                    synchronized(flight) {
+                        draining = false;
+                    }
+                }
+            }
+        }
+
+        private void deliver(final Event event) {
+            switch(event.kind) {
+                case Event.HEADERS:
+                    headers(event.headers);
+                    break;
+                case Event.DATA:
+                    data(event.data.duplicate());
+                    break;
+                case Event.TRAILERS:
+                    trailers(event.headers);
+                    break;
+                default:
+                    failure(event.failure);
+            }
+        }
+    }
+
+    /**
+     * Part of the shared response.
+     */
+    private static final class Event {
+        private static final int HEADERS = 0;
+        private static final int DATA = 1;
+        private static final int TRAILERS = 2;
+        private static final int FAILURE = 3;
+
+        private final int kind;
+        private final Map<String, List<String>> headers;
+        private final ByteBuffer data;
+        private final Throwable failure;
+        private final int size;
+
+        private Event(final int kind, final Map<String, List<String>> headers, final ByteBuffer data,
+                      final Throwable failure) {
+            this.kind = kind;
+            this.headers = headers;
+            this.data = data;
+            this.failure = failure;
+            this.size = data == null ? 0 : data.remaining();
+        }
+    }
+}
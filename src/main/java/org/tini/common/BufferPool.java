@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>A pool of byte buffers shared by all the channels of a server or a client. Parsers lease
+ * buffers to read into, and messages lease buffers to write from.</p>
+ *
+ * <p>A leased buffer is cleared, and its capacity is at least the requested size. Return it with
+ * {@link #release(ByteBuffer)} once nobody refers to it any more. Pools may discard returned
+ * buffers that they did not hand out.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+public interface BufferPool {
+
+    /**
+     * Leases a buffer with at least the given capacity.
+     *
+     * @param capacity minimum capacity
+     * @return buffer
+     */
+    ByteBuffer lease(int capacity);
+
+    /**
+     * Returns a buffer to the pool. Passing {@code null} is a no-op.
+     *
+     * @param buffer buffer
+     */
+    void release(ByteBuffer buffer);
+
+    /**
+     * Returns the number of leases so far.
+     *
+     * @return count
+     */
+    long getLeaseCount();
+
+    /**
+     * Returns the number of buffers returned so far.
+     *
+     * @return count
+     */
+    long getReturnCount();
+
+    /**
+     * Returns the number of leases that could not be served from pooled buffers.
+     *
+     * @return count
+     */
+    long getMissCount();
+}
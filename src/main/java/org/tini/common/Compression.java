@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.common;
+
+import java.util.zip.Deflater;
+
+/**
+ * <p>Settings for compressing message bodies - which media types to compress, the smallest body
+ * worth compressing, and the level. Set it on a message with {@link
+ * WritableMessage#setCompression(Compression)}, or for all responses of a server.</p>
+ *
+ * <p>Media types are matched by prefix when they end with {@code /}, such as {@code text/}, by
+ * suffix when they start with {@code +}, such as {@code +json}, and exactly otherwise.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+public final class Compression {
+
+    /**
+     * Default size of the smallest body compressed.
+     */
+    public static final int DEFAULT_MIN_SIZE = 1024;
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final String[] DEFAULT_TYPES = {
+        "text/", "application/json", "application/javascript", "application/x-javascript",
+        "application/xml", "image/svg+xml", "+json", "+xml"
+    };
+
+    private final int minSize;
+    private final int level;
+    private final String[] types;
+
+    /**
+     * Creates settings that compress text, JSON, JavaScript and XML bodies of at least {@link
+     * #DEFAULT_MIN_SIZE} bytes at the default level.
+     */
+    public Compression() {
+        this(DEFAULT_MIN_SIZE, Deflater.DEFAULT_COMPRESSION, DEFAULT_TYPES);
+    }
+
+    /**
+     * Creates settings.
+     *
+     * @param minSize smaller bodies are sent as they are
+     * @param level   level from 1 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+     * @param types   media types to compress
+     */
+    public Compression(final int minSize, final int level, final String... types) {
+        if(minSize < 0) {
+            throw new IllegalArgumentException("Invalid size " + minSize);
+        }
+        this.minSize = minSize;
+        this.level = level;
+        this.types = new String[types.length];
+        for(int i = 0; i < types.length; i++) {
+            this.types[i] = types[i].toLowerCase();
+        }
+    }
+
+    /**
+     * Returns the size of the smallest body compressed.
+     *
+     * @return bytes
+     */
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * Returns the level.
+     *
+     * @return level
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns true if bodies of the given type may be compressed.
+     *
+     * @param contentType value of {@code Content-Type}, or null
+     * @return boolean
+     */
+    public boolean isCompressible(final String contentType) {
+        if(contentType == null) {
+            return false;
+        }
+        final int semi = contentType.indexOf(';');
+        final String type = (semi == -1 ? contentType : contentType.substring(0, semi)).trim().toLowerCase();
+        for(final String candidate : types) {
+            if(candidate.endsWith("/") ? type.startsWith(candidate) :
+                candidate.startsWith("+") ? type.endsWith(candidate) : type.equals(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the coding to use for a client that sent the given {@code Accept-Encoding} - {@link
+     * #GZIP}, {@link #DEFLATE}, or null if the client accepts neither. Ties go to gzip.
+     *
+     * @param acceptEncoding value of {@code Accept-Encoding}, or null
+     * @return coding or null
+     */
+    public static String negotiate(final String acceptEncoding) {
+        final float gzip = quality(acceptEncoding, GZIP);
+        final float deflate = quality(acceptEncoding, DEFLATE);
+        if(gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    /**
+     * Returns true if a client that sent the given {@code Accept-Encoding} accepts the coding.
+     *
+     * @param acceptEncoding value of {@code Accept-Encoding}, or null
+     * @param coding         coding
+     * @return boolean
+     */
+    public static boolean accepts(final String acceptEncoding, final String coding) {
+        return quality(acceptEncoding, coding) > 0;
+    }
+
+    /**
+     * Returns the number of compressors created so far. Compressors are pooled, so this grows
+     * with the most bodies compressed at once rather than with the number of messages.
+     *
+     * @return count
+     */
+    public static long getCompressorCount() {
+        return Compressor.getCreatedCount();
+    }
+
+    /**
+     * Returns the number of compressors held by messages - being compressed, and not yet ended or
+     * failed.
+     *
+     * @return count
+     */
+    public static int getCompressorsInUse() {
+        return Compressor.getInUseCount();
+    }
+
+    /**
+     * Returns the entity tag of the representation in the given coding - the tag with {@code
+     * -coding} added inside its closing quote.
+     *
+     * @param etag   entity tag of the unencoded representation
+     * @param coding coding
+     * @return entity tag
+     */
+    public static String encodedTag(final String etag, final String coding) {
+        if(etag == null || !etag.endsWith("\"")) {
+            return etag;
+        }
+        return etag.substring(0, etag.length() - 1) + "-" + coding + "\"";
+    }
+
+    /**
+     * Returns the entity tag with any {@code -gzip} or {@code -deflate} added by {@link
+     * #encodedTag(String, String)} removed.
+     *
+     * @param etag entity tag
+     * @return entity tag of the unencoded representation
+     */
+    public static String identityTag(final String etag) {
+        for(final String coding : new String[] {GZIP, DEFLATE}) {
+            final String suffix = "-" + coding + "\"";
+            if(etag.endsWith(suffix)) {
+                return etag.substring(0, etag.length() - suffix.length()) + "\"";
+            }
+        }
+        return etag;
+    }
+
+    // Quality of the coding, from its own entry or else from "*" - 0 if neither is listed
+    private static float quality(final String acceptEncoding, final String coding) {
+        if(acceptEncoding == null) {
+            return 0;
+        }
+        float wildcard = 0;
+        for(final String entry : acceptEncoding.split(",")) {
+            final String[] parts = entry.split(";");
+            final String name = parts[0].trim().toLowerCase();
+            float q = 1;
+            for(int i = 1; i < parts.length; i++) {
+                final String param = parts[i].trim();
+                if(param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2).trim());
+                    }
+                    catch(NumberFormatException nfe) {
+                        q = 0;
+                    }
+                }
+            }
+            if(name.equals(coding) || GZIP.equals(coding) && name.equals("x-gzip")) {
+                return q;
+            }
+            if(name.equals("*")) {
+                wildcard = q;
+            }
+        }
+        return wildcard;
+    }
+}
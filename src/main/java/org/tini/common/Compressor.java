@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * <p>Streams a body through a {@link Deflater} in gzip or deflate (zlib) format, and writes the
+ * output to a message in chunks of up to 8 KB.</p>
+ *
+ * <p>Compressors are pooled per format, and shared by all threads - a message takes one for its
+ * whole body, and gives it back when the body is done, or when a write of the body fails.
+ * Deflaters are reset and reused rather than created for each message, even when each message is
+ * written on a thread of its own. Extras past the pool's bound are ended.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+final class Compressor {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    // Kept per format - extras are ended
+    private static final int MAX_POOLED = 16;
+
+    // Magic, deflate, no flags, no time, no extra flags, unknown OS
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int GZIP_TRAILER_LENGTH = 8;
+
+    private static final Pool gzipPool = new Pool();
+    private static final Pool deflatePool = new Pool();
+
+    private static final AtomicLong created = new AtomicLong();
+    private static final AtomicInteger inUse = new AtomicInteger();
+
+    private final boolean gzip;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] input = new byte[BUFFER_SIZE];
+    private final byte[] output = new byte[BUFFER_SIZE];
+    private int outputLength = 0;
+    private boolean started = false;
+
+    private Compressor(final boolean gzip) {
+        this.gzip = gzip;
+        // gzip has its own header and trailer around raw deflate data
+        this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+        created.incrementAndGet();
+    }
+
+    /**
+     * Takes a compressor from the pool, or creates one.
+     *
+     * @param coding {@link Compression#GZIP} or {@link Compression#DEFLATE}
+     * @param level  level
+     * @return compressor
+     */
+    static Compressor acquire(final String coding, final int level) {
+        final boolean gzip = Compression.GZIP.equals(coding);
+        Compressor compressor = (gzip ? gzipPool : deflatePool).poll();
+        if(compressor == null) {
+            compressor = new Compressor(gzip);
+        }
+        compressor.deflater.setLevel(level);
+        inUse.incrementAndGet();
+        return compressor;
+    }
+
+    /**
+     * Returns the number of compressors created so far.
+     *
+     * @return count
+     */
+    static long getCreatedCount() {
+        return created.get();
+    }
+
+    /**
+     * Returns the number of compressors taken and not yet given back.
+     *
+     * @return count
+     */
+    static int getInUseCount() {
+        return inUse.get();
+    }
+
+    /**
+     * Compresses the {@code remaining()} bytes of the buffer, and writes any full chunks of
+     * output to the message. The buffer's position is left as it is.
+     *
+     * @param data    data
+     * @param message message to write to
+     */
+    void write(final ByteBuffer data, final WritableMessage message) {
+        start();
+        final ByteBuffer source = data.duplicate();
+        while(source.hasRemaining()) {
+            final int length = Math.min(source.remaining(), input.length);
+            source.get(input, 0, length);
+            if(gzip) {
+                crc.update(input, 0, length);
+            }
+            deflater.setInput(input, 0, length);
+            while(!deflater.needsInput()) {
+                deflate(message);
+            }
+        }
+    }
+
+    /**
+     * Compresses what is left, writes the rest of the output to the message, and returns this
+     * compressor to the pool.
+     *
+     * @param message message to write to
+     */
+    void finish(final WritableMessage message) {
+        try {
+            start();
+            deflater.finish();
+            while(!deflater.finished()) {
+                deflate(message);
+            }
+            if(gzip) {
+                if(output.length - outputLength < GZIP_TRAILER_LENGTH) {
+                    flush(message);
+                }
+                putInt((int) crc.getValue());
+                putInt((int) deflater.getBytesRead());
+            }
+            flush(message);
+        }
+        finally {
+            release();
+        }
+    }
+
+    private void start() {
+        if(!started) {
+            started = true;
+            if(gzip) {
+                System.arraycopy(GZIP_HEADER, 0, output, 0, GZIP_HEADER.length);
+                outputLength = GZIP_HEADER.length;
+            }
+        }
+    }
+
+    private void deflate(final WritableMessage message) {
+        outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+        if(outputLength == output.length) {
+            flush(message);
+        }
+    }
+
+    private void flush(final WritableMessage message) {
+        if(outputLength > 0) {
+            message.writeCompressed(ByteBuffer.wrap(output, 0, outputLength));
+            outputLength = 0;
+        }
+    }
+
+    // Little endian, as gzip wants
+    private void putInt(final int value) {
+        output[outputLength++] = (byte) value;
+        output[outputLength++] = (byte) (value >>> 8);
+        output[outputLength++] = (byte) (value >>> 16);
+        output[outputLength++] = (byte) (value >>> 24);
+    }
+
+    /**
+     * Drops any input and output, and returns this compressor to the pool. Call once per {@link
+     * #acquire(String, int)}, and not while this compressor is in use.
+     */
+    void release() {
+        deflater.reset();
+        crc.reset();
+        outputLength = 0;
+        started = false;
+        inUse.decrementAndGet();
+        if(!(gzip ? gzipPool : deflatePool).offer(this)) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Idle compressors of one format, up to {@link #MAX_POOLED}.
+     */
+    private static final class Pool {
+        private final ConcurrentLinkedQueue<Compressor> idle = new ConcurrentLinkedQueue<Compressor>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        private Compressor poll() {
+            final Compressor compressor = idle.poll();
+            if(compressor != null) {
+                size.decrementAndGet();
+            }
+            return compressor;
+        }
+
+        private boolean offer(final Compressor compressor) {
+            if(size.incrementAndGet() > MAX_POOLED) {
+                size.decrementAndGet();
+                return false;
+            }
+            idle.offer(compressor);
+            return true;
+        }
+    }
+}
@@ -16,17 +16,27 @@ package org.tini.common;
 
 import java.io.IOException;
 import java.nio.channels.AsynchronousSocketChannel;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Watches for idle channels, and closes them if they are idle.
+ * <p>Watches a channel, and closes it when</p>
+ *
+ * <ul>
+ *     <li>a write makes no progress for the write timeout,</li>
+ *     <li>a read in the middle of a message gets no bytes for the read timeout, or</li>
+ *     <li>the connection does nothing but wait for the next message for the idle timeout.</li>
+ * </ul>
+ *
+ * <p>Readers and writers report each read and write. Those calls only note the time from the
+ * wheel's coarse clock. A single timeout per connection on the shared {@link TimingWheel} checks
+ * these times lazily when it expires, and re-arms itself for the earliest time any of the limits
+ * could be crossed.</p>
  *
  * @author Subbu Allamaraju
  */
-// TODO: Revise design - should handle both server and client
 public final class IdleConnectionWatcher {
     private static final Logger logger = Logger.getLogger("org.tini.common");
 
@@ -34,70 +44,151 @@ public final class IdleConnectionWatcher {
     private final AtomicInteger writers = new AtomicInteger(0);
 
     private final AsynchronousSocketChannel channel;
+    private final TimingWheel wheel;
 
-    private volatile long lastTime;
     private final long idleTimeoutMillis;
-    private final Timer timer;
+    private final long readTimeoutMillis;
+    private final long writeTimeoutMillis;
+
+    // Times from the wheel's clock
+    private volatile long lastTime;
+    private volatile long readSince;
+    private volatile long writeSince;
+
+    // Whether the pending read is for the first line of the next message
+    private volatile boolean awaitingMessage = true;
+
+    private final TimingWheel.Timeout timeout = new TimingWheel.Timeout() {
+        @Override
+        protected void expired() {
+            check();
+        }
+    };
 
     /**
-     * Create
+     * Creates a watcher that only closes idle connections.
      *
      * @param channel          channel
      * @param idleTimeoutMills timeout
      */
     public IdleConnectionWatcher(final AsynchronousSocketChannel channel,
                                  final long idleTimeoutMills) {
+        this(channel, TimingWheel.getDefault(), idleTimeoutMills, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a watcher.
+     *
+     * @param channel            channel
+     * @param wheel              wheel to schedule checks on
+     * @param idleTimeoutMillis  idle timeout
+     * @param readTimeoutMillis  read timeout within a message
+     * @param writeTimeoutMillis write timeout
+     */
+    public IdleConnectionWatcher(final AsynchronousSocketChannel channel,
+                                 final TimingWheel wheel,
+                                 final long idleTimeoutMillis,
+                                 final long readTimeoutMillis,
+                                 final long writeTimeoutMillis) {
         this.channel = channel;
-        lastTime = System.currentTimeMillis();
-        this.idleTimeoutMillis = idleTimeoutMills;
-        timer = new Timer("aio.idle", true);
-        timer.schedule(new IdleTimeoutTask(), idleTimeoutMillis);
+        this.wheel = wheel;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        lastTime = wheel.now();
+        wheel.schedule(timeout, Math.min(idleTimeoutMillis, Math.min(readTimeoutMillis, writeTimeoutMillis)),
+            TimeUnit.MILLISECONDS);
     }
 
-    public void reading() {
+    /**
+     * Call this before reading
+     *
+     * @param awaitingMessage true if reading for the start of the next message
+     */
+    public void reading(final boolean awaitingMessage) {
+        this.awaitingMessage = awaitingMessage;
+        readSince = wheel.now();
         readers.incrementAndGet();
-        lastTime = System.currentTimeMillis();
     }
 
+    /**
+     * Call this after reading
+     */
     public void doneReading() {
         readers.decrementAndGet();
-        lastTime = System.currentTimeMillis();
+        lastTime = wheel.now();
     }
 
     /**
      * Call this before writing
      */
     public void writing() {
-        writers.incrementAndGet();
-        lastTime = System.currentTimeMillis();
+        final long now = wheel.now();
+        if(writers.getAndIncrement() == 0) {
+            writeSince = now;
+        }
     }
 
     /**
      * Call this after writing
      */
     public void doneWriting() {
+        final long now = wheel.now();
+        writeSince = now;
+        lastTime = now;
         writers.decrementAndGet();
-        lastTime = System.currentTimeMillis();
     }
 
-    private class IdleTimeoutTask extends TimerTask implements Cloneable {
-        @Override
-        public void run() {
-            final long currentTime = System.currentTimeMillis();
-            if(readers.get() == 0 && writers.get() == 0 && currentTime - lastTime > idleTimeoutMillis) {
-                // Close now
-                try {
-                    logger.info("Closing an idle channel");
-                    channel.close();
-                }
-                catch(IOException ioe) {
-                    // TODO:
-                    ioe.printStackTrace();
-                }
+    /**
+     * Stops watching.
+     */
+    public void stop() {
+        wheel.cancel(timeout);
+    }
+
+    private void check() {
+        if(!channel.isOpen()) {
+            return;
+        }
+        final long now = wheel.now();
+        long next = idleTimeoutMillis;
+
+        if(writers.get() > 0) {
+            final long stalled = now - writeSince;
+            if(stalled >= writeTimeoutMillis) {
+                close("Closing a channel with a stalled write");
+                return;
             }
-            else {
-                timer.schedule(new IdleTimeoutTask(), idleTimeoutMillis);
+            next = Math.min(next, writeTimeoutMillis - stalled);
+        }
+
+        final boolean reading = readers.get() > 0;
+        if(reading && !awaitingMessage) {
+            final long waited = now - readSince;
+            if(waited >= readTimeoutMillis) {
+                close("Closing a channel after a read timeout");
+                return;
+            }
+            next = Math.min(next, readTimeoutMillis - waited);
+        }
+        else if(writers.get() == 0) {
+            final long idle = now - lastTime;
+            if(idle >= idleTimeoutMillis) {
+                close("Closing an idle channel");
+                return;
             }
+            next = Math.min(next, idleTimeoutMillis - idle);
+        }
+        wheel.schedule(timeout, Math.max(1, next), TimeUnit.MILLISECONDS);
+    }
+
+    private void close(final String message) {
+        try {
+            logger.info(message);
+            channel.close();
+        }
+        catch(IOException ioe) {
+            logger.log(Level.WARNING, ioe.getMessage(), ioe);
         }
     }
 }
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>A blocking {@link InputStream} over the body of a {@link ReadableMessage}. Reads park the
+ * calling thread till the connection delivers more of the body, and return -1 once trailers are
+ * received.</p>
+ *
+ * <p>Use this only from threads other than the connection's I/O threads - such as handlers run
+ * on worker or per-request threads - as blocking an I/O thread stops the very reads that this
+ * stream waits for.</p>
+ *
+ * <p>For server requests, use {@code ServerRequest.getInputStream()}, which also lets the server
+ * know that the stream has taken over resuming reads.</p>
+ *
+ * <p>The stream holds at most {@code maxBuffered} bytes. Beyond that, it pauses the message till
+ * the reader catches up.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+public class MessageInputStream extends InputStream {
+
+    public static final int DEFAULT_MAX_BUFFERED = 64 * 1024;
+
+    private final ReadableMessage message;
+    private final int maxBuffered;
+
+    // j.u.c. locks rather than monitors, so that virtual threads unmount while waiting
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Deque<ByteBuffer> chunks = new ArrayDeque<ByteBuffer>();
+    private int buffered = 0;
+    private boolean paused = false;
+    private boolean ended = false;
+    private boolean closed = false;
+    private Throwable failure;
+
+    /**
+     * Creates a stream over the body of the given message, with the default buffer limit.
+     *
+     * @param message message
+     */
+    public MessageInputStream(final ReadableMessage message) {
+        this(message, DEFAULT_MAX_BUFFERED);
+    }
+
+    /**
+     * Creates a stream over the body of the given message. This registers data and trailer
+     * handlers with the message, and resumes reading it in case it was paused for the handler.
+     *
+     * @param message message
+     * @param maxBuffered bytes to hold before pausing the message
+     */
+    public MessageInputStream(final ReadableMessage message, final int maxBuffered) {
+        this.message = message;
+        this.maxBuffered = maxBuffered;
+        message.onData(new CompletionHandler<ByteBuffer, Void>() {
+            @Override
+            public void completed(final ByteBuffer result, final Void attachment) {
+                offer(result);
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                fail(exc);
+            }
+        }, true);
+        message.onTrailers(new CompletionHandler<Map<String, List<String>>, Void>() {
+            @Override
+            public void completed(final Map<String, List<String>> result, final Void attachment) {
+                finish();
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                fail(exc);
+            }
+        });
+        message.resume();
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] one = new byte[1];
+        final int count = read(one, 0, 1);
+        return count < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+        if(length == 0) {
+            return 0;
+        }
+        boolean doResume = false;
+        int count = 0;
+        lock.lock();
+        try {
+            while(chunks.isEmpty() && !ended && failure == null && !closed) {
+                available.await();
+            }
+            if(closed) {
+                throw new IOException("Stream closed");
+            }
+            if(failure != null) {
+                throw new IOException(failure);
+            }
+            while(count < length && !chunks.isEmpty()) {
+                final ByteBuffer chunk = chunks.peek();
+                final int n = Math.min(length - count, chunk.remaining());
+                chunk.get(bytes, offset + count, n);
+                count += n;
+                if(!chunk.hasRemaining()) {
+                    chunks.poll();
+                }
+            }
+            buffered -= count;
+            if(paused && buffered <= maxBuffered / 2) {
+                paused = false;
+                doResume = true;
+            }
+        }
+        catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        finally {
+            lock.unlock();
+        }
+
+        // Outside the lock, as resuming may deliver data on this thread
+        if(doResume) {
+            message.resume();
+        }
+        return count == 0 ? -1 : count;
+    }
+
+    @Override
+    public int available() {
+        lock.lock();
+        try {
+            return buffered;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards unread data. The rest of the body is still read from the connection, and dropped.
+     */
+    @Override
+    public void close() {
+        boolean doResume;
+        lock.lock();
+        try {
+            closed = true;
+            chunks.clear();
+            buffered = 0;
+            doResume = paused;
+            paused = false;
+            available.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        if(doResume) {
+            message.resume();
+        }
+    }
+
+    private void offer(final ByteBuffer data) {
+        lock.lock();
+        try {
+            if(closed || !data.hasRemaining()) {
+                return;
+            }
+            chunks.add(data);
+            buffered += data.remaining();
+            if(!paused && buffered > maxBuffered) {
+                // Pausing only sets a flag - safe to do while holding the lock
+                paused = true;
+                message.pause();
+            }
+            available.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void finish() {
+        lock.lock();
+        try {
+            ended = true;
+            available.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void fail(final Throwable exc) {
+        lock.lock();
+        try {
+            failure = exc;
+            available.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.common;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * <p>A blocking {@link OutputStream} over the body of a {@link WritableMessage}. Writes are
+ * copied and queued on the connection, and park the calling thread while the connection is above
+ * its high watermark. {@link #close()} ends the message.</p>
+ *
+ * <p>As with {@link MessageInputStream}, use this only from threads other than the connection's
+ * I/O threads.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+public class MessageOutputStream extends OutputStream {
+
+    private final WritableMessage message;
+    private boolean closed = false;
+
+    /**
+     * Creates a stream over the body of the given message.
+     *
+     * @param message message
+     */
+    public MessageOutputStream(final WritableMessage message) {
+        this.message = message;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+        if(closed) {
+            throw new IOException("Stream closed");
+        }
+        if(length == 0) {
+            return;
+        }
+        message.write(ByteBuffer.wrap(bytes, offset, length));
+        awaitWritable();
+    }
+
+    /**
+     * Waits till the connection drains below its low watermark. Data is queued on every write, so
+     * there is nothing else to flush.
+     */
+    @Override
+    public void flush() throws IOException {
+        awaitWritable();
+    }
+
+    /**
+     * Ends the message.
+     */
+    @Override
+    public void close() {
+        if(!closed) {
+            closed = true;
+            message.end();
+        }
+    }
+
+    private void awaitWritable() throws IOException {
+        if(message.isWritable()) {
+            return;
+        }
+        final CountDownLatch writable = new CountDownLatch(1);
+        message.onWritable(new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(final Void result, final Void attachment) {
+                writable.countDown();
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                writable.countDown();
+            }
+        });
+        try {
+            writable.await();
+        }
+        catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
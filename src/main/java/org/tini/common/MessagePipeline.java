@@ -14,29 +14,169 @@
 
 package org.tini.common;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
+ * <p>Messages of a connection in the order they were pushed, in a bounded ring. Pushing, peeking
+ * and polling take no locks and allocate nothing.</p>
+ *
+ * <p>Each slot carries a sequence number that tells whether it is free for the producer at a
+ * given position, or holds a message for the consumer at that position (D. Vyukov's bounded
+ * queue). Producers and consumers claim positions by compare-and-set, so this is safe with more
+ * than one of each - as on the client, where apps push requests from their own threads.</p>
+ *
+ * <p>The capacity is the most messages in flight on the connection - for a server, the most
+ * pipelined requests. {@link #offer(Object)} returns false when full, and {@link #push(Object)}
+ * fails. Nothing blocks. Readers avoid this by pausing once the pipeline fills up.</p>
+ *
  * @author Subbu Allamaraju
  */
 public class MessagePipeline<T> {
 
-    private final BlockingQueue<T> messageQueue;
+    /**
+     * Default capacity
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final int capacity;
+    private final int mask;
+    private final Object[] messages;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong tail = new AtomicLong(0);
 
     public MessagePipeline() {
-        this.messageQueue = new LinkedBlockingQueue<T>();
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a pipeline that holds up to the given number of messages.
+     *
+     * @param capacity capacity
+     */
+    public MessagePipeline(final int capacity) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        this.capacity = capacity;
+        int size = 1;
+        while(size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        messages = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
     }
 
-    public void push(final T message) throws InterruptedException {
-        messageQueue.put(message);
+    /**
+     * Adds a message at the end, if there is room.
+     *
+     * @param message message
+     * @return false if full
+     */
+    public boolean offer(final T message) {
+        assert message != null;
+        while(true) {
+            final long position = tail.get();
+            if(position - head.get() >= capacity) {
+                return false;
+            }
+            final int index = (int) position & mask;
+            final long sequence = sequences.get(index);
+            if(sequence == position) {
+                if(tail.compareAndSet(position, position + 1)) {
+                    messages[index] = message;
+                    // Publishes the message
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            }
+            else if(sequence < position) {
+                // The consumer has not freed the slot yet
+                return false;
+            }
+        }
     }
 
+    /**
+     * Adds a message at the end.
+     *
+     * @param message message
+     * @throws IllegalStateException if full
+     */
+    public void push(final T message) {
+        if(!offer(message)) {
+            throw new IllegalStateException("More than " + capacity + " messages in the pipeline");
+        }
+    }
+
+    /**
+     * Returns the first message without removing it, or null if empty.
+     *
+     * @return message
+     */
+    @SuppressWarnings("unchecked")
     public T peek() {
-        return messageQueue.peek();
+        while(true) {
+            final long position = head.get();
+            final int index = (int) position & mask;
+            if(sequences.get(index) != position + 1) {
+                return null;
+            }
+            final Object message = messages[index];
+            if(head.get() == position) {
+                // Still the first - the slot was not freed while reading it
+                return (T) message;
+            }
+        }
     }
 
+    /**
+     * Removes and returns the first message, or null if empty.
+     *
+     * @return message
+     */
+    @SuppressWarnings("unchecked")
     public T poll() {
-        return messageQueue.poll();
+        while(true) {
+            final long position = head.get();
+            final int index = (int) position & mask;
+            final long sequence = sequences.get(index);
+            if(sequence == position + 1) {
+                if(head.compareAndSet(position, position + 1)) {
+                    final Object message = messages[index];
+                    messages[index] = null;
+                    // Frees the slot for the producer one turn later
+                    sequences.set(index, position + mask + 1);
+                    return (T) message;
+                }
+            }
+            else if(sequence < position + 1) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of messages in the pipeline.
+     *
+     * @return size
+     */
+    public int size() {
+        final long size = tail.get() - head.get();
+        return size < 0 ? 0 : (int) size;
+    }
+
+    /**
+     * Returns the most messages this pipeline holds.
+     *
+     * @return capacity
+     */
+    public int getCapacity() {
+        return capacity;
     }
 }
@@ -30,12 +30,39 @@ public class ReadableMessage {
     private final List<CompletionHandler<Map<String, List<String>>, Void>> onHeaders =
         new ArrayList<CompletionHandler<Map<String, List<String>>, Void>>(1);
     private CompletionHandler<ByteBuffer, Void> onData;
+    private boolean copyData = false;
     private final List<CompletionHandler<Map<String, List<String>>, Void>> onTrailers =
         new ArrayList<CompletionHandler<Map<String, List<String>>, Void>>(1);
 
+    // Pipeline that this message is read from - set when pushed
+    private ReadablePipeline pipeline;
+
     protected ReadableMessage() {
     }
 
+    /**
+     * Stops reading more of this message from the connection till {@link #resume()} is called.
+     * Data already read may still be delivered.
+     */
+    public void pause() {
+        if(pipeline != null) {
+            pipeline.pause();
+        }
+    }
+
+    /**
+     * Resumes reading after {@link #pause()}.
+     */
+    public void resume() {
+        if(pipeline != null) {
+            pipeline.resume();
+        }
+    }
+
+    void setPipeline(final ReadablePipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
     /**
      * Registers a handler when the client receives headers.
      *
@@ -48,12 +75,26 @@ public class ReadableMessage {
 
     /**
      * Registers a handler when the client receives data. This method may be called several times.
+     * The handler receives read-only views of the connection's read buffer, which are valid only
+     * till the handler returns.
      *
      * @param handler handler
      */
     public void onData(final CompletionHandler<ByteBuffer, Void> handler) {
+        onData(handler, false);
+    }
+
+    /**
+     * Registers a handler when the client receives data, and optionally asks for copies of the
+     * data. Use copies when the handler keeps data beyond the callback.
+     *
+     * @param handler handler
+     * @param copy true to receive a copy of each chunk
+     */
+    public void onData(final CompletionHandler<ByteBuffer, Void> handler, final boolean copy) {
         assert handler != null;
         onData = handler;
+        copyData = copy;
     }
 
     /**
@@ -75,7 +116,7 @@ public class ReadableMessage {
 
     public void data(final ByteBuffer data) {
         if(onData != null) {
-            onData.completed(data, null);
+            onData.completed(copyData ? Utils.copy(data) : data, null);
         }
     }
 
@@ -86,6 +127,8 @@ public class ReadableMessage {
     }
 
     public void failure(final Throwable failure) {
-        // TODO
+        if(onData != null) {
+            onData.failed(failure, null);
+        }
     }
 }
@@ -14,6 +14,8 @@
 
 package org.tini.common;
 
+import org.tini.parser.HttpParser;
+
 import java.nio.channels.AsynchronousSocketChannel;
 import java.util.logging.Logger;
 
@@ -27,8 +29,57 @@ public class ReadablePipeline extends MessagePipeline<ReadableMessage> {
     // Channel
     protected final AsynchronousSocketChannel channel;
 
+    // Parser reading messages of this pipeline
+    private volatile HttpParser parser;
+
     public ReadablePipeline(final AsynchronousSocketChannel channel) {
         super();
         this.channel = channel;
     }
+
+    /**
+     * Creates a pipeline that holds up to the given number of messages.
+     *
+     * @param channel  channel
+     * @param capacity capacity
+     */
+    public ReadablePipeline(final AsynchronousSocketChannel channel, final int capacity) {
+        super(capacity);
+        this.channel = channel;
+    }
+
+    @Override
+    public boolean offer(final ReadableMessage message) {
+        message.setPipeline(this);
+        return super.offer(message);
+    }
+
+    /**
+     * Sets the parser that reads messages of this pipeline.
+     *
+     * @param parser parser
+     */
+    protected void setParser(final HttpParser parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * Pauses reading from the channel.
+     */
+    public void pause() {
+        final HttpParser parser = this.parser;
+        if(parser != null) {
+            parser.pause();
+        }
+    }
+
+    /**
+     * Resumes reading from the channel.
+     */
+    public void resume() {
+        final HttpParser parser = this.parser;
+        if(parser != null) {
+            parser.resume();
+        }
+    }
 }
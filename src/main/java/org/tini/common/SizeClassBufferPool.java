@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A {@link BufferPool} with power-of-two size classes of direct buffers. Buffers of the
+ * smaller classes are carved out of larger slabs so that each direct allocation serves several
+ * leases. Requests larger than the largest class are served with unpooled heap buffers.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+public class SizeClassBufferPool implements BufferPool {
+
+    private static final SizeClassBufferPool DEFAULT = new SizeClassBufferPool();
+
+    private final int minShift;
+    private final int maxSize;
+    private final int slabSize;
+    private final int maxPooledPerClass;
+
+    private final List<Queue<ByteBuffer>> free;
+    private final AtomicInteger[] freeCount;
+
+    private final AtomicLong leases = new AtomicLong();
+    private final AtomicLong returns = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Returns a pool shared by channels that were not given one.
+     *
+     * @return pool
+     */
+    public static SizeClassBufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Creates a pool with classes from 512 bytes to 256 KB, 64 KB slabs, and at most 1024 idle
+     * buffers per class.
+     */
+    public SizeClassBufferPool() {
+        this(512, 256 * 1024, 64 * 1024, 1024);
+    }
+
+    /**
+     * Creates a pool.
+     *
+     * @param minSize           smallest class - rounded up to a power of two
+     * @param maxSize           largest class - rounded up to a power of two
+     * @param slabSize          classes smaller than this are sliced out of slabs of this size
+     * @param maxPooledPerClass idle buffers kept per class - the rest are left to the GC
+     */
+    public SizeClassBufferPool(final int minSize, final int maxSize, final int slabSize, final int maxPooledPerClass) {
+        if(minSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid size classes " + minSize + " - " + maxSize);
+        }
+        this.minShift = shift(minSize);
+        this.maxSize = 1 << shift(maxSize);
+        this.slabSize = slabSize;
+        this.maxPooledPerClass = maxPooledPerClass;
+
+        final int classes = shift(maxSize) - minShift + 1;
+        free = new ArrayList<Queue<ByteBuffer>>(classes);
+        freeCount = new AtomicInteger[classes];
+        for(int i = 0; i < classes; i++) {
+            free.add(new ConcurrentLinkedQueue<ByteBuffer>());
+            freeCount[i] = new AtomicInteger();
+        }
+    }
+
+    @Override
+    public ByteBuffer lease(final int capacity) {
+        leases.incrementAndGet();
+        if(capacity > maxSize) {
+            misses.incrementAndGet();
+            return ByteBuffer.allocate(capacity);
+        }
+        final int index = index(capacity);
+        ByteBuffer buffer = free.get(index).poll();
+        if(buffer == null) {
+            misses.incrementAndGet();
+            buffer = allocate(index);
+        }
+        else {
+            freeCount[index].decrementAndGet();
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public void release(final ByteBuffer buffer) {
+        if(buffer == null) {
+            return;
+        }
+        returns.incrementAndGet();
+        if(!buffer.isDirect() || buffer.isReadOnly() || buffer.capacity() > maxSize ||
+            Integer.bitCount(buffer.capacity()) != 1 || buffer.capacity() < 1 << minShift) {
+            // Not one of ours
+            return;
+        }
+        offer(index(buffer.capacity()), buffer);
+    }
+
+    @Override
+    public long getLeaseCount() {
+        return leases.get();
+    }
+
+    @Override
+    public long getReturnCount() {
+        return returns.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private ByteBuffer allocate(final int index) {
+        final int size = 1 << (index + minShift);
+        if(size >= slabSize) {
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        // Slice the slab - keep the first one and pool the rest
+        final ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+        ByteBuffer first = null;
+        for(int offset = 0; offset + size <= slabSize; offset += size) {
+            slab.limit(offset + size).position(offset);
+            final ByteBuffer slice = slab.slice();
+            if(first == null) {
+                first = slice;
+            }
+            else {
+                offer(index, slice);
+            }
+        }
+        return first;
+    }
+
+    private void offer(final int index, final ByteBuffer buffer) {
+        if(freeCount[index].incrementAndGet() > maxPooledPerClass) {
+            freeCount[index].decrementAndGet();
+            return;
+        }
+        free.get(index).offer(buffer);
+    }
+
+    private int index(final int capacity) {
+        return Math.max(0, shift(capacity) - minShift);
+    }
+
+    private static int shift(final int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
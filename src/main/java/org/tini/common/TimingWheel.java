@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Hashed timing wheel - one thread keeps time for any number of timeouts. Timeouts hash into
+ * buckets by their expiry tick, and carry the number of turns of the wheel left, so that
+ * scheduling and cancelling are O(1), and each tick only visits one bucket.</p>
+ *
+ * <p>Timeouts are intrusive list nodes, so that neither scheduling nor ticking allocates. A
+ * timeout may be rescheduled any number of times, including from its own {@link
+ * Timeout#expired()}.</p>
+ *
+ * <p>The wheel also keeps a coarse clock, updated every tick, for code that notes the time of
+ * each read or write and does not need more precision than the tick.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+public final class TimingWheel {
+
+    private static final Logger logger = Logger.getLogger("org.tini.common");
+
+    // Shared by all servers and clients in the VM
+    private static final TimingWheel DEFAULT = new TimingWheel("tini-timer", 10, 512);
+
+    private final long tickMillis;
+    private final int mask;
+    private final Timeout[] buckets;
+
+    // Next tick to process - guarded by this
+    private long tick = 0;
+
+    // Coarse time in millis
+    private volatile long now;
+
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    /**
+     * Returns the wheel shared by the VM - 10ms ticks.
+     *
+     * @return wheel
+     */
+    public static TimingWheel getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Creates a wheel, and starts its thread.
+     *
+     * @param name       name of the thread
+     * @param tickMillis duration of a tick
+     * @param buckets    number of buckets - rounded up to a power of two
+     */
+    public TimingWheel(final String name, final long tickMillis, final int buckets) {
+        this.tickMillis = tickMillis;
+        int size = 1;
+        while(size < buckets) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.buckets = new Timeout[size];
+        this.now = System.currentTimeMillis();
+
+        worker = new Thread(name) {
+            @Override
+            public void run() {
+                runWheel();
+            }
+        };
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Returns the time as of the last tick - as {@link System#currentTimeMillis()}, but without a
+     * system call, and only as precise as a tick.
+     *
+     * @return millis since the epoch
+     */
+    public long now() {
+        return now;
+    }
+
+    /**
+     * Schedules the timeout to expire after the given delay, rounded up to a tick. If already
+     * scheduled, it is moved.
+     *
+     * @param timeout timeout
+     * @param delay   delay
+     * @param unit    unit of the delay
+     */
+    public void schedule(final Timeout timeout, final long delay, final TimeUnit unit) {
+        final long ticks = Math.max(1, (unit.toMillis(delay) + tickMillis - 1) / tickMillis);
+        synchronized(this) {
+            if(timeout.bucket >= 0) {
+                unlink(timeout);
+            }
+            final long offset = ticks - 1;
+            timeout.wheel = this;
+            timeout.rounds = offset / buckets.length;
+            link(timeout, (int) ((tick + offset) & mask));
+        }
+    }
+
+    /**
+     * Cancels the timeout if it is scheduled.
+     *
+     * @param timeout timeout
+     * @return true if the timeout was scheduled
+     */
+    public synchronized boolean cancel(final Timeout timeout) {
+        if(timeout.bucket < 0) {
+            return false;
+        }
+        unlink(timeout);
+        return true;
+    }
+
+    /**
+     * Stops the wheel. Pending timeouts never expire.
+     */
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void runWheel() {
+        long deadline = System.currentTimeMillis() + tickMillis;
+        while(running) {
+            final long wait = deadline - System.currentTimeMillis();
+            if(wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                }
+                catch(InterruptedException ie) {
+                    continue;
+                }
+            }
+            now = System.currentTimeMillis();
+            deadline += tickMillis;
+            if(now - deadline > 1000) {
+                // Too far behind - the clock moved, or the VM was suspended. Do not try to
+                // catch up tick by tick.
+                deadline = now + tickMillis;
+            }
+            expire(advance());
+        }
+    }
+
+    /**
+     * Moves to the next tick, and returns the timeouts that expired, chained.
+     *
+     * @return expired timeouts
+     */
+    private synchronized Timeout advance() {
+        final int index = (int) (tick & mask);
+        tick++;
+        Timeout expired = null;
+        Timeout timeout = buckets[index];
+        while(timeout != null) {
+            final Timeout next = timeout.next;
+            if(timeout.rounds == 0) {
+                unlink(timeout);
+                timeout.nextExpired = expired;
+                expired = timeout;
+            }
+            else {
+                timeout.rounds--;
+            }
+            timeout = next;
+        }
+        return expired;
+    }
+
+    // Outside the lock, so that timeouts can reschedule themselves and do I/O
+    private static void expire(Timeout expired) {
+        while(expired != null) {
+            final Timeout next = expired.nextExpired;
+            expired.nextExpired = null;
+            try {
+                expired.expired();
+            }
+            catch(Throwable t) {
+                logger.log(Level.WARNING, t.getMessage(), t);
+            }
+            expired = next;
+        }
+    }
+
+    private void link(final Timeout timeout, final int index) {
+        final Timeout head = buckets[index];
+        timeout.bucket = index;
+        timeout.prev = null;
+        timeout.next = head;
+        if(head != null) {
+            head.prev = timeout;
+        }
+        buckets[index] = timeout;
+    }
+
+    private void unlink(final Timeout timeout) {
+        if(timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        }
+        else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if(timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+    }
+
+    /**
+     * A timeout. Subclasses say what to do on expiry.
+     */
+    public abstract static class Timeout {
+        // Guarded by the wheel
+        private TimingWheel wheel;
+        private Timeout prev;
+        private Timeout next;
+        private int bucket = -1;
+        private long rounds;
+
+        // Set by the wheel thread only
+        private Timeout nextExpired;
+
+        /**
+         * Called on the wheel's thread when the timeout expires. Keep this short - schedule longer
+         * work elsewhere.
+         */
+        protected abstract void expired();
+
+        /**
+         * Returns true if scheduled and not yet expired.
+         *
+         * @return boolean
+         */
+        public boolean isScheduled() {
+            final TimingWheel owner = wheel;
+            if(owner == null) {
+                return false;
+            }
+            synchronized(owner) {
+                return bucket >= 0;
+            }
+        }
+    }
+}
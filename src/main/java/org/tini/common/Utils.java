@@ -23,16 +23,33 @@ import java.nio.channels.CompletionHandler;
 public class Utils {
 
     /**
-     * Copies data as and when it arrives from source to dest
+     * Copies data as and when it arrives from source to dest. Each chunk is copied once, straight
+     * from the source's read buffer into the buffer written to dest. Reading from the source is
+     * paused while dest is not writable.
      *
      * @param source source
      * @param dest   dest
      */
     public static void pump(final ReadableMessage source, final WritableMessage dest) {
+        final CompletionHandler<Void, Void> resume = new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(final Void result, final Void attachment) {
+                source.resume();
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                source.resume();
+            }
+        };
         source.onData(new CompletionHandler<ByteBuffer, Void>() {
             @Override
             public void completed(final ByteBuffer result, final Void count) {
                 dest.write(result);
+                if(!dest.isWritable()) {
+                    source.pause();
+                    dest.onWritable(resume);
+                }
             }
 
             @Override
@@ -42,4 +59,18 @@ public class Utils {
             }
         });
     }
+
+    /**
+     * Returns a heap copy of the {@code remaining()} bytes of the given buffer without changing its
+     * position.
+     *
+     * @param data data
+     * @return copy
+     */
+    public static ByteBuffer copy(final ByteBuffer data) {
+        final ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+        return copy;
+    }
 }
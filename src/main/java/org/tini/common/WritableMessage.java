@@ -14,18 +14,20 @@
 
 package org.tini.common;
 
+import org.tini.parser.HeadEncoder;
 import org.tini.parser.HttpCodecUtil;
+import org.tini.parser.HttpHeaders;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.CompletionHandler;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -42,6 +44,10 @@ public abstract class WritableMessage {
     private final ReadWriteLock headerLock = new ReentrantReadWriteLock();
     private volatile boolean headersWritten = false;
 
+    // Names and values of the head, taken once so that encoding puts exactly what was sized -
+    // headers may be added concurrently. Guarded by headerLock
+    private List<String> head;
+
     private final ReadWriteLock endLock = new ReentrantReadWriteLock();
     private volatile boolean hasEnded = false;
 
@@ -49,13 +55,48 @@ public abstract class WritableMessage {
     protected static final Charset US_ASCII = Charset.forName("US-ASCII");
     protected static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(US_ASCII);
 
+    // Trailer of each chunk - duplicated for each write
+    private static final ByteBuffer CRLF = ByteBuffer.wrap(HttpCodecUtil.CRLF).asReadOnlyBuffer();
+
+    // Data up to this size is copied next to the head and chunk framing rather than written from
+    // the caller's buffer
+    private static final int COPY_THRESHOLD = 1024;
+
     private final WritablePipeline writablePipeline;
     private boolean hasBody = false;
 
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    // Body compression - null when off, or once decided against
+    private Compression compression;
+
+    // Body held back till it is large enough to compress, or the message ends
+    private ByteBuffer held;
+
+    // Coding for the body, and the compressor once decided
+    private String coding;
+    private Compressor compressor;
+
+    // A failed write of compressed output gives the compressor back - once the writing thread is
+    // out of it. Guarded by compressorLock
+    private final Object compressorLock = new Object();
+    private boolean compressing = false;
+    private boolean compressionFailed = false;
+    private CompletionHandler<Integer, Void> onCompressedWrite;
+
     protected WritableMessage(final WritablePipeline writablePipeline) {
         this.writablePipeline = writablePipeline;
     }
 
+    /**
+     * Returns the pool that buffers written by this message should be leased from.
+     *
+     * @return pool
+     */
+    public BufferPool getBufferPool() {
+        return writablePipeline.getBufferPool();
+    }
+
     /**
      * <p>Adds headers.</p>
      *
@@ -63,7 +104,7 @@ public abstract class WritableMessage {
      * @param value value
      */
     public void addHeader(final String name, final String value) {
-        if(name.equalsIgnoreCase("connection") && value.equals("close")) {
+        if(name.equalsIgnoreCase(HttpHeaders.CONNECTION) && value.equals("close")) {
             writablePipeline.closeWhenDone();
         }
         headers.put(name.toLowerCase(), value);
@@ -83,13 +124,68 @@ public abstract class WritableMessage {
         }
     }
 
+    /**
+     * <p>Adds a name to the {@code Vary} header unless already there.</p>
+     *
+     * @param name header name
+     */
+    public void addVary(final String name) {
+        final String vary = headers.get(HttpHeaders.VARY);
+        if(vary == null) {
+            headers.put(HttpHeaders.VARY, name);
+            return;
+        }
+        for(final String existing : vary.split(",")) {
+            if(existing.trim().equalsIgnoreCase(name) || existing.trim().equals("*")) {
+                return;
+            }
+        }
+        headers.put(HttpHeaders.VARY, vary + ", " + name);
+    }
+
+    /**
+     * <p>Compresses the body, if the other end accepts it and the body is worth compressing. Call
+     * this before writing the body. Pass null to turn compression off.</p>
+     *
+     * <p>Bodies are compressed when their {@code Content-Type} is one of the compressible types,
+     * and they have no {@code Content-Encoding} or {@code Content-Range} already. Bodies without
+     * a {@code Content-Length} are held back till they reach the minimum size, and go out as they
+     * are, with a {@code Content-Length}, if the message ends first. Compressed bodies are
+     * chunked, and their strong {@code ETag} gets the coding as a suffix. {@code Vary:
+     * Accept-Encoding} is added to all messages with a compressible type.</p>
+     *
+     * @param compression settings, or null
+     */
+    public void setCompression(final Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Returns the compression settings, or null if the body is not to be compressed.
+     *
+     * @return settings or null
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Returns the {@code Accept-Encoding} of the other end, for messages that may be compressed.
+     * Returns null by default.
+     *
+     * @return value or null
+     */
+    protected String getAcceptEncoding() {
+        return null;
+    }
+
     /**
      * <p>Set the media type of the response.</p>
      *
      * @param type media type
      */
     public void setContentType(final String type) {
-        headers.put("content-type", type);
+        headers.put(HttpHeaders.CONTENT_TYPE, type);
     }
 
     /**
@@ -103,61 +199,195 @@ public abstract class WritableMessage {
 
     /**
      * Write the {@code data.remaining()} bytes from the given {@link ByteBuffer} starting from
-     * {@code data.position()}.
+     * {@code data.position()}. The bytes are copied, and the buffer may be reused as soon as this
+     * method returns.
      *
      * @param data bytes
      */
     public void write(final ByteBuffer data) {
+        write(data, null, true);
+    }
+
+    /**
+     * Write the {@code data.remaining()} bytes from the given {@link ByteBuffer} starting from
+     * {@code data.position()}, without copying them. The head and chunk framing go around the
+     * data in one gathering write. The buffer must not be modified until the handler is called.
+     *
+     * @param data bytes
+     * @param handler completion handler
+     */
+    public void write(final ByteBuffer data, final CompletionHandler<Integer, Void> handler) {
+        write(data, handler, false);
+    }
+
+    private void write(final ByteBuffer data, final CompletionHandler<Integer, Void> handler, final boolean copy) {
+        if(compression != null) {
+            // The data is consumed before this returns
+            final int length = data.remaining();
+            compress(data, false);
+            if(handler != null) {
+                handler.completed(length, null);
+            }
+            return;
+        }
+        writeFramed(data, handler, copy);
+    }
+
+    /**
+     * Writes output of the compressor, which reuses the buffer.
+     *
+     * @param data compressed bytes
+     */
+    void writeCompressed(final ByteBuffer data) {
+        writeFramed(data, onCompressedWrite, true);
+    }
+
+    private void writeFramed(final ByteBuffer data, final CompletionHandler<Integer, Void> handler, final boolean copy) {
         hasBody = true;
-        final ByteArrayOutputStream baos = writeHead(doClose());
+        final int length = data.remaining();
+        final boolean inline = copy || length <= COPY_THRESHOLD;
 
+        // Head (if not yet written) and chunk framing go into one pooled buffer - along with the
+        // data if it is small, or if the caller may reuse it
+        final ByteBuffer buffer;
+        headerLock.writeLock().lock();
         try {
+            final int headLength = prepareHead(doClose());
+            int size = headLength;
             if(isChunked) {
-                final String str = Integer.toHexString(data.remaining());// + ";assoc-id=" + chunkId;
-                final byte[] boundary = str.getBytes(US_ASCII);
-                baos.write(boundary);
-                baos.write(HttpCodecUtil.CRLF);
+                size += HeadEncoder.hexLength(length) + HttpCodecUtil.CRLF.length;
+            }
+            if(inline) {
+                size += length + (isChunked ? HttpCodecUtil.CRLF.length : 0);
             }
-            baos.write(data.array(), data.position(), data.remaining());
+            buffer = writablePipeline.getBufferPool().lease(size);
+            if(headLength > 0) {
+                encodeHead(buffer);
+            }
+        }
+        finally {
+            headerLock.writeLock().unlock();
+        }
+
+        if(isChunked) {
+            HeadEncoder.putHex(buffer, length);// + ";assoc-id=" + chunkId;
+            buffer.put(HttpCodecUtil.CRLF);
+        }
+        if(inline) {
+            buffer.put(data.duplicate());
             if(isChunked) {
-                baos.write(HttpCodecUtil.CRLF);
+                buffer.put(HttpCodecUtil.CRLF);
             }
-            writablePipeline.write(this, ByteBuffer.wrap(baos.toByteArray()), null);
+            buffer.flip();
+            writablePipeline.write(this, buffer, handler);
         }
-        catch(IOException ioe) {
-            // ByteArrayOutputStream does not throw this
+        else {
+            buffer.flip();
+            final ByteBuffer[] buffers = isChunked ?
+                new ByteBuffer[] {buffer, data.duplicate(), CRLF.duplicate()} :
+                new ByteBuffer[] {buffer, data.duplicate()};
+            writablePipeline.write(this, buffers, 1, handler);
         }
     }
 
+    /**
+     * Returns false when the connection has more than its high watermark of bytes waiting to be
+     * written. Producers should then stop writing, and pause reading their source, till {@link
+     * #onWritable(CompletionHandler)} calls back.
+     *
+     * @return boolean
+     */
+    public boolean isWritable() {
+        return writablePipeline.isWritable();
+    }
+
+    /**
+     * Calls the handler once the connection is writable - right away if it is writable now.
+     *
+     * @param handler handler
+     */
+    public void onWritable(final CompletionHandler<Void, Void> handler) {
+        writablePipeline.onWritable(handler);
+    }
+
     /**
      * <p>End the message.
      */
     public void end() {
+        if(compression != null && (held != null || compressor != null)) {
+            compress(EMPTY_BUFFER, true);
+        }
         endLock.writeLock().lock();
         try {
             if(hasEnded) {
                 return;
             }
             final boolean doClose = doClose();
-            final ByteArrayOutputStream baos;
-            if(!headersWritten) {
-                baos = writeHead(doClose);
+            ByteBuffer buffer = null;
+            headerLock.writeLock().lock();
+            try {
+                final int headLength = prepareHead(doClose);
+                final int size = headLength + (isChunked && hasBody ? LAST_CHUNK.length : 0);
+                if(size > 0) {
+                    buffer = writablePipeline.getBufferPool().lease(size);
+                    if(headLength > 0) {
+                        encodeHead(buffer);
+                    }
+                }
             }
-            else {
-                baos = new ByteArrayOutputStream();
+            finally {
+                headerLock.writeLock().unlock();
             }
 
-            if(isChunked && hasBody) {
-                try {
-                    baos.write(LAST_CHUNK);
+            if(buffer != null) {
+                if(isChunked && hasBody) {
+                    buffer.put(LAST_CHUNK);
                 }
-                catch(IOException ioe) {
-                    // ByteArrayOutputStream does not throw this
+                buffer.flip();
+                writablePipeline.write(this, buffer, null);
+            }
+            writablePipeline.end(this);
+            hasEnded = true;
+        }
+        finally {
+            endLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * <p>Writes the head, followed by pre-encoded header lines, the empty line and the body, and
+     * ends the message. The head must not have been written yet, and the encoded headers must
+     * include {@code Content-Length}. The buffer is written without copying, and must not be
+     * modified till it is written - it may be shared by several messages, each writing its own
+     * duplicate.</p>
+     *
+     * @param encoded header lines, the empty line and the body
+     */
+    public void endEncoded(final ByteBuffer encoded) {
+        endLock.writeLock().lock();
+        try {
+            if(hasEnded) {
+                return;
+            }
+            final boolean doClose = doClose();
+            final ByteBuffer buffer;
+            headerLock.writeLock().lock();
+            try {
+                if(headersWritten) {
+                    throw new IllegalStateException("Head already written");
                 }
+                isChunked = false;
+                headers.remove(HttpHeaders.TRANSFER_ENCODING);
+                // The empty line comes with the encoded headers
+                final int headLength = prepareHead(doClose) - HttpCodecUtil.CRLF.length;
+                buffer = writablePipeline.getBufferPool().lease(headLength);
+                encodeHead(buffer, false);
             }
-            if(baos.size() > 0) {
-                writablePipeline.write(this, ByteBuffer.wrap(baos.toByteArray()), null);
+            finally {
+                headerLock.writeLock().unlock();
             }
+            buffer.flip();
+            writablePipeline.write(this, new ByteBuffer[] {buffer, encoded.duplicate()}, 1, null);
             writablePipeline.end(this);
             hasEnded = true;
         }
@@ -166,14 +396,167 @@ public abstract class WritableMessage {
         }
     }
 
+    /**
+     * Passes data through the compressor, once it is known whether the body is to be compressed.
+     *
+     * @param data data
+     * @param last true at the end of the body
+     */
+    private void compress(final ByteBuffer data, final boolean last) {
+        synchronized(compressorLock) {
+            if(compressionFailed) {
+                // The connection is gone - drop the rest of the body
+                return;
+            }
+            compressing = true;
+        }
+        try {
+            compressBody(data, last);
+        }
+        finally {
+            synchronized(compressorLock) {
+                compressing = false;
+                if(compressionFailed) {
+                    releaseCompressor();
+                }
+            }
+        }
+    }
+
+    private void compressBody(final ByteBuffer data, final boolean last) {
+        if(compressor == null && held == null) {
+            // First write
+            coding = chooseCoding();
+            final String length = headers.get(HttpHeaders.CONTENT_LENGTH);
+            if(coding == null || length != null && !worthCompressing(length)) {
+                compression = null;
+                writeFramed(data, null, true);
+                return;
+            }
+            if(length == null) {
+                held = ByteBuffer.allocate(compression.getMinSize());
+            }
+            else if(!begin(coding)) {
+                compression = null;
+                writeFramed(data, null, true);
+                return;
+            }
+        }
+        if(held != null) {
+            if(!last && held.position() + data.remaining() < held.capacity()) {
+                held.put(data.duplicate());
+                return;
+            }
+            final ByteBuffer body = held;
+            body.flip();
+            held = null;
+            final int length = body.remaining() + data.remaining();
+            if(length < compression.getMinSize() || !begin(coding)) {
+                // Ended short of the minimum - send it as it is
+                compression = null;
+                if(last && !headersWritten) {
+                    headers.put(HttpHeaders.CONTENT_LENGTH, Integer.toString(length));
+                }
+                writeFramed(body, null, true);
+                if(data.hasRemaining()) {
+                    writeFramed(data, null, true);
+                }
+                return;
+            }
+            compressor.write(body, this);
+        }
+        compressor.write(data, this);
+        if(last) {
+            final Compressor done = compressor;
+            compressor = null;
+            compression = null;
+            done.finish(this);
+        }
+    }
+
+    // Gives back the compressor after a failed write - now, or once the writing thread is done
+    private void compressionFailed() {
+        synchronized(compressorLock) {
+            compressionFailed = true;
+            if(!compressing) {
+                releaseCompressor();
+            }
+        }
+    }
+
+    // Call with compressorLock held
+    private void releaseCompressor() {
+        if(compressor != null) {
+            compressor.release();
+            compressor = null;
+        }
+        held = null;
+    }
+
+    // Coding to compress the body with, or null
+    private String chooseCoding() {
+        if(headersWritten || !compression.isCompressible(headers.get(HttpHeaders.CONTENT_TYPE))) {
+            return null;
+        }
+        if(headers.containsKey(HttpHeaders.CONTENT_ENCODING) || headers.containsKey(HttpHeaders.CONTENT_RANGE)) {
+            return null;
+        }
+        addVary("Accept-Encoding");
+        return Compression.negotiate(getAcceptEncoding());
+    }
+
+    private boolean worthCompressing(final String length) {
+        try {
+            return Long.parseLong(length.trim()) >= compression.getMinSize();
+        }
+        catch(NumberFormatException nfe) {
+            return false;
+        }
+    }
+
+    // Switches the head to the compressed body - false if the head is already out
+    private boolean begin(final String coding) {
+        if(coding == null) {
+            return false;
+        }
+        headerLock.writeLock().lock();
+        try {
+            if(headersWritten) {
+                return false;
+            }
+            headers.put(HttpHeaders.CONTENT_ENCODING, coding);
+            headers.remove(HttpHeaders.CONTENT_LENGTH);
+            final String etag = headers.get(HttpHeaders.ETAG);
+            if(etag != null) {
+                // Each coding is a different representation
+                headers.put(HttpHeaders.ETAG, Compression.encodedTag(etag, coding));
+            }
+        }
+        finally {
+            headerLock.writeLock().unlock();
+        }
+        onCompressedWrite = new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(final Integer result, final Void attachment) {
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                compressionFailed();
+            }
+        };
+        compressor = Compressor.acquire(coding, compression.getLevel());
+        return true;
+    }
+
     protected void setTransferEncoding() {
         if(!hasBody) return;
-        if(headers.containsKey("content-length")) {
-            headers.remove("transfer-encoding");
+        if(headers.containsKey(HttpHeaders.CONTENT_LENGTH)) {
+            headers.remove(HttpHeaders.TRANSFER_ENCODING);
             isChunked = false;
         }
         else {
-            headers.put("transfer-encoding", "chunked");
+            headers.put(HttpHeaders.TRANSFER_ENCODING, "chunked");
             isChunked = true;
         }
     }
@@ -185,53 +568,103 @@ public abstract class WritableMessage {
     }
 
     public void writeHead(final CompletionHandler<Integer, Void> handler) {
-        final ByteArrayOutputStream baos = writeHead(doClose());
-        writablePipeline.write(this, ByteBuffer.wrap(baos.toByteArray()), handler);
-    }
-
-    private ByteArrayOutputStream writeHead(final boolean doClose) {
+        final ByteBuffer buffer;
         headerLock.writeLock().lock();
         try {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream(512);
-            if(headersWritten) {
-                return baos;
-            }
-            setTransferEncoding();
-            if(doClose) {
-                headers.put("connection", "close");
-            }
-            else {
-                headers.put("connection", "keep-alive");
+            final int headLength = prepareHead(doClose());
+            buffer = writablePipeline.getBufferPool().lease(headLength);
+            if(headLength > 0) {
+                encodeHead(buffer);
             }
+        }
+        finally {
+            headerLock.writeLock().unlock();
+        }
+        buffer.flip();
+        writablePipeline.write(this, buffer, handler);
+    }
+
+    /**
+     * Finalizes headers, takes the ones to write, and returns the length of the head, or 0 if the
+     * head has already been written. Call with the header lock held, and follow with {@link
+     * #encodeHead(ByteBuffer)} when the length is not 0.
+     *
+     * @param doClose true if the connection will be closed after this message
+     * @return length of the head in bytes
+     */
+    private int prepareHead(final boolean doClose) {
+        if(headersWritten) {
+            return 0;
+        }
+        setTransferEncoding();
+        if(doClose) {
+            headers.put(HttpHeaders.CONNECTION, "close");
+        }
+        else {
+            headers.put(HttpHeaders.CONNECTION, "keep-alive");
+        }
 
-            // Add Assoc-Req header - see http://tools.ietf.org/html/draft-nottingham-http-writablesQueue-00
+        // Add Assoc-Req header - see http://tools.ietf.org/html/draft-nottingham-http-writablesQueue-00
 //        if(isChunked) {
 //            headers.put("Assoc-Req", request.getHeader("host") + request.getRequestLine().getUri());
 //            headers.put("Assoc-Chunk-ID", chunkId);
 //        }
-            try {
-                writeFirstLine(baos);
-                baos.write(HttpCodecUtil.CRLF);
-
-                for(final String name : headers.keySet()) {
-                    baos.write(name.toLowerCase().getBytes(US_ASCII));
-                    baos.write(": ".getBytes(US_ASCII));
-                    baos.write(headers.get(name).getBytes(US_ASCII));
-                    baos.write(HttpCodecUtil.CRLF);
-                    logger.info("Writing header " + name + ": " + headers.get(name));
-                }
-                baos.write(HttpCodecUtil.CRLF);
-            }
-            catch(IOException ioe) {
-                // ByteArrayOutputStream does not throw this
+        if(head == null) {
+            head = new ArrayList<String>(2 * headers.size() + 4);
+        }
+        head.clear();
+        int length = firstLineLength() + HttpCodecUtil.CRLF.length;
+        for(final Map.Entry<String, String> header : headers.entrySet()) {
+            final String name = header.getKey();
+            final String value = header.getValue();
+            head.add(name);
+            head.add(value);
+            length += HeadEncoder.headerLength(name, value);
+        }
+        return length;
+    }
+
+    /**
+     * Puts the first line, headers and the empty line into the buffer.
+     *
+     * @param buffer buffer with room for the whole head
+     */
+    private void encodeHead(final ByteBuffer buffer) {
+        encodeHead(buffer, true);
+    }
+
+    /**
+     * Puts the first line and headers into the buffer, and the empty line if asked to.
+     *
+     * @param buffer buffer with room for the head
+     * @param terminate true to put the empty line
+     */
+    private void encodeHead(final ByteBuffer buffer, final boolean terminate) {
+        writeFirstLine(buffer);
+        for(int i = 0; i < head.size(); i += 2) {
+            HeadEncoder.putHeader(buffer, head.get(i), head.get(i + 1));
+            if(logger.isLoggable(Level.FINEST)) {
+                logger.finest("Writing header " + head.get(i) + ": " + head.get(i + 1));
             }
-            headersWritten = true;
-            return baos;
         }
-        finally {
-            headerLock.writeLock().unlock();
+        head = null;
+        if(terminate) {
+            buffer.put(HttpCodecUtil.CRLF);
         }
+        headersWritten = true;
     }
 
-    protected abstract void writeFirstLine(ByteArrayOutputStream baos) throws IOException;
+    /**
+     * Returns the length of the first line including CRLF.
+     *
+     * @return length
+     */
+    protected abstract int firstLineLength();
+
+    /**
+     * Writes the first line including CRLF.
+     *
+     * @param buffer buffer to write to
+     */
+    protected abstract void writeFirstLine(ByteBuffer buffer);
 }
@@ -18,12 +18,31 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * <p>Writes messages to a channel in the order they were pushed. Data of the current message is
+ * queued for the channel right away, one write in flight at a time. Data of messages behind the
+ * current one (responses to pipelined requests that finished early) is held per message, and
+ * queued in order once all messages before it have ended.</p>
+ *
+ * <p>Held data is bounded per connection. Past the limit, further held data is either spilled to
+ * a temporary file, or - when not spilling, or if the spill fails - kept in memory while {@link
+ * #holdLimitExceeded()} tells the reading side to stop reading new messages.</p>
+ *
  * @author Subbu Allamaraju
  */
 public abstract class WritablePipeline extends MessagePipeline<WritableMessage> {
@@ -33,72 +52,246 @@ public abstract class WritablePipeline extends MessagePipeline<WritableMessage>
     // Channel to write to
     private final AsynchronousSocketChannel channel;
 
-    // Pending writes.
-    private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    // Buffers written to the channel are returned to this pool
+    private final BufferPool bufferPool;
+
+    // Writes waiting for the channel - only one write is in flight at a time. This lock also
+    // guards the order of messages, held writes and the spill file.
+    private final Deque<Write> outbound = new ArrayDeque<Write>();
+    private boolean writing = false;
+    private long queuedBytes = 0;
+    private boolean writable = true;
+    private boolean closeWhenDrained = false;
+    private final List<CompletionHandler<Void, Void>> onWritable = new ArrayList<CompletionHandler<Void, Void>>(1);
+
+    // Writability flips off above the high watermark, and back on below the low watermark
+    private int lowWatermark = 32 * 1024;
+    private int highWatermark = 64 * 1024;
+
+    // Writes of messages behind the current one, and those of them that have ended
+    private final Map<WritableMessage, Deque<Write>> held = new IdentityHashMap<WritableMessage, Deque<Write>>();
+    private final Set<WritableMessage> ended =
+        Collections.newSetFromMap(new IdentityHashMap<WritableMessage, Boolean>());
+    private long heldBytes = 0;
+    private long holdLimit = 1024 * 1024;
+    private boolean spillToDisk = false;
+    private boolean overLimit = false;
+
+    // Set when the pipeline fills up, till it drains to half
+    private boolean full = false;
+
+    // Held writes past the limit, when spilling
+    private FileChannel spillFile;
+    private long spillPosition = 0;
+    private long spilledBytes = 0;
 
     // Close if explicitly asked for
-    private boolean closeWhenDone = false;
-    private boolean ended = false;
+    private volatile boolean closeWhenDone = false;
 
     /**
-     * Creates a pipeline
+     * Creates a pipeline that uses the default buffer pool.
      *
      * @param channel channel
      */
     protected WritablePipeline(final AsynchronousSocketChannel channel) {
-        super();
+        this(channel, SizeClassBufferPool.getDefault());
+    }
+
+    /**
+     * Creates a pipeline
+     *
+     * @param channel channel
+     * @param bufferPool pool for buffers written to the channel
+     */
+    protected WritablePipeline(final AsynchronousSocketChannel channel, final BufferPool bufferPool) {
+        this(channel, bufferPool, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a pipeline that holds up to the given number of messages.
+     *
+     * @param channel channel
+     * @param bufferPool pool for buffers written to the channel
+     * @param capacity most messages in flight
+     */
+    protected WritablePipeline(final AsynchronousSocketChannel channel, final BufferPool bufferPool,
+                               final int capacity) {
+        super(capacity);
         this.channel = channel;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Adds a message, and calls {@link #pipelineFull()} if that fills the pipeline.
+     *
+     * @param message message
+     * @return false if already full
+     */
+    @Override
+    public boolean offer(final WritableMessage message) {
+        final boolean offered;
+        boolean filled = false;
+        synchronized(outbound) {
+            offered = super.offer(message);
+            if(offered && !full && size() >= getCapacity()) {
+                full = true;
+                filled = true;
+            }
+        }
+        if(filled) {
+            pipelineFull();
+        }
+        return offered;
+    }
+
+    /**
+     * Returns the pool that messages should lease buffers from.
+     *
+     * @return pool
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
     }
 
     /**
      * Writes remaining() number of bytes from the start of the byte buffer. If the given is message
-     * is not the current, the data will be buffered.
+     * is not the current, the data will be buffered. The pipeline owns the buffer from here on,
+     * and returns it to the pool once written.
      *
      * @param message current message
      * @param byteBuffer source
      * @param handler completion handler
      */
     public void write(final WritableMessage message, final ByteBuffer byteBuffer, final CompletionHandler<Integer, Void> handler) {
-        byteBuffer.rewind();
-        if(message == peek()) {
-            beginWriting();
-            channel.write(byteBuffer, null, new CompletionHandler<Integer, Void>() {
-                @Override
-                public void completed(final Integer result, final Void attachment) {
-                    endWriting();
-                    if(handler != null) {
-                        try {
-                            handler.completed(result, attachment);
-                        }
-                        catch(Throwable t) {
-                            logger.log(Level.WARNING, t.getMessage(), t);
+        write(message, new ByteBuffer[] {byteBuffer}, 1, handler);
+    }
 
-                        }
-                    }
+    /**
+     * Writes the remaining() bytes of each buffer in one gathering write, once the writes queued
+     * before it are done - only one write is in flight at a time. The first {@code leased}
+     * buffers are owned by the pipeline from here on, and are returned to the pool once written.
+     * The rest belong to the caller, who must not modify them until the handler is called. If the
+     * given message is not the current, the data will be held till it is - caller's buffers are
+     * copied in that case, and the handler is called right away.
+     *
+     * @param message current message
+     * @param buffers sources
+     * @param leased number of buffers, from the start, that were leased from the pool
+     * @param handler completion handler
+     */
+    public void write(final WritableMessage message, final ByteBuffer[] buffers, final int leased,
+                      final CompletionHandler<Integer, Void> handler) {
+        Write start = null;
+        boolean isHeld = false;
+        boolean exceeded = false;
+        synchronized(outbound) {
+            if(message == peek()) {
+                start = enqueue(new Write(buffers, leased, handler));
+            }
+            else {
+                // Hold - copy what the caller owns, as the handler is called now
+                for(int i = leased; i < buffers.length; i++) {
+                    final ByteBuffer copy = bufferPool.lease(buffers[i].remaining());
+                    copy.put(buffers[i].duplicate());
+                    copy.flip();
+                    buffers[i] = copy;
                 }
+                exceeded = hold(message, new Write(buffers, buffers.length, null));
+                isHeld = true;
+            }
+        }
+        if(start != null) {
+            writeNext(start);
+        }
+        if(exceeded) {
+            holdLimitExceeded();
+        }
+        if(isHeld && handler != null) {
+            handler.completed(0, null); // Nothing is written yet
+        }
+    }
 
-                @Override
-                public void failed(final Throwable exc, final Void attachment) {
-                    endWriting();
-                    logger.log(Level.WARNING, exc.getMessage(), exc);
-                    if(handler != null) {
-                        try {
-                            handler.failed(exc, attachment);
-                        }
-                        catch(Throwable t) {
-                            logger.log(Level.WARNING, t.getMessage(), t);
-                        }
-                    }
-                }
-            });
+    /**
+     * Sets the watermarks for {@link #isWritable()}.
+     *
+     * @param lowWatermark writable again once queued bytes fall below this
+     * @param highWatermark not writable once queued bytes exceed this
+     */
+    public void setWatermarks(final int lowWatermark, final int highWatermark) {
+        if(lowWatermark < 0 || highWatermark < lowWatermark) {
+            throw new IllegalArgumentException("Invalid watermarks " + lowWatermark + " - " + highWatermark);
+        }
+        synchronized(outbound) {
+            this.lowWatermark = lowWatermark;
+            this.highWatermark = highWatermark;
+        }
+    }
+
+    /**
+     * Sets the limit on bytes held in memory for messages behind the current one.
+     *
+     * @param holdLimit limit in bytes
+     * @param spillToDisk true to spill held data past the limit to a temporary file, and false to
+     *                    keep it in memory and stop reading new messages till the limit is met
+     */
+    public void setHoldLimit(final long holdLimit, final boolean spillToDisk) {
+        if(holdLimit < 0) {
+            throw new IllegalArgumentException("Invalid limit " + holdLimit);
+        }
+        synchronized(outbound) {
+            this.holdLimit = holdLimit;
+            this.spillToDisk = spillToDisk;
+        }
+    }
+
+    /**
+     * Returns the number of bytes held in memory for messages behind the current one.
+     *
+     * @return bytes
+     */
+    public long getHeldBytes() {
+        synchronized(outbound) {
+            return heldBytes;
+        }
+    }
+
+    /**
+     * Returns false when more than the high watermark of bytes are waiting to be written. Producers
+     * should then stop writing till {@link #onWritable(CompletionHandler)} is called back.
+     *
+     * @return boolean
+     */
+    public boolean isWritable() {
+        synchronized(outbound) {
+            return writable;
         }
-        else {
-            // Need to buffer response
-            buffers.add(byteBuffer);
-            if(handler != null) {
-                handler.completed(0, null); // Nothing is written yet
+    }
+
+    /**
+     * Calls the handler once, as soon as the pipeline is writable - right away if it is writable
+     * now.
+     *
+     * @param handler handler
+     */
+    public void onWritable(final CompletionHandler<Void, Void> handler) {
+        synchronized(outbound) {
+            if(!writable) {
+                onWritable.add(handler);
+                return;
             }
         }
+        notifyWritable(handler);
+    }
+
+    /**
+     * Returns the number of bytes waiting to be written to the channel.
+     *
+     * @return bytes
+     */
+    public long getQueuedBytes() {
+        synchronized(outbound) {
+            return queuedBytes;
+        }
     }
 
     /**
@@ -109,74 +302,365 @@ public abstract class WritablePipeline extends MessagePipeline<WritableMessage>
     }
 
     /**
-     * Flush any pending buffers and end the message.
+     * Ends the message. If it is the current, queues the held writes of the messages after it, in
+     * order, up to the first one that has not ended yet.
      *
-     * @param message
+     * @param message message
      */
     public void end(final WritableMessage message) {
-        this.ended = true;
-        flush(message);
+        Write start = null;
+        boolean cleared = false;
+        boolean drained = false;
+        boolean close = false;
+        synchronized(outbound) {
+            if(message != peek()) {
+                ended.add(message);
+                return;
+            }
+            poll();
+            WritableMessage top;
+            while((top = peek()) != null) {
+                final Deque<Write> writes = held.remove(top);
+                if(writes != null) {
+                    for(final Write write : writes) {
+                        if(write.spillLength == 0) {
+                            heldBytes -= write.bytes;
+                        }
+                        final Write first = enqueue(write);
+                        if(start == null) {
+                            start = first;
+                        }
+                    }
+                }
+                if(!ended.remove(top)) {
+                    // Current from now on
+                    break;
+                }
+                poll();
+            }
+            if(overLimit && heldBytes <= holdLimit / 2) {
+                overLimit = false;
+                cleared = true;
+            }
+            if(full && size() <= getCapacity() / 2) {
+                full = false;
+                drained = true;
+            }
+            if(top == null && closeWhenDone) {
+                // Close once queued writes are done
+                if(writing || start != null) {
+                    closeWhenDrained = true;
+                }
+                else {
+                    close = true;
+                }
+            }
+        }
+        if(start != null) {
+            writeNext(start);
+        }
+        if(cleared) {
+            holdLimitCleared();
+        }
+        if(drained) {
+            pipelineDrained();
+        }
+        if(close) {
+            close();
+        }
     }
 
     /**
-     * Return true if there are any buffers opened - happens in the case of head-of-line blocking.
-     * @return boolean
+     * Called when the bytes held for messages behind the current one exceed the limit, and they
+     * are not spilled. Stop reading new messages till {@link #holdLimitCleared()}.
+     */
+    protected void holdLimitExceeded() {
+    }
+
+    /**
+     * Called when held bytes fall to half the limit after {@link #holdLimitExceeded()}.
+     */
+    protected void holdLimitCleared() {
+    }
+
+    /**
+     * Called when the pipeline holds as many messages as it can. Stop reading new messages till
+     * {@link #pipelineDrained()}.
      */
-    private boolean isBuffering() {
-        return buffers.size() > 0;
+    protected void pipelineFull() {
     }
 
     /**
-     * Flush buffers to the channel, if the message is the current.
+     * Called when the pipeline drains to half its capacity after {@link #pipelineFull()}.
+     */
+    protected void pipelineDrained() {
+    }
+
+    /**
+     * Holds a write for a message behind the current one. Call with the lock held.
      *
-     * @param message current message
+     * @param message message
+     * @param write write
+     * @return true if the limit was just exceeded
      */
-    private void flush(final WritableMessage message) {
-        if(message == peek()) {
-            for(final ByteBuffer byteBuffer : buffers) {
-                byteBuffer.rewind();
-                beginWriting();
-                channel.write(byteBuffer, null, new CompletionHandler<Integer, Void>() {
-                    @Override
-                    public void completed(final Integer result, final Void attachment) {
-                        endWriting();
-                    }
+    private boolean hold(final WritableMessage message, final Write write) {
+        Deque<Write> writes = held.get(message);
+        if(writes == null) {
+            writes = new ArrayDeque<Write>();
+            held.put(message, writes);
+        }
+        writes.addLast(write);
 
-                    @Override
-                    public void failed(final Throwable exc, final Void attachment) {
-                        endWriting();
-                    }
-                });
+        if(heldBytes + write.bytes > holdLimit && spillToDisk && spill(write)) {
+            return false;
+        }
+        // Over the limit in memory - either not spilling, or the spill failed
+        heldBytes += write.bytes;
+        if(!overLimit && heldBytes > holdLimit) {
+            overLimit = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves the write's bytes to the spill file. Call with the lock held.
+     *
+     * @param write write
+     * @return true if spilled
+     */
+    private boolean spill(final Write write) {
+        final long offset = spillPosition;
+        try {
+            if(spillFile == null) {
+                spillFile = FileChannel.open(Files.createTempFile("tini", ".spill"), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            // Duplicates leave the buffers whole if the spill fails part way
+            for(final ByteBuffer buffer : write.buffers) {
+                final ByteBuffer duplicate = buffer.duplicate();
+                while(duplicate.hasRemaining()) {
+                    spillPosition += spillFile.write(duplicate, spillPosition);
+                }
             }
+            release(write.buffers, write.leased);
+            write.buffers = null;
+            write.leased = 0;
+            write.spillOffset = offset;
+            write.spillLength = write.bytes;
+            spilledBytes += write.bytes;
+            return true;
+        }
+        catch(IOException ioe) {
+            logger.log(Level.WARNING, "Unable to spill - holding in memory", ioe);
+            spillPosition = offset;
+            return false;
+        }
+    }
 
-            try {
-                // Remove from top
-                poll();
-                flushCompleted();
+    /**
+     * Reads a spilled write back into a pooled buffer.
+     *
+     * @param write write
+     * @throws IOException if unable to read
+     */
+    private void unspill(final Write write) throws IOException {
+        final ByteBuffer buffer = bufferPool.lease((int) write.spillLength);
+        synchronized(outbound) {
+            long position = write.spillOffset;
+            buffer.limit((int) write.spillLength);
+            while(buffer.hasRemaining()) {
+                final int read = spillFile.read(buffer, position);
+                if(read < 0) {
+                    bufferPool.release(buffer);
+                    throw new IOException("Spill file truncated");
+                }
+                position += read;
             }
-            catch(InterruptedException ie) {
-                logger.log(Level.WARNING, ie.getMessage(), ie);
+            spilledBytes -= write.spillLength;
+            if(spilledBytes == 0) {
+                // Nothing left in the file - start over
+                spillFile.truncate(0);
+                spillPosition = 0;
             }
         }
+        buffer.flip();
+        write.buffers = new ByteBuffer[] {buffer};
+        write.leased = 1;
+        write.spillLength = 0;
     }
 
-    private void flushCompleted() throws InterruptedException {
-        WritableMessage top = peek();
-        // If the top is not buffering, it will go away once it is done. We don't need to worry
-        // about it here.
-        while(top != null && isBuffering() && ended) {
-            logger.info("buffering top found " + top.hashCode() + " " + ended);
-            // Flush this
-            flush(top);
-            top = poll();
+    /**
+     * Queues a write. Call with the lock held.
+     *
+     * @param write write
+     * @return the write to start writing with, or null if a write is already in flight
+     */
+    private Write enqueue(final Write write) {
+        outbound.addLast(write);
+        queuedBytes += write.bytes;
+        if(writable && queuedBytes > highWatermark) {
+            writable = false;
+        }
+        if(writing) {
+            return null;
         }
-        if(peek() == null && closeWhenDone) {
+        writing = true;
+        return write;
+    }
+
+    /**
+     * Writes the given write, which is at the head of the queue, and continues with the rest of
+     * the queue once it is done.
+     *
+     * @param write write
+     */
+    private void writeNext(final Write write) {
+        final CompletionHandler<Long, Void> handler = new CompletionHandler<Long, Void>() {
+            @Override
+            public void completed(final Long result, final Void attachment) {
+                endWriting();
+                release(write.buffers, write.leased);
+                if(write.handler != null) {
+                    try {
+                        write.handler.completed(result.intValue(), attachment);
+                    }
+                    catch(Throwable t) {
+                        logger.log(Level.WARNING, t.getMessage(), t);
+                    }
+                }
+                dequeue(write);
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                endWriting();
+                if(write.buffers != null) {
+                    release(write.buffers, write.leased);
+                }
+                logger.log(Level.WARNING, exc.getMessage(), exc);
+                if(write.handler != null) {
+                    try {
+                        write.handler.failed(exc, attachment);
+                    }
+                    catch(Throwable t) {
+                        logger.log(Level.WARNING, t.getMessage(), t);
+                    }
+                }
+                dequeue(write);
+            }
+        };
+        beginWriting();
+        if(write.spillLength > 0) {
             try {
-                logger.info("Closing the connection");
-                channel.close();
+                unspill(write);
             }
             catch(IOException ioe) {
-                logger.log(Level.WARNING, ioe.getMessage(), ioe);
+                handler.failed(ioe, null);
+                return;
+            }
+        }
+        writeFully(write.buffers, 0, 0, handler);
+    }
+
+    /**
+     * Removes the completed write, wakes up producers waiting for the queue to drain, and starts
+     * the next write if any.
+     *
+     * @param done completed write
+     */
+    private void dequeue(final Write done) {
+        final Write next;
+        List<CompletionHandler<Void, Void>> waiting = null;
+        boolean close = false;
+        synchronized(outbound) {
+            outbound.removeFirst();
+            queuedBytes -= done.bytes;
+            if(!writable && queuedBytes < lowWatermark) {
+                writable = true;
+                if(!onWritable.isEmpty()) {
+                    waiting = new ArrayList<CompletionHandler<Void, Void>>(onWritable);
+                    onWritable.clear();
+                }
+            }
+            next = outbound.peekFirst();
+            if(next == null) {
+                writing = false;
+                close = closeWhenDrained;
+            }
+        }
+        if(waiting != null) {
+            for(final CompletionHandler<Void, Void> handler : waiting) {
+                notifyWritable(handler);
+            }
+        }
+        if(next != null) {
+            writeNext(next);
+        }
+        else if(close) {
+            close();
+        }
+    }
+
+    private void notifyWritable(final CompletionHandler<Void, Void> handler) {
+        try {
+            handler.completed(null, null);
+        }
+        catch(Throwable t) {
+            logger.log(Level.WARNING, t.getMessage(), t);
+        }
+    }
+
+    /**
+     * Writes until all buffers have been drained - a gathering write may complete partially.
+     */
+    private void writeFully(final ByteBuffer[] buffers, final int offset, final long written,
+                            final CompletionHandler<Long, Void> handler) {
+        channel.write(buffers, offset, buffers.length - offset, 0L, TimeUnit.MILLISECONDS, null, new CompletionHandler<Long, Void>() {
+            @Override
+            public void completed(final Long result, final Void attachment) {
+                int next = offset;
+                while(next < buffers.length && !buffers[next].hasRemaining()) {
+                    next++;
+                }
+                if(next < buffers.length && result >= 0) {
+                    writeFully(buffers, next, written + result, handler);
+                }
+                else {
+                    handler.completed(written + result, attachment);
+                }
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                handler.failed(exc, attachment);
+            }
+        });
+    }
+
+    private void release(final ByteBuffer[] buffers, final int leased) {
+        for(int i = 0; i < leased; i++) {
+            bufferPool.release(buffers[i]);
+        }
+    }
+
+    private void close() {
+        try {
+            logger.info("Closing the connection");
+            channel.close();
+        }
+        catch(IOException ioe) {
+            logger.log(Level.WARNING, ioe.getMessage(), ioe);
+        }
+        synchronized(outbound) {
+            if(spillFile != null) {
+                try {
+                    spillFile.close();
+                }
+                catch(IOException ioe) {
+                    logger.log(Level.WARNING, ioe.getMessage(), ioe);
+                }
+                spillFile = null;
             }
         }
     }
@@ -190,4 +674,27 @@ public abstract class WritablePipeline extends MessagePipeline<WritableMessage>
      * Post-filter
      */
     abstract protected void endWriting();
+
+    /**
+     * A write waiting for the channel - either in buffers, or in the spill file.
+     */
+    private static final class Write {
+        private ByteBuffer[] buffers;
+        private int leased;
+        private final CompletionHandler<Integer, Void> handler;
+        private final long bytes;
+        private long spillOffset;
+        private long spillLength;
+
+        private Write(final ByteBuffer[] buffers, final int leased, final CompletionHandler<Integer, Void> handler) {
+            this.buffers = buffers;
+            this.leased = leased;
+            this.handler = handler;
+            long bytes = 0;
+            for(final ByteBuffer buffer : buffers) {
+                bytes += buffer.remaining();
+            }
+            this.bytes = bytes;
+        }
+    }
 }
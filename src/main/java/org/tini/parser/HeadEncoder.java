@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.parser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Encodes message heads straight into byte buffers. Status lines for standard status codes,
+ * names of well-known headers, and the most common header lines are encoded once, and copied as
+ * is for each message. Everything else is written one ASCII character at a time without
+ * intermediate strings or arrays.</p>
+ *
+ * <p>Callers first add up the lengths of the parts, lease a buffer of that size, and then put the
+ * parts.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+public final class HeadEncoder {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final byte[] HTTP_1_1 = "HTTP/1.1".getBytes(US_ASCII);
+    private static final byte[] COLON_SP = {HttpCodecUtil.COLON, HttpCodecUtil.SP};
+    private static final byte[] HEX = "0123456789abcdef".getBytes(US_ASCII);
+
+    // Standard reason phrases, and "HTTP/1.1 code reason\r\n" for each
+    private static final String[] REASONS = new String[600];
+    private static final byte[][] STATUS_LINES = new byte[600][];
+
+    // "name: " for well-known names
+    private static final Map<String, byte[]> NAMES;
+
+    // "name: value\r\n" for the most common header lines - by name and value
+    private static final Map<String, Map<String, byte[]>> LINES;
+
+    static {
+        final Object[] statuses = {
+            100, "Continue", 101, "Switching Protocols",
+            200, "OK", 201, "Created", 202, "Accepted", 203, "Non-Authoritative Information",
+            204, "No Content", 205, "Reset Content", 206, "Partial Content",
+            300, "Multiple Choices", 301, "Moved Permanently", 302, "Found", 303, "See Other",
+            304, "Not Modified", 305, "Use Proxy", 307, "Temporary Redirect",
+            400, "Bad Request", 401, "Unauthorized", 402, "Payment Required", 403, "Forbidden",
+            404, "Not Found", 405, "Method Not Allowed", 406, "Not Acceptable",
+            407, "Proxy Authentication Required", 408, "Request Timeout", 409, "Conflict",
+            410, "Gone", 411, "Length Required", 412, "Precondition Failed",
+            413, "Request Entity Too Large", 414, "Request-URI Too Long",
+            415, "Unsupported Media Type", 416, "Requested Range Not Satisfiable",
+            417, "Expectation Failed",
+            500, "Internal Server Error", 501, "Not Implemented", 502, "Bad Gateway",
+            503, "Service Unavailable", 504, "Gateway Timeout", 505, "HTTP Version Not Supported"
+        };
+        for(int i = 0; i < statuses.length; i += 2) {
+            final int status = (Integer) statuses[i];
+            final String reason = (String) statuses[i + 1];
+            REASONS[status] = reason;
+            STATUS_LINES[status] = ("HTTP/1.1 " + status + " " + reason + "\r\n").getBytes(US_ASCII);
+        }
+
+        final Map<String, byte[]> names = new HashMap<String, byte[]>();
+        for(final String name : HttpHeaders.KNOWN_NAMES) {
+            names.put(name, (name + ": ").getBytes(US_ASCII));
+        }
+        NAMES = Collections.unmodifiableMap(names);
+
+        final String[][] lines = {
+            {HttpHeaders.CONNECTION, "keep-alive"},
+            {HttpHeaders.CONNECTION, "close"},
+            {HttpHeaders.TRANSFER_ENCODING, "chunked"},
+            {HttpHeaders.SERVER, "tini/1.0"},
+            {HttpHeaders.CONTENT_TYPE, "text/plain"},
+            {HttpHeaders.CONTENT_TYPE, "text/plain; charset=UTF-8"},
+            {HttpHeaders.CONTENT_TYPE, "text/plain;charset=UTF-8"},
+            {HttpHeaders.CONTENT_TYPE, "text/html; charset=UTF-8"},
+            {HttpHeaders.CONTENT_TYPE, "application/json"},
+            {HttpHeaders.CONTENT_TYPE, "application/json; charset=UTF-8"},
+            {HttpHeaders.CONTENT_TYPE, "application/octet-stream"}
+        };
+        final Map<String, Map<String, byte[]>> byName = new HashMap<String, Map<String, byte[]>>();
+        for(final String[] line : lines) {
+            Map<String, byte[]> byValue = byName.get(line[0]);
+            if(byValue == null) {
+                byValue = new HashMap<String, byte[]>();
+                byName.put(line[0], byValue);
+            }
+            byValue.put(line[1], (line[0] + ": " + line[1] + "\r\n").getBytes(US_ASCII));
+        }
+        LINES = Collections.unmodifiableMap(byName);
+    }
+
+    private HeadEncoder() {
+        super();
+    }
+
+    /**
+     * Returns the standard reason phrase for the given status code, or <code>null</code>.
+     *
+     * @param status status code
+     * @return reason phrase
+     */
+    public static String reason(final int status) {
+        return status >= 0 && status < REASONS.length ? REASONS[status] : null;
+    }
+
+    /**
+     * Returns the length of the status line including CRLF.
+     *
+     * @param status  status code
+     * @param message reason phrase
+     * @return length
+     */
+    public static int statusLineLength(final int status, final String message) {
+        final byte[] cached = cachedStatusLine(status, message);
+        if(cached != null) {
+            return cached.length;
+        }
+        return HTTP_1_1.length + 1 + decimalLength(status) + 1 + message.length() + HttpCodecUtil.CRLF.length;
+    }
+
+    /**
+     * Puts "HTTP/1.1 status message" and CRLF.
+     *
+     * @param buffer  buffer
+     * @param status  status code
+     * @param message reason phrase
+     */
+    public static void putStatusLine(final ByteBuffer buffer, final int status, final String message) {
+        final byte[] cached = cachedStatusLine(status, message);
+        if(cached != null) {
+            buffer.put(cached);
+            return;
+        }
+        buffer.put(HTTP_1_1);
+        buffer.put(HttpCodecUtil.SP);
+        putDecimal(buffer, status);
+        buffer.put(HttpCodecUtil.SP);
+        putAscii(buffer, message);
+        buffer.put(HttpCodecUtil.CRLF);
+    }
+
+    /**
+     * Returns the length of the request line "method uri HTTP/1.1" including CRLF.
+     *
+     * @param method method
+     * @param uri    request URI
+     * @return length
+     */
+    public static int requestLineLength(final String method, final String uri) {
+        return method.length() + 1 + uri.length() + 1 + HTTP_1_1.length + HttpCodecUtil.CRLF.length;
+    }
+
+    /**
+     * Puts the request line "method uri HTTP/1.1" and CRLF.
+     *
+     * @param buffer buffer
+     * @param method method
+     * @param uri    request URI
+     */
+    public static void putRequestLine(final ByteBuffer buffer, final String method, final String uri) {
+        putAscii(buffer, method);
+        buffer.put(HttpCodecUtil.SP);
+        putAscii(buffer, uri);
+        buffer.put(HttpCodecUtil.SP);
+        buffer.put(HTTP_1_1);
+        buffer.put(HttpCodecUtil.CRLF);
+    }
+
+    /**
+     * Returns the length of the header line "name: value" including CRLF.
+     *
+     * @param name  lower-case name
+     * @param value value
+     * @return length
+     */
+    public static int headerLength(final String name, final String value) {
+        return name.length() + COLON_SP.length + value.length() + HttpCodecUtil.CRLF.length;
+    }
+
+    /**
+     * Puts the header line "name: value" and CRLF.
+     *
+     * @param buffer buffer
+     * @param name   lower-case name
+     * @param value  value
+     */
+    public static void putHeader(final ByteBuffer buffer, final String name, final String value) {
+        if(HttpHeaders.DATE.equals(name)) {
+            final byte[] line = HttpDate.line(value);
+            if(line != null) {
+                buffer.put(line);
+                return;
+            }
+        }
+        final Map<String, byte[]> byValue = LINES.get(name);
+        if(byValue != null) {
+            final byte[] line = byValue.get(value);
+            if(line != null) {
+                buffer.put(line);
+                return;
+            }
+        }
+        final byte[] cachedName = NAMES.get(name);
+        if(cachedName != null) {
+            buffer.put(cachedName);
+        }
+        else {
+            putAscii(buffer, name);
+            buffer.put(COLON_SP);
+        }
+        putAscii(buffer, value);
+        buffer.put(HttpCodecUtil.CRLF);
+    }
+
+    /**
+     * Returns the number of hex digits needed for the given non-negative number.
+     *
+     * @param value value
+     * @return length
+     */
+    public static int hexLength(final int value) {
+        return value == 0 ? 1 : (32 - Integer.numberOfLeadingZeros(value) + 3) / 4;
+    }
+
+    /**
+     * Puts the given non-negative number in lower-case hex - used for chunk sizes.
+     *
+     * @param buffer buffer
+     * @param value  value
+     */
+    public static void putHex(final ByteBuffer buffer, final int value) {
+        for(int shift = (hexLength(value) - 1) * 4; shift >= 0; shift -= 4) {
+            buffer.put(HEX[(value >>> shift) & 0xf]);
+        }
+    }
+
+    /**
+     * Puts each character of the string as a byte - characters outside ASCII are replaced by '?'.
+     *
+     * @param buffer buffer
+     * @param str    string
+     */
+    public static void putAscii(final ByteBuffer buffer, final String str) {
+        final int length = str.length();
+        for(int i = 0; i < length; i++) {
+            final char c = str.charAt(i);
+            buffer.put(c < 0x80 ? (byte) c : (byte) '?');
+        }
+    }
+
+    private static byte[] cachedStatusLine(final int status, final String message) {
+        if(status < 0 || status >= STATUS_LINES.length) {
+            return null;
+        }
+        final String reason = REASONS[status];
+        return reason != null && (reason == message || reason.equals(message)) ? STATUS_LINES[status] : null;
+    }
+
+    private static int decimalLength(final int value) {
+        int length = value < 0 ? 2 : 1;
+        for(int v = Math.abs(value); v >= 10; v /= 10) {
+            length++;
+        }
+        return length;
+    }
+
+    private static void putDecimal(final ByteBuffer buffer, final int value) {
+        if(value < 0) {
+            buffer.put((byte) '-');
+        }
+        final int abs = Math.abs(value);
+        int divisor = 1;
+        while(abs / divisor >= 10) {
+            divisor *= 10;
+        }
+        for(; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + (abs / divisor) % 10));
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.parser;
+
+import org.tini.common.TimingWheel;
+
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>HTTP dates. The value of the {@code Date} header changes once a second, so it is formatted
+ * once a second by a timeout on the shared {@link TimingWheel}, and shared by all messages along
+ * with the pre-encoded header line. Readers that notice a stale value (say, when the wheel was
+ * delayed) refresh it themselves.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+public final class HttpDate {
+
+    /**
+     * Format of HTTP dates - RFC 1123
+     */
+    public static final String PATTERN = "EEE, dd MMM yyyy HH:mm:ss z";
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    // SimpleDateFormat is not thread-safe
+    private static final ThreadLocal<DateFormat> FORMAT = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            final DateFormat format = new SimpleDateFormat(PATTERN, Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format;
+        }
+    };
+
+    private static volatile Stamp current = new Stamp(System.currentTimeMillis());
+
+    static {
+        new TimingWheel.Timeout() {
+            {
+                TimingWheel.getDefault().schedule(this, 1000 - System.currentTimeMillis() % 1000,
+                    TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            protected void expired() {
+                final long now = System.currentTimeMillis();
+                current = new Stamp(now);
+                TimingWheel.getDefault().schedule(this, 1000 - now % 1000, TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+
+    private HttpDate() {
+        super();
+    }
+
+    /**
+     * Returns the current date formatted for the {@code Date} header.
+     *
+     * @return date
+     */
+    public static String current() {
+        return stamp().value;
+    }
+
+    /**
+     * Formats the given time.
+     *
+     * @param millis milliseconds since the epoch
+     * @return date
+     */
+    public static String format(final long millis) {
+        return FORMAT.get().format(new Date(millis));
+    }
+
+    /**
+     * Parses an HTTP date.
+     *
+     * @param value date
+     * @return milliseconds since the epoch, or -1 if not a valid date
+     */
+    public static long parse(final String value) {
+        try {
+            return FORMAT.get().parse(value.trim()).getTime();
+        }
+        catch(ParseException pe) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the pre-encoded line "date: value\r\n" if the given value is the one last returned
+     * by {@link #current()}, and <code>null</code> otherwise.
+     *
+     * @param value value of the Date header
+     * @return header line or <code>null</code>
+     */
+    static byte[] line(final String value) {
+        final Stamp stamp = current;
+        return stamp.value == value ? stamp.line : null;
+    }
+
+    private static Stamp stamp() {
+        final Stamp stamp = current;
+        final long now = System.currentTimeMillis();
+        if(now / 1000 == stamp.second) {
+            return stamp;
+        }
+        final Stamp fresh = new Stamp(now);
+        current = fresh;
+        return fresh;
+    }
+
+    // Immutable so that the value and the line always agree
+    private static final class Stamp {
+        private final long second;
+        private final String value;
+        private final byte[] line;
+
+        private Stamp(final long millis) {
+            second = millis / 1000;
+            value = format(millis);
+            line = (HttpHeaders.DATE + ": " + value + "\r\n").getBytes(US_ASCII);
+        }
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.parser;
+
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Headers (or trailers) of a parsed message. Raw header bytes are copied once into a single
+ * array, and each header is kept as offset/length slices into that array. Strings are created
+ * only when the app asks for them.</p>
+ *
+ * <p>Names of well-known headers are recognized while parsing, and are represented by an index
+ * into a static table. Looking up a well-known header compares indexes, and its name is returned
+ * as the interned constant from the table. Other names are matched case-insensitively against
+ * the raw bytes, without making lower-case copies.</p>
+ *
+ * <p>This class is a read-only {@code Map} of lower-cased header names to values. The full map is
+ * a lazy adapter - it is only built when the app iterates it.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+public final class HttpHeaders extends AbstractMap<String, List<String>> {
+
+    public static final String ACCEPT = "accept";
+    public static final String ACCEPT_ENCODING = "accept-encoding";
+    public static final String ACCEPT_RANGES = "accept-ranges";
+    public static final String ALLOW = "allow";
+    public static final String CACHE_CONTROL = "cache-control";
+    public static final String CONNECTION = "connection";
+    public static final String CONTENT_ENCODING = "content-encoding";
+    public static final String CONTENT_LENGTH = "content-length";
+    public static final String CONTENT_RANGE = "content-range";
+    public static final String CONTENT_TYPE = "content-type";
+    public static final String DATE = "date";
+    public static final String ETAG = "etag";
+    public static final String EXPIRES = "expires";
+    public static final String HOST = "host";
+    public static final String IF_MODIFIED_SINCE = "if-modified-since";
+    public static final String IF_NONE_MATCH = "if-none-match";
+    public static final String IF_RANGE = "if-range";
+    public static final String KEEP_ALIVE = "keep-alive";
+    public static final String LAST_MODIFIED = "last-modified";
+    public static final String RANGE = "range";
+    public static final String SERVER = "server";
+    public static final String TRANSFER_ENCODING = "transfer-encoding";
+    public static final String VARY = "vary";
+
+    // Well-known names - a header's name index refers to this table
+    static final String[] KNOWN_NAMES = {
+        ACCEPT, "accept-charset", ACCEPT_ENCODING, "accept-language", "accept-ranges", "age",
+        ALLOW, "authorization", CACHE_CONTROL, CONNECTION, CONTENT_ENCODING, "content-range",
+        CONTENT_LENGTH, CONTENT_TYPE, "cookie", DATE, ETAG, "expect", EXPIRES, HOST,
+        IF_MODIFIED_SINCE, IF_NONE_MATCH, IF_RANGE, KEEP_ALIVE, LAST_MODIFIED, "location",
+        "origin", "pragma", RANGE, "referer", SERVER, "set-cookie", "te", "trailer",
+        TRANSFER_ENCODING, "upgrade", "user-agent", VARY, "via", "x-forwarded-for",
+        "x-requested-with"
+    };
+
+    // Indexes of well-known names by name length
+    private static final int[][] KNOWN_BY_LENGTH;
+    static {
+        int max = 0;
+        for(final String name : KNOWN_NAMES) {
+            max = Math.max(max, name.length());
+        }
+        final int[] counts = new int[max + 1];
+        for(final String name : KNOWN_NAMES) {
+            counts[name.length()]++;
+        }
+        KNOWN_BY_LENGTH = new int[max + 1][];
+        for(int i = 0; i <= max; i++) {
+            KNOWN_BY_LENGTH[i] = new int[counts[i]];
+            counts[i] = 0;
+        }
+        for(int i = 0; i < KNOWN_NAMES.length; i++) {
+            final int len = KNOWN_NAMES[i].length();
+            KNOWN_BY_LENGTH[len][counts[len]++] = i;
+        }
+    }
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    // Slice layout - name offset, name length, value offset, value length, well-known name index
+    // or -1
+    private static final int SLICE = 5;
+
+    private static final byte[] SPACE = {HttpCodecUtil.SP};
+
+    private byte[] data;
+    private int length = 0;
+    private int[] slices;
+    private int count = 0;
+
+    // Built on demand
+    private Map<String, List<String>> map;
+
+    /**
+     * Creates an empty header block.
+     */
+    public HttpHeaders() {
+        // Large enough for the headers of most requests
+        data = new byte[1024];
+        slices = new int[16 * SLICE];
+    }
+
+    /**
+     * Returns the number of header lines.
+     *
+     * @return count
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Returns the lower-cased name of the header at the given index.
+     *
+     * @param index index
+     * @return name
+     */
+    public String name(final int index) {
+        final int known = slices[index * SLICE + 4];
+        if(known != -1) {
+            return KNOWN_NAMES[known];
+        }
+        final int offset = slices[index * SLICE];
+        final int len = slices[index * SLICE + 1];
+        final char[] chars = new char[len];
+        for(int i = 0; i < len; i++) {
+            chars[i] = (char) toLower(data[offset + i]);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns the value of the header at the given index.
+     *
+     * @param index index
+     * @return value
+     */
+    public String value(final int index) {
+        return new String(data, slices[index * SLICE + 2], slices[index * SLICE + 3], US_ASCII);
+    }
+
+    /**
+     * Returns the value of the first header with the given name, or <code>null</code> if not
+     * found.
+     *
+     * @param name name
+     * @return value
+     */
+    public String getFirst(final String name) {
+        final int index = indexOf(name, 0);
+        return index == -1 ? null : value(index);
+    }
+
+    /**
+     * Returns the index of the next header with the given name at or after {@code from}, or -1.
+     *
+     * @param name name
+     * @param from start index
+     * @return index
+     */
+    public int indexOf(final String name, final int from) {
+        final int known = knownIndex(name);
+        if(known != -1) {
+            for(int i = from; i < count; i++) {
+                if(slices[i * SLICE + 4] == known) {
+                    return i;
+                }
+            }
+        }
+        else {
+            for(int i = from; i < count; i++) {
+                if(slices[i * SLICE + 4] == -1 && nameEquals(i, name)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the value of the header at the given index equals {@code value}, ignoring
+     * case.
+     *
+     * @param index index
+     * @param value value
+     * @return boolean
+     */
+    public boolean valueEquals(final int index, final String value) {
+        final int offset = slices[index * SLICE + 2];
+        final int len = slices[index * SLICE + 3];
+        if(len != value.length()) {
+            return false;
+        }
+        for(int i = 0; i < len; i++) {
+            if(toLower(data[offset + i]) != toLower(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the value of the header at the given index as a non-negative decimal number, or
+     * returns -1 if it is not one.
+     *
+     * @param index index
+     * @return number
+     */
+    public long longValue(final int index) {
+        final int offset = slices[index * SLICE + 2];
+        final int len = slices[index * SLICE + 3];
+        if(len == 0 || len > 18) {
+            return -1;
+        }
+        long result = 0;
+        for(int i = offset; i < offset + len; i++) {
+            final byte b = data[i];
+            if(b < '0' || b > '9') {
+                return -1;
+            }
+            result = result * 10 + (b - '0');
+        }
+        return result;
+    }
+
+    @Override
+    public List<String> get(final Object key) {
+        if(!(key instanceof String)) {
+            return null;
+        }
+        final String name = (String) key;
+        int index = indexOf(name, 0);
+        if(index == -1) {
+            return null;
+        }
+        final int next = indexOf(name, index + 1);
+        if(next == -1) {
+            return Collections.singletonList(value(index));
+        }
+        final List<String> values = new ArrayList<String>(2);
+        values.add(value(index));
+        for(index = next; index != -1; index = indexOf(name, index + 1)) {
+            values.add(value(index));
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return key instanceof String && indexOf((String) key, 0) != -1;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    @Override
+    public Set<Entry<String, List<String>>> entrySet() {
+        if(map == null) {
+            final Map<String, List<String>> m = new LinkedHashMap<String, List<String>>(count * 2);
+            for(int i = 0; i < count; i++) {
+                final String name = name(i);
+                List<String> values = m.get(name);
+                if(values == null) {
+                    values = new ArrayList<String>(1);
+                    m.put(name, values);
+                }
+                values.add(value(i));
+            }
+            for(final Entry<String, List<String>> entry : m.entrySet()) {
+                entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            }
+            map = Collections.unmodifiableMap(m);
+        }
+        return map.entrySet();
+    }
+
+    /**
+     * Parses a header line of the form {@code name: value} and adds it. Lines without a colon are
+     * added with an empty value.
+     *
+     * @param line   bytes
+     * @param offset start of the line
+     * @param len    length of the line, excluding CRLF
+     */
+    void add(final byte[] line, final int offset, final int len) {
+        final int end = offset + len;
+        int nameStart = offset;
+        while(nameStart < end && isWhitespace(line[nameStart])) {
+            nameStart++;
+        }
+        int nameEnd = nameStart;
+        while(nameEnd < end && line[nameEnd] != HttpCodecUtil.COLON && !isWhitespace(line[nameEnd])) {
+            nameEnd++;
+        }
+        int valueStart = nameEnd;
+        while(valueStart < end && line[valueStart] != HttpCodecUtil.COLON) {
+            valueStart++;
+        }
+        if(valueStart < end) {
+            valueStart++;
+        }
+        while(valueStart < end && isWhitespace(line[valueStart])) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while(valueEnd > valueStart && isWhitespace(line[valueEnd - 1])) {
+            valueEnd--;
+        }
+
+        ensureSlices();
+        final int base = count * SLICE;
+        slices[base] = append(line, nameStart, nameEnd - nameStart);
+        slices[base + 1] = nameEnd - nameStart;
+        slices[base + 2] = append(line, valueStart, valueEnd - valueStart);
+        slices[base + 3] = valueEnd - valueStart;
+        slices[base + 4] = knownIndex(line, nameStart, nameEnd - nameStart);
+        count++;
+        map = null;
+    }
+
+    /**
+     * Folds a continuation line (one starting with SP or HT) into the value of the last header.
+     *
+     * @param line   bytes
+     * @param offset start of the line
+     * @param len    length of the line, excluding CRLF
+     */
+    void fold(final byte[] line, final int offset, final int len) {
+        if(count == 0) {
+            add(line, offset, len);
+            return;
+        }
+        int start = offset;
+        int end = offset + len;
+        while(start < end && isWhitespace(line[start])) {
+            start++;
+        }
+        while(end > start && isWhitespace(line[end - 1])) {
+            end--;
+        }
+        if(start == end) {
+            return;
+        }
+
+        // The value of the last header is always at the end of the data array, so the folded
+        // text can be appended in place.
+        final int base = (count - 1) * SLICE;
+        if(slices[base + 3] > 0) {
+            append(SPACE, 0, 1);
+            slices[base + 3]++;
+        }
+        else {
+            slices[base + 2] = length;
+        }
+        append(line, start, end - start);
+        slices[base + 3] += end - start;
+        map = null;
+    }
+
+    private int append(final byte[] src, final int offset, final int len) {
+        if(length + len > data.length) {
+            final byte[] grown = new byte[Math.max(data.length * 2, length + len)];
+            System.arraycopy(data, 0, grown, 0, length);
+            data = grown;
+        }
+        final int at = length;
+        System.arraycopy(src, offset, data, at, len);
+        length += len;
+        return at;
+    }
+
+    private void ensureSlices() {
+        if((count + 1) * SLICE > slices.length) {
+            final int[] grown = new int[slices.length * 2];
+            System.arraycopy(slices, 0, grown, 0, count * SLICE);
+            slices = grown;
+        }
+    }
+
+    private boolean nameEquals(final int index, final String name) {
+        final int offset = slices[index * SLICE];
+        final int len = slices[index * SLICE + 1];
+        if(len != name.length()) {
+            return false;
+        }
+        for(int i = 0; i < len; i++) {
+            if(toLower(data[offset + i]) != toLower(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the well-known name that equals the given bytes ignoring case, or -1.
+     */
+    private static int knownIndex(final byte[] bytes, final int offset, final int len) {
+        if(len >= KNOWN_BY_LENGTH.length) {
+            return -1;
+        }
+        for(final int candidate : KNOWN_BY_LENGTH[len]) {
+            final String known = KNOWN_NAMES[candidate];
+            int i = 0;
+            while(i < len && toLower(bytes[offset + i]) == known.charAt(i)) {
+                i++;
+            }
+            if(i == len) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the well-known name that equals the given name ignoring case, or -1.
+     */
+    private static int knownIndex(final String name) {
+        final int len = name.length();
+        if(len >= KNOWN_BY_LENGTH.length) {
+            return -1;
+        }
+        for(final int candidate : KNOWN_BY_LENGTH[len]) {
+            final String known = KNOWN_NAMES[candidate];
+            int i = 0;
+            while(i < len && toLower(name.charAt(i)) == known.charAt(i)) {
+                i++;
+            }
+            if(i == len) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    private static int toLower(final int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private static boolean isWhitespace(final byte b) {
+        return b == HttpCodecUtil.SP || b == HttpCodecUtil.HT;
+    }
+}
@@ -14,6 +14,10 @@
 
 package org.tini.parser;
 
+import org.tini.common.BufferPool;
+import org.tini.common.IdleConnectionWatcher;
+import org.tini.common.SizeClassBufferPool;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
@@ -23,13 +27,9 @@ import java.nio.channels.InterruptedByTimeoutException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,10 +43,23 @@ public abstract class HttpParser {
 
     protected static final Logger logger = Logger.getLogger("org.tini.core.parser");
 
-    // State from channel
+    // State from channel. Bytes between the position and the limit of the read buffer are yet
+    // to be parsed. A message is parsed by a chain of completion handlers - one step at a time - so
+    // this state is never touched concurrently and needs no synchronization.
     private final AsynchronousSocketChannel channel;
-    private ByteBuffer readBuffer = ByteBuffer.allocate(1024);
-    private final AtomicBoolean first = new AtomicBoolean(true);
+    private final BufferPool bufferPool;
+    private final int readBufferSize;
+    private ByteBuffer readBuffer;
+
+    // Reads wait while paused - the step to continue with is kept till resumed. Guarded by
+    // pauseLock, as the app may pause and resume from other threads.
+    private final Object pauseLock = new Object();
+    private volatile boolean paused = false;
+    private Runnable pendingStep;
+
+    // Line being assembled - reused for every line of the message
+    private byte[] line = new byte[128];
+    private int lineLength = 0;
 
     // Limits
     protected final int maxInitialLineLength = 8192;
@@ -54,10 +67,23 @@ public abstract class HttpParser {
     private final int maxChunkSize = 256 * 1024;
     private final long timeout;
     private final TimeUnit timeUnit;
-    private final AtomicInteger bytesRemaining;
-    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.wrap(new byte[0]);
 
-    // TODO: HTTP messages are parsed sequentially for now. Check concurrency issues.
+    // When set, times reads instead of the channel - guarded like the rest of the channel state
+    private IdleConnectionWatcher watcher;
+    private boolean awaitingMessage = true;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.wrap(new byte[0]);
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    // Tokens seen in almost every initial line - returned as is instead of decoding new strings
+    private static final String[] KNOWN_TOKENS = {
+        "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "HTTP/1.1", "HTTP/1.0", "200", "OK"
+    };
+    private static final byte[][] KNOWN_TOKEN_BYTES = new byte[KNOWN_TOKENS.length][];
+    static {
+        for(int i = 0; i < KNOWN_TOKENS.length; i++) {
+            KNOWN_TOKEN_BYTES[i] = KNOWN_TOKENS[i].getBytes(US_ASCII);
+        }
+    }
 
     private final List<CompletionHandler<Map<String, List<String>>, Void>> onHeaders =
         new ArrayList<CompletionHandler<Map<String, List<String>>, Void>>(1);
@@ -67,10 +93,15 @@ public abstract class HttpParser {
 
     // Headers - we keep the headers to decide whether to parse the message body as chunks or as one
     // known-length body.
-    private Map<String, List<String>> headers;
+    private HttpHeaders headers;
 
     /**
-     * Creates a parser.
+     * Default size of buffers to read into
+     */
+    public static final int DEFAULT_READ_BUFFER_SIZE = 8192;
+
+    /**
+     * Creates a parser that reads into buffers of the default size from the default pool.
      *
      * @param channel  channel
      * @param timeout  read timeout
@@ -79,10 +110,28 @@ public abstract class HttpParser {
     public HttpParser(final AsynchronousSocketChannel channel,
                       final long timeout,
                       final TimeUnit timeUnit) {
+        this(channel, timeout, timeUnit, SizeClassBufferPool.getDefault(), DEFAULT_READ_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a parser.
+     *
+     * @param channel        channel
+     * @param timeout        read timeout
+     * @param timeUnit       timeout unit
+     * @param bufferPool     pool to lease read buffers from
+     * @param readBufferSize size of each read
+     */
+    public HttpParser(final AsynchronousSocketChannel channel,
+                      final long timeout,
+                      final TimeUnit timeUnit,
+                      final BufferPool bufferPool,
+                      final int readBufferSize) {
         this.channel = channel;
+        this.bufferPool = bufferPool;
+        this.readBufferSize = readBufferSize;
         this.timeout = timeout;
         this.timeUnit = timeUnit;
-        bytesRemaining = new AtomicInteger(0);
 
         onHeaders.add(new NullCompletionHandler<Map<String, List<String>>, Void>());
         onTrailers.add(new NullCompletionHandler<Map<String, List<String>>, Void>());
@@ -102,6 +151,11 @@ public abstract class HttpParser {
      * <p>Registers a handler to receive the message body as zero or several chunks.</p>
      * <p/>
      * <p>To avoid buffering, this parser supports only one handler per message.</p>
+     * <p/>
+     * <p>Each chunk is a read-only view of the parser's read buffer, and is valid only till the
+     * handler returns - returning from {@code completed} releases it, and the parser may then
+     * reuse or pool the buffer. Handlers that keep data beyond the callback must copy it, e.g.
+     * with {@link org.tini.common.Utils#copy(ByteBuffer)}.</p>
      *
      * @param handler handler
      */
@@ -118,10 +172,38 @@ public abstract class HttpParser {
         onTrailers.add(handler);
     }
 
+    /**
+     * <p>Sets a watcher to time reads. Reads are then left untimed on the channel, and the watcher
+     * applies its idle timeout while waiting for the next message, and its read timeout
+     * otherwise.</p>
+     *
+     * @param watcher watcher
+     */
+    public void setWatcher(final IdleConnectionWatcher watcher) {
+        this.watcher = watcher;
+    }
+
+    /**
+     * Notes that the next line to read starts a new message.
+     */
+    protected void expectMessage() {
+        awaitingMessage = true;
+    }
+
+    /**
+     * Called when the peer closes its end while a line is awaited. This parser just stops reading
+     * - the peer may still be waiting for responses.
+     *
+     * @param handler handler awaiting the line
+     */
+    protected void endOfStream(final CompletionHandler<Integer, Void> handler) {
+    }
+
     /**
      * Stops further processing and closes the connection.
      */
     protected void shutdown() {
+        releaseReadBuffer();
         try {
             logger.log(Level.SEVERE, "Err - closing the connection");
             channel.close();
@@ -137,20 +219,20 @@ public abstract class HttpParser {
      * @param isTrailers true for trailers, false for headers
      */
     protected void findHeaders(final boolean isTrailers) {
-        final List<String> lines = new ArrayList<String>(1);
-        headers = new LinkedHashMap<String, List<String>>();
+        final HttpHeaders block = new HttpHeaders();
+        headers = block;
 
         final List<CompletionHandler<Map<String, List<String>>, Void>> handlers = isTrailers ? onTrailers : onHeaders;
+        awaitingMessage = false;
 
-        onLine(new StringBuilder(), maxHeaderLineSize, new CompletionHandler<StringBuilder, Void>() {
+        onLine(maxHeaderLineSize, new CompletionHandler<Integer, Void>() {
             @Override
-            public void completed(final StringBuilder result, final Void attachment) {
-                if(result.length() == 2 && result.charAt(0) == HttpCodecUtil.CR && result.charAt(1) == HttpCodecUtil.LF ||
-                    result.length() == 1 && result.charAt(0) == HttpCodecUtil.LF) {
+            public void completed(final Integer length, final Void attachment) {
+                if(length == 0) {
                     try {
                         for(final CompletionHandler<Map<String, List<String>>, Void> handler : handlers) {
                             try {
-                                handler.completed(headers, null);
+                                handler.completed(block, null);
                             }
                             catch(Throwable t) {
                                 logger.log(Level.WARNING, t.getMessage(), t);
@@ -161,34 +243,26 @@ public abstract class HttpParser {
                         if(isTrailers) {
                             go();
                         }
-                        else {
+                        else if(!(paused && defer(new Runnable() {
+                            @Override
+                            public void run() {
+                                findData();
+                            }
+                        }))) {
                             findData();
                         }
                     }
                 }
                 else {
-                    final String line = result.toString();
-
-                    final char firstChar = result.charAt(0);
-                    if((firstChar == ' ' || firstChar == '\t')) {
-                        // We'll process this line in the next round.
-                        lines.add(result.toString().trim());
+                    final byte firstByte = line[0];
+                    if(firstByte == HttpCodecUtil.SP || firstByte == HttpCodecUtil.HT) {
+                        // Continuation of the previous header
+                        block.fold(line, 0, length);
                     }
                     else {
-                        // If lines is not empty, process those first
-                        if(lines.size() > 0) {
-                            final StringBuilder builder = new StringBuilder(lines.get(0).length());
-                            for(final String each : lines) {
-                                builder.append(each);
-                            }
-                            parseHeaderLine(builder.toString(), headers);
-                            lines.clear();
-                        }
-                        else {
-                            parseHeaderLine(line, headers);
-                        }
+                        block.add(line, 0, length);
                     }
-                    onLine(new StringBuilder(), maxHeaderLineSize, this);
+                    onLine(maxHeaderLineSize, this);
                 }
             }
 
@@ -215,41 +289,26 @@ public abstract class HttpParser {
      * Find message body or chunks and invoke the handler
      */
     private void findData() {
-        if(isChunked()) {
+        if(!hasBody()) {
+            onData.completed(EMPTY_BUFFER, null);
+            endWithoutTrailers();
+        }
+        else if(isChunked()) {
             readChunk();
         }
         else {
             // Read contentLength - readBuffer.remaining() bytes and create a single bytebuffer
-            final int contentLength = getContentLength(headers);
+            final int contentLength = getContentLength();
             if(contentLength > 0) {
-                if(contentLength <= bytesRemaining.get()) {
+                final int remaining = bytesRemaining();
+                if(contentLength <= remaining) {
                     sendDataToApp(contentLength);
-
-                    onLine(new StringBuilder(), maxHeaderLineSize, new CompletionHandler<StringBuilder, Void>() {
-                        @Override
-                        public void completed(final StringBuilder result, final Void attachment) {
-                            findTrailers();
-                        }
-
-                        @Override
-                        public void failed(final Throwable exc, final Void attachment) {
-                            try {
-                                onData.failed(exc, null);
-                            }
-                            catch(Throwable t) {
-                                logger.log(Level.WARNING, t.getMessage(), t);
-                            }
-                            finally {
-                                findTrailers();
-                            }
-                        }
-                    });
+                    findTrailers();
                 }
-                else if(contentLength > bytesRemaining.get()) {
-                    // Keep reading as many times as needed to get chunkSize bytes
-                    final int pos = bytesRemaining.get();
-                    sendDataToApp(bytesRemaining.get());
-                    readSome(contentLength - pos);
+                else {
+                    // Keep reading as many times as needed to get contentLength bytes
+                    sendDataToApp(remaining);
+                    readSome(contentLength - remaining);
                 }
             }
             else {
@@ -272,67 +331,97 @@ public abstract class HttpParser {
             findHeaders(true);
         }
         else {
-            // No trailers. But let the app know about about it before continuing
-            for(final CompletionHandler<Map<String, List<String>>, Void> handler : onTrailers) {
-                try {
-                    handler.completed(Collections.<String, List<String>>emptyMap(), null);
-                }
-                catch(Throwable t) {
-                    logger.log(Level.WARNING, t.getMessage(), t);
-                }
-            }
+            endWithoutTrailers();
+        }
+    }
 
-            // Next message
-            go();
+    /**
+     * Ends a message that has no trailers, and goes on to the next.
+     */
+    private void endWithoutTrailers() {
+        // No trailers. But let the app know about about it before continuing
+        for(final CompletionHandler<Map<String, List<String>>, Void> handler : onTrailers) {
+            try {
+                handler.completed(Collections.<String, List<String>>emptyMap(), null);
+            }
+            catch(Throwable t) {
+                logger.log(Level.WARNING, t.getMessage(), t);
+            }
         }
+
+        // Next message
+        go();
     }
 
-    // TODO: Multiple headers on a singe line not supported yet
+    /**
+     * Returns true if the message whose headers were just read has a body, as given by its
+     * {@code Transfer-Encoding} or {@code Content-Length}. Returns true by default.
+     *
+     * @return boolean
+     */
+    protected boolean hasBody() {
+        return true;
+    }
 
     /**
-     * Parse header line
+     * Read as many bytes as necessary till CRLF or the limit. The handler receives the length of
+     * the line excluding CRLF, and the line itself is available via {@link #line()} till the
+     * next call.
      *
-     * @param line line
-     * @param headers headers
-     */
-    private static void parseHeaderLine(final String line, final Map<String, List<String>> headers) {
-        final String[] header = splitHeader(line);
-        final String name = header[0].toLowerCase();
-        final String value = header[1];
-        if(name != null) {
-            List<String> values = headers.get(name);
-            if(values == null) {
-                values = new ArrayList<String>();
-                headers.put(name, values);
-            }
-            values.add(value);
-        }
+     * @param limit limit
+     * @param handler handler
+     */
+    protected void onLine(final int limit, final CompletionHandler<Integer, Void> handler) {
+        lineLength = 0;
+        continueLine(limit, handler);
     }
 
     /**
-     * Read as many bytes as necessary till CRLF or the limit.
+     * Returns the bytes of the line last found by {@link #onLine(int, CompletionHandler)}.
+     *
+     * @return line
+     */
+    protected byte[] line() {
+        return line;
+    }
+
+    /**
+     * Read more bytes if needed, and continue assembling the current line.
      *
-     * @param line line to accumulate characters
      * @param limit limit
      * @param handler handler
      */
-    protected void onLine(final StringBuilder line, final int limit, final CompletionHandler<StringBuilder, Void> handler) {
-        if(first.get() || bytesRemaining.get() == 0) {
-            first.compareAndSet(true, false);
-            readBuffer.clear();
-            this.channel.read(readBuffer, timeout, timeUnit, null, new CompletionHandler<Integer, Object>() {
+    private void continueLine(final int limit, final CompletionHandler<Integer, Void> handler) {
+        if(bytesRemaining() == 0) {
+            if(paused && defer(new Runnable() {
+                @Override
+                public void run() {
+                    continueLine(limit, handler);
+                }
+            })) {
+                return;
+            }
+            final ByteBuffer buffer = leaseReadBuffer();
+            read(buffer, new CompletionHandler<Integer, Object>() {
                 @Override
                 public void completed(final Integer result, final Object attachment) {
-                    bytesRemaining.set(result);
+                    doneReading();
                     if(result > 0) {
-                        readBuffer.rewind();
+                        buffer.flip();
                         // Got some bytes - may or may be enough though
-                        inflightLine(line, limit, handler);
+                        inflightLine(limit, handler);
+                    }
+                    else {
+                        // End of stream
+                        releaseReadBuffer();
+                        endOfStream(handler);
                     }
                 }
 
                 @Override
                 public void failed(final Throwable exc, final Object attachment) {
+                    doneReading();
+                    releaseReadBuffer();
                     if(exc instanceof InterruptedByTimeoutException) {
                         logger.log(Level.WARNING, exc.getMessage(), exc);
                     }
@@ -352,67 +441,85 @@ public abstract class HttpParser {
         }
         else {
             // Already got some bytes - may or may be enough though
-            inflightLine(line, limit, handler);
+            inflightLine(limit, handler);
         }
     }
 
     /**
-     * Get a byte from remaining bytes or -1 if none remaining.
+     * Reads from the channel - timed by the watcher if there is one, else by the channel.
      *
-     * @return byte
+     * @param buffer  buffer
+     * @param handler handler - must call {@link #doneReading()} first on completion or failure
      */
-    private byte getAByte() {
-        byte b = -1;
-        if(bytesRemaining.get() > 0) {
-            bytesRemaining.decrementAndGet();
-            b = readBuffer.get();
+    private void read(final ByteBuffer buffer, final CompletionHandler<Integer, Object> handler) {
+        if(watcher == null) {
+            channel.read(buffer, timeout, timeUnit, null, handler);
+        }
+        else {
+            watcher.reading(awaitingMessage);
+            channel.read(buffer, null, handler);
+        }
+    }
+
+    private void doneReading() {
+        if(watcher != null) {
+            watcher.doneReading();
         }
-        return b;
     }
 
     /**
-     * Process red bytes, and continue after exhausting
+     * Returns the number of read bytes yet to be parsed.
+     *
+     * @return bytes
+     */
+    private int bytesRemaining() {
+        return readBuffer == null ? 0 : readBuffer.remaining();
+    }
+
+    /**
+     * Process read bytes, and continue after exhausting. The read buffer is scanned for LF, and
+     * the bytes up to it are appended to the line in bulk, so a CRLF split across two reads needs
+     * no special handling.
      *
-     * @param line line
      * @param limit limit
      * @param handler handler
      */
-    private void inflightLine(final StringBuilder line, final int limit, final CompletionHandler<StringBuilder, Void> handler) {
-        boolean found = false;
-        final int pos = readBuffer.position();
-        while(bytesRemaining.get() > 0) {
-            byte nextByte = getAByte();
-            if(nextByte == HttpCodecUtil.CR) {
-                nextByte = getAByte();
-                if(nextByte == HttpCodecUtil.LF) {
-                    found = true;
-                    break;
-                }
-            }
-            else if(nextByte == HttpCodecUtil.LF) {
-                found = true;
-                break;
-            }
-            else if(nextByte == -1) {
-                found = true;
-                break;
-            }
-        }
-
-        line.append(new String(readBuffer.array(), pos, readBuffer.position() - pos, Charset.forName("US-ASCII")));
-        if(line.length() >= limit) {
+    private void inflightLine(final int limit, final CompletionHandler<Integer, Void> handler) {
+        final ByteBuffer buffer = readBuffer;
+        final int start = buffer.position();
+        final int end = buffer.limit();
+        final int lf = indexOf(buffer, start, end, HttpCodecUtil.LF);
+        final boolean found = lf != -1;
+        final int count = (found ? lf : end) - start;
+
+        if(lineLength + count > limit) {
             try {
                 handler.failed(new IOException("Line too long - exceed " + limit), null);
             }
             catch(Throwable t) {
                 logger.log(Level.WARNING, t.getMessage(), t);
             }
+            return;
         }
+        if(lineLength + count > line.length) {
+            final byte[] grown = new byte[Math.min(Math.max(line.length * 2, lineLength + count), limit)];
+            System.arraycopy(line, 0, grown, 0, lineLength);
+            line = grown;
+        }
+        buffer.get(line, lineLength, count);
+        lineLength += count;
 
         if(found) {
+            // Skip the LF
+            buffer.position(lf + 1);
+            if(lineLength > 0 && line[lineLength - 1] == HttpCodecUtil.CR) {
+                lineLength--;
+            }
             try {
-                logger.info(line.toString());
-                handler.completed(line, null);
+                if(logger.isLoggable(Level.FINEST)) {
+                    logger.finest(new String(line, 0, lineLength, US_ASCII));
+                }
+                handler.completed(lineLength, null);
             }
             catch(Throwable t) {
                 logger.log(Level.WARNING, t.getMessage(), t);
@@ -420,22 +527,52 @@ public abstract class HttpParser {
         }
         else {
             // Call recursively to read more as you haven't found CRLF yet
-            onLine(line, limit, handler);
+            continueLine(limit, handler);
         }
     }
 
+    /**
+     * Returns the index of the first occurrence of the byte between start and end, or -1.
+     *
+     * @param buffer buffer
+     * @param start start index
+     * @param end end index (exclusive)
+     * @param b byte
+     * @return index
+     */
+    private static int indexOf(final ByteBuffer buffer, final int start, final int end, final byte b) {
+        if(buffer.hasArray()) {
+            final byte[] array = buffer.array();
+            final int offset = buffer.arrayOffset();
+            for(int i = start + offset; i < end + offset; i++) {
+                if(array[i] == b) {
+                    return i - offset;
+                }
+            }
+        }
+        else {
+            for(int i = start; i < end; i++) {
+                if(buffer.get(i) == b) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
     /**
      * Non-blocking chunk reader - reads some bytes, and sends min(read, chunkSize) to the app
      */
     private void readChunk() {
         // Read the first line to determine chunk size
-        onLine(new StringBuilder(), maxHeaderLineSize, new CompletionHandler<StringBuilder, Void>() {
+        onLine(maxHeaderLineSize, new CompletionHandler<Integer, Void>() {
             @Override
-            public void completed(final StringBuilder result, final Void attachment) {
-                final String line = result.toString();
-                final int chunkSize = getChunkSize(line);
-                logger.info("chunk size: " + chunkSize + " bytesRemaining: " + bytesRemaining.get());
-                if(chunkSize >= maxChunkSize) {
+            public void completed(final Integer length, final Void attachment) {
+                final int chunkSize = getChunkSize(line, length);
+                if(chunkSize < 0) {
+                    failed(new IOException("Bad chunk size"), null);
+                }
+                else if(chunkSize >= maxChunkSize) {
                     try {
                         onData.failed(new IOException("Chunk size larger than " + maxChunkSize), null);
                     }
@@ -454,15 +591,17 @@ public abstract class HttpParser {
                         findTrailers();
                     }
                 }
-                else if(chunkSize <= bytesRemaining.get()) {
-                    sendDataToApp(chunkSize);
-                    readEmptyLineAndChunk();
-                }
-                else if(chunkSize > bytesRemaining.get()) {
-                    final int pos = bytesRemaining.get();
-                    sendDataToApp(bytesRemaining.get());
-                    // Keep reading as many times as needed to get chunkSize bytes
-                    readSome(chunkSize - pos);
+                else {
+                    final int remaining = bytesRemaining();
+                    if(chunkSize <= remaining) {
+                        sendDataToApp(chunkSize);
+                        readEmptyLineAndChunk();
+                    }
+                    else {
+                        sendDataToApp(remaining);
+                        // Keep reading as many times as needed to get chunkSize bytes
+                        readSome(chunkSize - remaining);
+                    }
                 }
             }
 
@@ -487,9 +626,9 @@ public abstract class HttpParser {
      */
     private void readEmptyLineAndChunk() {
         // Read the empty line and then the next chunk
-        onLine(new StringBuilder(), maxHeaderLineSize, new CompletionHandler<StringBuilder, Void>() {
+        onLine(maxHeaderLineSize, new CompletionHandler<Integer, Void>() {
             @Override
-            public void completed(final StringBuilder result, final Void attachment) {
+            public void completed(final Integer length, final Void attachment) {
                 readChunk();
             }
 
@@ -514,64 +653,149 @@ public abstract class HttpParser {
      * @param size bytes to be sent.
      */
     private void sendDataToApp(final int size) {
+        if(size == 0) {
+            // Nothing buffered yet - an empty buffer would tell the app that the body has ended
+            return;
+        }
         // All the bytes have already been read into readBuffer - send chunkSide bytes to the app
+        // as a read-only view, so that the handler reads all the bytes it is supposed to read, and
+        // no more or no less, without copying them.
         final int pos = readBuffer.position();
-        final byte[] dest = new byte[size];
-
-        // This copy is necessary since ByteBuffer is not immutable, and we want to make sure that
-        // the handler reads all the bytes it is supposed to read, and no more or no less.
-        System.arraycopy(readBuffer.array(), pos, dest, 0, size);
+        final ByteBuffer data = readBuffer.asReadOnlyBuffer();
+        data.limit(pos + size);
         try {
-            onData.completed(ByteBuffer.wrap(dest), null);
+            onData.completed(data, null);
         }
         catch(Throwable t) {
             logger.log(Level.WARNING, t.getMessage(), t);
         }
-        // Move to the end of this chunk
-        while(readBuffer.position() < pos + size) {
-            readBuffer.get();
-            bytesRemaining.decrementAndGet();
+        // The handler has returned, and with it released the view. Move to the end of this chunk.
+        readBuffer.position(pos + size);
+    }
+
+    /**
+     * <p>Stops reading from the channel till {@link #resume()} is called. A read already issued
+     * completes, and bytes already read are parsed and delivered - except that when paused from
+     * a headers handler, the body is held back till resumed.</p>
+     */
+    public void pause() {
+        paused = true;
+    }
+
+    /**
+     * <p>Resumes reading after {@link #pause()}.</p>
+     */
+    public void resume() {
+        final Runnable step;
+        synchronized(pauseLock) {
+            paused = false;
+            step = pendingStep;
+            pendingStep = null;
+        }
+        if(step != null) {
+            step.run();
+        }
+    }
+
+    /**
+     * Keeps the next read or parsing step for later if paused.
+     *
+     * @param step step to continue with on resume
+     * @return true if the step was kept
+     */
+    private boolean defer(final Runnable step) {
+        synchronized(pauseLock) {
+            if(paused) {
+                pendingStep = step;
+                return true;
+            }
+            return false;
         }
     }
 
     /**
-     * Read some more bytes
+     * Read some more bytes of the body or of the current chunk, and continue with the rest of the
+     * message.
      *
      * @param toRead bytes to try to read
      */
     private void readSome(final int toRead) {
-        // bytesRemaining should be zero now
-        assert bytesRemaining.get() == 0;
+        // All read bytes should have been sent to the app by now
+        assert bytesRemaining() == 0;
 
-        // Allocate a readBuffer to hold toRead bytes
-        logger.info("Going to try to read " + toRead + " bytes");
-        readBuffer = ByteBuffer.allocate(toRead);
-        channel.read(readBuffer, timeout, timeUnit, null, new CompletionHandler<Integer, Object>() {
+        if(paused && defer(new Runnable() {
+            @Override
+            public void run() {
+                readSome(toRead);
+            }
+        })) {
+            return;
+        }
+
+        final ByteBuffer buffer = leaseReadBuffer();
+        read(buffer, new CompletionHandler<Integer, Object>() {
             @Override
             public void completed(final Integer result, final Object attachment) {
-                logger.info("Read " + result.toString() + " bytes");
-                bytesRemaining.set(result);
-                readBuffer.rewind();
+                doneReading();
+                if(result <= 0) {
+                    failed(new ClosedChannelException(), attachment);
+                    return;
+                }
+                buffer.flip();
                 sendDataToApp(Math.min(result, toRead));
 
                 if(result < toRead) {
                     // Read again
                     readSome(toRead - result);
                 }
-                else if(result >= toRead) {
+                else if(isChunked()) {
                     // Read empty line and next chunk
                     readEmptyLineAndChunk();
                 }
+                else {
+                    findTrailers();
+                }
             }
 
             @Override
             public void failed(final Throwable exc, final Object attachment) {
-                // TODO:
-                exc.printStackTrace();
+                doneReading();
+                try {
+                    onData.failed(exc, null);
+                }
+                catch(Throwable t) {
+                    logger.log(Level.WARNING, t.getMessage(), t);
+                }
+                finally {
+                    shutdown();
+                }
             }
         });
     }
 
+    /**
+     * Returns a cleared read buffer, leasing one from the pool if this parser does not hold one.
+     *
+     * @return buffer
+     */
+    private ByteBuffer leaseReadBuffer() {
+        if(readBuffer == null) {
+            readBuffer = bufferPool.lease(readBufferSize);
+        }
+        readBuffer.clear();
+        readBuffer.limit(Math.min(readBuffer.capacity(), readBufferSize));
+        return readBuffer;
+    }
+
+    /**
+     * Returns the read buffer to the pool once the channel has nothing more to read.
+     */
+    private void releaseReadBuffer() {
+        final ByteBuffer buffer = readBuffer;
+        readBuffer = null;
+        bufferPool.release(buffer);
+    }
+
     /**
      * Returns true if the message is chunked.
      *
@@ -581,31 +805,26 @@ public abstract class HttpParser {
         if(headers == null) {
             throw new NullPointerException("No headers");
         }
-        final List<String> val = headers.get("transfer-encoding");
-        return val != null && val.size() > 0 && "chunked".equals(val.get(0));
+        final int index = headers.indexOf(HttpHeaders.TRANSFER_ENCODING, 0);
+        return index != -1 && headers.valueEquals(index, "chunked");
     }
 
     /**
-     * Returns content length from the headers.
+     * Returns content length from the headers, or -1 if absent or malformed.
      *
-     * @param headers headers
      * @return content length
      */
-    private int getContentLength(final Map<String, List<String>> headers) {
-        final Iterable<String> val = headers.get("content-length");
-        int length = -1;
-        if(val != null) {
-            final Iterator<String> it = val.iterator();
-            if(it.hasNext()) {
-                try {
-                    length = Integer.parseInt(it.next());
-                }
-                catch(NumberFormatException pe) {
-                    logger.log(Level.WARNING, pe.getMessage(), pe);
-                }
-            }
+    private int getContentLength() {
+        final int index = headers.indexOf(HttpHeaders.CONTENT_LENGTH, 0);
+        if(index == -1) {
+            return -1;
         }
-        return length;
+        final long length = headers.longValue(index);
+        if(length < 0 || length > Integer.MAX_VALUE) {
+            logger.warning("Invalid content-length " + headers.value(index));
+            return -1;
+        }
+        return (int) length;
     }
 
 
@@ -646,107 +865,118 @@ public abstract class HttpParser {
     // Some of the following code is distributed from Netty source line. See the terms of
     // license in NETTY-APACHE-LICENSE
     //
-    private static String[] splitHeader(final String sb) {
-        final int length = sb.length();
-        final int nameStart;
-        int nameEnd;
-        int colonEnd;
-        final int valueStart;
-        final int valueEnd;
-
-        nameStart = findNonWhitespace(sb, 0);
-        for(nameEnd = nameStart; nameEnd < length; nameEnd++) {
-            final char ch = sb.charAt(nameEnd);
-            if(ch == ':' || Character.isWhitespace(ch)) {
-                break;
-            }
-        }
 
-        for(colonEnd = nameEnd; colonEnd < length; colonEnd++) {
-            if(sb.charAt(colonEnd) == ':') {
-                colonEnd++;
-                break;
-            }
-        }
+    /**
+     * Splits the current line into the three parts of an initial line.
+     *
+     * @param length length of the line
+     * @return three parts, the last of which may be empty
+     */
+    protected String[] splitInitialLine(final int length) {
+        final int aStart = findNonWhitespace(line, 0, length);
+        final int aEnd = findWhitespace(line, aStart, length);
 
-        valueStart = findNonWhitespace(sb, colonEnd);
-        if(valueStart == length) {
-            return new String[]{
-                sb.substring(nameStart, nameEnd),
-                ""
-            };
-        }
+        final int bStart = findNonWhitespace(line, aEnd, length);
+        final int bEnd = findWhitespace(line, bStart, length);
+
+        final int cStart = findNonWhitespace(line, bEnd, length);
+        final int cEnd = findEndOfString(line, length);
 
-        valueEnd = findEndOfString(sb);
         return new String[]{
-            sb.substring(nameStart, nameEnd),
-            sb.substring(valueStart, valueEnd)
-        };
+            token(aStart, aEnd),
+            token(bStart, bEnd),
+            cStart < cEnd ? token(cStart, cEnd) : ""};
     }
 
-    protected String[] splitInitialLine(final String sb) {
-        final int aStart;
-        final int aEnd;
-        final int bStart;
-        final int bEnd;
-        final int cStart;
-        final int cEnd;
-
-        aStart = findNonWhitespace(sb, 0);
-        aEnd = findWhitespace(sb, aStart);
-
-        bStart = findNonWhitespace(sb, aEnd);
-        bEnd = findWhitespace(sb, bStart);
+    /**
+     * Returns the current line as a string - for error reporting.
+     *
+     * @param length length of the line
+     * @return line
+     */
+    protected String lineString(final int length) {
+        return new String(line, 0, length, US_ASCII);
+    }
 
-        cStart = findNonWhitespace(sb, bEnd);
-        cEnd = findEndOfString(sb);
+    private String token(final int start, final int end) {
+        final int len = end - start;
+        for(int i = 0; i < KNOWN_TOKEN_BYTES.length; i++) {
+            final byte[] known = KNOWN_TOKEN_BYTES[i];
+            if(known.length == len) {
+                int j = 0;
+                while(j < len && known[j] == line[start + j]) {
+                    j++;
+                }
+                if(j == len) {
+                    return KNOWN_TOKENS[i];
+                }
+            }
+        }
+        return new String(line, start, len, US_ASCII);
+    }
 
-        return new String[]{
-            sb.substring(aStart, aEnd),
-            sb.substring(bStart, bEnd),
-            cStart < cEnd ? sb.substring(cStart, cEnd) : ""};
+    private static boolean isWhitespace(final byte b) {
+        return b == HttpCodecUtil.SP || b == HttpCodecUtil.HT;
     }
 
-    private static int findNonWhitespace(final String sb, final int offset) {
+    private static int findNonWhitespace(final byte[] bytes, final int offset, final int length) {
         int result;
-        for(result = offset; result < sb.length(); result++) {
-            if(!Character.isWhitespace(sb.charAt(result))) {
+        for(result = offset; result < length; result++) {
+            if(!isWhitespace(bytes[result])) {
                 break;
             }
         }
         return result;
     }
 
-    private static int findWhitespace(final String sb, final int offset) {
+    private static int findWhitespace(final byte[] bytes, final int offset, final int length) {
         int result;
-        for(result = offset; result < sb.length(); result++) {
-            if(Character.isWhitespace(sb.charAt(result))) {
+        for(result = offset; result < length; result++) {
+            if(isWhitespace(bytes[result])) {
                 break;
             }
         }
         return result;
     }
 
-    private static int findEndOfString(final String sb) {
+    private static int findEndOfString(final byte[] bytes, final int length) {
         int result;
-        for(result = sb.length(); result > 0; result--) {
-            if(!Character.isWhitespace(sb.charAt(result - 1))) {
+        for(result = length; result > 0; result--) {
+            if(!isWhitespace(bytes[result - 1])) {
                 break;
             }
         }
         return result;
     }
 
-    private static int getChunkSize(String hex) {
-        hex = hex.trim();
-        for(int i = 0; i < hex.length(); i++) {
-            final char c = hex.charAt(i);
-            if(c == ';' || Character.isWhitespace(c) || Character.isISOControl(c)) {
-                hex = hex.substring(0, i);
+    /**
+     * Parses the hex chunk size at the start of the line, ignoring any chunk extensions.
+     *
+     * @param bytes line
+     * @param length length of the line
+     * @return chunk size, or -1 if the line does not start with a hex number
+     */
+    private static int getChunkSize(final byte[] bytes, final int length) {
+        final int start = findNonWhitespace(bytes, 0, length);
+        long size = 0;
+        int i;
+        for(i = start; i < length; i++) {
+            final byte b = bytes[i];
+            final int digit;
+            if(b >= '0' && b <= '9') {
+                digit = b - '0';
+            }
+            else if(b >= 'a' && b <= 'f') {
+                digit = b - 'a' + 10;
+            }
+            else if(b >= 'A' && b <= 'F') {
+                digit = b - 'A' + 10;
+            }
+            else {
                 break;
             }
+            size = Math.min((size << 4) + digit, Integer.MAX_VALUE);
         }
-
-        return Integer.parseInt(hex, 16);
+        return i == start ? -1 : (int) size;
     }
 }
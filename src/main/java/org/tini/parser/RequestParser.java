@@ -14,6 +14,8 @@
 
 package org.tini.parser;
 
+import org.tini.common.BufferPool;
+
 import java.io.IOException;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
@@ -42,6 +44,23 @@ public class RequestParser extends HttpParser {
         super(channel, timeout, timeUnit);
     }
 
+    /**
+     * Creates a parser that leases read buffers from the given pool.
+     *
+     * @param channel channel to request messages from
+     * @param timeout read timeout
+     * @param timeUnit read timeout unit
+     * @param bufferPool pool to lease read buffers from
+     * @param readBufferSize size of each read
+     */
+    public RequestParser(final AsynchronousSocketChannel channel,
+                         final long timeout,
+                         final TimeUnit timeUnit,
+                         final BufferPool bufferPool,
+                         final int readBufferSize) {
+        super(channel, timeout, timeUnit, bufferPool, readBufferSize);
+    }
+
     /**
      * <p>Registers a handler to receive the request line.</p>
      *
@@ -55,12 +74,16 @@ public class RequestParser extends HttpParser {
      * Initiates parsing by looking for the first line.
      */
     public synchronized void go() {
-        final StringBuilder line = new StringBuilder();
-
-        onLine(line, maxInitialLineLength, new CompletionHandler<StringBuilder, Void>() {
+        expectMessage();
+        onLine(maxInitialLineLength, new CompletionHandler<Integer, Void>() {
             @Override
-            public void completed(final StringBuilder result, final Void attachment) {
-                final String[] initialLine = splitInitialLine(line.toString());
+            public void completed(final Integer length, final Void attachment) {
+                if(length == 0) {
+                    // Ignore empty lines before the initial line
+                    onLine(maxInitialLineLength, this);
+                    return;
+                }
+                final String[] initialLine = splitInitialLine(length);
                 if(initialLine.length == 3) {
                     if(initialLine[0].length() == 0 || initialLine[1].length() == 0 || initialLine[2].length() == 0) {
                         this.failed(new IOException("Malformed request line"), null);
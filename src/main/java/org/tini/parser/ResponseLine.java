@@ -30,7 +30,7 @@ public class ResponseLine
      * @param code response code
      * @param status response status
      */
-    ResponseLine(final String version, final int code, final String status) {
+    public ResponseLine(final String version, final int code, final String status) {
         this.code = code;
         this.status = status;
         this.version = version;
@@ -14,8 +14,11 @@
 
 package org.tini.parser;
 
+import org.tini.common.BufferPool;
+
 import java.io.IOException;
 import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.CompletionHandler;
 import java.util.ArrayList;
 import java.util.List;
@@ -35,6 +38,10 @@ public class ResponseParser extends HttpParser {
     // In this implementation, each message will be removed from the pipeline.
     private final List<CompletionHandler<ResponseLine, Void>> onResponseLine = new ArrayList<CompletionHandler<ResponseLine, Void>>(1);
 
+    // Status of the response being parsed, and whether it answers a HEAD request
+    private int status;
+    private boolean headResponse = false;
+
     /**
      * Creates a response parser.
      *
@@ -48,6 +55,23 @@ public class ResponseParser extends HttpParser {
         super(channel, timeout, timeUnit);
     }
 
+    /**
+     * Creates a parser that leases read buffers from the given pool.
+     *
+     * @param channel channel to read responses from
+     * @param timeout read timeout
+     * @param timeUnit read timeout unit
+     * @param bufferPool pool to lease read buffers from
+     * @param readBufferSize size of each read
+     */
+    public ResponseParser(final AsynchronousSocketChannel channel,
+                          final long timeout,
+                          final TimeUnit timeUnit,
+                          final BufferPool bufferPool,
+                          final int readBufferSize) {
+        super(channel, timeout, timeUnit, bufferPool, readBufferSize);
+    }
+
     /**
      * Register a handler to process the response line
      *
@@ -62,19 +86,24 @@ public class ResponseParser extends HttpParser {
      */
     @Override
     public synchronized void go() {
-        final StringBuilder line = new StringBuilder();
-
-        onLine(line, maxInitialLineLength, new CompletionHandler<StringBuilder, Void>() {
+        expectMessage();
+        headResponse = false;
+        onLine(maxInitialLineLength, new CompletionHandler<Integer, Void>() {
             @Override
-            public void completed(final StringBuilder result, final Void attachment) {
-                final String[] initialLine = splitInitialLine(line.toString());
+            public void completed(final Integer length, final Void attachment) {
+                if(length == 0) {
+                    // Ignore empty lines before the initial line
+                    onLine(maxInitialLineLength, this);
+                    return;
+                }
+                final String[] initialLine = splitInitialLine(length);
                 if(initialLine.length == 3) {
                     if(initialLine[0].length() == 0 || initialLine[1].length() == 0 || initialLine[2].length() == 0) {
-                        this.failed(new IOException("Malformed response line - " + line.toString()), null);
+                        this.failed(new IOException("Malformed response line - " + lineString(length)), null);
                     }
                     else {
                         try {
-                            final int status = Integer.parseInt(initialLine[1]);
+                            status = Integer.parseInt(initialLine[1]);
                             final ResponseLine responseLine = new ResponseLine(initialLine[0], status, initialLine[2]);
 
                             try {
@@ -99,7 +128,12 @@ public class ResponseParser extends HttpParser {
             @Override
             public void failed(final Throwable exc, final Void attachment) {
                 try {
-                    logger.log(Level.SEVERE, exc.getLocalizedMessage(), exc);
+                    if(exc instanceof ClosedChannelException) {
+                        logger.info("Connection closed by the server");
+                    }
+                    else {
+                        logger.log(Level.SEVERE, exc.getLocalizedMessage(), exc);
+                    }
 
                     try {
                         for(final CompletionHandler<ResponseLine, Void> handler : onResponseLine) {
@@ -116,4 +150,34 @@ public class ResponseParser extends HttpParser {
             }
         });
     }
+
+    /**
+     * Marks the response being parsed as one to a {@code HEAD} request, so that it is read without
+     * a body whatever its headers say. Call this from a response line handler.
+     */
+    public void expectNoBody() {
+        headResponse = true;
+    }
+
+    /**
+     * Returns false for responses to {@code HEAD} requests, and for {@code 1xx}, {@code 204} and
+     * {@code 304} responses, which never have a body (RFC 7230 3.3.3).
+     *
+     * @return boolean
+     */
+    @Override
+    protected boolean hasBody() {
+        return !headResponse && status >= 200 && status != 204 && status != 304;
+    }
+
+    /**
+     * Fails the awaited line - no more responses can arrive on this connection, so a pending
+     * request fails instead of waiting, and an idle connection is closed.
+     *
+     * @param handler handler awaiting the line
+     */
+    @Override
+    protected void endOfStream(final CompletionHandler<Integer, Void> handler) {
+        handler.failed(new ClosedChannelException(), null);
+    }
 }
@@ -0,0 +1,473 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.server;
+
+import org.tini.common.Compression;
+import org.tini.parser.HeadEncoder;
+import org.tini.parser.HttpCodecUtil;
+import org.tini.parser.HttpDate;
+import org.tini.parser.HttpHeaders;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Keeps the content of static files in memory, so that hits are served without touching the
+ * file system. Use {@link #send(ServerRequest, ServerResponse, Path)} in place of {@link
+ * ServerResponse#sendFile(Path)}.</p>
+ *
+ * <p>Small files are kept in direct buffers that hold the encoded headers of the file - type,
+ * length, validators - along with the body, so that a full response is the head of the response
+ * and one shared buffer in a single gathering write. Larger files are mapped into memory. Files
+ * larger than the largest entry are not cached, and are sent as by {@link
+ * ServerResponse#sendFile(Path)}. Conditional and range requests are answered as there.</p>
+ *
+ * <p>Entries are evicted least recently used first once the cache holds more than its size.
+ * Directories of cached files are watched, and entries are dropped as soon as their files
+ * change. Mapped files should be replaced rather than truncated in place.</p>
+ *
+ * <p>For responses with compression on, gzip siblings of files are cached and sent in their place
+ * to clients that accept gzip, and other compressible files are compressed as they are written.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+public final class ContentCache {
+    private static final Logger logger = Logger.getLogger("org.tini.server");
+
+    private final long maxBytes;
+    private final int inlineLimit;
+    private final long maxEntrySize;
+
+    // In access order - guarded by this
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<Path, Entry>(64, 0.75f, true);
+    private long size = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // Directories watched for changes - guarded by this
+    private final WatchService watchService;
+    private final Set<Path> watched = new HashSet<Path>();
+
+    // Invalidations by directory, so that a load that raced with a change is not cached - guarded
+    // by this
+    private final Map<Path, Long> generations = new HashMap<Path, Long>();
+
+    /**
+     * Creates a cache that holds files up to 64 KB in buffers, and maps larger ones up to an
+     * eighth of the cache.
+     *
+     * @param maxBytes size of the cache
+     * @throws IOException if unable to watch the file system
+     */
+    public ContentCache(final long maxBytes) throws IOException {
+        this(maxBytes, 64 * 1024, maxBytes / 8);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxBytes     size of the cache
+     * @param inlineLimit  files up to this size are kept in buffers, and larger ones are mapped
+     * @param maxEntrySize larger files are not cached
+     * @throws IOException if unable to watch the file system
+     */
+    public ContentCache(final long maxBytes, final int inlineLimit, final long maxEntrySize) throws IOException {
+        this.maxBytes = maxBytes;
+        this.inlineLimit = inlineLimit;
+        this.maxEntrySize = maxEntrySize;
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        final Thread watcher = new Thread("tini-content-watch") {
+            @Override
+            public void run() {
+                watch();
+            }
+        };
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Sends the file from the cache, loading it on a miss.
+     *
+     * @param request  request
+     * @param response response
+     * @param path     file
+     */
+    public void send(final ServerRequest request, final ServerResponse response, final Path path) {
+        final Path sibling = FileSender.precompressed(request, response, path);
+        final Path source = sibling == null ? path : sibling;
+        final Path key = source.toAbsolutePath().normalize();
+        Entry entry;
+        synchronized(this) {
+            entry = entries.get(key);
+        }
+        if(entry != null) {
+            hits.incrementAndGet();
+        }
+        else {
+            misses.incrementAndGet();
+            entry = load(key, path);
+            if(entry == null) {
+                FileSender.send(request, response, source, path);
+                return;
+            }
+        }
+        entry.send(request, response);
+    }
+
+    /**
+     * Drops the entry for a file.
+     *
+     * @param path file
+     */
+    public synchronized void invalidate(final Path path) {
+        final Path key = path.toAbsolutePath().normalize();
+        advance(key.getParent());
+        final Entry entry = entries.remove(key);
+        if(entry != null) {
+            size -= entry.weight;
+        }
+    }
+
+    /**
+     * Drops all entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Drops all entries and stops watching.
+     */
+    public void close() {
+        clear();
+        try {
+            watchService.close();
+        }
+        catch(IOException ioe) {
+            logger.log(Level.WARNING, ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * Returns the bytes held.
+     *
+     * @return bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of hits.
+     *
+     * @return hits
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of misses, including files that are not cacheable.
+     *
+     * @return misses
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Reads or maps the file, and caches it. Returns null if the file is missing, too large, or
+     * changes while loading.
+     */
+    private Entry load(final Path path, final Path typed) {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            // Mappings are limited to 2 GB
+            if(!attributes.isRegularFile() || attributes.size() > Math.min(maxEntrySize, Integer.MAX_VALUE)) {
+                return null;
+            }
+
+            // Watch before reading, so that changes from here on drop the entry, or stop it from
+            // being cached
+            final Path dir = path.getParent();
+            final long generation = generation(dir);
+            watch(dir);
+
+            final long length = attributes.size();
+            final long modified = attributes.lastModifiedTime().toMillis();
+            final Entry entry;
+            if(length <= inlineLimit) {
+                final byte[] bytes = Files.readAllBytes(path);
+                if(bytes.length != length) {
+                    return null;
+                }
+                entry = new Entry(typed, length, modified, bytes, null);
+            }
+            else {
+                final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+                try {
+                    // The mapping stays valid after the channel is closed
+                    entry = new Entry(typed, length, modified, null, channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+                }
+                finally {
+                    channel.close();
+                }
+            }
+
+            final BasicFileAttributes after = Files.readAttributes(path, BasicFileAttributes.class);
+            if(after.size() != length || after.lastModifiedTime().toMillis() != modified) {
+                return null;
+            }
+            put(path, entry, generation);
+            return entry;
+        }
+        catch(IOException ioe) {
+            return null;
+        }
+    }
+
+    private synchronized void put(final Path path, final Entry entry, final long generation) {
+        if(generation(path.getParent()) != generation) {
+            // Changed while loading - send what was read, but do not keep it
+            return;
+        }
+        final Entry old = entries.put(path, entry);
+        if(old != null) {
+            size -= old.weight;
+        }
+        size += entry.weight;
+
+        // Least recently used first
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while(size > maxBytes && iterator.hasNext()) {
+            final Entry eldest = iterator.next();
+            if(eldest != entry) {
+                iterator.remove();
+                size -= eldest.weight;
+            }
+        }
+        if(size > maxBytes) {
+            entries.remove(path);
+            size -= entry.weight;
+        }
+    }
+
+    private void watch(final Path dir) throws IOException {
+        synchronized(this) {
+            if(watched.contains(dir)) {
+                return;
+            }
+        }
+        // Registering twice returns the same key - recorded only once registered, so that a
+        // failure is tried again on the next load
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+        synchronized(this) {
+            watched.add(dir);
+        }
+    }
+
+    /**
+     * Drops entries of changed files till closed.
+     */
+    private void watch() {
+        while(true) {
+            final WatchKey key;
+            try {
+                key = watchService.take();
+            }
+            catch(ClosedWatchServiceException cwse) {
+                return;
+            }
+            catch(InterruptedException ie) {
+                return;
+            }
+            final Path dir = (Path) key.watchable();
+            for(final WatchEvent<?> event : key.pollEvents()) {
+                if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    invalidateAll(dir);
+                }
+                else {
+                    invalidate(dir.resolve((Path) event.context()));
+                }
+            }
+            if(!key.reset()) {
+                // The directory is gone
+                synchronized(this) {
+                    watched.remove(dir);
+                }
+                invalidateAll(dir);
+            }
+        }
+    }
+
+    private synchronized long generation(final Path dir) {
+        final Long generation = generations.get(dir);
+        return generation == null ? 0 : generation;
+    }
+
+    private synchronized void advance(final Path dir) {
+        generations.put(dir, generation(dir) + 1);
+    }
+
+    private synchronized void invalidateAll(final Path dir) {
+        advance(dir);
+        final Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+        while(iterator.hasNext()) {
+            final Map.Entry<Path, Entry> entry = iterator.next();
+            if(dir.equals(entry.getKey().getParent())) {
+                iterator.remove();
+                size -= entry.getValue().weight;
+            }
+        }
+    }
+
+    /**
+     * A cached file. Buffers are read-only, and each response writes its own duplicate.
+     */
+    private static final class Entry {
+        private final long length;
+        private final long modified;
+        private final String etag;
+        private final String lastModified;
+        private final String contentType;
+
+        // Headers, the empty line and the body - for small files only
+        private final ByteBuffer encoded;
+        private final ByteBuffer body;
+        private final long weight;
+
+        private Entry(final Path path, final long length, final long modified, final byte[] bytes,
+                      final ByteBuffer mapped) {
+            this.length = length;
+            this.modified = modified;
+            this.etag = FileSender.etag(length, modified);
+            this.lastModified = HttpDate.format(modified);
+            this.contentType = FileSender.contentType(path);
+
+            if(bytes != null) {
+                final String[] headers = {
+                    HttpHeaders.CONTENT_TYPE, contentType,
+                    HttpHeaders.CONTENT_LENGTH, Long.toString(length),
+                    HttpHeaders.ETAG, etag,
+                    HttpHeaders.LAST_MODIFIED, lastModified,
+                    HttpHeaders.ACCEPT_RANGES, "bytes"
+                };
+                int size = HttpCodecUtil.CRLF.length + bytes.length;
+                for(int i = 0; i < headers.length; i += 2) {
+                    size += HeadEncoder.headerLength(headers[i], headers[i + 1]);
+                }
+                final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+                for(int i = 0; i < headers.length; i += 2) {
+                    HeadEncoder.putHeader(buffer, headers[i], headers[i + 1]);
+                }
+                buffer.put(HttpCodecUtil.CRLF);
+                final int bodyStart = buffer.position();
+                buffer.put(bytes);
+                buffer.flip();
+                encoded = buffer.asReadOnlyBuffer();
+                buffer.position(bodyStart);
+                body = buffer.slice().asReadOnlyBuffer();
+                weight = size;
+            }
+            else {
+                encoded = null;
+                body = mapped.asReadOnlyBuffer();
+                weight = length;
+            }
+        }
+
+        private void send(final ServerRequest request, final ServerResponse response) {
+            final boolean head = "HEAD".equals(request.getRequestLine().getMethod());
+            long[] bounds = null;
+            final String range = request.getHeader(HttpHeaders.RANGE);
+            if(range != null && FileSender.ifRange(request.getHeader(HttpHeaders.IF_RANGE), etag, modified)) {
+                bounds = FileSender.range(range, length);
+            }
+            final boolean notModified = FileSender.notModified(request, etag, modified);
+
+            // Left to the response to compress when it would
+            final Compression compression = response.getCompression();
+            boolean compress = false;
+            if(compression != null && compression.isCompressible(contentType) &&
+                !response.hasHeader(HttpHeaders.CONTENT_ENCODING)) {
+                response.addVary("Accept-Encoding");
+                compress = length >= compression.getMinSize() &&
+                    Compression.negotiate(request.getHeader(HttpHeaders.ACCEPT_ENCODING)) != null;
+            }
+            if(encoded != null && !head && bounds == null && !notModified && !compress &&
+                !response.hasHeader(HttpHeaders.CONTENT_TYPE)) {
+                // Common case - one shared buffer after the head
+                response.endEncoded(encoded);
+                return;
+            }
+
+            response.addHeader(HttpHeaders.ETAG, etag);
+            response.addHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+            response.addHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+            if(notModified) {
+                FileSender.notModified(request, response, etag);
+                return;
+            }
+            if(!response.hasHeader(HttpHeaders.CONTENT_TYPE)) {
+                response.setContentType(contentType);
+            }
+            long offset = 0;
+            long count = length;
+            if(bounds != null) {
+                if(bounds[0] < 0) {
+                    FileSender.unsatisfiable(response, length);
+                    return;
+                }
+                offset = bounds[0];
+                count = bounds[1] - bounds[0] + 1;
+                response.setStatus(206, "Partial Content");
+                response.addHeader(HttpHeaders.CONTENT_RANGE, "bytes " + bounds[0] + "-" + bounds[1] + "/" + length);
+            }
+            response.addHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(count));
+            if(!head && count > 0) {
+                final ByteBuffer region = body.duplicate();
+                region.position((int) offset);
+                region.limit((int) (offset + count));
+                response.write(region, null);
+            }
+            response.end();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.server;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * <p>Immutable table of app handlers, resolved once at registration. Each annotated handler method
+ * is bound to its handler object as a {@link MethodHandle}, so that dispatching a request is a
+ * lookup by path and HTTP method followed by a direct call - with no annotation scans, class
+ * lookups or access checks per request.</p>
+ *
+ * <p>Paths are templates, looked up through a radix tree. A template may have parameters such as
+ * {@code /users/{id}}, each matching one path segment, and may end with {@code /*} to handle all
+ * paths below a prefix. Query strings are ignored for matching.</p>
+ *
+ * <p>Registering a handler returns a new table, and leaves this one as is.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+public final class DispatchTable {
+
+    /**
+     * Table with no handlers.
+     */
+    public static final DispatchTable EMPTY = new DispatchTable(Collections.<String, Route>emptyMap(), null);
+
+    // Type of invokers after binding handler objects
+    private static final MethodType INVOKER_TYPE =
+        MethodType.methodType(void.class, ServerRequest.class, ServerResponse.class);
+
+    // Annotations named after HTTP methods live here
+    private static final String ANNOTATION_PACKAGE = "javax.ws.rs.";
+
+    // Routes by template, in the order registered
+    private final Map<String, Route> routes;
+
+    // Routes by path
+    private final RouteTree<Route> tree = new RouteTree<Route>();
+
+    // Route for paths without handlers
+    private final Route fallback;
+
+    private DispatchTable(final Map<String, Route> routes, final Route fallback) {
+        this.routes = routes;
+        this.fallback = fallback;
+        for(final Map.Entry<String, Route> entry : routes.entrySet()) {
+            tree.add(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Returns a table that has the given handler for the given path template, in addition to
+     * handlers in this table. The handler must use JAX-RS annotations, or have a {@code service}
+     * method, to receive requests.
+     *
+     * @param template path template, or null for the default handler
+     * @param handler  handler
+     * @return new table
+     * @throws IllegalArgumentException if the template is malformed, or if handler methods do not
+     *                                  take a request and a response
+     */
+    public DispatchTable with(final String template, final Object handler) {
+        final Route route = Route.resolve(handler);
+        if(template == null) {
+            return new DispatchTable(routes, route);
+        }
+        final Map<String, Route> copy = new LinkedHashMap<String, Route>(routes);
+        copy.put(template, route);
+        return new DispatchTable(Collections.unmodifiableMap(copy), fallback);
+    }
+
+    /**
+     * Finds the handler for a request URI - which may include a query, or be in absolute form.
+     *
+     * @param uri request URI
+     * @return match, or null if there is no handler - including the default handler
+     */
+    public Match match(final String uri) {
+        final String path = path(uri);
+        final Map<String, String> params = new HashMap<String, String>(4);
+        final Route route = tree.find(path, params);
+        if(route != null) {
+            return new Match(route, params);
+        }
+        return fallback != null ? new Match(fallback, Collections.<String, String>emptyMap()) : null;
+    }
+
+    /**
+     * Finds the invoker for the given method and request URI.
+     *
+     * @param method HTTP method
+     * @param uri    request URI
+     * @return invoker, or null if the handler for the path does not support the method, or if
+     *         there is no handler for the path
+     */
+    public MethodHandle find(final String method, final String uri) {
+        final Match match = match(uri);
+        return match != null ? match.find(method) : null;
+    }
+
+    /**
+     * Returns the path of a request URI - without scheme and authority for absolute URIs, and
+     * without the query.
+     *
+     * @param uri request URI
+     * @return path
+     */
+    static String path(final String uri) {
+        int start = 0;
+        if(!uri.startsWith("/")) {
+            final int scheme = uri.indexOf("://");
+            if(scheme > 0) {
+                start = uri.indexOf('/', scheme + 3);
+                if(start < 0) {
+                    return "/";
+                }
+            }
+        }
+        int end = uri.indexOf('?', start);
+        end = end < 0 ? uri.length() : end;
+        return start == 0 && end == uri.length() ? uri : uri.substring(start, end);
+    }
+
+    /**
+     * A handler found for a path, with parameters from the path.
+     */
+    public static final class Match {
+        private final Route route;
+        private final Map<String, String> params;
+
+        private Match(final Route route, final Map<String, String> params) {
+            this.route = route;
+            this.params = params;
+        }
+
+        /**
+         * Finds the invoker for the given method.
+         *
+         * @param method HTTP method
+         * @return invoker, or null if the handler does not support the method
+         */
+        public MethodHandle find(final String method) {
+            return route.find(method);
+        }
+
+        /**
+         * Returns the methods the handler supports, for an {@code Allow} header - in alphabetical
+         * order, and separated by commas.
+         *
+         * @return methods, or an empty string if the handler has none but a {@code service} method
+         */
+        public String getAllowed() {
+            return route.allowed;
+        }
+
+        /**
+         * Returns parameters from the path, by name. The path below a mount is under {@code *}.
+         *
+         * @return parameters
+         */
+        public Map<String, String> getParams() {
+            return params;
+        }
+    }
+
+    /**
+     * Methods of one handler.
+     */
+    private static final class Route {
+        private final Map<String, MethodHandle> byMethod;
+        private final MethodHandle service;
+        private final String allowed;
+
+        private Route(final Map<String, MethodHandle> byMethod, final MethodHandle service) {
+            this.byMethod = byMethod;
+            this.service = service;
+            final StringBuilder builder = new StringBuilder();
+            for(final String method : new TreeSet<String>(byMethod.keySet())) {
+                builder.append(builder.length() == 0 ? "" : ", ").append(method);
+            }
+            this.allowed = builder.toString();
+        }
+
+        private MethodHandle find(final String method) {
+            MethodHandle handle = byMethod.get(method);
+            if(handle == null) {
+                // Most clients send upper case methods - look up again only when not
+                handle = byMethod.get(method.toUpperCase());
+            }
+            return handle != null ? handle : service;
+        }
+
+        private static Route resolve(final Object handler) {
+            final Map<String, MethodHandle> byMethod = new HashMap<String, MethodHandle>();
+            MethodHandle service = null;
+            for(final Method method : handler.getClass().getMethods()) {
+                for(final Annotation annotation : method.getAnnotations()) {
+                    final String name = annotation.annotationType().getName();
+                    if(name.startsWith(ANNOTATION_PACKAGE)) {
+                        final String httpMethod = name.substring(ANNOTATION_PACKAGE.length());
+                        if(httpMethod.equals(httpMethod.toUpperCase()) && !byMethod.containsKey(httpMethod)) {
+                            byMethod.put(httpMethod, bind(handler, method));
+                        }
+                    }
+                }
+                if(service == null && method.getName().equals("service") && method.getParameterTypes().length == 2) {
+                    service = bind(handler, method);
+                }
+            }
+            return new Route(byMethod, service);
+        }
+
+        private static MethodHandle bind(final Object handler, final Method method) {
+            // Handlers are often anonymous classes - not accessible from here otherwise
+            method.setAccessible(true);
+            try {
+                return MethodHandles.lookup().unreflect(method).bindTo(handler).asType(INVOKER_TYPE);
+            }
+            catch(IllegalAccessException iae) {
+                throw new IllegalArgumentException("Unable to access " + method, iae);
+            }
+            catch(WrongMethodTypeException wmte) {
+                throw new IllegalArgumentException(method + " must take a ServerRequest and a ServerResponse", wmte);
+            }
+        }
+    }
+}
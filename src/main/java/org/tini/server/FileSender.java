@@ -0,0 +1,513 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.server;
+
+import org.tini.common.BufferPool;
+import org.tini.common.Compression;
+import org.tini.parser.HttpDate;
+import org.tini.parser.HttpHeaders;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Streams a region of a file as the body of a response. Up to two pooled buffers are in use -
+ * the next region is read from the file while the last one is being written to the socket, and
+ * each is written without copying.</p>
+ *
+ * <p>{@link #send(ServerRequest, ServerResponse, Path)} also answers conditional and range
+ * requests - {@code If-None-Match}, {@code If-Modified-Since}, {@code Range} and {@code
+ * If-Range}, for a single range - and sends a gzip sibling of the file in its place when the
+ * response has compression on.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+final class FileSender {
+    private static final Logger logger = Logger.getLogger("org.tini.server");
+
+    // Size of each read from the file
+    private static final int READ_SIZE = 128 * 1024;
+    private static final int BUFFERS = 2;
+
+    private final AsynchronousFileChannel file;
+    private final ServerResponse response;
+    private final BufferPool pool;
+    private final long end;
+
+    // Guarded by this
+    private final Deque<ByteBuffer> free = new ArrayDeque<ByteBuffer>(BUFFERS);
+    private int leased = 0;
+    private long position;
+    private boolean reading = false;
+    private int writing = 0;
+    private boolean written = false;
+    private boolean done = false;
+
+    private FileSender(final AsynchronousFileChannel file, final ServerResponse response,
+                       final long offset, final long length) {
+        this.file = file;
+        this.response = response;
+        this.pool = response.getBufferPool();
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * Sends the whole file, or the range asked for, unless the client's copy is current.
+     *
+     * @param request  request
+     * @param response response
+     * @param path     file
+     */
+    static void send(final ServerRequest request, final ServerResponse response, final Path path) {
+        final Path sibling = precompressed(request, response, path);
+        send(request, response, sibling == null ? path : sibling, path);
+    }
+
+    /**
+     * Sends the whole source, or the range asked for, unless the client's copy is current.
+     *
+     * @param request  request
+     * @param response response
+     * @param path     file to send
+     * @param typed    file whose media type to send it as
+     */
+    static void send(final ServerRequest request, final ServerResponse response, final Path path, final Path typed) {
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        }
+        catch(IOException ioe) {
+            notFound(response, ioe);
+            return;
+        }
+        if(!attributes.isRegularFile()) {
+            notFound(response, null);
+            return;
+        }
+        final long size = attributes.size();
+        final long modified = attributes.lastModifiedTime().toMillis();
+        final String etag = etag(size, modified);
+        response.addHeader(HttpHeaders.ETAG, etag);
+        response.addHeader(HttpHeaders.LAST_MODIFIED, HttpDate.format(modified));
+        response.addHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        if(notModified(request, etag, modified)) {
+            notModified(request, response, etag);
+            return;
+        }
+
+        long offset = 0;
+        long length = size;
+        final String range = request.getHeader(HttpHeaders.RANGE);
+        if(range != null && ifRange(request.getHeader(HttpHeaders.IF_RANGE), etag, modified)) {
+            final long[] bounds = range(range, size);
+            if(bounds == null) {
+                // Not one byte range - send the whole file
+            }
+            else if(bounds[0] < 0) {
+                unsatisfiable(response, size);
+                return;
+            }
+            else {
+                offset = bounds[0];
+                length = bounds[1] - bounds[0] + 1;
+                response.setStatus(206, "Partial Content");
+                response.addHeader(HttpHeaders.CONTENT_RANGE, "bytes " + bounds[0] + "-" + bounds[1] + "/" + size);
+            }
+        }
+        if(!response.hasHeader(HttpHeaders.CONTENT_TYPE)) {
+            response.setContentType(contentType(typed));
+        }
+        if("HEAD".equals(request.getRequestLine().getMethod())) {
+            response.addHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(length));
+            response.end();
+            return;
+        }
+        send(response, path, offset, length);
+    }
+
+    /**
+     * Returns the gzip sibling of a file - the file name with {@code .gz} added - to send in its
+     * place, when the response has compression on and the client accepts gzip. A sibling older
+     * than the file is ignored. A current sibling adds {@code Vary: Accept-Encoding}, and {@code
+     * Content-Encoding} when it is returned.
+     *
+     * @param request  request
+     * @param response response
+     * @param path     file
+     * @return sibling, or null to send the file
+     */
+    static Path precompressed(final ServerRequest request, final ServerResponse response, final Path path) {
+        if(response.getCompression() == null || response.hasHeader(HttpHeaders.CONTENT_ENCODING) ||
+            path.getFileName() == null) {
+            return null;
+        }
+        final Path sibling = path.resolveSibling(path.getFileName() + ".gz");
+        try {
+            final BasicFileAttributes compressed = Files.readAttributes(sibling, BasicFileAttributes.class);
+            final BasicFileAttributes original = Files.readAttributes(path, BasicFileAttributes.class);
+            if(!compressed.isRegularFile() ||
+                compressed.lastModifiedTime().compareTo(original.lastModifiedTime()) < 0) {
+                return null;
+            }
+        }
+        catch(IOException ioe) {
+            return null;
+        }
+        response.addVary("Accept-Encoding");
+        if(!Compression.accepts(request.getHeader(HttpHeaders.ACCEPT_ENCODING), Compression.GZIP)) {
+            return null;
+        }
+        response.addHeader(HttpHeaders.CONTENT_ENCODING, Compression.GZIP);
+        return sibling;
+    }
+
+    /**
+     * Sends {@code length} bytes of the file from {@code offset}.
+     *
+     * @param response response
+     * @param path     file
+     * @param offset   offset
+     * @param length   length
+     */
+    static void send(final ServerResponse response, final Path path, final long offset, final long length) {
+        final AsynchronousFileChannel file;
+        try {
+            file = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+        }
+        catch(IOException ioe) {
+            notFound(response, ioe);
+            return;
+        }
+        response.addHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(length));
+        if(length == 0) {
+            response.end();
+            close(file);
+            return;
+        }
+        new FileSender(file, response, offset, length).next();
+    }
+
+    /**
+     * Reads the next region if no read is in flight, and a buffer is free.
+     */
+    private void next() {
+        final ByteBuffer buffer;
+        final long at;
+        synchronized(this) {
+            if(done || reading || position >= end) {
+                return;
+            }
+            if(free.isEmpty()) {
+                if(leased == BUFFERS) {
+                    return;
+                }
+                free.add(pool.lease((int) Math.min(READ_SIZE, end - position)));
+                leased++;
+            }
+            buffer = free.poll();
+            buffer.clear();
+            if(buffer.capacity() > end - position) {
+                buffer.limit((int) (end - position));
+            }
+            at = position;
+            reading = true;
+        }
+        file.read(buffer, at, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(final Integer result, final Void attachment) {
+                if(result <= 0) {
+                    // The file shrank - the promised length can not be sent
+                    failed(new IOException("Unexpected end of file"), null);
+                    return;
+                }
+                buffer.flip();
+                synchronized(FileSender.this) {
+                    reading = false;
+                    if(done) {
+                        free.add(buffer);
+                    }
+                    else {
+                        position += result;
+                        writing++;
+                        written = true;
+                    }
+                }
+                if(done) {
+                    finish();
+                    return;
+                }
+                // Reads complete in order, so writes are queued in order
+                response.write(buffer, new CompletionHandler<Integer, Void>() {
+                    @Override
+                    public void completed(final Integer written, final Void attachment) {
+                        final boolean last;
+                        synchronized(FileSender.this) {
+                            writing--;
+                            free.add(buffer);
+                            last = position >= end && writing == 0 && !done;
+                            if(last) {
+                                done = true;
+                            }
+                        }
+                        if(last) {
+                            finish();
+                            response.end();
+                        }
+                        else {
+                            next();
+                        }
+                    }
+
+                    @Override
+                    public void failed(final Throwable exc, final Void attachment) {
+                        synchronized(FileSender.this) {
+                            writing--;
+                            free.add(buffer);
+                        }
+                        abort(exc);
+                    }
+                });
+                next();
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                synchronized(FileSender.this) {
+                    reading = false;
+                    free.add(buffer);
+                }
+                abort(exc);
+            }
+        });
+    }
+
+    /**
+     * Stops sending. Once the head has gone out with the full length, the connection is closed to
+     * tell the client that the body is short.
+     */
+    private void abort(final Throwable exc) {
+        logger.log(Level.WARNING, exc.getMessage(), exc);
+        final boolean first;
+        final boolean started;
+        synchronized(this) {
+            first = !done;
+            started = written;
+            done = true;
+        }
+        if(first) {
+            if(!started) {
+                response.setStatus(500, "Internal Server Error");
+                response.addHeader(HttpHeaders.CONTENT_LENGTH, "0");
+            }
+            response.addHeader(HttpHeaders.CONNECTION, "close");
+            response.end();
+        }
+        finish();
+    }
+
+    // Releases buffers once no read or write holds them
+    private void finish() {
+        synchronized(this) {
+            if(reading || writing > 0) {
+                return;
+            }
+            for(final ByteBuffer buffer : free) {
+                pool.release(buffer);
+            }
+            free.clear();
+        }
+        close(file);
+    }
+
+    private static void close(final AsynchronousFileChannel file) {
+        try {
+            file.close();
+        }
+        catch(IOException ioe) {
+            logger.log(Level.WARNING, ioe.getMessage(), ioe);
+        }
+    }
+
+    private static void notFound(final ServerResponse response, final IOException ioe) {
+        if(ioe != null && !(ioe instanceof NoSuchFileException)) {
+            logger.log(Level.WARNING, ioe.getMessage(), ioe);
+        }
+        response.setStatus(404, "Not Found");
+        response.end();
+    }
+
+    /**
+     * Ends the response with {@code 416}.
+     */
+    static void unsatisfiable(final ServerResponse response, final long size) {
+        response.setStatus(416, "Requested Range Not Satisfiable");
+        response.addHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+        response.addHeader(HttpHeaders.CONTENT_LENGTH, "0");
+        response.end();
+    }
+
+    /**
+     * Returns the media type of a file, as far as the platform can tell.
+     */
+    static String contentType(final Path path) {
+        String type = null;
+        try {
+            type = Files.probeContentType(path);
+        }
+        catch(IOException ioe) {
+            // Not known
+        }
+        return type == null ? "application/octet-stream" : type;
+    }
+
+    /**
+     * Returns the entity tag for a file of the given size and modification time.
+     */
+    static String etag(final long size, final long modified) {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(modified) + "\"";
+    }
+
+    /**
+     * Returns true if the client's copy is current.
+     */
+    static boolean notModified(final ServerRequest request, final String etag, final long modified) {
+        final String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if(ifNoneMatch != null) {
+            // If-Modified-Since is ignored when If-None-Match is present
+            return current(ifNoneMatch, etag) != null;
+        }
+        final String ifModifiedSince = request.getHeader(HttpHeaders.IF_MODIFIED_SINCE);
+        if(ifModifiedSince != null) {
+            final long since = HttpDate.parse(ifModifiedSince);
+            // HTTP dates are to the second
+            return since >= 0 && modified / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the tag in {@code If-None-Match} that names the current version of the file, in any
+     * coding, or null if none does. Tags of compressed responses have the coding added - see
+     * {@link Compression#encodedTag(String, String)}.
+     */
+    static String current(final String ifNoneMatch, final String etag) {
+        if(ifNoneMatch == null) {
+            return null;
+        }
+        for(final String tag : ifNoneMatch.split(",")) {
+            final String t = tag.trim();
+            if(t.equals("*")) {
+                return etag;
+            }
+            final String opaque = t.startsWith("W/") ? t.substring(2) : t;
+            if(Compression.identityTag(opaque).equals(etag)) {
+                return opaque;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Answers a conditional request with 304, with the entity tag the client has.
+     */
+    static void notModified(final ServerRequest request, final ServerResponse response, final String etag) {
+        final String current = current(request.getHeader(HttpHeaders.IF_NONE_MATCH), etag);
+        if(current != null) {
+            response.addHeader(HttpHeaders.ETAG, current);
+        }
+        response.setStatus(304, "Not Modified");
+        response.end();
+    }
+
+    /**
+     * Returns true if the range may be served - when there is no If-Range, or it names the
+     * current version.
+     */
+    static boolean ifRange(final String ifRange, final String etag, final long modified) {
+        if(ifRange == null) {
+            return true;
+        }
+        if(ifRange.trim().startsWith("\"")) {
+            return ifRange.trim().equals(etag);
+        }
+        final long date = HttpDate.parse(ifRange);
+        return date >= 0 && modified / 1000 == date / 1000;
+    }
+
+    /**
+     * Parses a single byte range - "bytes=first-last", "bytes=first-" or "bytes=-suffix".
+     *
+     * @param range value of the Range header
+     * @param size  size of the file
+     * @return first and last positions, {-1, -1} if not satisfiable, or null if not a single byte
+     *         range
+     */
+    static long[] range(final String range, final long size) {
+        final String value = range.trim();
+        if(!value.startsWith("bytes=") || value.indexOf(',') >= 0) {
+            return null;
+        }
+        final String spec = value.substring(6).trim();
+        final int dash = spec.indexOf('-');
+        if(dash < 0) {
+            return null;
+        }
+        try {
+            final String from = spec.substring(0, dash).trim();
+            final String to = spec.substring(dash + 1).trim();
+            final long first;
+            final long last;
+            if(from.length() == 0) {
+                // Suffix
+                if(to.length() == 0) {
+                    return null;
+                }
+                final long suffix = Long.parseLong(to);
+                if(suffix == 0) {
+                    return new long[] {-1, -1};
+                }
+                first = Math.max(0, size - suffix);
+                last = size - 1;
+            }
+            else {
+                first = Long.parseLong(from);
+                last = to.length() == 0 ? size - 1 : Math.min(Long.parseLong(to), size - 1);
+                if(to.length() > 0 && Long.parseLong(to) < first) {
+                    return null;
+                }
+            }
+            if(first >= size || size == 0) {
+                return new long[] {-1, -1};
+            }
+            return new long[] {first, last};
+        }
+        catch(NumberFormatException nfe) {
+            return null;
+        }
+    }
+}
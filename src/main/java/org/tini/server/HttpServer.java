@@ -14,7 +14,16 @@
 
 package org.tini.server;
 
+import org.tini.common.BufferPool;
+import org.tini.common.Compression;
+import org.tini.common.IdleConnectionWatcher;
+import org.tini.common.NamedThreadFactory;
+import org.tini.common.SizeClassBufferPool;
+import org.tini.common.TimingWheel;
+import org.tini.parser.HttpParser;
+
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.SocketOption;
 import java.nio.channels.AsynchronousChannelGroup;
@@ -23,8 +32,10 @@ import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -38,8 +49,9 @@ public class HttpServer {
 
     private static final Logger logger = Logger.getLogger("org.tini.server");
 
-    // Application handlers - registered to process incoming requests
-    private final Map<String, Object> handlers;
+    // Application handlers - registered to process incoming requests. Replaced as a whole on
+    // registration, and read by each new connection
+    private volatile DispatchTable dispatchTable = DispatchTable.EMPTY;
 
     // Reads will be timed out after this default interval
     private long readTimeout = 5;
@@ -49,11 +61,37 @@ public class HttpServer {
     private long idleTimeout = 60;
     private TimeUnit idleTimeoutUnit = TimeUnit.SECONDS;
 
+    // Connections with writes that make no progress will be closed after this default interval
+    private long writeTimeout = 30;
+    private TimeUnit writeTimeoutUnit = TimeUnit.SECONDS;
+
+    // Buffers for reading requests and writing responses are leased from this pool
+    private BufferPool bufferPool = new SizeClassBufferPool();
+    private int readBufferSize = HttpParser.DEFAULT_READ_BUFFER_SIZE;
+
+    // Responses to pipelined requests that finish early are held up to this limit per connection
+    private long holdLimit = 1024 * 1024;
+    private boolean spillToDisk = false;
+
+    // Reading pauses while this many requests wait for their responses on a connection
+    private int maxPipelined = 64;
+
+    // Responses are compressed with these settings when not null
+    private Compression compression;
+
     // Additional options for the channel - see {@SocketOption} for available options
     private final Map<SocketOption, Object> options = new HashMap<SocketOption, Object>();
 
-    // Channel group for open channels
+    // Channel group for open channels - a fixed pool of I/O threads, one per core by default,
+    // unless the caller supplies a group. Only a group created here is shut down with the server.
     private AsynchronousChannelGroup channelGroup;
+    private boolean ownsChannelGroup = true;
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    private AsynchronousServerSocketChannel serverChannel;
+
+    // App handlers run on I/O threads, unless given a worker executor
+    private ExecutorService workers;
+    private boolean ownsWorkers = false;
 
     /**
      * Create and returns a server.
@@ -68,11 +106,10 @@ public class HttpServer {
      * Creates a server instance.
      */
     private HttpServer() {
-        handlers = new HashMap<String, Object>();
     }
 
     /**
-     * Sets read timeout. The default value is 5 seconds.
+     * Sets read timeout - for reads within a request. The default value is 5 seconds.
      *
      * @param readTimeout read timeout
      * @param timeUnit    unit unit
@@ -93,6 +130,159 @@ public class HttpServer {
         this.idleTimeoutUnit = timeUnit;
     }
 
+    /**
+     * Sets write timeout - a connection is closed when a write makes no progress for this long.
+     * The default value is 30 seconds.
+     *
+     * @param writeTimeout write timeout
+     * @param timeUnit     time unit
+     */
+    public void setWriteTimeout(final long writeTimeout, final TimeUnit timeUnit) {
+        this.writeTimeout = writeTimeout;
+        this.writeTimeoutUnit = timeUnit;
+    }
+
+    /**
+     * Sets the pool to lease read and write buffers from. By default, each server uses its own
+     * {@link SizeClassBufferPool}.
+     *
+     * @param bufferPool pool
+     */
+    public void setBufferPool(final BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Returns the pool used for read and write buffers. Apps may lease buffers from this pool for
+     * data they write to responses.
+     *
+     * @return pool
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Sets the number of bytes to read from the channel at a time. The default is 8 KB.
+     *
+     * @param readBufferSize read buffer size
+     */
+    public void setReadBufferSize(final int readBufferSize) {
+        this.readBufferSize = readBufferSize;
+    }
+
+    /**
+     * Sets the most pipelined requests read on a connection ahead of their responses. The
+     * connection stops reading requests at this depth, and reads again once half the pending
+     * responses are written. The default is 64.
+     *
+     * @param maxPipelined depth
+     */
+    public void setMaxPipelined(final int maxPipelined) {
+        if(maxPipelined <= 0) {
+            throw new IllegalArgumentException("Invalid depth " + maxPipelined);
+        }
+        this.maxPipelined = maxPipelined;
+    }
+
+    /**
+     * Compresses response bodies for clients that accept gzip or deflate, unless handlers turn it
+     * off for a response. Off by default.
+     *
+     * @param compression settings, or null to turn compression off
+     */
+    public void setCompression(final Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Sets the limit on response bytes held per connection while responses to earlier pipelined
+     * requests are still being written. Past the limit, held data is either spilled to a temporary
+     * file, or the connection stops reading new requests till responses catch up. The default is
+     * 1 MB, without spilling.
+     *
+     * @param holdLimit   limit in bytes
+     * @param spillToDisk true to spill to disk, and false to stop reading new requests
+     */
+    public void setHoldLimit(final long holdLimit, final boolean spillToDisk) {
+        this.holdLimit = holdLimit;
+        this.spillToDisk = spillToDisk;
+    }
+
+    /**
+     * Sets the number of I/O threads. The default is the number of cores - handlers that do not
+     * block need no more, and one thread per core keeps each thread on its own core.
+     *
+     * @param ioThreads number of threads
+     */
+    public void setIoThreads(final int ioThreads) {
+        if(ioThreads <= 0) {
+            throw new IllegalArgumentException("Invalid thread count " + ioThreads);
+        }
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * Sets the channel group to use for connections, instead of creating one. The caller owns the
+     * group, and {@link #shutdown()} leaves it open.
+     *
+     * @param channelGroup channel group
+     */
+    public void setChannelGroup(final AsynchronousChannelGroup channelGroup) {
+        this.channelGroup = channelGroup;
+        this.ownsChannelGroup = false;
+    }
+
+    /**
+     * Runs app handlers on the given executor rather than on I/O threads. Use this for handlers
+     * that block. Requests rejected by the executor get 503 responses. The caller owns the
+     * executor.
+     *
+     * @param workers executor
+     */
+    public void setWorkerExecutor(final ExecutorService workers) {
+        this.workers = workers;
+        this.ownsWorkers = false;
+    }
+
+    /**
+     * Runs app handlers on a bounded pool of worker threads rather than on I/O threads. Use this
+     * for handlers that block. Requests beyond the queue get 503 responses.
+     *
+     * @param threads   number of worker threads
+     * @param queueSize requests waiting for a worker
+     */
+    public void setWorkers(final int threads, final int queueSize) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), new NamedThreadFactory("tini-worker", true));
+        this.workers = executor;
+        this.ownsWorkers = true;
+    }
+
+    /**
+     * <p>Runs each request's handler on its own thread, so that handlers may block - say, on JDBC
+     * calls, or on {@link ServerRequest#getInputStream()} - without tying up I/O threads or
+     * sizing a worker pool up front.</p>
+     *
+     * <p>On runtimes with virtual threads, handlers run on virtual threads, and blocking parks
+     * them rather than an OS thread. Elsewhere, handlers run on an unbounded pool of
+     * "tini-handler" threads that are reused once idle.</p>
+     */
+    public void setThreadPerRequest() {
+        ExecutorService executor;
+        try {
+            // Looked up reflectively as the code is built for older runtimes
+            final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            executor = (ExecutorService) method.invoke(null);
+        }
+        catch(Exception e) {
+            logger.fine("Virtual threads not available - using a thread pool");
+            executor = Executors.newCachedThreadPool(new NamedThreadFactory("tini-handler", true));
+        }
+        this.workers = executor;
+        this.ownsWorkers = true;
+    }
+
     /**
      * See {@code SocketOption} for possible options. These options will be passed onto the socket.
      *
@@ -105,13 +295,18 @@ public class HttpServer {
 
     /**
      * Specify a handler for handling requests for a given path. The handler must use JAX-RS
-     * annotations to receive HTTP requests.
+     * annotations to receive HTTP requests. Handler methods are resolved here, once - handlers
+     * registered after {@code listen} apply to connections accepted afterwards.
+     *
+     * <p>The path may be a template with parameters, such as {@code /users/{id}}, and may end
+     * with {@code /*} to handle all paths below a prefix. See {@link
+     * ServerRequest#getPathParam(String)}.</p>
      *
      * @param path    path
      * @param handler handler
      */
-    public void use(final String path, final Object handler) {
-        handlers.put(path, handler);
+    public synchronized void use(final String path, final Object handler) {
+        dispatchTable = dispatchTable.with(path, handler);
     }
 
     /**
@@ -120,8 +315,8 @@ public class HttpServer {
      *
      * @param handler handler
      */
-    public void use(final Object handler) {
-        handlers.put(null, handler);
+    public synchronized void use(final Object handler) {
+        dispatchTable = dispatchTable.with(null, handler);
     }
 
     /**
@@ -163,9 +358,12 @@ public class HttpServer {
      */
     public void listen(final int port, final CompletionHandler<Void, Void> handler) {
         try {
-            final ExecutorService executorService = Executors.newCachedThreadPool();
-            channelGroup = AsynchronousChannelGroup.withCachedThreadPool(executorService, 1);
+            if(ownsChannelGroup) {
+                channelGroup = AsynchronousChannelGroup.withFixedThreadPool(ioThreads,
+                    new NamedThreadFactory("tini-io", false));
+            }
             final AsynchronousServerSocketChannel server = AsynchronousServerSocketChannel.open(channelGroup);
+            serverChannel = server;
 
             // Listen on an address
             server.bind(new InetSocketAddress(port));
@@ -177,11 +375,17 @@ public class HttpServer {
                     logger.info("Client connected");
                     server.accept(null, this);
 
-                    // Create pipelines and parser
-                    final ServerRequestPipeline requestPipeline = new ServerRequestPipeline(channel, options, handlers,
-                        readTimeout, readTimeoutUnit);
+                    // Create pipelines and parser - both report to one watcher on the shared wheel
+                    final IdleConnectionWatcher watcher = new IdleConnectionWatcher(channel,
+                        TimingWheel.getDefault(), idleTimeoutUnit.toMillis(idleTimeout),
+                        readTimeoutUnit.toMillis(readTimeout), writeTimeoutUnit.toMillis(writeTimeout));
+                    final ServerRequestPipeline requestPipeline = new ServerRequestPipeline(channel, options, dispatchTable,
+                        readTimeout, readTimeoutUnit, watcher, bufferPool, readBufferSize, workers, maxPipelined,
+                        compression);
                     final ServerResponsePipeline responsePipeline = new ServerResponsePipeline(channel,
-                        idleTimeout, idleTimeoutUnit);
+                        watcher, bufferPool, maxPipelined);
+                    responsePipeline.setHoldLimit(holdLimit, spillToDisk);
+                    responsePipeline.setRequestPipeline(requestPipeline);
 
                     // Process requests from the writablesQueue
                     requestPipeline.process(responsePipeline);
@@ -218,8 +422,16 @@ public class HttpServer {
      * @throws IOException thrown in case of I/O errors
      */
     public void shutdown() throws IOException {
-        if(channelGroup != null) {
+        if(serverChannel != null) {
+            serverChannel.close();
+            serverChannel = null;
+        }
+        if(channelGroup != null && ownsChannelGroup) {
             channelGroup.shutdownNow();
+            channelGroup = null;
+        }
+        if(workers != null && ownsWorkers) {
+            workers.shutdownNow();
         }
     }
 }
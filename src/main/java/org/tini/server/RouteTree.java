@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tini.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Radix tree of path templates. Templates are made of literal text, parameters such as {@code
+ * {id}} that match one path segment, and an optional trailing {@code /*} that mounts the template
+ * at a prefix. For example, {@code /users/{id}/orders} and {@code /static/*}.</p>
+ *
+ * <p>Literal text is stored in edges with shared prefixes collapsed, and children are picked by
+ * their first character, so that a lookup walks the path once regardless of how many templates
+ * there are. Literal text wins over parameters, and parameters win over mounts. The remainder of
+ * the path below a mount is available as the parameter {@code *}.</p>
+ *
+ * <p>Built once, and read-only after - see {@link DispatchTable}.</p>
+ *
+ * @author Subbu Allamaraju
+ */
+final class RouteTree<T> {
+
+    // Name of the parameter that holds the path below a mount
+    static final String REMAINDER = "*";
+
+    private final Node<T> root = new Node<T>("");
+
+    // Most parameters in any template
+    private int maxParams = 0;
+
+    /**
+     * Adds a template. A later template replaces an earlier one that is the same but for the
+     * names of its parameters.
+     *
+     * @param template template
+     * @param value    value to find for paths matching the template
+     * @throws IllegalArgumentException if the template is malformed
+     */
+    void add(final String template, final T value) {
+        final boolean mount = template.endsWith("/*");
+        final String path = mount ? template.substring(0, template.length() - 2) : template;
+        final List<String> names = new ArrayList<String>(2);
+        Node<T> node = root;
+        int pos = 0;
+        while(pos < path.length()) {
+            if(path.charAt(pos) == '{') {
+                final int close = path.indexOf('}', pos);
+                if(close < 0 || close == pos + 1) {
+                    throw new IllegalArgumentException("Malformed parameter in " + template);
+                }
+                names.add(path.substring(pos + 1, close));
+                if(node.param == null) {
+                    node.param = new Node<T>("");
+                }
+                node = node.param;
+                pos = close + 1;
+            }
+            else {
+                int next = path.indexOf('{', pos);
+                next = next < 0 ? path.length() : next;
+                node = node.addLiteral(path.substring(pos, next));
+                pos = next;
+            }
+        }
+        maxParams = Math.max(maxParams, names.size());
+        final Leaf<T> leaf = new Leaf<T>(value, names.toArray(new String[names.size()]));
+        if(mount) {
+            node.mount = leaf;
+        }
+        else {
+            node.leaf = leaf;
+        }
+    }
+
+    /**
+     * Finds the value for a path.
+     *
+     * @param path   path, without the query
+     * @param params receives parameters
+     * @return value, or null if no template matches
+     */
+    T find(final String path, final Map<String, String> params) {
+        return root.find(path, 0, new String[maxParams], 0, params);
+    }
+
+    private static final class Leaf<T> {
+        private final T value;
+        private final String[] names;
+
+        private Leaf(final T value, final String[] names) {
+            this.value = value;
+            this.names = names;
+        }
+
+        private T match(final String[] values, final Map<String, String> params) {
+            for(int i = 0; i < names.length; i++) {
+                params.put(names[i], values[i]);
+            }
+            return value;
+        }
+    }
+
+    private static final class Node<T> {
+        // Literal text on the edge into this node
+        private String prefix;
+
+        // Literal children, by the first character of their prefixes
+        private char[] firsts = new char[0];
+        private final List<Node<T>> children = new ArrayList<Node<T>>(2);
+
+        // Child for a parameter
+        private Node<T> param;
+
+        // Templates ending here, and mounted here
+        private Leaf<T> leaf;
+        private Leaf<T> mount;
+
+        private Node(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        private int indexOf(final char first) {
+            for(int i = 0; i < firsts.length; i++) {
+                if(firsts[i] == first) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Adds literal text below this node, splitting edges where the text diverges.
+         */
+        private Node<T> addLiteral(final String text) {
+            if(text.isEmpty()) {
+                return this;
+            }
+            final int index = indexOf(text.charAt(0));
+            if(index < 0) {
+                final Node<T> child = new Node<T>(text);
+                firsts = Arrays.copyOf(firsts, firsts.length + 1);
+                firsts[firsts.length - 1] = text.charAt(0);
+                children.add(child);
+                return child;
+            }
+            Node<T> child = children.get(index);
+            int common = 0;
+            final int max = Math.min(text.length(), child.prefix.length());
+            while(common < max && text.charAt(common) == child.prefix.charAt(common)) {
+                common++;
+            }
+            if(common < child.prefix.length()) {
+                // Split the edge
+                final Node<T> split = new Node<T>(child.prefix.substring(0, common));
+                child.prefix = child.prefix.substring(common);
+                split.firsts = new char[] {child.prefix.charAt(0)};
+                split.children.add(child);
+                children.set(index, split);
+                child = split;
+            }
+            return child.addLiteral(text.substring(common));
+        }
+
+        /**
+         * Matches the path from pos, this node's prefix having been matched.
+         */
+        private T find(final String path, final int pos, final String[] values, final int count,
+                       final Map<String, String> params) {
+            if(pos == path.length()) {
+                if(leaf != null) {
+                    return leaf.match(values, params);
+                }
+                if(mount != null) {
+                    params.put(REMAINDER, "");
+                    return mount.match(values, params);
+                }
+                return null;
+            }
+
+            // Literal text first
+            final int index = indexOf(path.charAt(pos));
+            if(index >= 0) {
+                final Node<T> child = children.get(index);
+                if(path.startsWith(child.prefix, pos)) {
+                    final T value = child.find(path, pos + child.prefix.length(), values, count, params);
+                    if(value != null) {
+                        return value;
+                    }
+                }
+            }
+
+            // Then a parameter - one non-empty segment
+            if(param != null && count < values.length) {
+                int end = path.indexOf('/', pos);
+                end = end < 0 ? path.length() : end;
+                if(end > pos) {
+                    values[count] = path.substring(pos, end);
+                    final T value = param.find(path, end, values, count + 1, params);
+                    if(value != null) {
+                        return value;
+                    }
+                }
+            }
+
+            // Then a mount - only at a segment boundary
+            if(mount != null && path.charAt(pos) == '/') {
+                params.put(REMAINDER, path.substring(pos));
+                return mount.match(values, params);
+            }
+            return null;
+        }
+    }
+}
@@ -14,9 +14,12 @@
 
 package org.tini.server;
 
+import org.tini.common.MessageInputStream;
 import org.tini.common.ReadableMessage;
+import org.tini.parser.HttpHeaders;
 import org.tini.parser.RequestLine;
 
+import java.io.InputStream;
 import java.nio.channels.CompletionHandler;
 import java.util.Collections;
 import java.util.List;
@@ -46,6 +49,15 @@ public class ServerRequest extends ReadableMessage {
     // Headers - a copy is kept here to provide convenience accessors
     private Map<String, List<String>> headers = Collections.EMPTY_MAP;
 
+    // Parameters from the path template of the handler
+    private Map<String, String> pathParams = Collections.emptyMap();
+
+    // Blocking view of the body - created on first use
+    private MessageInputStream inputStream;
+
+    // Response to this request - responses of earlier requests may still be pending
+    private ServerResponse response;
+
     /**
      * Creates a request.
      *
@@ -65,6 +77,43 @@ public class ServerRequest extends ReadableMessage {
         this.headers = headers;
     }
 
+    /**
+     * Sets the response to this request - set by the parsing pipeline
+     *
+     * @param response response
+     */
+    void setResponse(final ServerResponse response) {
+        this.response = response;
+    }
+
+    /**
+     * Returns the response to this request
+     *
+     * @return response
+     */
+    ServerResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * Sets path parameters - set when dispatching to a handler
+     *
+     * @param pathParams parameters
+     */
+    void setPathParams(final Map<String, String> pathParams) {
+        this.pathParams = pathParams;
+    }
+
+    /**
+     * Returns true once the app asked for the body as a stream - the stream then takes over
+     * resuming reads.
+     *
+     * @return boolean
+     */
+    boolean hasInputStream() {
+        return inputStream != null;
+    }
+
     /**
      * Returns request line
      *
@@ -76,12 +125,16 @@ public class ServerRequest extends ReadableMessage {
 
     /**
      * <p>Returns the value of the first header with the given name, or <code>null</code> if not
-     * found.</p>
+     * found. Names are matched case-insensitively.</p>
      *
      * @param name name
      * @return value
      */
     public String getHeader(final String name) {
+        if(headers instanceof HttpHeaders) {
+            // Avoids creating a list of values
+            return ((HttpHeaders) headers).getFirst(name);
+        }
         final List<String> val = headers.get(name);
         if(val != null && val.size() > 0) {
             return val.get(0);
@@ -99,4 +152,40 @@ public class ServerRequest extends ReadableMessage {
     public Map<String, List<String>> getHeaders() {
         return Collections.unmodifiableMap(headers);
     }
+
+    /**
+     * <p>Returns the value of a parameter in the path template of the handler - such as {@code
+     * id} for {@code /users/{id}} - or <code>null</code> if there is none. For templates ending
+     * in {@code /*}, the path below the prefix is under {@code *}.</p>
+     *
+     * @param name name
+     * @return value
+     */
+    public String getPathParam(final String name) {
+        return pathParams.get(name);
+    }
+
+    /**
+     * <p>Returns parameters in the path template of the handler.</p>
+     *
+     * @return parameters
+     */
+    public Map<String, String> getPathParams() {
+        return Collections.unmodifiableMap(pathParams);
+    }
+
+    /**
+     * <p>Returns a blocking stream over the request body. This registers data and trailer
+     * handlers, so use either this stream or {@link #onData} - not both. Call this only from
+     * handlers run off the I/O threads - see {@link HttpServer#setWorkers(int, int)} and {@link
+     * HttpServer#setThreadPerRequest()}.</p>
+     *
+     * @return input stream
+     */
+    public InputStream getInputStream() {
+        if(inputStream == null) {
+            inputStream = new MessageInputStream(this);
+        }
+        return inputStream;
+    }
 }
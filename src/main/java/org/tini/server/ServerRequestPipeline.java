@@ -14,21 +14,26 @@
 
 package org.tini.server;
 
+import org.tini.common.BufferPool;
+import org.tini.common.Compression;
+import org.tini.common.IdleConnectionWatcher;
 import org.tini.common.ReadableMessage;
 import org.tini.common.ReadablePipeline;
 import org.tini.common.WritablePipeline;
+import org.tini.parser.HttpHeaders;
 import org.tini.parser.RequestLine;
 import org.tini.parser.RequestParser;
 
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.lang.invoke.MethodHandle;
 import java.net.SocketOption;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -48,27 +53,49 @@ public class ServerRequestPipeline extends ReadablePipeline {
     private final RequestParser parser;
 
     // Handlers
-    private final Map<String, Object> handlers;
+    private final DispatchTable dispatchTable;
+
+    // Runs handlers off I/O threads when not null
+    private final Executor workers;
+
+    // Compression for responses, or null
+    private final Compression compression;
 
     /**
      * Creates a request pipeline.
      *
      * @param channel channel
      * @param options channel options
-     * @param handlers application handlers
+     * @param dispatchTable application handlers
      * @param readTimeout read timeout
      * @param readTimeoutUnit read timeout unit
+     * @param watcher watcher to time reads, or null to time them on the channel
+     * @param bufferPool pool to lease read buffers from
+     * @param readBufferSize size of each read
+     * @param workers executor for handlers, or null to run them on I/O threads
+     * @param maxPipelined most requests read ahead of their responses
+     * @param compression compression for responses, or null
      */
     ServerRequestPipeline(final AsynchronousSocketChannel channel,
                           final Map<SocketOption, Object> options,
-                          final Map<String, Object> handlers,
+                          final DispatchTable dispatchTable,
                           final long readTimeout,
-                          final TimeUnit readTimeoutUnit) {
+                          final TimeUnit readTimeoutUnit,
+                          final IdleConnectionWatcher watcher,
+                          final BufferPool bufferPool,
+                          final int readBufferSize,
+                          final Executor workers,
+                          final int maxPipelined,
+                          final Compression compression) {
 
-        super(channel);
-        this.handlers = handlers;
+        super(channel, maxPipelined);
+        this.dispatchTable = dispatchTable;
+        this.workers = workers;
+        this.compression = compression;
 
-        parser = new RequestParser(channel, readTimeout, readTimeoutUnit);
+        parser = new RequestParser(channel, readTimeout, readTimeoutUnit, bufferPool, readBufferSize);
+        parser.setWatcher(watcher);
+        setParser(parser);
         try {
             for(final SocketOption option : options.keySet()) {
                 channel.setOption(option, options.get(option));
@@ -97,14 +124,11 @@ public class ServerRequestPipeline extends ReadablePipeline {
             public void completed(final RequestLine requestLine, final Void attachment) {
                 final ServerRequest request = new ServerRequest(requestLine);
                 final ServerResponse response = new ServerResponse(writablePipeline, request);
-                try {
-                    push(request);
-                    writablePipeline.push(response);
-                }
-                catch(InterruptedException ie) {
-                    // TODO
-                    ie.printStackTrace();
-                }
+                response.setCompression(compression);
+                request.setResponse(response);
+                // Never full - reading pauses once the response pipeline is
+                push(request);
+                writablePipeline.push(response);
             }
 
             @Override
@@ -118,21 +142,30 @@ public class ServerRequestPipeline extends ReadablePipeline {
             public void completed(final Map<String, List<String>> result, final Void attachment) {
                 final ServerRequest request = (ServerRequest) peek();
                 request.setHeaders(result);
-                final ServerResponse response = (ServerResponse) writablePipeline.peek();
-                if("close".equals(request.getHeader("connection"))) {
+                // Not the head of the response pipeline - earlier responses may not have ended
+                final ServerResponse response = request.getResponse();
+                if("close".equals(request.getHeader(HttpHeaders.CONNECTION))) {
                     writablePipeline.closeWhenDone();
                 }
 
                 // Invoke the app
-                invokeApp(request, response);
+                if(workers == null) {
+                    invokeApp(request, response);
+                }
+                else {
+                    dispatch(request, response);
+                }
             }
 
             @Override
             public void failed(final Throwable exc, final Void attachment) {
-                final ServerResponse response = (ServerResponse) writablePipeline.poll();
                 logger.log(Level.SEVERE, exc.getMessage(), exc);
-                response.setStatus(500, "Internal Server Error");
-                response.end();
+                final ServerRequest request = (ServerRequest) peek();
+                if(request != null) {
+                    final ServerResponse response = request.getResponse();
+                    response.setStatus(500, "Internal Server Error");
+                    response.end();
+                }
             }
         });
 
@@ -176,75 +209,71 @@ public class ServerRequestPipeline extends ReadablePipeline {
     }
 
     /**
-     * Find and invoke the app. If an app handler is not found, return 404.
+     * Invoke the app on a worker thread. Reading stops till the handler returns, or asks for the
+     * body as a stream, so that the body is not parsed before the handler registers to receive it.
      *
      * @param httpRequest request
      * @param httpResponse response
      */
-    private void invokeApp(final ServerRequest httpRequest, final ServerResponse httpResponse) {
-        final String methodName = httpRequest.getRequestLine().getMethod();
-        final Class methodAnnotation;
+    private void dispatch(final ServerRequest httpRequest, final ServerResponse httpResponse) {
+        pause();
         try {
-            methodAnnotation = Class.forName("javax.ws.rs." + methodName.toUpperCase());
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        invokeApp(httpRequest, httpResponse);
+                    }
+                    finally {
+                        // A body stream resumed reading already - reads may have moved on to the
+                        // next request, which may be paused for its own handler
+                        if(!httpRequest.hasInputStream()) {
+                            resume();
+                        }
+                    }
+                }
+            });
         }
-        catch(ClassNotFoundException cnfe) {
-            logger.log(Level.SEVERE, "Unable to find annotation for method [" + methodName + "]", cnfe);
-            httpResponse.setStatus(500, "Internal Server Error");
+        catch(RejectedExecutionException ree) {
+            logger.warning("Workers busy - rejecting " + httpRequest.getRequestLine().getUri());
+            resume();
+            httpResponse.setStatus(503, "Service Unavailable");
             httpResponse.end();
-            return;
         }
+    }
 
-        // TODO: Rails style matching
-
+    /**
+     * Find and invoke the app. If an app handler is not found, return 404.
+     *
+     * @param httpRequest request
+     * @param httpResponse response
+     */
+    private void invokeApp(final ServerRequest httpRequest, final ServerResponse httpResponse) {
         // Dispatch
-        Object handler = handlers.get(httpRequest.getRequestLine().getUri());
-        handler = handler == null ? handlers.get(null) : handler;
-
-        if(null == handler) {
-            logger.warning("Handler for " + httpRequest.getRequestLine().getUri() + " not found");
+        final RequestLine requestLine = httpRequest.getRequestLine();
+        final DispatchTable.Match match = dispatchTable.match(requestLine.getUri());
+        if(match == null) {
+            logger.warning("Handler for " + requestLine.getUri() + " not found");
             httpResponse.setStatus(404, "Not Found");
+            httpResponse.end();
             return;
         }
-        final Method[] methods = handler.getClass().getMethods();
-        Method hMethod = null;
-        Method fallback = null;
-        for(final Method method : methods) {
-            if(method.getAnnotation(methodAnnotation) != null) {
-                hMethod = method;
-                break;
-            }
-            else if(method.getName().equals("service")) {
-                fallback = method;
-            }
-        }
-        if(hMethod == null && fallback != null) {
-            hMethod = fallback;
+        final MethodHandle invoker = match.find(requestLine.getMethod());
+        if(invoker == null) {
+            logger.warning("No handler for method " + requestLine.getMethod() + " found");
+            httpResponse.setStatus(405, "Method Not Allowed");
+            httpResponse.addHeader(HttpHeaders.ALLOW, match.getAllowed());
+            httpResponse.end();
+            return;
         }
-        if(hMethod != null) {
-            hMethod.setAccessible(true);
-            try {
-                hMethod.invoke(handler, httpRequest, httpResponse);
-            }
-            catch(IllegalAccessException iae) {
-                logger.log(Level.SEVERE, iae.getMessage(), iae);
-                httpResponse.setStatus(500, "Internal Server Error");
-                httpResponse.end();
-            }
-            catch(InvocationTargetException ite) {
-                logger.log(Level.SEVERE, ite.getMessage(), ite);
-                httpResponse.setStatus(500, "Internal Server Error");
-                httpResponse.end();
-            }
-            catch(Throwable t) {
-                // Catch-all
-                logger.log(Level.WARNING, t.getMessage(), t);
-                httpResponse.setStatus(500, "Internal Server Error");
-                httpResponse.end();
-            }
+        httpRequest.setPathParams(match.getParams());
+        try {
+            invoker.invokeExact(httpRequest, httpResponse);
         }
-        else {
-            logger.warning("No handler for method " + httpRequest.getRequestLine().getMethod() + " found");
-            httpResponse.setStatus(405, "Method Not Allowed");
+        catch(Throwable t) {
+            // Catch-all
+            logger.log(Level.WARNING, t.getMessage(), t);
+            httpResponse.setStatus(500, "Internal Server Error");
             httpResponse.end();
         }
     }
@@ -14,19 +14,17 @@
 
 package org.tini.server;
 
+import org.tini.common.MessageOutputStream;
 import org.tini.common.WritableMessage;
 import org.tini.common.WritablePipeline;
-import org.tini.parser.HttpCodecUtil;
+import org.tini.parser.HeadEncoder;
+import org.tini.parser.HttpDate;
+import org.tini.parser.HttpHeaders;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-
-import java.util.TimeZone;
+import java.nio.file.Path;
 
 /**
  * HTTP 1.1 response
@@ -45,11 +43,10 @@ public class ServerResponse extends WritableMessage {
     private final ServerRequest request;
 
     // Format for the Date header
-    public final static String HTTP_DATE_PATTERN = "EEE, dd MMM yyyyy HH:mm:ss z";
-    static final DateFormat httpDateFormat = new SimpleDateFormat(HTTP_DATE_PATTERN, Locale.US);
-    static {
-        httpDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
+    public final static String HTTP_DATE_PATTERN = HttpDate.PATTERN;
+
+    // Blocking view of the body - created on first use
+    private MessageOutputStream outputStream;
 
     /**
      * Creates a response.
@@ -60,8 +57,8 @@ public class ServerResponse extends WritableMessage {
     protected ServerResponse(final WritablePipeline sink,
                              final ServerRequest request) {
         super(sink);
-        this.headers.put("Server", "tini/1.0");
-        this.headers.put("Date", httpDateFormat.format(new Date()));
+        this.headers.put(HttpHeaders.SERVER, "tini/1.0");
+        this.headers.put(HttpHeaders.DATE, HttpDate.current());
         this.request = request;
     }
 
@@ -86,17 +83,85 @@ public class ServerResponse extends WritableMessage {
     }
 
     /**
-     * Write the first line
+     * <p>Returns a blocking stream over the response body. Writes wait while the connection is
+     * backed up, and closing the stream ends the response. Call this only from handlers run off
+     * the I/O threads.</p>
+     *
+     * @return output stream
+     */
+    public OutputStream getOutputStream() {
+        if(outputStream == null) {
+            outputStream = new MessageOutputStream(this);
+        }
+        return outputStream;
+    }
+
+    /**
+     * <p>Sends a file as the body, and ends the response. Conditional requests get {@code 304 Not
+     * Modified} when the client's copy is current, by {@code ETag} or {@code Last-Modified}, and
+     * a single byte range gets {@code 206 Partial Content}, unless {@code If-Range} names another
+     * version. Missing files get {@code 404}.</p>
+     *
+     * <p>The file is read in large pooled buffers while the last read is being written, and
+     * written without copying.</p>
+     *
+     * @param path file
+     */
+    public void sendFile(final Path path) {
+        FileSender.send(request, this, path);
+    }
+
+    /**
+     * <p>Sends {@code length} bytes of a file from {@code offset} as the body, with a {@code
+     * Content-Length}, and ends the response. The status and other headers are left to the
+     * caller.</p>
+     *
+     * @param path   file
+     * @param offset offset in the file
+     * @param length number of bytes
+     */
+    public void sendFile(final Path path, final long offset, final long length) {
+        FileSender.send(this, path, offset, length);
+    }
+
+    /**
+     * Returns the {@code Accept-Encoding} of the request.
+     *
+     * @return value or null
+     */
+    @Override
+    protected String getAcceptEncoding() {
+        return request == null ? null : request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+    }
+
+    /**
+     * Returns true if the header has been added.
+     *
+     * @param name name
+     * @return boolean
+     */
+    boolean hasHeader(final String name) {
+        return headers.containsKey(name.toLowerCase());
+    }
+
+    /**
+     * Returns the length of the status line
+     *
+     * @return length
+     */
+    @Override
+    protected int firstLineLength() {
+        return HeadEncoder.statusLineLength(status, message);
+    }
+
+    /**
+     * Write the first line - pre-encoded for standard status codes and messages
      *
-     * @param baos array to write to
-     * @throws IOException
+     * @param buffer buffer to write to
      */
-    protected void writeFirstLine(final ByteArrayOutputStream baos) throws IOException {
-        baos.write("HTTP/1.1".getBytes(US_ASCII));
-        baos.write(HttpCodecUtil.SP);
-        baos.write(String.valueOf(this.status).getBytes(US_ASCII));
-        baos.write(HttpCodecUtil.SP);
-        baos.write(this.message.getBytes(US_ASCII));
+    @Override
+    protected void writeFirstLine(final ByteBuffer buffer) {
+        HeadEncoder.putStatusLine(buffer, status, message);
     }
 
     /**
@@ -107,14 +172,14 @@ public class ServerResponse extends WritableMessage {
     protected boolean doClose() {
         boolean close = false;
         if(request != null) {
-            final String val = request.getHeader("connection");
+            final String val = request.getHeader(HttpHeaders.CONNECTION);
             close = "close".equalsIgnoreCase(val);
         }
-        if(!close && !headers.containsKey("connection")) {
-            headers.put("connection", "keep-alive");
+        if(!close && !headers.containsKey(HttpHeaders.CONNECTION)) {
+            headers.put(HttpHeaders.CONNECTION, "keep-alive");
         }
         else if(close) {
-            headers.put("connection", "close");
+            headers.put(HttpHeaders.CONNECTION, "close");
         }
         return close;
     }
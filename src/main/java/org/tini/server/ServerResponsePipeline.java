@@ -14,11 +14,11 @@
 
 package org.tini.server;
 
+import org.tini.common.BufferPool;
 import org.tini.common.IdleConnectionWatcher;
 import org.tini.common.WritablePipeline;
 
 import java.nio.channels.AsynchronousSocketChannel;
-import java.util.concurrent.TimeUnit;
 
 /**
  * @author Subbu Allamaraju
@@ -28,18 +28,78 @@ public class ServerResponsePipeline extends WritablePipeline {
     // Watch for idle connections
     private final IdleConnectionWatcher idleWatcher;
 
+    // Paused while too many response bytes are held, or too many responses are pending
+    private ServerRequestPipeline requestPipeline;
+    private int pauses = 0;
+
     /**
      * Creates a response pipeline.
      *
      * @param channel channel
-     * @param idleTimeout idle timeout
-     * @param idleTimeoutUnit idle timeout unit
+     * @param idleWatcher watcher to report writes to
+     * @param bufferPool pool for buffers written to the channel
+     * @param maxPipelined most requests read ahead of their responses
      */
     protected ServerResponsePipeline(final AsynchronousSocketChannel channel,
-                                  final long idleTimeout,
-                                  final TimeUnit idleTimeoutUnit) {
-        super(channel);
-        idleWatcher = new IdleConnectionWatcher(channel, idleTimeoutUnit.toMillis(idleTimeout));
+                                  final IdleConnectionWatcher idleWatcher,
+                                  final BufferPool bufferPool,
+                                  final int maxPipelined) {
+        super(channel, bufferPool, maxPipelined);
+        this.idleWatcher = idleWatcher;
+    }
+
+    /**
+     * Sets the request pipeline to pause while held responses are over the limit.
+     *
+     * @param requestPipeline request pipeline
+     */
+    void setRequestPipeline(final ServerRequestPipeline requestPipeline) {
+        this.requestPipeline = requestPipeline;
+    }
+
+    /**
+     * Stop reading new requests
+     */
+    @Override
+    protected void holdLimitExceeded() {
+        pauseReading();
+    }
+
+    /**
+     * Read new requests again
+     */
+    @Override
+    protected void holdLimitCleared() {
+        resumeReading();
+    }
+
+    /**
+     * Stop reading new requests
+     */
+    @Override
+    protected void pipelineFull() {
+        pauseReading();
+    }
+
+    /**
+     * Read new requests again
+     */
+    @Override
+    protected void pipelineDrained() {
+        resumeReading();
+    }
+
+    // Reading resumes once every reason to pause has cleared
+    private synchronized void pauseReading() {
+        if(pauses++ == 0 && requestPipeline != null) {
+            requestPipeline.pause();
+        }
+    }
+
+    private synchronized void resumeReading() {
+        if(--pauses == 0 && requestPipeline != null) {
+            requestPipeline.resume();
+        }
     }
 
     /**
@@ -263,4 +263,126 @@ public class AsyncClientTest {
             assertEquals(0, lock.getCount());
         }
     }
+
+    @Test
+    public void testGetGatheringWrites() {
+        if("Darwin".equals(System.getProperty("os.name"))) {
+            // Not supported on windows
+            return;
+        }
+
+        // Large enough to be written from the caller's buffers rather than copied
+        final int chunks = 4;
+        final int chunkSize = 32 * 1024;
+        final CountDownLatch lock = new CountDownLatch(3);
+        final HttpServer server = HttpServer.createServer();
+        server.use("/",
+            new Object() {
+                @GET
+                public void get(final ServerRequest request, final ServerResponse response) {
+                    response.setContentType("application/octet-stream");
+                    writeChunk(response, 0);
+                }
+
+                private void writeChunk(final ServerResponse response, final int i) {
+                    if(i == chunks) {
+                        response.end();
+                        return;
+                    }
+                    final ByteBuffer buffer = ByteBuffer.allocateDirect(chunkSize);
+                    while(buffer.hasRemaining()) {
+                        buffer.put((byte) (i + buffer.position() % 7));
+                    }
+                    buffer.flip();
+                    response.write(buffer, new CompletionHandler<Integer, Void>() {
+                        @Override
+                        public void completed(final Integer result, final Void attachment) {
+                            writeChunk(response, i + 1);
+                        }
+
+                        @Override
+                        public void failed(final Throwable exc, final Void attachment) {
+                            fail();
+                        }
+                    });
+                }
+            });
+        server.listen(3000, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(final Void result, final Void attachment) {
+                lock.countDown();
+
+                final ClientConnection client = new ClientConnection();
+                client.connect("localhost", 3000, new CompletionHandler<Void, Void>() {
+                    @Override
+                    public void completed(final Void result, final Void attachment) {
+                        final ClientRequest request = client.request("/", "GET");
+                        request.onResponse(new CompletionHandler<ClientResponse, Void>() {
+                            @Override
+                            public void completed(final ClientResponse response, final Void attachment) {
+                                final long[] received = new long[1];
+                                response.onData(new CompletionHandler<ByteBuffer, Void>() {
+                                    @Override
+                                    public void completed(final ByteBuffer result, final Void attachment) {
+                                        if(result.hasRemaining()) {
+                                            while(result.hasRemaining()) {
+                                                final long offset = received[0]++;
+                                                final int i = (int) (offset / chunkSize);
+                                                assertEquals((byte) (i + (offset % chunkSize) % 7), result.get());
+                                            }
+                                        }
+                                        else {
+                                            assertEquals(chunks * chunkSize, received[0]);
+                                            lock.countDown();
+                                        }
+                                    }
+
+                                    @Override
+                                    public void failed(final Throwable exc, final Void attachment) {
+                                        fail();
+                                    }
+                                });
+                            }
+
+                            @Override
+                            public void failed(final Throwable exc, final Void attachment) {
+                                fail();
+                            }
+                        });
+
+                        request.addHeader("Host", "localhost");
+                        request.writeHead();
+                        request.end();
+
+                        lock.countDown();
+                    }
+
+                    @Override
+                    public void failed(final Throwable exc, final Void attachment) {
+                        fail();
+                    }
+                });
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                fail();
+            }
+        });
+        try {
+            lock.await(10, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException ie) {
+            fail("Pending tests");
+        }
+        finally {
+            try {
+                server.shutdown();
+            }
+            catch(IOException ioe) {
+                fail();
+            }
+            assertEquals(0, lock.getCount());
+        }
+    }
 }
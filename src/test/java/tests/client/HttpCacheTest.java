@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tests.client;
+
+import org.junit.Test;
+import org.tini.client.ClientResponse;
+import org.tini.client.HttpCache;
+import org.tini.client.HttpClient;
+import org.tini.client.MemoryCacheStore;
+import org.tini.common.SizeClassBufferPool;
+import org.tini.server.HttpServer;
+import org.tini.server.ServerRequest;
+import org.tini.server.ServerResponse;
+
+import javax.ws.rs.GET;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Subbu Allamaraju
+ */
+public class HttpCacheTest {
+
+    private final AtomicInteger originRequests = new AtomicInteger();
+
+    @Test
+    public void testHitAndRevalidate() throws Exception {
+        if("Darwin".equals(System.getProperty("os.name"))) {
+            // Not supported on windows
+            return;
+        }
+
+        final HttpServer server = startServer(0);
+        final HttpClient client = new HttpClient(1, new SizeClassBufferPool(), 4, 30, TimeUnit.SECONDS);
+        final HttpCache cache = new HttpCache(client, new MemoryCacheStore(1024 * 1024));
+        try {
+            final Map<String, List<String>> none = Collections.emptyMap();
+            assertEquals("hello", get(cache, none));
+            assertEquals(1, originRequests.get());
+
+            // Fresh - no request to the origin
+            assertEquals("hello", get(cache, none));
+            assertEquals(1, originRequests.get());
+            assertEquals(1, cache.getHitCount());
+
+            // The origin confirms the stored response
+            final Map<String, List<String>> noCache = Collections.singletonMap("cache-control",
+                Collections.singletonList("no-cache"));
+            assertEquals("hello", get(cache, noCache));
+            assertEquals(2, originRequests.get());
+            assertEquals(1, cache.getRevalidationCount());
+        }
+        finally {
+            client.shutdown();
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentMisses() throws Exception {
+        if("Darwin".equals(System.getProperty("os.name"))) {
+            // Not supported on windows
+            return;
+        }
+
+        final HttpServer server = startServer(200);
+        final HttpClient client = new HttpClient(1, new SizeClassBufferPool(), 4, 30, TimeUnit.SECONDS);
+        final HttpCache cache = new HttpCache(client, new MemoryCacheStore(1024 * 1024));
+        try {
+            final int count = 5;
+            final CountDownLatch lock = new CountDownLatch(count);
+            final ConcurrentLinkedQueue<String> bodies = new ConcurrentLinkedQueue<String>();
+            for(int i = 0; i < count; i++) {
+                send(cache, Collections.<String, List<String>>emptyMap(), bodies, lock);
+            }
+            assertTrue(lock.await(5, TimeUnit.SECONDS));
+            assertEquals(count, bodies.size());
+            for(final String body : bodies) {
+                assertEquals("hello", body);
+            }
+            assertEquals(1, originRequests.get());
+        }
+        finally {
+            client.shutdown();
+            server.shutdown();
+        }
+    }
+
+    private HttpServer startServer(final long delayMillis) throws InterruptedException {
+        final HttpServer server = HttpServer.createServer();
+        server.use("/",
+            new Object() {
+                @GET
+                public void get(final ServerRequest request, final ServerResponse response) {
+                    originRequests.incrementAndGet();
+                    response.addHeader("Cache-Control", "max-age=60");
+                    response.addHeader("ETag", "\"v1\"");
+                    final List<String> etags = request.getHeaders().get("if-none-match");
+                    if(etags != null && etags.contains("\"v1\"")) {
+                        response.setStatus(304, "Not Modified");
+                        response.end();
+                        return;
+                    }
+                    response.setContentType("text/plain");
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                Thread.sleep(delayMillis);
+                            }
+                            catch(InterruptedException ie) {
+                                Thread.currentThread().interrupt();
+                            }
+                            response.write("hello".getBytes(Charset.forName("UTF-8")));
+                            response.end();
+                        }
+                    }.start();
+                }
+            });
+        final CountDownLatch started = new CountDownLatch(1);
+        server.listen(3000, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(final Void result, final Void attachment) {
+                started.countDown();
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                fail();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return server;
+    }
+
+    private static String get(final HttpCache cache, final Map<String, List<String>> headers) throws InterruptedException {
+        final CountDownLatch lock = new CountDownLatch(1);
+        final ConcurrentLinkedQueue<String> bodies = new ConcurrentLinkedQueue<String>();
+        send(cache, headers, bodies, lock);
+        assertTrue(lock.await(5, TimeUnit.SECONDS));
+        return bodies.poll();
+    }
+
+    private static void send(final HttpCache cache, final Map<String, List<String>> headers,
+                             final ConcurrentLinkedQueue<String> bodies, final CountDownLatch lock) {
+        cache.send("localhost", 3000, "GET", "/", headers, new CompletionHandler<ClientResponse, Void>() {
+            @Override
+            public void completed(final ClientResponse response, final Void attachment) {
+                final StringBuilder body = new StringBuilder();
+                response.onData(new CompletionHandler<ByteBuffer, Void>() {
+                    @Override
+                    public void completed(final ByteBuffer result, final Void attachment) {
+                        body.append(Charset.forName("UTF-8").decode(result));
+                    }
+
+                    @Override
+                    public void failed(final Throwable exc, final Void attachment) {
+                        fail();
+                    }
+                });
+                response.onTrailers(new CompletionHandler<Map<String, List<String>>, Void>() {
+                    @Override
+                    public void completed(final Map<String, List<String>> result, final Void attachment) {
+                        bodies.add(body.toString());
+                        lock.countDown();
+                    }
+
+                    @Override
+                    public void failed(final Throwable exc, final Void attachment) {
+                        fail();
+                    }
+                });
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                fail();
+            }
+        });
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tests.client;
+
+import org.junit.Test;
+import org.tini.client.ClientConnection;
+import org.tini.client.ClientRequest;
+import org.tini.client.ClientResponse;
+import org.tini.client.HttpClient;
+import org.tini.common.SizeClassBufferPool;
+import org.tini.server.HttpServer;
+import org.tini.server.ServerRequest;
+import org.tini.server.ServerResponse;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.HEAD;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Subbu Allamaraju
+ */
+public class HttpClientTest {
+
+    @Test
+    public void testReuse() throws Exception {
+        if("Darwin".equals(System.getProperty("os.name"))) {
+            // Not supported on windows
+            return;
+        }
+
+        final HttpServer server = startServer();
+        final HttpClient client = new HttpClient(1, new SizeClassBufferPool(), 1, 30, TimeUnit.SECONDS);
+        try {
+            final ClientConnection first = get(client);
+            assertEquals(1, client.getOpenCount("localhost", 3000));
+            assertEquals(1, client.getIdleCount("localhost", 3000));
+
+            // Same connection again
+            final ClientConnection second = get(client);
+            assertSame(first, second);
+            assertEquals(1, client.getOpenCount("localhost", 3000));
+        }
+        finally {
+            client.shutdown();
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testMaxPerHost() throws Exception {
+        if("Darwin".equals(System.getProperty("os.name"))) {
+            // Not supported on windows
+            return;
+        }
+
+        final HttpServer server = startServer();
+        final HttpClient client = new HttpClient(1, new SizeClassBufferPool(), 1, 30, TimeUnit.SECONDS);
+        try {
+            final AtomicReference<ClientConnection> first = new AtomicReference<ClientConnection>();
+            final CountDownLatch connected = new CountDownLatch(1);
+            client.connect("localhost", 3000, new Handler() {
+                @Override
+                public void completed(final ClientConnection result, final Void attachment) {
+                    first.set(result);
+                    connected.countDown();
+                }
+            });
+            assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+            // Waits for the first to be released
+            final CountDownLatch waited = new CountDownLatch(1);
+            final AtomicReference<ClientConnection> second = new AtomicReference<ClientConnection>();
+            client.connect("localhost", 3000, new Handler() {
+                @Override
+                public void completed(final ClientConnection result, final Void attachment) {
+                    second.set(result);
+                    waited.countDown();
+                }
+            });
+            assertEquals(false, waited.await(200, TimeUnit.MILLISECONDS));
+            client.release(first.get());
+            assertTrue(waited.await(5, TimeUnit.SECONDS));
+            assertSame(first.get(), second.get());
+            assertEquals(1, client.getOpenCount("localhost", 3000));
+        }
+        finally {
+            client.shutdown();
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testServerClosesIdle() throws Exception {
+        if("Darwin".equals(System.getProperty("os.name"))) {
+            // Not supported on windows
+            return;
+        }
+
+        final HttpServer server = startServer(300);
+        final HttpClient client = new HttpClient(1, new SizeClassBufferPool(), 1, 30, TimeUnit.SECONDS);
+        try {
+            final ClientConnection first = get(client);
+            assertEquals(1, client.getIdleCount("localhost", 3000));
+
+            // The server closes the idle connection - the client notices and does not reuse it
+            Thread.sleep(1000);
+            final CountDownLatch lock = new CountDownLatch(1);
+            final AtomicReference<Integer> status = new AtomicReference<Integer>();
+            client.send("localhost", 3000, "GET", "/", null, null, new CompletionHandler<ClientResponse, Void>() {
+                @Override
+                public void completed(final ClientResponse response, final Void attachment) {
+                    status.set(response.getResponseLine().getCode());
+                    lock.countDown();
+                }
+
+                @Override
+                public void failed(final Throwable exc, final Void attachment) {
+                    lock.countDown();
+                }
+            });
+            assertTrue(lock.await(5, TimeUnit.SECONDS));
+            assertEquals(200, (int) status.get());
+
+            final ClientConnection second = get(client);
+            assertNotSame(first, second);
+            assertEquals(1, client.getOpenCount("localhost", 3000));
+        }
+        finally {
+            client.shutdown();
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testResponsesWithoutBody() throws Exception {
+        if("Darwin".equals(System.getProperty("os.name"))) {
+            // Not supported on windows
+            return;
+        }
+
+        final HttpServer server = HttpServer.createServer();
+        server.use("/",
+            new Object() {
+                @GET
+                public void get(final ServerRequest request, final ServerResponse response) {
+                    if(request.getHeader("if-none-match") != null) {
+                        // A length but no body
+                        response.setStatus(304, "Not Modified");
+                        response.addHeader("Content-Length", "5");
+                        response.end();
+                        return;
+                    }
+                    response.setContentType("text/plain");
+                    response.write("hello");
+                    response.end();
+                }
+
+                @HEAD
+                public void head(final ServerRequest request, final ServerResponse response) {
+                    response.setContentType("text/plain");
+                    response.addHeader("Content-Length", "5");
+                    response.end();
+                }
+            });
+        listen(server);
+        final HttpClient client = new HttpClient(1, new SizeClassBufferPool(), 1, 30, TimeUnit.SECONDS);
+        try {
+            final Map<String, List<String>> conditional = Collections.singletonMap("if-none-match",
+                Collections.singletonList("\"v1\""));
+
+            // All on one pooled connection - a body read where there is none would stall the rest
+            assertEquals("200 ", send(client, "HEAD", null));
+            assertEquals("304 ", send(client, "GET", conditional));
+            assertEquals("200 hello", send(client, "GET", null));
+            assertEquals(1, client.getOpenCount("localhost", 3000));
+        }
+        finally {
+            client.shutdown();
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Sends a request for "/", and returns the status and body.
+     */
+    private static String send(final HttpClient client, final String method,
+                               final Map<String, List<String>> headers) throws InterruptedException {
+        final CountDownLatch lock = new CountDownLatch(1);
+        final StringBuilder result = new StringBuilder();
+        client.send("localhost", 3000, method, "/", headers, null, new CompletionHandler<ClientResponse, Void>() {
+            @Override
+            public void completed(final ClientResponse response, final Void attachment) {
+                result.append(response.getResponseLine().getCode()).append(' ');
+                response.onData(new CompletionHandler<ByteBuffer, Void>() {
+                    @Override
+                    public void completed(final ByteBuffer data, final Void attachment) {
+                        result.append(Charset.forName("UTF-8").decode(data));
+                    }
+
+                    @Override
+                    public void failed(final Throwable exc, final Void attachment) {
+                        fail();
+                    }
+                });
+                response.onTrailers(new CompletionHandler<Map<String, List<String>>, Void>() {
+                    @Override
+                    public void completed(final Map<String, List<String>> trailers, final Void attachment) {
+                        lock.countDown();
+                    }
+
+                    @Override
+                    public void failed(final Throwable exc, final Void attachment) {
+                        fail();
+                    }
+                });
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                fail();
+            }
+        });
+        assertTrue(lock.await(5, TimeUnit.SECONDS));
+        return result.toString();
+    }
+
+    private static HttpServer startServer() throws InterruptedException {
+        return startServer(60000);
+    }
+
+    private static HttpServer startServer(final long idleTimeoutMillis) throws InterruptedException {
+        final HttpServer server = HttpServer.createServer();
+        server.setIdleTimeout(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        server.use("/",
+            new Object() {
+                @GET
+                public void get(final ServerRequest request, final ServerResponse response) {
+                    response.setContentType("text/plain");
+                    response.write("hello");
+                    response.end();
+                }
+            });
+        listen(server);
+        return server;
+    }
+
+    private static void listen(final HttpServer server) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        server.listen(3000, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(final Void result, final Void attachment) {
+                started.countDown();
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                fail();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Gets "/" on a pooled connection, releases it, and returns it.
+     */
+    private static ClientConnection get(final HttpClient client) throws InterruptedException {
+        final CountDownLatch lock = new CountDownLatch(1);
+        final AtomicReference<ClientConnection> used = new AtomicReference<ClientConnection>();
+        client.connect("localhost", 3000, new Handler() {
+            @Override
+            public void completed(final ClientConnection connection, final Void attachment) {
+                used.set(connection);
+                final ClientRequest request = connection.request("/", "GET");
+                request.onResponse(new CompletionHandler<ClientResponse, Void>() {
+                    @Override
+                    public void completed(final ClientResponse response, final Void attachment) {
+                        response.onTrailers(new CompletionHandler<Map<String, List<String>>, Void>() {
+                            @Override
+                            public void completed(final Map<String, List<String>> result, final Void attachment) {
+                                client.release(connection);
+                                lock.countDown();
+                            }
+
+                            @Override
+                            public void failed(final Throwable exc, final Void attachment) {
+                                fail();
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void failed(final Throwable exc, final Void attachment) {
+                        fail();
+                    }
+                });
+                request.writeHead();
+                request.end();
+            }
+        });
+        assertTrue(lock.await(5, TimeUnit.SECONDS));
+        return used.get();
+    }
+
+    private abstract static class Handler implements CompletionHandler<ClientConnection, Void> {
+        @Override
+        public void failed(final Throwable exc, final Void attachment) {
+            fail();
+        }
+    }
+}
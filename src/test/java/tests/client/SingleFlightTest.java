@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tests.client;
+
+import org.junit.Test;
+import org.tini.client.ClientResponse;
+import org.tini.client.HttpClient;
+import org.tini.client.SingleFlight;
+import org.tini.common.SizeClassBufferPool;
+import org.tini.server.HttpServer;
+import org.tini.server.ServerRequest;
+import org.tini.server.ServerResponse;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.HEAD;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Subbu Allamaraju
+ */
+public class SingleFlightTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final AtomicInteger originRequests = new AtomicInteger();
+
+    @Test
+    public void testCoalesce() throws Exception {
+        if("Darwin".equals(System.getProperty("os.name"))) {
+            // Not supported on windows
+            return;
+        }
+
+        final HttpServer server = startServer();
+        final HttpClient client = new HttpClient(1, new SizeClassBufferPool(), 4, 30, TimeUnit.SECONDS);
+        final SingleFlight flights = new SingleFlight(client);
+        try {
+            final int count = 5;
+            final CountDownLatch lock = new CountDownLatch(count);
+            final ConcurrentLinkedQueue<String> bodies = new ConcurrentLinkedQueue<String>();
+            for(int i = 0; i < count; i++) {
+                send(flights, "GET", bodies, lock, null);
+            }
+            assertTrue(lock.await(5, TimeUnit.SECONDS));
+            assertEquals(count, bodies.size());
+            for(final String body : bodies) {
+                assertEquals("hello world", body);
+            }
+            assertEquals(1, originRequests.get());
+            assertEquals(count - 1, flights.getCoalescedCount());
+            assertEquals(0, flights.getFlightCount());
+        }
+        finally {
+            client.shutdown();
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testPausedSubscriber() throws Exception {
+        if("Darwin".equals(System.getProperty("os.name"))) {
+            // Not supported on windows
+            return;
+        }
+
+        final HttpServer server = startServer();
+        final HttpClient client = new HttpClient(1, new SizeClassBufferPool(), 4, 30, TimeUnit.SECONDS);
+        final SingleFlight flights = new SingleFlight(client);
+        try {
+            final ConcurrentLinkedQueue<String> bodies = new ConcurrentLinkedQueue<String>();
+            final CountDownLatch slowDone = new CountDownLatch(1);
+            final AtomicReference<ClientResponse> slow = new AtomicReference<ClientResponse>();
+            send(flights, "GET", bodies, slowDone, slow);
+            final CountDownLatch fastDone = new CountDownLatch(1);
+            send(flights, "GET", bodies, fastDone, null);
+
+            // The paused subscriber does not hold up the other
+            assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+            assertFalse(slowDone.await(200, TimeUnit.MILLISECONDS));
+            slow.get().resume();
+            assertTrue(slowDone.await(5, TimeUnit.SECONDS));
+            assertEquals(2, bodies.size());
+            for(final String body : bodies) {
+                assertEquals("hello world", body);
+            }
+            assertEquals(1, originRequests.get());
+        }
+        finally {
+            client.shutdown();
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testHead() throws Exception {
+        if("Darwin".equals(System.getProperty("os.name"))) {
+            // Not supported on windows
+            return;
+        }
+
+        final HttpServer server = startServer();
+        final HttpClient client = new HttpClient(1, new SizeClassBufferPool(), 1, 30, TimeUnit.SECONDS);
+        final SingleFlight flights = new SingleFlight(client);
+        try {
+            final int count = 3;
+            final CountDownLatch lock = new CountDownLatch(count);
+            final ConcurrentLinkedQueue<String> bodies = new ConcurrentLinkedQueue<String>();
+            for(int i = 0; i < count; i++) {
+                send(flights, "HEAD", bodies, lock, null);
+            }
+            assertTrue(lock.await(5, TimeUnit.SECONDS));
+            assertEquals(count, bodies.size());
+            for(final String body : bodies) {
+                assertEquals("", body);
+            }
+            assertEquals(1, originRequests.get());
+
+            // The one connection is not left waiting for a body
+            final CountDownLatch got = new CountDownLatch(1);
+            bodies.clear();
+            send(flights, "GET", bodies, got, null);
+            assertTrue(got.await(5, TimeUnit.SECONDS));
+            assertEquals("hello world", bodies.poll());
+        }
+        finally {
+            client.shutdown();
+            server.shutdown();
+        }
+    }
+
+    private HttpServer startServer() throws InterruptedException {
+        final HttpServer server = HttpServer.createServer();
+        server.use("/",
+            new Object() {
+                @GET
+                public void get(final ServerRequest request, final ServerResponse response) {
+                    originRequests.incrementAndGet();
+                    response.setContentType("text/plain");
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                Thread.sleep(200);
+                                response.write("hello".getBytes(UTF_8));
+                                Thread.sleep(100);
+                                response.write(" world".getBytes(UTF_8));
+                            }
+                            catch(InterruptedException ie) {
+                                Thread.currentThread().interrupt();
+                            }
+                            response.end();
+                        }
+                    }.start();
+                }
+
+                @HEAD
+                public void head(final ServerRequest request, final ServerResponse response) {
+                    originRequests.incrementAndGet();
+                    response.setContentType("text/plain");
+                    response.addHeader("Content-Length", "11");
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                Thread.sleep(200);
+                            }
+                            catch(InterruptedException ie) {
+                                Thread.currentThread().interrupt();
+                            }
+                            response.end();
+                        }
+                    }.start();
+                }
+            });
+        final CountDownLatch started = new CountDownLatch(1);
+        server.listen(3000, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(final Void result, final Void attachment) {
+                started.countDown();
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                fail();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return server;
+    }
+
+    /**
+     * Sends a request for "/" and collects the body - pausing on the first chunk if asked to keep the response.
+     */
+    private static void send(final SingleFlight flights, final String method, final ConcurrentLinkedQueue<String> bodies,
+                             final CountDownLatch lock, final AtomicReference<ClientResponse> paused) {
+        flights.send("localhost", 3000, method, "/", null, new CompletionHandler<ClientResponse, Void>() {
+            @Override
+            public void completed(final ClientResponse response, final Void attachment) {
+                final StringBuilder body = new StringBuilder();
+                response.onData(new CompletionHandler<ByteBuffer, Void>() {
+                    @Override
+                    public void completed(final ByteBuffer result, final Void attachment) {
+                        body.append(UTF_8.decode(result));
+                        if(paused != null && paused.get() == null) {
+                            paused.set(response);
+                            response.pause();
+                        }
+                    }
+
+                    @Override
+                    public void failed(final Throwable exc, final Void attachment) {
+                        fail();
+                    }
+                });
+                response.onTrailers(new CompletionHandler<Map<String, List<String>>, Void>() {
+                    @Override
+                    public void completed(final Map<String, List<String>> result, final Void attachment) {
+                        bodies.add(body.toString());
+                        lock.countDown();
+                    }
+
+                    @Override
+                    public void failed(final Throwable exc, final Void attachment) {
+                        fail();
+                    }
+                });
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                fail();
+            }
+        });
+    }
+}
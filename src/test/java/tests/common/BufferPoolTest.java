@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tests.common;
+
+import org.junit.Test;
+import org.tini.common.SizeClassBufferPool;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author Subbu Allamaraju
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void testSizeClasses() {
+        final SizeClassBufferPool pool = new SizeClassBufferPool(1024, 16 * 1024, 8 * 1024, 16);
+
+        final ByteBuffer small = pool.lease(100);
+        assertEquals(1024, small.capacity());
+        assertEquals(1024, small.remaining());
+        assertEquals(true, small.isDirect());
+
+        final ByteBuffer medium = pool.lease(5000);
+        assertEquals(8192, medium.capacity());
+
+        // Larger than the largest class - not pooled
+        final ByteBuffer large = pool.lease(20000);
+        assertEquals(20000, large.capacity());
+        assertEquals(false, large.isDirect());
+
+        assertEquals(3, pool.getLeaseCount());
+        assertEquals(3, pool.getMissCount());
+    }
+
+    @Test
+    public void testReuse() {
+        final SizeClassBufferPool pool = new SizeClassBufferPool(1024, 16 * 1024, 8 * 1024, 16);
+
+        // The first lease carves a slab into eight 1 KB buffers
+        final ByteBuffer first = pool.lease(1024);
+        for(int i = 0; i < 7; i++) {
+            pool.lease(1024);
+        }
+        assertEquals(1, pool.getMissCount());
+
+        first.put((byte) 1);
+        pool.release(first);
+        final ByteBuffer again = pool.lease(1000);
+        assertSame(first, again);
+        assertEquals(0, again.position());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(1, pool.getReturnCount());
+
+        // Foreign buffers are dropped
+        pool.release(ByteBuffer.allocate(1024));
+        pool.lease(1024);
+        assertEquals(2, pool.getMissCount());
+    }
+}
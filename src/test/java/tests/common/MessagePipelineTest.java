@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tests.common;
+
+import org.junit.Test;
+import org.tini.common.MessagePipeline;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Subbu Allamaraju
+ */
+public class MessagePipelineTest {
+
+    @Test
+    public void testOrderAndCapacity() {
+        // Capacity need not be a power of two
+        final MessagePipeline<Integer> pipeline = new MessagePipeline<Integer>(3);
+        for(int turn = 0; turn < 5; turn++) {
+            assertTrue(pipeline.offer(1));
+            assertTrue(pipeline.offer(2));
+            assertTrue(pipeline.offer(3));
+            assertFalse(pipeline.offer(4));
+            assertEquals(3, pipeline.size());
+
+            assertEquals(1, (int) pipeline.peek());
+            assertEquals(1, (int) pipeline.poll());
+            assertEquals(2, (int) pipeline.poll());
+            assertEquals(3, (int) pipeline.poll());
+            assertNull(pipeline.peek());
+            assertNull(pipeline.poll());
+        }
+    }
+
+    @Test
+    public void testProducers() throws InterruptedException {
+        final MessagePipeline<Integer> pipeline = new MessagePipeline<Integer>(64);
+        final int producers = 4;
+        final int count = 100000;
+        final CountDownLatch done = new CountDownLatch(producers);
+        for(int p = 0; p < producers; p++) {
+            final int id = p;
+            new Thread() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < count; i++) {
+                        while(!pipeline.offer(id * count + i)) {
+                            Thread.yield();
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        // Each producer's messages arrive in the order pushed
+        final int[] last = new int[producers];
+        for(int p = 0; p < producers; p++) {
+            last[p] = -1;
+        }
+        int received = 0;
+        while(received < producers * count) {
+            final Integer message = pipeline.poll();
+            if(message == null) {
+                Thread.yield();
+                continue;
+            }
+            final int id = message / count;
+            assertTrue(message % count > last[id]);
+            last[id] = message % count;
+            received++;
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNull(pipeline.poll());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tests.common;
+
+import org.junit.Test;
+import org.tini.common.TimingWheel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Subbu Allamaraju
+ */
+public class TimingWheelTest {
+
+    @Test
+    public void testExpiryOrder() throws InterruptedException {
+        // Small wheel so that the longer timeouts take more than one turn
+        final TimingWheel wheel = new TimingWheel("test-timer", 5, 8);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch lock = new CountDownLatch(3);
+        final int[] delays = {120, 20, 60};
+        for(final int delay : delays) {
+            wheel.schedule(new TimingWheel.Timeout() {
+                @Override
+                protected void expired() {
+                    order.add(delay);
+                    lock.countDown();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(lock.await(2, TimeUnit.SECONDS));
+        assertEquals(20, (int) order.get(0));
+        assertEquals(60, (int) order.get(1));
+        assertEquals(120, (int) order.get(2));
+        wheel.stop();
+    }
+
+    @Test
+    public void testCancelAndReschedule() throws InterruptedException {
+        final TimingWheel wheel = new TimingWheel("test-timer", 5, 8);
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        final TimingWheel.Timeout never = new TimingWheel.Timeout() {
+            @Override
+            protected void expired() {
+                cancelled.countDown();
+            }
+        };
+        wheel.schedule(never, 20, TimeUnit.MILLISECONDS);
+        assertTrue(never.isScheduled());
+        assertTrue(wheel.cancel(never));
+        assertFalse(never.isScheduled());
+        assertFalse(wheel.cancel(never));
+
+        // Re-arms itself till it has expired three times
+        final CountDownLatch lock = new CountDownLatch(3);
+        wheel.schedule(new TimingWheel.Timeout() {
+            @Override
+            protected void expired() {
+                lock.countDown();
+                if(lock.getCount() > 0) {
+                    wheel.schedule(this, 10, TimeUnit.MILLISECONDS);
+                }
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+        assertTrue(lock.await(2, TimeUnit.SECONDS));
+        assertFalse(cancelled.await(50, TimeUnit.MILLISECONDS));
+        wheel.stop();
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tests.common;
+
+import org.junit.Test;
+import org.tini.common.SizeClassBufferPool;
+import org.tini.common.WritableMessage;
+import org.tini.common.WritablePipeline;
+import tests.parser.MockAsyncSocketChannel;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.WritePendingException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Subbu Allamaraju
+ */
+public class WritablePipelineTest {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    @Test
+    public void testBackpressure() throws InterruptedException {
+        final SlowChannel channel = new SlowChannel();
+        final Pipeline pipeline = new Pipeline(channel);
+        pipeline.setWatermarks(4 * 1024, 16 * 1024);
+        final Message message = new Message(pipeline);
+        pipeline.push(message);
+        message.addHeader("content-length", String.valueOf(10 * 4096));
+
+        // Queue up more than the high watermark while the first write is in flight
+        final boolean[] writable = new boolean[1];
+        for(int i = 0; i < 10; i++) {
+            message.write(new byte[4096]);
+        }
+        assertEquals(false, message.isWritable());
+        assertEquals(1, channel.writes);
+        message.onWritable(new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(final Void result, final Void attachment) {
+                writable[0] = true;
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+            }
+        });
+
+        // Drain till below the low watermark - one write at a time
+        while(pipeline.getQueuedBytes() >= 4 * 1024) {
+            assertEquals(false, writable[0]);
+            channel.complete();
+        }
+        assertEquals(true, writable[0]);
+        assertEquals(true, message.isWritable());
+
+        while(pipeline.getQueuedBytes() > 0) {
+            channel.complete();
+        }
+        assertEquals(10, channel.writes);
+        assertTrue(channel.written > 10 * 4096);
+    }
+
+    @Test
+    public void testOutOfOrder() throws InterruptedException {
+        final SlowChannel channel = new SlowChannel();
+        final Pipeline pipeline = new Pipeline(channel);
+        final Message[] messages = new Message[3];
+        for(int i = 0; i < messages.length; i++) {
+            messages[i] = new Message(pipeline);
+            messages[i].addHeader("content-length", "2");
+            pipeline.push(messages[i]);
+        }
+
+        // Last finishes first
+        messages[2].write("c1".getBytes(US_ASCII));
+        messages[2].end();
+        messages[1].write("b1".getBytes(US_ASCII));
+        messages[0].write("a1".getBytes(US_ASCII));
+        messages[1].end();
+        assertEquals(1, channel.writes);
+        messages[0].end();
+
+        while(pipeline.getQueuedBytes() > 0) {
+            channel.complete();
+        }
+        assertEquals(0, pipeline.getHeldBytes());
+        assertEquals("content-length: 2\r\nconnection: keep-alive\r\n\r\na1" +
+            "content-length: 2\r\nconnection: keep-alive\r\n\r\nb1" +
+            "content-length: 2\r\nconnection: keep-alive\r\n\r\nc1", channel.received());
+    }
+
+    @Test
+    public void testHoldLimit() throws InterruptedException {
+        for(final boolean spill : new boolean[] {false, true}) {
+            final SlowChannel channel = new SlowChannel();
+            final int[] exceeded = new int[2];
+            final Pipeline pipeline = new Pipeline(channel) {
+                @Override
+                protected void holdLimitExceeded() {
+                    exceeded[0]++;
+                }
+
+                @Override
+                protected void holdLimitCleared() {
+                    exceeded[1]++;
+                }
+            };
+            pipeline.setHoldLimit(8 * 1024, spill);
+            final Message first = new Message(pipeline);
+            final Message second = new Message(pipeline);
+            pipeline.push(first);
+            pipeline.push(second);
+            first.addHeader("content-length", "0");
+            second.addHeader("content-length", String.valueOf(8 * 2048));
+
+            final byte[] data = new byte[2048];
+            for(int i = 0; i < 8; i++) {
+                Arrays.fill(data, (byte) ('a' + i));
+                second.write(data);
+            }
+            second.end();
+            if(spill) {
+                assertEquals(0, exceeded[0]);
+                assertTrue(pipeline.getHeldBytes() <= 8 * 1024);
+            }
+            else {
+                assertEquals(1, exceeded[0]);
+                // Head and all the data
+                assertTrue(pipeline.getHeldBytes() > 8 * 2048);
+            }
+
+            first.end();
+            assertEquals(spill ? 0 : 1, exceeded[1]);
+            while(pipeline.getQueuedBytes() > 0) {
+                channel.complete();
+            }
+            final String received = channel.received();
+            final String body = received.substring(received.length() - 8 * 2048);
+            for(int i = 0; i < 8; i++) {
+                for(int j = 0; j < 2048; j++) {
+                    assertEquals('a' + i, body.charAt(i * 2048 + j));
+                }
+            }
+        }
+    }
+
+    /**
+     * Completes one write at a time, when asked to.
+     */
+    private static class SlowChannel extends MockAsyncSocketChannel {
+        private CompletionHandler<Long, Object> pending;
+        private ByteBuffer[] srcs;
+        private int writes = 0;
+        private long written = 0;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        SlowChannel() {
+            super(null);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <A> void write(final ByteBuffer[] srcs, final int offset, final int length,
+                              final long timeout, final TimeUnit unit, final A attachment,
+                              final CompletionHandler<Long, ? super A> handler) {
+            if(pending != null) {
+                throw new WritePendingException();
+            }
+            writes++;
+            this.srcs = srcs;
+            this.pending = (CompletionHandler<Long, Object>) handler;
+        }
+
+        void complete() {
+            long count = 0;
+            for(final ByteBuffer src : srcs) {
+                count += src.remaining();
+                while(src.hasRemaining()) {
+                    bytes.write(src.get());
+                }
+            }
+            written += count;
+            final CompletionHandler<Long, Object> handler = pending;
+            pending = null;
+            handler.completed(count, null);
+        }
+
+        String received() {
+            return new String(bytes.toByteArray(), US_ASCII);
+        }
+    }
+
+    private static class Pipeline extends WritablePipeline {
+        Pipeline(final AsynchronousSocketChannel channel) {
+            super(channel, new SizeClassBufferPool());
+        }
+
+        @Override
+        protected void beginWriting() {
+        }
+
+        @Override
+        protected void endWriting() {
+        }
+    }
+
+    private static class Message extends WritableMessage {
+        Message(final WritablePipeline pipeline) {
+            super(pipeline);
+        }
+
+        @Override
+        protected boolean doClose() {
+            return false;
+        }
+
+        @Override
+        protected int firstLineLength() {
+            return 0;
+        }
+
+        @Override
+        protected void writeFirstLine(final ByteBuffer buffer) {
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tests.parser;
+
+import org.junit.Test;
+import org.tini.parser.HeadEncoder;
+import org.tini.parser.HttpHeaders;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Subbu Allamaraju
+ */
+public class HeadEncoderTest {
+
+    @Test
+    public void testStatusLines() {
+        assertEquals("HTTP/1.1 200 OK\r\n", statusLine(200, "OK"));
+        assertEquals("HTTP/1.1 404 Not Found\r\n", statusLine(404, "Not Found"));
+
+        // Not pre-encoded
+        assertEquals("HTTP/1.1 200 Fine\r\n", statusLine(200, "Fine"));
+        assertEquals("HTTP/1.1 599 Custom\r\n", statusLine(599, "Custom"));
+    }
+
+    @Test
+    public void testHeaders() {
+        assertEquals("connection: keep-alive\r\n", header(HttpHeaders.CONNECTION, "keep-alive"));
+        assertEquals("content-length: 42\r\n", header(HttpHeaders.CONTENT_LENGTH, "42"));
+        assertEquals("x-custom: caf?\r\n", header("x-custom", "caf\u00e9"));
+    }
+
+    @Test
+    public void testHex() {
+        final int[] values = {0, 1, 15, 16, 255, 4096, Integer.MAX_VALUE};
+        for(final int value : values) {
+            final ByteBuffer buffer = ByteBuffer.allocate(16);
+            HeadEncoder.putHex(buffer, value);
+            assertEquals(HeadEncoder.hexLength(value), buffer.position());
+            assertEquals(Integer.toHexString(value), string(buffer));
+        }
+    }
+
+    private static String statusLine(final int status, final String message) {
+        final ByteBuffer buffer = ByteBuffer.allocate(HeadEncoder.statusLineLength(status, message));
+        HeadEncoder.putStatusLine(buffer, status, message);
+        assertEquals(0, buffer.remaining());
+        return string(buffer);
+    }
+
+    private static String header(final String name, final String value) {
+        final ByteBuffer buffer = ByteBuffer.allocate(HeadEncoder.headerLength(name, value));
+        HeadEncoder.putHeader(buffer, name, value);
+        assertEquals(0, buffer.remaining());
+        return string(buffer);
+    }
+
+    private static String string(final ByteBuffer buffer) {
+        buffer.flip();
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, Charset.forName("US-ASCII"));
+    }
+}
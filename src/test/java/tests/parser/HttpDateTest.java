@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tests.parser;
+
+import org.junit.Test;
+import org.tini.parser.HeadEncoder;
+import org.tini.parser.HttpDate;
+import org.tini.parser.HttpHeaders;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Subbu Allamaraju
+ */
+public class HttpDateTest {
+
+    @Test
+    public void testFormat() {
+        assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDate.format(784111777000L));
+    }
+
+    @Test
+    public void testPreEncodedLine() {
+        final String value = HttpDate.current();
+        final ByteBuffer buffer = ByteBuffer.allocate(HeadEncoder.headerLength(HttpHeaders.DATE, value));
+        HeadEncoder.putHeader(buffer, HttpHeaders.DATE, value);
+        assertEquals(0, buffer.remaining());
+        assertEquals("date: " + value + "\r\n", new String(buffer.array(), Charset.forName("US-ASCII")));
+    }
+
+    @Test
+    public void testConcurrentReaders() throws InterruptedException {
+        final int threads = 16;
+        final CountDownLatch lock = new CountDownLatch(threads);
+        final AtomicReference<String> error = new AtomicReference<String>();
+        for(int t = 0; t < threads; t++) {
+            final long seed = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        final SimpleDateFormat format = new SimpleDateFormat(HttpDate.PATTERN, Locale.US);
+                        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                        final long end = System.currentTimeMillis() + 1500;
+                        long millis = seed * 86400000L * 97;
+                        while(System.currentTimeMillis() < end && error.get() == null) {
+                            // Cached value must parse and be within a couple of seconds of now
+                            final String current = HttpDate.current();
+                            final long parsed = format.parse(current).getTime();
+                            if(Math.abs(System.currentTimeMillis() - parsed) > 2000) {
+                                error.set("Stale or corrupt date " + current);
+                            }
+
+                            // Arbitrary dates must match a private formatter
+                            millis += 7777777L;
+                            final String expected = format.format(millis);
+                            final String actual = HttpDate.format(millis);
+                            if(!expected.equals(actual)) {
+                                error.set("Expected " + expected + " but got " + actual);
+                            }
+                        }
+                    }
+                    catch(ParseException pe) {
+                        error.set(pe.getMessage());
+                    }
+                    finally {
+                        lock.countDown();
+                    }
+                }
+            }.start();
+        }
+        assertTrue(lock.await(10, TimeUnit.SECONDS));
+        if(error.get() != null) {
+            fail(error.get());
+        }
+    }
+}
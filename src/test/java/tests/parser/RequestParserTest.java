@@ -1,6 +1,8 @@
 package tests.parser;
 
 import org.junit.Test;
+import org.tini.common.Utils;
+import org.tini.parser.HttpHeaders;
 import org.tini.parser.RequestLine;
 import org.tini.parser.RequestParser;
 
@@ -9,12 +11,14 @@ import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.channels.CompletionHandler;
 import java.nio.charset.Charset;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 public class RequestParserTest {
@@ -228,4 +232,95 @@ public class RequestParserTest {
             assertEquals(0, lock.getCount());
         }
     }
+
+    @Test
+    public void testFoldedAndMixedCaseHeaders() {
+        final String req = "GET / HTTP/1.1\r\n" +
+            "Content-TYPE: text/plain\r\n" +
+            "X-Folded: one\r\n" +
+            " two\r\n" +
+            "\ttwo-and-a-half\r\n" +
+            "x-folded: three\r\n" +
+            "\r\n";
+        final ByteArrayInputStream bais = new ByteArrayInputStream(req.getBytes(Charset.forName("US-ASCII")));
+        final MockAsyncSocketChannel channel = new MockAsyncSocketChannel(bais);
+
+        final RequestParser parser = new RequestParser(channel, 100, TimeUnit.SECONDS);
+
+        final CountDownLatch lock = new CountDownLatch(1);
+
+        parser.onHeaders(new CompletionHandler<Map<String, List<String>>, Void>() {
+            @Override
+            public void completed(final Map<String, List<String>> result, final Void attachment) {
+                assertEquals("text/plain", result.get("content-type").get(0));
+                assertEquals("text/plain", result.get("Content-Type").get(0));
+                assertEquals(2, result.get("x-folded").size());
+                assertEquals("one two two-and-a-half", result.get("x-folded").get(0));
+                assertEquals("three", result.get("x-folded").get(1));
+                assertEquals(2, result.size());
+                assertEquals(true, result.containsKey("content-type"));
+
+                // Well-known names are interned
+                final Iterator<String> names = result.keySet().iterator();
+                assertSame(HttpHeaders.CONTENT_TYPE, names.next());
+                assertEquals("x-folded", names.next());
+                lock.countDown();
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+            }
+        });
+        parser.go();
+        try {
+            lock.await(10, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException ie) {
+            fail("Pending tests");
+        }
+        finally {
+            assertEquals(0, lock.getCount());
+        }
+    }
+
+    @Test
+    public void testBodyIsReadOnlyView() {
+        final String req = "POST / HTTP/1.1\r\n" +
+            "Content-Length: 5\r\n" +
+            "\r\n" +
+            "hello";
+        final ByteArrayInputStream bais = new ByteArrayInputStream(req.getBytes(Charset.forName("US-ASCII")));
+        final MockAsyncSocketChannel channel = new MockAsyncSocketChannel(bais);
+
+        final RequestParser parser = new RequestParser(channel, 100, TimeUnit.SECONDS);
+
+        final CountDownLatch lock = new CountDownLatch(1);
+
+        parser.onData(new CompletionHandler<ByteBuffer, Void>() {
+            @Override
+            public void completed(final ByteBuffer result, final Void attachment) {
+                assertEquals(true, result.isReadOnly());
+                assertEquals(5, result.remaining());
+                final ByteBuffer copy = Utils.copy(result);
+                assertEquals(false, copy.isReadOnly());
+                assertEquals(5, result.remaining());
+                assertEquals("hello", Charset.forName("UTF-8").decode(copy).toString());
+                lock.countDown();
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+            }
+        });
+        parser.go();
+        try {
+            lock.await(10, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException ie) {
+            fail("Pending tests");
+        }
+        finally {
+            assertEquals(0, lock.getCount());
+        }
+    }
 }
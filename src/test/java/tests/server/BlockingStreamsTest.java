@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tests.server;
+
+import org.junit.Test;
+import org.tini.client.ClientConnection;
+import org.tini.client.ClientRequest;
+import org.tini.client.ClientResponse;
+import org.tini.server.HttpServer;
+import org.tini.server.ServerRequest;
+import org.tini.server.ServerResponse;
+
+import javax.ws.rs.POST;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Subbu Allamaraju
+ */
+public class BlockingStreamsTest {
+
+    @Test
+    public void testEchoWithStreams() throws Exception {
+        if("Darwin".equals(System.getProperty("os.name"))) {
+            // Not supported on windows
+            return;
+        }
+
+        // Larger than what the input stream buffers, so that it pauses and resumes reading
+        final byte[] body = new byte[256 * 1024];
+        for(int i = 0; i < body.length; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+
+        final CountDownLatch lock = new CountDownLatch(1);
+        final String[] thread = new String[1];
+        final ByteBuffer received = ByteBuffer.allocate(body.length);
+        final HttpServer server = HttpServer.createServer();
+        server.setIoThreads(1);
+        server.setThreadPerRequest();
+        server.use("/",
+            new Object() {
+                @POST
+                public void post(final ServerRequest request, final ServerResponse response) throws IOException {
+                    thread[0] = Thread.currentThread().getName();
+                    response.setContentType("application/octet-stream");
+                    final InputStream in = request.getInputStream();
+                    final OutputStream out = response.getOutputStream();
+                    final byte[] buffer = new byte[4096];
+                    int count;
+                    while((count = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, count);
+                    }
+                    out.close();
+                }
+            });
+        server.listen(3000, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(final Void result, final Void attachment) {
+                final ClientConnection client = new ClientConnection();
+                client.connect("localhost", 3000, new CompletionHandler<Void, Void>() {
+                    @Override
+                    public void completed(final Void result, final Void attachment) {
+                        final ClientRequest request = client.request("/", "POST");
+                        request.onResponse(new CompletionHandler<ClientResponse, Void>() {
+                            @Override
+                            public void completed(final ClientResponse response, final Void attachment) {
+                                response.onData(new CompletionHandler<ByteBuffer, Void>() {
+                                    @Override
+                                    public void completed(final ByteBuffer result, final Void attachment) {
+                                        received.put(result);
+                                    }
+
+                                    @Override
+                                    public void failed(final Throwable exc, final Void attachment) {
+                                        fail();
+                                    }
+                                });
+                                response.onTrailers(new CompletionHandler<Map<String, List<String>>, Void>() {
+                                    @Override
+                                    public void completed(final Map<String, List<String>> result, final Void attachment) {
+                                        lock.countDown();
+                                    }
+
+                                    @Override
+                                    public void failed(final Throwable exc, final Void attachment) {
+                                        fail();
+                                    }
+                                });
+                            }
+
+                            @Override
+                            public void failed(final Throwable exc, final Void attachment) {
+                                fail();
+                            }
+                        });
+
+                        request.addHeader("Host", "localhost");
+                        for(int i = 0; i < body.length; i += 8192) {
+                            request.write(ByteBuffer.wrap(body, i, 8192));
+                        }
+                        request.end();
+                    }
+
+                    @Override
+                    public void failed(final Throwable exc, final Void attachment) {
+                        fail();
+                    }
+                });
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                fail();
+            }
+        });
+        try {
+            lock.await(10, TimeUnit.SECONDS);
+        }
+        finally {
+            server.shutdown();
+        }
+        assertEquals(0, lock.getCount());
+        assertFalse(thread[0].startsWith("tini-io"));
+        assertEquals(ByteBuffer.wrap(body), (ByteBuffer) received.flip());
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tests.server;
+
+import org.junit.Test;
+import org.tini.common.Compression;
+import org.tini.server.ContentCache;
+import org.tini.server.HttpServer;
+import org.tini.server.ServerRequest;
+import org.tini.server.ServerResponse;
+
+import javax.ws.rs.GET;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Subbu Allamaraju
+ */
+public class CompressionTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testNegotiate() {
+        assertEquals("gzip", Compression.negotiate("gzip, deflate"));
+        assertEquals("deflate", Compression.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("gzip", Compression.negotiate("*"));
+        assertNull(Compression.negotiate("gzip;q=0, identity"));
+        assertNull(Compression.negotiate(null));
+
+        final Compression compression = new Compression();
+        assertTrue(compression.isCompressible("application/json; charset=UTF-8"));
+        assertTrue(compression.isCompressible("application/hal+json"));
+        assertTrue(!compression.isCompressible("image/png"));
+    }
+
+    @Test
+    public void testStreamedBody() throws Exception {
+        if("Darwin".equals(System.getProperty("os.name"))) {
+            // Not supported on windows
+            return;
+        }
+
+        final StringBuilder json = new StringBuilder("[");
+        for(int i = 0; i < 1000; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append("}");
+        }
+        final String body = json.append("]").toString();
+
+        final HttpServer server = HttpServer.createServer();
+        server.setCompression(new Compression());
+        server.use("/json", new Object() {
+            @GET
+            public void get(final ServerRequest request, final ServerResponse response) {
+                response.setContentType("application/json");
+                // Small writes without a length - held back till worth compressing
+                for(int i = 0; i < body.length(); i += 100) {
+                    response.write(body.substring(i, Math.min(body.length(), i + 100)));
+                }
+                response.end();
+            }
+        });
+        server.use("/small", new Object() {
+            @GET
+            public void get(final ServerRequest request, final ServerResponse response) {
+                response.setContentType("text/plain");
+                response.write("small");
+                response.end();
+            }
+        });
+        final CountDownLatch started = new CountDownLatch(1);
+        server.listen(3000, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(final Void result, final Void attachment) {
+                started.countDown();
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                fail();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        try {
+            HttpURLConnection connection = open("/json", "gzip");
+            assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+            assertEquals("Accept-Encoding", connection.getHeaderField("Vary"));
+            assertEquals(body, read(new GZIPInputStream(connection.getInputStream())));
+
+            connection = open("/json", "deflate");
+            assertEquals("deflate", connection.getHeaderField("Content-Encoding"));
+            assertEquals(body, read(new InflaterInputStream(connection.getInputStream())));
+
+            connection = open("/json", null);
+            assertNull(connection.getHeaderField("Content-Encoding"));
+            assertEquals(body, read(connection.getInputStream()));
+
+            // Too small to compress - sent as is with a length
+            connection = open("/small", "gzip");
+            assertNull(connection.getHeaderField("Content-Encoding"));
+            assertEquals("5", connection.getHeaderField("Content-Length"));
+            assertEquals("small", read(connection.getInputStream()));
+        }
+        finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testConditional() throws Exception {
+        if("Darwin".equals(System.getProperty("os.name"))) {
+            // Not supported on windows
+            return;
+        }
+
+        final StringBuilder json = new StringBuilder("[");
+        for(int i = 0; i < 1000; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append("}");
+        }
+        final String body = json.append("]").toString();
+        final Path dir = Files.createTempDirectory("tini");
+        final Path file = dir.resolve("data.json");
+        Files.write(file, body.getBytes(UTF_8));
+
+        final ContentCache cache = new ContentCache(1024 * 1024);
+        final HttpServer server = HttpServer.createServer();
+        server.setCompression(new Compression());
+        server.use("/data.json", new Object() {
+            @GET
+            public void get(final ServerRequest request, final ServerResponse response) {
+                cache.send(request, response, file);
+            }
+        });
+        final CountDownLatch started = new CountDownLatch(1);
+        server.listen(3000, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(final Void result, final Void attachment) {
+                started.countDown();
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                fail();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        try {
+            HttpURLConnection connection = open("/data.json", "gzip");
+            final String etag = connection.getHeaderField("ETag");
+            assertTrue(etag.endsWith("-gzip\""));
+            assertEquals(body, read(new GZIPInputStream(connection.getInputStream())));
+
+            // The compressed representation's tag validates it
+            connection = (HttpURLConnection) new URL("http://localhost:3000/data.json").openConnection();
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            connection.setRequestProperty("If-None-Match", etag);
+            assertEquals(304, connection.getResponseCode());
+            assertEquals(etag, connection.getHeaderField("ETag"));
+
+            connection = (HttpURLConnection) new URL("http://localhost:3000/data.json").openConnection();
+            connection.setRequestProperty("If-None-Match", "\"stale-gzip\"");
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(body, read(connection.getInputStream()));
+        }
+        finally {
+            server.shutdown();
+            cache.close();
+            Files.delete(file);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testThreadPerRequest() throws Exception {
+        if("Darwin".equals(System.getProperty("os.name"))) {
+            // Not supported on windows
+            return;
+        }
+
+        final String body = json();
+        final HttpServer server = HttpServer.createServer();
+        server.setCompression(new Compression());
+        server.setThreadPerRequest();
+        server.use("/json", new Object() {
+            @GET
+            public void get(final ServerRequest request, final ServerResponse response) {
+                // Each body on a thread of its own, as with a virtual thread per request
+                new Thread() {
+                    @Override
+                    public void run() {
+                        response.setContentType("application/json");
+                        response.write(body);
+                        response.end();
+                    }
+                }.start();
+            }
+        });
+        listen(server);
+
+        try {
+            final long created = Compression.getCompressorCount();
+            for(int i = 0; i < 20; i++) {
+                final HttpURLConnection connection = open("/json", "gzip");
+                assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+                assertEquals(body, read(new GZIPInputStream(connection.getInputStream())));
+            }
+            assertTrue(Compression.getCompressorCount() - created <= 1);
+            assertEquals(0, Compression.getCompressorsInUse());
+        }
+        finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testAbortedBody() throws Exception {
+        if("Darwin".equals(System.getProperty("os.name"))) {
+            // Not supported on windows
+            return;
+        }
+
+        final CountDownLatch written = new CountDownLatch(1);
+        final AtomicInteger inUse = new AtomicInteger(-1);
+        final HttpServer server = HttpServer.createServer();
+        server.setCompression(new Compression());
+        server.use("/stream", new Object() {
+            @GET
+            public void get(final ServerRequest request, final ServerResponse response) {
+                response.setContentType("text/plain");
+                new Thread() {
+                    @Override
+                    public void run() {
+                        // Writes on after the client has gone, till the writes fail
+                        final Random random = new Random(1);
+                        final byte[] bytes = new byte[16 * 1024];
+                        for(int i = 0; i < 200; i++) {
+                            for(int j = 0; j < bytes.length; j++) {
+                                bytes[j] = (byte) ('a' + random.nextInt(16));
+                            }
+                            response.write(bytes);
+                            try {
+                                Thread.sleep(10);
+                            }
+                            catch(InterruptedException ie) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        inUse.set(Compression.getCompressorsInUse());
+                        written.countDown();
+                        response.end();
+                    }
+                }.start();
+            }
+        });
+        listen(server);
+
+        try {
+            final Socket socket = new Socket("localhost", 3000);
+            socket.getOutputStream().write(("GET /stream HTTP/1.1\r\nHost: localhost\r\n" +
+                "Accept-Encoding: gzip\r\n\r\n").getBytes(UTF_8));
+            final InputStream in = socket.getInputStream();
+            assertTrue(in.read(new byte[1024]) > 0);
+            socket.close();
+
+            // Given back by the failed write, before the message ends
+            assertTrue(written.await(10, TimeUnit.SECONDS));
+            assertEquals(0, inUse.get());
+        }
+        finally {
+            server.shutdown();
+        }
+    }
+
+    private static String json() {
+        final StringBuilder json = new StringBuilder("[");
+        for(int i = 0; i < 1000; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append("}");
+        }
+        return json.append("]").toString();
+    }
+
+    private static void listen(final HttpServer server) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        server.listen(3000, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(final Void result, final Void attachment) {
+                started.countDown();
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                fail();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    private static HttpURLConnection open(final String path, final String acceptEncoding) throws Exception {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:3000" + path).openConnection();
+        if(acceptEncoding != null) {
+            connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+        }
+        assertEquals(200, connection.getResponseCode());
+        return connection;
+    }
+
+    private static String read(final InputStream in) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] bytes = new byte[1024];
+        int read;
+        while((read = in.read(bytes)) != -1) {
+            out.write(bytes, 0, read);
+        }
+        in.close();
+        return new String(out.toByteArray(), UTF_8);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tests.server;
+
+import org.junit.Test;
+import org.tini.server.ContentCache;
+import org.tini.server.HttpServer;
+import org.tini.server.ServerRequest;
+import org.tini.server.ServerResponse;
+
+import javax.ws.rs.GET;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Subbu Allamaraju
+ */
+public class ContentCacheTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testHitsAndInvalidation() throws Exception {
+        if("Darwin".equals(System.getProperty("os.name"))) {
+            // Not supported on windows
+            return;
+        }
+
+        final Path dir = Files.createTempDirectory("tini");
+        final Path file = dir.resolve("hello.txt");
+        Files.write(file, "hello".getBytes(UTF_8));
+
+        final ContentCache cache = new ContentCache(1024 * 1024);
+        final HttpServer server = HttpServer.createServer();
+        server.use("/hello.txt", new Object() {
+            @GET
+            public void get(final ServerRequest request, final ServerResponse response) {
+                cache.send(request, response, file);
+            }
+        });
+        final CountDownLatch started = new CountDownLatch(1);
+        server.listen(3000, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(final Void result, final Void attachment) {
+                started.countDown();
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                fail();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        try {
+            assertEquals("hello", get());
+            assertEquals("hello", get());
+            assertEquals(1, cache.getMissCount());
+            assertEquals(1, cache.getHitCount());
+
+            // The change is noticed without a request touching the file
+            Files.write(file, "changed".getBytes(UTF_8));
+            final long deadline = System.currentTimeMillis() + 10000;
+            while(cache.getSize() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals("changed", get());
+        }
+        finally {
+            server.shutdown();
+            cache.close();
+            Files.delete(file);
+            Files.delete(dir);
+        }
+    }
+
+    private static String get() throws Exception {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:3000/hello.txt").openConnection();
+        assertEquals(200, connection.getResponseCode());
+        final InputStream in = connection.getInputStream();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] bytes = new byte[1024];
+        int read;
+        while((read = in.read(bytes)) != -1) {
+            out.write(bytes, 0, read);
+        }
+        in.close();
+        return new String(out.toByteArray(), UTF_8);
+    }
+}
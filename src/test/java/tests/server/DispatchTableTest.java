@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tests.server;
+
+import org.junit.Test;
+import org.tini.server.DispatchTable;
+import org.tini.server.ServerRequest;
+import org.tini.server.ServerResponse;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.PUT;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author Subbu Allamaraju
+ */
+public class DispatchTableTest {
+
+    @Test
+    public void testFind() throws Throwable {
+        final StringBuilder calls = new StringBuilder();
+        final DispatchTable table = DispatchTable.EMPTY
+            .with("/get", new Object() {
+                @GET
+                public void get(final ServerRequest request, final ServerResponse response) {
+                    calls.append("get;");
+                }
+
+                @PUT
+                public void put(final ServerRequest request, final ServerResponse response) {
+                    calls.append("put;");
+                }
+            })
+            .with("/any", new Object() {
+                public void service(final ServerRequest request, final ServerResponse response) {
+                    calls.append("service;");
+                }
+            });
+
+        table.find("GET", "/get").invokeExact((ServerRequest) null, (ServerResponse) null);
+        table.find("get", "/get").invokeExact((ServerRequest) null, (ServerResponse) null);
+        table.find("DELETE", "/any").invokeExact((ServerRequest) null, (ServerResponse) null);
+        assertEquals("get;get;service;", calls.toString());
+
+        // Method not supported, and path not found
+        assertNull(table.find("POST", "/get"));
+        assertNotNull(table.match("/get"));
+        assertEquals("GET, PUT", table.match("/get").getAllowed());
+        assertEquals("", table.match("/any").getAllowed());
+        assertNull(table.find("GET", "/none"));
+        assertNull(table.match("/none"));
+    }
+
+    @Test
+    public void testTemplates() {
+        final Object handler = new Object() {
+            @GET
+            public void get(final ServerRequest request, final ServerResponse response) {
+            }
+        };
+        final DispatchTable table = DispatchTable.EMPTY
+            .with("/users", handler)
+            .with("/users/{id}", handler)
+            .with("/users/{id}/orders/{order}", handler)
+            .with("/users/me", handler)
+            .with("/static/*", handler);
+
+        assertEquals(Collections.emptyMap(), table.match("/users?limit=10").getParams());
+        assertEquals(Collections.singletonMap("id", "42"), table.match("/users/42").getParams());
+        assertEquals(Collections.emptyMap(), table.match("/users/me").getParams());
+
+        final Map<String, String> params = table.match("/users/42/orders/7?x=y").getParams();
+        assertEquals("42", params.get("id"));
+        assertEquals("7", params.get("order"));
+
+        assertEquals("/css/site.css", table.match("/static/css/site.css").getParams().get("*"));
+        assertEquals("", table.match("/static").getParams().get("*"));
+        assertEquals("/a", table.match("http://localhost:3000/static/a").getParams().get("*"));
+
+        assertNull(table.match("/users/"));
+        assertNull(table.match("/users/42/orders"));
+        assertNull(table.match("/staticfile"));
+    }
+
+    @Test
+    public void testDefaultHandler() {
+        final DispatchTable empty = DispatchTable.EMPTY;
+        final DispatchTable table = empty.with(null, new Object() {
+            @GET
+            public void get(final ServerRequest request, final ServerResponse response) {
+            }
+        });
+        assertNotNull(table.find("GET", "/anything"));
+
+        // Registering returns a new table
+        assertNull(empty.find("GET", "/anything"));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tests.server;
+
+import org.junit.Test;
+import org.tini.server.HttpServer;
+import org.tini.server.ServerRequest;
+import org.tini.server.ServerResponse;
+
+import javax.ws.rs.GET;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Subbu Allamaraju
+ */
+public class PipeliningTest {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    @Test
+    public void testOutOfOrderEnds() throws Exception {
+        if("Darwin".equals(System.getProperty("os.name"))) {
+            // Not supported on windows
+            return;
+        }
+
+        final HttpServer server = HttpServer.createServer();
+        server.use(new Object() {
+            @GET
+            public void get(final ServerRequest request, final ServerResponse response) {
+                final String path = request.getRequestLine().getUri();
+                final int id = Integer.parseInt(path.substring(1));
+                response.setContentType("text/plain");
+                response.addHeader("Content-Length", Integer.toString(path.length()));
+
+                // Later requests end first
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep((4 - id) * 100);
+                        }
+                        catch(InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                        }
+                        response.write(path);
+                        response.end();
+                    }
+                }.start();
+            }
+        });
+        final CountDownLatch started = new CountDownLatch(1);
+        server.listen(3000, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(final Void result, final Void attachment) {
+                started.countDown();
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                fail();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        final Socket socket = new Socket("localhost", 3000);
+        try {
+            socket.setSoTimeout(5000);
+            final OutputStream out = socket.getOutputStream();
+            out.write(("GET /1 HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                "GET /2 HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                "GET /3 HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(US_ASCII));
+            out.flush();
+
+            // Read till the last body
+            final InputStream in = socket.getInputStream();
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            final byte[] bytes = new byte[1024];
+            while(!received.toString("US-ASCII").endsWith("\r\n\r\n/3")) {
+                final int read = in.read(bytes);
+                if(read < 0) {
+                    break;
+                }
+                received.write(bytes, 0, read);
+            }
+
+            final String[] responses = received.toString("US-ASCII").split("HTTP/1.1 ");
+            assertEquals(4, responses.length);
+            for(int i = 1; i <= 3; i++) {
+                assertTrue(responses[i], responses[i].startsWith("200 "));
+                assertTrue(responses[i], responses[i].endsWith("\r\n\r\n/" + i));
+            }
+        }
+        finally {
+            socket.close();
+            server.shutdown();
+        }
+    }
+}
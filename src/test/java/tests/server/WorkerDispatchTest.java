@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2011 CONTRIBUTORS
+ *
+ * This file is licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tests.server;
+
+import org.junit.Test;
+import org.tini.client.ClientConnection;
+import org.tini.client.ClientRequest;
+import org.tini.client.ClientResponse;
+import org.tini.server.HttpServer;
+import org.tini.server.ServerRequest;
+import org.tini.server.ServerResponse;
+
+import javax.ws.rs.POST;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Subbu Allamaraju
+ */
+public class WorkerDispatchTest {
+
+    @Test
+    public void testBlockingHandlerOnWorker() {
+        if("Darwin".equals(System.getProperty("os.name"))) {
+            // Not supported on windows
+            return;
+        }
+
+        final CountDownLatch lock = new CountDownLatch(3);
+        final String[] thread = new String[1];
+        final HttpServer server = HttpServer.createServer();
+        server.setIoThreads(1);
+        server.setWorkers(2, 16);
+        server.use("/",
+            new Object() {
+                @POST
+                public void post(final ServerRequest request, final ServerResponse response) throws InterruptedException {
+                    thread[0] = Thread.currentThread().getName();
+
+                    // Block before asking for the body - it must not be lost meanwhile
+                    Thread.sleep(100);
+                    response.setContentType("text/plain");
+                    request.onData(new CompletionHandler<ByteBuffer, Void>() {
+                        @Override
+                        public void completed(final ByteBuffer result, final Void attachment) {
+                            response.write(result);
+                        }
+
+                        @Override
+                        public void failed(final Throwable exc, final Void attachment) {
+                            fail();
+                        }
+                    });
+                    request.onTrailers(new CompletionHandler<Map<String, List<String>>, Void>() {
+                        @Override
+                        public void completed(final Map<String, List<String>> result, final Void attachment) {
+                            response.end();
+                        }
+
+                        @Override
+                        public void failed(final Throwable exc, final Void attachment) {
+                            fail();
+                        }
+                    });
+                }
+            });
+        server.listen(3000, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(final Void result, final Void attachment) {
+                lock.countDown();
+
+                final ClientConnection client = new ClientConnection();
+                client.connect("localhost", 3000, new CompletionHandler<Void, Void>() {
+                    @Override
+                    public void completed(final Void result, final Void attachment) {
+                        final ClientRequest request = client.request("/", "POST");
+                        request.onResponse(new CompletionHandler<ClientResponse, Void>() {
+                            @Override
+                            public void completed(final ClientResponse response, final Void attachment) {
+                                final StringBuilder builder = new StringBuilder();
+                                response.onData(new CompletionHandler<ByteBuffer, Void>() {
+                                    @Override
+                                    public void completed(final ByteBuffer result, final Void attachment) {
+                                        if(result.hasRemaining()) {
+                                            builder.append(Charset.forName("UTF-8").decode(result).toString());
+                                        }
+                                        else {
+                                            assertEquals("hello world", builder.toString());
+                                            lock.countDown();
+                                        }
+                                    }
+
+                                    @Override
+                                    public void failed(final Throwable exc, final Void attachment) {
+                                        fail();
+                                    }
+                                });
+                            }
+
+                            @Override
+                            public void failed(final Throwable exc, final Void attachment) {
+                                fail();
+                            }
+                        });
+
+                        request.addHeader("Host", "localhost");
+                        request.addHeader("Content-Length", "11");
+                        request.write("hello world".getBytes(Charset.forName("UTF-8")));
+                        request.end();
+
+                        lock.countDown();
+                    }
+
+                    @Override
+                    public void failed(final Throwable exc, final Void attachment) {
+                        fail();
+                    }
+                });
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                fail();
+            }
+        });
+        try {
+            lock.await(10, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException ie) {
+            fail("Pending tests");
+        }
+        finally {
+            try {
+                server.shutdown();
+            }
+            catch(IOException ioe) {
+                fail();
+            }
+            assertEquals(0, lock.getCount());
+            assertTrue(thread[0].startsWith("tini-worker"));
+        }
+    }
+}